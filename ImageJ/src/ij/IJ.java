@@ -1498,14 +1498,14 @@ public class IJ {
 	}
 
 	/** Saves the current image, lookup table, selection or text window to the specified file path. 
-		The path must end in ".tif", ".jpg", ".gif", ".zip", ".raw", ".avi", ".bmp", ".fits", ".pgm", ".png", ".lut", ".roi" or ".txt".  */
+		The path must end in ".tif", ".jpg", ".gif", ".zip", ".raw", ".avi", ".bmp", ".fits", ".n5", ".pgm", ".png", ".lut", ".roi" or ".txt".  */
 	public static void save(String path) {
 		save(null, path);
 	}
 
 	/** Saves the specified image, lookup table or selection to the specified file path. 
 		The file path must end with ".tif", ".jpg", ".gif", ".zip", ".raw", ".avi", ".bmp", 
-		".fits", ".pgm", ".png", ".lut", ".roi" or ".txt". */
+		".fits", ".n5", ".pgm", ".png", ".lut", ".roi" or ".txt". */
 	public static void save(ImagePlus imp, String path) {
 		int dotLoc = path.lastIndexOf('.');
 		if (dotLoc!=-1) {
@@ -1520,7 +1520,7 @@ public class IJ {
 
 	/* Saves the active image, lookup table, selection, measurement results, selection XY 
 		coordinates or text window to the specified file path. The format argument must be "tiff", 
-		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "pgm", "png", "text image", "lut", "selection", "measurements", 
+		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "n5", "pgm", "png", "text image", "lut", "selection", "measurements", 
 		"xy Coordinates" or "text".  If <code>path</code> is null or an emply string, a file
 		save dialog is displayed. */
  	public static void saveAs(String format, String path) {
@@ -1528,7 +1528,7 @@ public class IJ {
  	}
 
 	/* Saves the specified image. The format argument must be "tiff",  
-		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "pgm", "png", 
+		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "n5", "pgm", "png", 
 		"text image", "lut", "selection" or "xy Coordinates". */
  	public static void saveAs(ImagePlus imp, String format, String path) {
 		if (format==null) return;
@@ -1566,6 +1566,9 @@ public class IJ {
 		} else if (format.indexOf("fits")!=-1) {
 			path = updateExtension(path, ".fits");
 			format = "FITS...";
+		} else if (format.indexOf("n5")!=-1) {
+			path = updateExtension(path, ".n5");
+			format = "N5...";
 		} else if (format.indexOf("png")!=-1) {
 			path = updateExtension(path, ".png");
 			format = "PNG...";
@@ -77,6 +77,7 @@ public class FileInfo implements Cloneable {
 	public static final int ZIP_ARCHIVE = 7;
 	public static final int PGM = 8;
 	public static final int IMAGEIO = 9;
+	public static final int N5 = 10;
 
 	// Compression modes
 	public static final int COMPRESSION_UNKNOWN = 0;
@@ -86,6 +87,7 @@ public class FileInfo implements Cloneable {
 	public static final int JPEG = 4;
 	public static final int PACK_BITS = 5;
 	public static final int ZIP = 6;
+	public static final int ZIP_WITH_DIFFERENCING = 7;
 	
 	/* File format (TIFF, GIF_OR_JPG, BMP, etc.). Used by the File/Revert command */
 	public int fileFormat;
@@ -104,7 +106,7 @@ public class FileInfo implements Cloneable {
     public boolean whiteIsZero;
     public boolean intelByteOrder;
 	public int compression;
-    public int[] stripOffsets; 
+    public int[] stripOffsets; // Use getStripOffset() to read
     public int[] stripLengths;
     public int rowsPerStrip;
 	public int lutSize;
@@ -138,6 +140,13 @@ public class FileInfo implements Cloneable {
 	public byte[][] overlay;
 	public int samplesPerPixel;
 	public String openNextDir, openNextName;
+	// Tile size of a tiled TIFF, or 0 if the image is stored in strips. The tile
+	// offsets and byte counts, in row-major tile order, are in stripOffsets and stripLengths.
+	public int tileWidth, tileHeight;
+	// Reduced resolution versions of this image (TIFF pyramid levels), largest first, or null
+	public FileInfo[] resolutionLevels;
+	// Set instead of <i>stripOffsets</i> when an offset is larger than 4GB (BigTIFF)
+	public long[] longStripOffsets;  // Use getStripOffset() to read
     
 	/** Creates a FileInfo object with all of its fields set to their default value. */
      public FileInfo() {
@@ -157,6 +166,11 @@ public class FileInfo implements Cloneable {
     	return longOffset>0L?longOffset:((long)offset)&0xffffffffL;
     }
     
+	/** Returns the offset of strip (or tile) 'i' as a long. */
+	public final long getStripOffset(int i) {
+		return longStripOffsets!=null?longStripOffsets[i]:((long)stripOffsets[i])&0xffffffffL;
+	}
+
 	/** Returns the number of bytes used per pixel. */
 	public int getBytesPerPixel() {
 		switch (fileType) {
@@ -186,7 +200,9 @@ public class FileInfo implements Cloneable {
 			+ ", lutSize=" + lutSize
 			+ ", comp=" + compression
 			+ ", ranges=" + (displayRanges!=null?""+displayRanges.length/2:"null")
-			+ ", samples=" + samplesPerPixel;
+			+ ", samples=" + samplesPerPixel
+			+ (tileWidth>0?", tiles=" + tileWidth + "x" + tileHeight:"")
+			+ (resolutionLevels!=null?", levels=" + (resolutionLevels.length+1):"");
     }
     
     private String getType() {
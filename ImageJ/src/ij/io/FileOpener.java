@@ -5,6 +5,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.zip.GZIPInputStream;
+import java.nio.channels.FileChannel;
 import ij.gui.*;
 import ij.process.*;
 import ij.measure.*;
@@ -169,26 +170,50 @@ public class FileOpener {
 		Object pixels;
 		try {
 			ImageReader reader = new ImageReader(fi);
-			InputStream is = createInputStream(fi);
-			if (is==null) return null;
+			InputStream is = null;
+			FileChannel channel = null;
+			File f = getChannelFile(fi);
+			if (f!=null) {
+				if (!validateFileInfo(f, fi)) return null;
+				channel = new RandomAccessFile(f, "r").getChannel();
+			} else {
+				is = createInputStream(fi);
+				if (is==null) return null;
+			}
+			long imageSize = (long)fi.width*fi.height*fi.getBytesPerPixel();
 			IJ.resetEscape();
-			for (int i=1; i<=fi.nImages; i++) {
-				if (!silentMode)
-					IJ.showStatus("Reading: " + i + "/" + fi.nImages);
-				if (IJ.escapePressed()) {
-					IJ.beep();
-					IJ.showProgress(1.0);
-					silentMode = false;
-					return null;
+			try {
+				for (int i=1; i<=fi.nImages; i++) {
+					if (!silentMode)
+						IJ.showStatus("Reading: " + i + "/" + fi.nImages);
+					if (IJ.escapePressed()) {
+						IJ.beep();
+						IJ.showProgress(1.0);
+						silentMode = false;
+						return null;
+					}
+					if (channel!=null) {
+						if (skip>=channel.size()) break;
+						// a truncated last image is read up to the end of the file
+						if (skip+imageSize>channel.size())
+							IJ.log("End of file reached reading image "+i+" of "+fi.nImages+": "+fi.fileName);
+						pixels = reader.readPixels(channel, skip);
+						skip += imageSize + fi.gapBetweenImages;
+					} else {
+						pixels = reader.readPixels(is, skip);
+						skip = fi.gapBetweenImages;
+					}
+					if (pixels==null) break;
+					stack.addSlice(null, pixels);
+					if (!silentMode)
+						IJ.showProgress(i, fi.nImages);
 				}
-				pixels = reader.readPixels(is, skip);
-				if (pixels==null) break;
-				stack.addSlice(null, pixels);
-				skip = fi.gapBetweenImages;
-				if (!silentMode)
-					IJ.showProgress(i, fi.nImages);
+			} finally {
+				if (channel!=null)
+					channel.close();
+				else
+					is.close();
 			}
-			is.close();
 		}
 		catch (Exception e) {
 			IJ.log("" + e);
@@ -291,6 +316,16 @@ public class FileOpener {
 			return;
 		}
 
+		if (fi.fileFormat==fi.N5) {
+			// restore N5 dataset
+			ImagePlus imp2 = (ImagePlus)IJ.runPlugIn("ij.plugin.N5_Reader", path);
+			if (imp2!=null && imp2.getStackSize()>1)
+				imp.setStack(null, imp2.getStack());
+			else if (imp2!=null)
+				imp.setProcessor(null, imp2.getProcessor());
+			return;
+		}
+
 		if (fi.fileFormat==fi.ZIP_ARCHIVE) {
 			// restore ".zip" file
 			ImagePlus imp2 = (new Opener()).openZip(path);
@@ -452,6 +487,20 @@ public class FileOpener {
 			return LookUpTable.createGrayscaleColorModel(fi.whiteIsZero);
 	}
 
+	/** Returns the local file holding the image described by 'fi' if its pixels
+		can be read with positional reads on a FileChannel (see
+		ImageReader.canReadChannel()), otherwise null. */
+	File getChannelFile(FileInfo fi) {
+		if (fi.inputStream!=null || (fi.url!=null && !fi.url.equals("")) || !ImageReader.canReadChannel(fi))
+			return null;
+		if (fi.fileName==null || fi.fileName.endsWith(".gz") || fi.fileName.endsWith(".GZ"))
+			return null;
+		if (fi.directory.length()>0 && !fi.directory.endsWith(Prefs.separator))
+			fi.directory += Prefs.separator;
+		File f = new File(fi.directory + fi.fileName);
+		return f.isFile()?f:null;
+	}
+
 	/** Returns an InputStream for the image described by this FileInfo. */
 	public InputStream createInputStream(FileInfo fi) throws IOException, MalformedURLException {
 		InputStream is = null;
@@ -467,11 +516,13 @@ public class FileOpener {
 		    if (gzip) fi.compression = FileInfo.COMPRESSION_UNKNOWN;
 		    if (f==null || !f.exists() || f.isDirectory() || !validateFileInfo(f, fi))
 		    	is = null;
+		    else if (fi.tileWidth>0 && !gzip)
+				return new RandomAccessStream(new RandomAccessFile(f, "r")); // tiles are read in any order
 		    else
 				is = new FileInputStream(f);
 		}
 		if (is!=null) {
-		    if (fi.compression>=FileInfo.LZW)
+		    if (fi.compression>=FileInfo.LZW || fi.tileWidth>0)
 				is = new RandomAccessStream(is);
 			else if (gzip)
 				is = new GZIPInputStream(is, 50000);
@@ -495,7 +546,7 @@ public class FileOpener {
 		if (fi.fileType==FileInfo.BITMAP || fi.compression!=FileInfo.COMPRESSION_NONE)
 			return true;
 		length = f.length();
-		long size = fi.width*fi.height*fi.getBytesPerPixel();
+		long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
 		size = fi.nImages>1?size:size/4;
 		if (fi.height==1) size = 0; // allows plugins to read info of unknown length at end of file
 		if (offset+size>length) {
@@ -521,10 +572,55 @@ public class FileOpener {
 	}
 
 
+	/** Reads the pixels inside the rectangle 'r' of the image described by
+		the FileInfo object, decoding only the TIFF tiles or strips that
+		intersect it, and returns them as an ImageProcessor. Returns null
+		if there was an error or if this type of image is not supported
+		(see ImageReader.canReadRegions()). */
+	public ImageProcessor openRegion(Rectangle r) {
+		if (!ImageReader.canReadRegions(fi))
+			return null;
+		Object pixels = null;
+		try {
+			InputStream is = createInputStream(fi);
+			if (is==null)
+				return null;
+			RandomAccessStream ras = is instanceof RandomAccessStream?(RandomAccessStream)is:new RandomAccessStream(is);
+			pixels = new ImageReader(fi).readPixels(ras, r);
+			ras.close();
+		}
+		catch (Exception e) {
+			IJ.handleException(e);
+		}
+		if (pixels==null)
+			return null;
+		ColorModel cm = createColorModel(fi);
+		if (pixels instanceof byte[])
+			return new ByteProcessor(r.width, r.height, (byte[])pixels, cm);
+		else if (pixels instanceof short[])
+			return new ShortProcessor(r.width, r.height, (short[])pixels, cm);
+		else if (pixels instanceof int[])
+			return new ColorProcessor(r.width, r.height, (int[])pixels);
+		else
+			return new FloatProcessor(r.width, r.height, (float[])pixels, cm);
+	}
+
 	/** Reads the pixel data from an image described by a FileInfo object. */
 	Object readPixels(FileInfo fi) {
 		Object pixels = null;
 		try {
+			File f = getChannelFile(fi);
+			if (f!=null) {
+				if (!validateFileInfo(f, fi))
+					return null;
+				FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+				try {
+					pixels = new ImageReader(fi).readPixels(channel, fi.getOffset());
+				} finally {
+					channel.close();
+				}
+				return pixels;
+			}
 			InputStream is = createInputStream(fi);
 			if (is==null)
 				return null;
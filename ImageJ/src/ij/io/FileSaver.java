@@ -8,6 +8,7 @@ import ij.measure.Calibration;
 import ij.plugin.filter.Analyzer;
 import ij.plugin.frame.Recorder;
 import ij.plugin.JpegWriter;
+import ij.plugin.N5_Writer;
 import ij.plugin.Orthogonal_Views;
 import ij.gui.*;
 import ij.measure.Measurements;
@@ -18,8 +19,14 @@ public class FileSaver {
 
 	public static final int DEFAULT_JPEG_QUALITY = 85;
 	private static int jpegQuality;
+	private static int tiffCompression;
+	private static int rowsPerStrip;
 	
-    static {setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));}
+    static {
+    	setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));
+    	setTiffCompression(ij.Prefs.getInt(ij.Prefs.TIFF_COMPRESSION, FileInfo.COMPRESSION_NONE));
+    	setRowsPerStrip(ij.Prefs.getInt(ij.Prefs.TIFF_ROWS_PER_STRIP, 0));
+    }
 
 	private static String defaultDirectory = null;
 	private ImagePlus imp;
@@ -104,6 +111,8 @@ public class FileSaver {
 		fi.description = getDescriptionString();
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
+		fi.compression = tiffCompression;
+		fi.rowsPerStrip = rowsPerStrip;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
 			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
@@ -173,6 +182,8 @@ public class FileSaver {
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
 		if (imp.isComposite()) saveDisplayRangesAndLuts(imp, fi);
+		fi.compression = tiffCompression;
+		fi.rowsPerStrip = rowsPerStrip;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
 			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
@@ -427,6 +438,40 @@ public class FileSaver {
 			return true;
 	}
 
+	/** Save the image, stack or hyperstack as an N5 dataset, a directory
+		of compressed blocks, using a save file dialog. Returns false if the
+		user selects cancel. */
+	public boolean saveAsN5() {
+		if (!okForN5(imp)) return false;
+		String path = getPath("N5", ".n5");
+		if (path==null)
+			return false;
+		else
+			return saveAsN5(path);
+	}
+
+	/** Save the image, stack or hyperstack as an N5 dataset in the
+		directory specified by 'path'. */
+	public boolean saveAsN5(String path) {
+		if (!okForN5(imp)) return false;
+		try {
+			N5_Writer.save(imp, path);
+		} catch (IOException e) {
+			showErrorMessage(e);
+			return false;
+		}
+		updateImp(fi, FileInfo.N5);
+		return true;
+	}
+
+	public static boolean okForN5(ImagePlus imp) {
+		if (imp.getBitDepth()==24) {
+			IJ.error("N5 Writer", "RGB images are not supported");
+			return false;
+		} else
+			return true;
+	}
+
 	/** Save the image or stack as raw data using a save file
 		dialog. Returns false if the user selects cancel. */
 	public boolean saveAsRaw() {
@@ -722,5 +767,37 @@ public class FileSaver {
         return jpegQuality;
     }
 
+	/** Specifies the compression used by saveAsTiff() and saveAsTiffStack():
+		FileInfo.COMPRESSION_NONE (the default), LZW, ZIP or PACK_BITS. 
+		LZW_WITH_DIFFERENCING and ZIP_WITH_DIFFERENCING first replace each 
+		pixel by its difference to its left neighbour, which makes smooth 
+		8 and 16-bit images compress much better. */
+    public static void setTiffCompression(int compression) {
+        switch (compression) {
+        	case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING: case FileInfo.ZIP:
+        	case FileInfo.ZIP_WITH_DIFFERENCING: case FileInfo.PACK_BITS:
+        		tiffCompression = compression;
+        		break;
+        	default:
+        		tiffCompression = FileInfo.COMPRESSION_NONE;
+        }
+    }
+
+    /** Returns the current TIFF compression setting. */
+    public static int getTiffCompression() {
+        return tiffCompression;
+    }
+
+	/** Specifies the number of image rows in each strip of a compressed
+		TIFF. The default, 0, uses strips of about 64KB. */
+    public static void setRowsPerStrip(int rows) {
+        rowsPerStrip = rows<0?0:rows;
+    }
+
+    /** Returns the number of rows per strip of compressed TIFFs (0=auto). */
+    public static int getRowsPerStrip() {
+        return rowsPerStrip;
+    }
+
 
 }
@@ -3,7 +3,12 @@ import ij.*;
 import ij.process.*;
 import java.io.*;
 import java.net.*;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import javax.imageio.ImageIO;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
@@ -15,6 +20,8 @@ public class ImageReader {
 
 	private static final int CLEAR_CODE = 256;
 	private static final int EOI_CODE = 257;
+	private static final int MIN_PARALLEL_SIZE = 1<<18; // smaller images are decoded on one thread
+	private static final int CHANNEL_BUFFER_SIZE = 1<<20; // bytes read from a FileChannel at a time
 
     private FileInfo fi;
     private int width, height;
@@ -37,7 +44,7 @@ public class ImageReader {
 	    skipCount = fi.getOffset();
 	}
 	
-	void eofError() {
+	synchronized void eofError() {
 		eofErrorCount++;
 	}
 	
@@ -63,37 +70,7 @@ public class ImageReader {
 	
 	byte[] readCompressed8bitImage(InputStream in) throws IOException {
 		byte[] pixels = new byte[nPixels];
-		int current = 0;
-		byte last = 0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int length = byteArray.length;
-			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=0; b<length; b++) {
-					byteArray[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
-				}
-			}
-			if (current+length>pixels.length) length = pixels.length-current;
-			System.arraycopy(byteArray, 0, pixels, current, length);
-			current += length;
-			showProgress(i+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		return pixels;
 	}
 	
@@ -149,45 +126,7 @@ public class ImageReader {
 	
 	short[] readCompressed16bitImage(InputStream in) throws IOException {
 		short[] pixels = new short[nPixels];
-		int base = 0;
-		short last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+fi.stripOffsets[k]+" "+fi.stripLengths[k]+"  "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
-			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
 			// convert to unsigned
 			for (int i=0; i<nPixels; i++)
@@ -258,50 +197,7 @@ public class ImageReader {
 	
 	float[] readCompressed32bitImage(InputStream in) throws IOException {
 		float[] pixels = new float[nPixels];
-		int base = 0;
-		float last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+fi.stripOffsets[k]+" "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
-			int tmp;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-					pixels[i] = Float.intBitsToFloat(tmp);
-				}
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
-					pixels[i] = Float.intBitsToFloat(tmp);
-				}
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
-			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		return pixels;
 	}
 
@@ -420,15 +316,104 @@ public class ImageReader {
 
 	int[] readCompressedChunkyRGB(InputStream in) throws IOException {
 		int[] pixels = new int[nPixels];
-		int base = 0;
-		int lastRed=0, lastGreen=0, lastBlue=0;
-		int nextByte;
-		int red=0, green=0, blue=0;
-		boolean bgr = fi.fileType==FileInfo.BGR;
-		boolean differencing = fi.compression == FileInfo.LZW_WITH_DIFFERENCING;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+		readStrips(in, pixels);
+		return pixels;
+	}
+
+	/* Reads the strips of a compressed (or uncompressed but stripped) image and
+		decodes them into 'pixels', a byte, short, float or RGB int array of
+		nPixels pixels. The strips are read sequentially, then decoded in 
+		parallel on up to Prefs.getThreads() threads, each strip straight into
+		its rows of 'pixels'. Images with fewer rows per strip than the 
+		RowsPerStrip tag says are decoded strip after strip on this thread. */
+	private void readStrips(InputStream in, final Object pixels) throws IOException {
+		final byte[][] strips = readStripData(in);
+		final int nStrips = strips.length;
+		int rows = fi.rowsPerStrip>0&&fi.rowsPerStrip<height?fi.rowsPerStrip:height;
+		int stripsPerPlane = (height+rows-1)/rows;
+		int nPlanes = nPixels/(width*height); // 3 for planar RGB
+		boolean aligned = nStrips==stripsPerPlane*nPlanes;
+		final int[] base = new int[nStrips];
+		final int[] maxPixels = new int[nStrips];
+		for (int i=0; i<nStrips && aligned; i++) {
+			int row = (i%stripsPerPlane)*rows;
+			base[i] = ((i/stripsPerPlane)*height + row)*width;
+			maxPixels[i] = Math.min(rows, height-row)*width;
+		}
+		int nThreads = Math.min(nStrips, Prefs.getThreads());
+		if (!aligned || (long)nPixels*bytesPerPixel<MIN_PARALLEL_SIZE)
+			nThreads = 1;
+		if (nThreads==1) {
+			StripDecoder decoder = new StripDecoder(fi.compression);
+			try {
+				int current = 0;
+				for (int i=0; i<nStrips; i++) {
+					int max = aligned?maxPixels[i]:nPixels-current;
+					int n = decodeStrip(decoder, strips[i], pixels, aligned?base[i]:current, max);
+					current += n;
+					strips[i] = null;
+					showProgress(i+1, nStrips);
+				}
+			} finally {
+				decoder.close();
+			}
+			return;
+		}
+		final int[] next = new int[1];
+		final Throwable[] failure = new Throwable[1];
+		final Thread caller = Thread.currentThread();
+		Runnable task = new Runnable() {
+			public void run() {
+				StripDecoder decoder = new StripDecoder(fi.compression);
+				try {
+					while (true) {
+						int i;
+						synchronized (next) {
+							if (next[0]>=nStrips || failure[0]!=null) return;
+							i = next[0]++;
+						}
+						decodeStrip(decoder, strips[i], pixels, base[i], maxPixels[i]);
+						strips[i] = null;
+						if (Thread.currentThread()==caller)
+							showProgress(i+1, nStrips);
+					}
+				} catch (Throwable e) {
+					synchronized (next) {
+						failure[0] = e;
+					}
+				} finally {
+					decoder.close();
+				}
+			}
+		};
+		Thread[] threads = new Thread[nThreads];
+		for (int t=1; t<nThreads; t++) {
+			threads[t] = new Thread(task, "ImageReader-"+t);
+			threads[t].setPriority(caller.getPriority());
+			threads[t].start();
+		}
+		task.run();
+		try {
+			for (int t=1; t<nThreads; t++)
+				threads[t].join();
+		} catch (InterruptedException e) {
+			caller.interrupt();
+			throw new InterruptedIOException("ImageReader: interrupted");
+		}
+		if (failure[0] instanceof RuntimeException)
+			throw (RuntimeException)failure[0];
+		if (failure[0] instanceof Error)
+			throw (Error)failure[0];
+	}
+
+	/* Reads the data of all the strips of the image, in file order. */
+	private byte[][] readStripData(InputStream in) throws IOException {
+		byte[][] strips = new byte[fi.stripOffsets.length][];
+		for (int i=0; i<strips.length; i++) {
+			if (in instanceof RandomAccessStream)
+				((RandomAccessStream)in).seek(fi.getStripOffset(i));
+			else if (i > 0) {
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip > 0L) in.skip(skip);
 			}
 			byte[] byteArray = new byte[fi.stripLengths[i]];
@@ -439,38 +424,91 @@ public class ImageReader {
 				read += r;
 				left -= r;
 			}
-			byteArray = uncompress(byteArray);
+			strips[i] = byteArray;
+		}
+		return strips;
+	}
+
+	/* Uncompresses one strip into pixels[base] to pixels[base+maxPixels-1],
+		undoing horizontal differencing, and returns the number of pixels 
+		decoded. Only complete rows are kept. 8-bit strips are uncompressed
+		directly into 'pixels', others through the decoder's buffer. */
+	private int decodeStrip(StripDecoder decoder, byte[] data, Object pixels, int base, int maxPixels) {
+		boolean differencing = isDifferenced();
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			int length = decoder.decode(data, bytes, base, maxPixels);
+			int n = length - length%width;
+			for (int i=base+n; i<base+length; i++)
+				bytes[i] = 0; // incomplete row
 			if (differencing) {
-				for (int b=0; b<byteArray.length; b++) {
-					if (b / bytesPerPixel % fi.width == 0) continue;
-					byteArray[b] += byteArray[b - bytesPerPixel];
+				for (int row=base; row<base+n; row+=width) {
+					for (int i=row+1; i<row+width; i++)
+						bytes[i] += bytes[i-1];
 				}
 			}
-			int k = 0;
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
-			for (int j=base; j<pmax; j++) {
-				if (bytesPerPixel==4) {
-					red = byteArray[k++]&0xff;
-					green = byteArray[k++]&0xff;
-					blue = byteArray[k++]&0xff;
-					k++; // ignore alfa byte
-				} else {
-					red = byteArray[k++]&0xff;
-					green = byteArray[k++]&0xff;
-					blue = byteArray[k++]&0xff;
+			return n;
+		}
+		byte[] byteArray = decoder.getBuffer(maxPixels*bytesPerPixel);
+		int n = decoder.decode(data, byteArray, 0, maxPixels*bytesPerPixel)/bytesPerPixel;
+		n -= n%width;
+		int pmax = base + n;
+		if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			if (fi.intelByteOrder) {
+				for (int i=base,j=0; i<pmax; i++,j+=2)
+					shorts[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+			} else {
+				for (int i=base,j=0; i<pmax; i++,j+=2)
+					shorts[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
+			}
+			if (differencing) {
+				for (int row=base; row<pmax; row+=width) {
+					for (int i=row+1; i<row+width; i++)
+						shorts[i] += shorts[i-1];
 				}
+			}
+		} else if (pixels instanceof float[]) {
+			float[] floats = (float[])pixels;
+			int tmp;
+			if (fi.intelByteOrder) {
+				for (int i=base,j=0; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+					floats[i] = Float.intBitsToFloat(tmp);
+				}
+			} else {
+				for (int i=base,j=0; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
+					floats[i] = Float.intBitsToFloat(tmp);
+				}
+			}
+			if (differencing) {
+				for (int row=base; row<pmax; row+=width) {
+					for (int i=row+1; i<row+width; i++)
+						floats[i] += floats[i-1];
+				}
+			}
+		} else {
+			int[] rgb = (int[])pixels;
+			if (differencing) {
+				int rowBytes = width*bytesPerPixel;
+				for (int row=0; row<n*bytesPerPixel; row+=rowBytes) {
+					for (int b=row+bytesPerPixel; b<row+rowBytes; b++)
+						byteArray[b] += byteArray[b-bytesPerPixel];
+				}
+			}
+			boolean bgr = fi.fileType==FileInfo.BGR;
+			for (int i=base,k=0; i<pmax; i++,k+=bytesPerPixel) {
+				int red = byteArray[k]&0xff;
+				int green = byteArray[k+1]&0xff;
+				int blue = byteArray[k+2]&0xff; // the alpha byte, if any, is ignored
 				if (bgr)
-					pixels[j] = 0xff000000 | (blue<<16) | (green<<8) | red;
+					rgb[i] = 0xff000000 | (blue<<16) | (green<<8) | red;
 				else
-					pixels[j] = 0xff000000 | (red<<16) | (green<<8) | blue;
+					rgb[i] = 0xff000000 | (red<<16) | (green<<8) | blue;
 			}
-			base += pixelsRead;
-			showProgress(i+1, fi.stripOffsets.length);
 		}
-		return pixels;
+		return n;
 	}
 	
 	int[] readJPEG(InputStream in) throws IOException {
@@ -558,7 +596,7 @@ public class ImageReader {
 		}
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -590,7 +628,7 @@ public class ImageReader {
 	}
 
 	Object readCompressedRGB48(InputStream in) throws IOException {
-		if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
+		if (isDifferenced())
 			throw new IOException("ImageJ cannot open 48-bit LZW compressed TIFFs with predictor");
 		int channels = 3;
 		short[][] stack = new short[channels][nPixels];
@@ -599,7 +637,7 @@ public class ImageReader {
 		int min=65535, max=0;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -742,6 +780,10 @@ public class ImageReader {
 	*/
 	public Object readPixels(InputStream in) {
 		Object pixels;
+		if (fi.tileWidth>0) {
+			RandomAccessStream ras = in instanceof RandomAccessStream?(RandomAccessStream)in:new RandomAccessStream(in);
+			return readPixels(ras, new Rectangle(0, 0, width, height));
+		}
 		startTime = System.currentTimeMillis();
 		try {
 			switch (fi.fileType) {
@@ -834,6 +876,125 @@ public class ImageReader {
 			return pixels;
 	}
 	
+	/** Returns true if the image described by 'fi' is an uncompressed 8, 16 or 32-bit
+		grayscale image stored as one contiguous block of bytes, which can be read with
+		readPixels(FileChannel, long). */
+	public static boolean canReadChannel(FileInfo fi) {
+		if (fi.compression>FileInfo.COMPRESSION_NONE || fi.tileWidth>0)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+				break;
+			default:
+				return false;
+		}
+		if (fi.stripOffsets!=null && fi.stripLengths!=null && fi.stripOffsets.length>1) {
+			if (fi.stripLengths.length<fi.stripOffsets.length)
+				return false;
+			for (int i=1; i<fi.stripOffsets.length; i++) {
+				if (fi.getStripOffset(i)!=fi.getStripOffset(i-1)+fi.stripLengths[i-1])
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/** 
+	Reads an image that starts 'offset' bytes into the file using positional
+	reads on the FileChannel and returns the pixel array (byte, short or float).
+	The bytes are read straight into the array (8-bit) or converted in bulk
+	in the byte order of the file. Pixels past the end of the file are set
+	to zero. Returns null if there was an IO exception or if this type of
+	image cannot be read this way (see canReadChannel()). Does not close
+	the channel.
+	*/
+	public Object readPixels(FileChannel channel, long offset) {
+		if (!canReadChannel(fi))
+			return null;
+		startTime = System.currentTimeMillis();
+		bytesPerPixel = fi.getBytesPerPixel();
+		nPixels = width*height;
+		byteCount = ((long)nPixels)*bytesPerPixel;
+		try {
+			Object pixels;
+			if (bytesPerPixel==1) {
+				byte[] bytes = new byte[nPixels];
+				readChannel(channel, offset, ByteBuffer.wrap(bytes), 0L);
+				pixels = bytes;
+			} else {
+				if (bytesPerPixel==2)
+					pixels = new short[nPixels];
+				else
+					pixels = new float[nPixels];
+				int size = (int)Math.min(byteCount, CHANNEL_BUFFER_SIZE);
+				ByteBuffer buffer = ByteBuffer.allocate(size);
+				buffer.order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+				int base = 0;
+				for (long pos=0L; pos<byteCount; pos+=size) {
+					buffer.clear();
+					buffer.limit((int)Math.min(size, byteCount-pos));
+					readChannel(channel, offset+pos, buffer, pos);
+					int count = buffer.limit()/bytesPerPixel;
+					buffer.rewind();
+					convert(buffer, pixels, base, count);
+					base += count;
+				}
+			}
+			showProgress(1, 1);
+			return pixels;
+		}
+		catch (IOException e) {
+			IJ.log("" + e);
+			return null;
+		}
+	}
+
+	/* Fills 'buffer' with the bytes at 'position' in the channel, setting any
+		bytes past the end of the file to zero. */
+	private void readChannel(FileChannel channel, long position, ByteBuffer buffer, long done) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position+buffer.position()-start);
+			if (count==-1) {
+				eofError();
+				while (buffer.hasRemaining())
+					buffer.put((byte)0);
+				break;
+			}
+			showProgress(done+buffer.position()-start, byteCount);
+		}
+	}
+
+	/* Converts 'count' pixels from 'buffer' to pixels[base] to pixels[base+count-1]. */
+	private void convert(ByteBuffer buffer, Object pixels, int base, int count) {
+		switch (fi.fileType) {
+			case FileInfo.GRAY16_SIGNED:
+				short[] pixels16 = (short[])pixels;
+				buffer.asShortBuffer().get(pixels16, base, count);
+				for (int i=base; i<base+count; i++)
+					pixels16[i] = (short)(pixels16[i]+32768);
+				break;
+			case FileInfo.GRAY16_UNSIGNED:
+				buffer.asShortBuffer().get((short[])pixels, base, count);
+				break;
+			case FileInfo.GRAY32_FLOAT:
+				buffer.asFloatBuffer().get((float[])pixels, base, count);
+				break;
+			case FileInfo.GRAY32_INT:
+			case FileInfo.GRAY32_UNSIGNED:
+				float[] pixels32 = (float[])pixels;
+				IntBuffer ints = buffer.asIntBuffer();
+				boolean unsigned = fi.fileType==FileInfo.GRAY32_UNSIGNED;
+				for (int i=0; i<count; i++) {
+					int value = ints.get(i);
+					pixels32[base+i] = unsigned?(float)(value&0xffffffffL):value;
+				}
+				break;
+		}
+	}
+
 	/** 
 	Reads the image from a URL and returns the pixel array (byte, 
 	short, int or float). Returns null if there was an IO exception.
@@ -848,17 +1009,242 @@ public class ImageReader {
 		return readPixels(is);
 	}
 	
+	/** 
+	Reads the pixels inside the rectangle 'r' and returns them as a byte,
+	short, float or RGB int array of r.width*r.height pixels. Only the
+	tiles of a tiled TIFF, or the strips of a compressed one, that
+	intersect 'r' are read and decoded; uncompressed images are read
+	row by row. Pixels of 'r' outside the image are set to zero.
+	Returns null if there was an IO exception or if regions of this 
+	type of image cannot be read (see canReadRegions()). Does not
+	close the stream.
+	*/
+	public Object readPixels(RandomAccessStream in, Rectangle r) {
+		if (!canReadRegions(fi))
+			return null;
+		startTime = System.currentTimeMillis();
+		bytesPerPixel = fi.getBytesPerPixel();
+		nPixels = r.width*r.height;
+		Object pixels;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				pixels = new byte[nPixels]; break;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				pixels = new short[nPixels]; break;
+			case FileInfo.RGB: case FileInfo.ARGB:
+				pixels = new int[nPixels]; break;
+			default:
+				pixels = new float[nPixels]; break;
+		}
+		try {
+			readTiles(in, r, pixels);
+		}
+		catch (IOException e) {
+			IJ.log("" + e);
+			return null;
+		}
+		showProgress(1, 1);
+		return pixels;
+	}
+
+	/** Returns true if readPixels(RandomAccessStream,Rectangle) can read 
+		images of the type described by 'fi'. */
+	public static boolean canReadRegions(FileInfo fi) {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.ARGB:
+				break;
+			default:
+				return false;
+		}
+		switch (fi.compression) {
+			case FileInfo.COMPRESSION_NONE: case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+			case FileInfo.PACK_BITS: case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				break;
+			default:
+				return false;
+		}
+		boolean compressedOrTiled = fi.compression!=FileInfo.COMPRESSION_NONE || fi.tileWidth>0;
+		return !compressedOrTiled || (fi.stripOffsets!=null && fi.stripLengths!=null);
+	}
+
+	/* Width and height of the tiles. The strips of an image that is not
+		tiled are handled as tiles as wide as the image, and an uncompressed
+		image that is not tiled as a single tile. */
+	private int getTileWidth() {
+		return fi.tileWidth>0?fi.tileWidth:width;
+	}
+
+	private int getTileHeight() {
+		if (fi.tileWidth>0)
+			return fi.tileHeight;
+		if (fi.compression==FileInfo.COMPRESSION_NONE || fi.rowsPerStrip<=0 || fi.rowsPerStrip>height)
+			return height;
+		return fi.rowsPerStrip;
+	}
+
+	private long getTileOffset(int index) {
+		if (fi.tileWidth==0 && fi.compression==FileInfo.COMPRESSION_NONE)
+			return fi.getOffset(); // assume contiguous strips
+		return fi.getStripOffset(index);
+	}
+
+	/* Decodes the tiles that intersect 'r' and copies their pixels inside
+		'r' into 'pixels', using the tile index to find them in the file. */
+	private void readTiles(RandomAccessStream in, Rectangle r, Object pixels) throws IOException {
+		int tileWidth = getTileWidth();
+		int tileHeight = getTileHeight();
+		if (tileWidth<=0 || tileHeight<=0)
+			throw new IOException("Invalid tile size: "+tileWidth+"x"+tileHeight);
+		int tilesAcross = (width+tileWidth-1)/tileWidth;
+		int x1 = Math.max(r.x, 0), y1 = Math.max(r.y, 0);
+		int x2 = Math.min(r.x+r.width, width), y2 = Math.min(r.y+r.height, height);
+		if (x1>=x2 || y1>=y2)
+			return;
+		int firstColumn=x1/tileWidth, lastColumn=(x2-1)/tileWidth;
+		int firstRow=y1/tileHeight, lastRow=(y2-1)/tileHeight;
+		int nTiles = (lastColumn-firstColumn+1)*(lastRow-firstRow+1);
+		int tileSize = tileWidth*tileHeight*bytesPerPixel;
+		boolean compressed = fi.compression!=FileInfo.COMPRESSION_NONE;
+		StripDecoder decoder = compressed?new StripDecoder(fi.compression):null;
+		byte[] buffer = null;
+		int count = 0;
+		for (int row=firstRow; row<=lastRow; row++) {
+			for (int column=firstColumn; column<=lastColumn; column++) {
+				int index = row*tilesAcross + column;
+				int tx = column*tileWidth, ty = row*tileHeight;
+				int xstart = Math.max(x1, tx), xend = Math.min(x2, tx+tileWidth);
+				int ystart = Math.max(y1, ty), yend = Math.min(y2, ty+tileHeight);
+				int n = xend - xstart;
+				if (compressed) {
+					if (index>=fi.stripOffsets.length)
+						{eofError(); continue;}
+					int length = readTile(in, decoder, index, tileSize, tileWidth);
+					byte[] tile = decoder.getBuffer(tileSize);
+					for (int y=ystart; y<yend; y++) {
+						int src = ((y-ty)*tileWidth + xstart-tx)*bytesPerPixel;
+						if (src+n*bytesPerPixel>length)
+							{eofError(); break;}
+						copyPixels(tile, src, pixels, (y-r.y)*r.width + xstart-r.x, n);
+					}
+				} else {
+					// read only the part of each tile row that is inside 'r'
+					if (fi.tileWidth>0 && index>=fi.stripOffsets.length)
+						{eofError(); continue;}
+					long offset = getTileOffset(index);
+					int rowBytes = n*bytesPerPixel;
+					if (buffer==null)
+						buffer = new byte[tileWidth*bytesPerPixel];
+					for (int y=ystart; y<yend; y++) {
+						in.seek(offset + ((long)(y-ty)*tileWidth + xstart-tx)*bytesPerPixel);
+						in.readFully(buffer, rowBytes);
+						copyPixels(buffer, 0, pixels, (y-r.y)*r.width + xstart-r.x, n);
+					}
+				}
+				showProgress(++count, nTiles);
+			}
+		}
+		if (decoder!=null)
+			decoder.close();
+	}
+
+	/* Reads and uncompresses a tile into the decoder's buffer, undoing
+		horizontal differencing. Returns the number of bytes decoded. */
+	private int readTile(RandomAccessStream in, StripDecoder decoder, int index, int tileSize, int tileWidth) throws IOException {
+		byte[] data = new byte[fi.stripLengths[index]];
+		in.seek(fi.getStripOffset(index));
+		in.readFully(data, data.length);
+		byte[] tile = decoder.getBuffer(tileSize);
+		int length = decoder.decode(data, tile, 0, tileSize);
+		if (isDifferenced())
+			undoDifferencing(tile, length, tileWidth);
+		return length;
+	}
+
+	/* Horizontal differencing (TIFF predictor 2) works on whole samples, so 
+		multi-byte samples are added byte by byte with carry, in file byte order. */
+	private void undoDifferencing(byte[] data, int length, int tileWidth) {
+		int bytesPerSample = fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.ARGB?1:bytesPerPixel;
+		int step = bytesPerSample==1?bytesPerPixel:bytesPerSample;
+		int rowBytes = tileWidth*bytesPerPixel;
+		for (int row=0; row+rowBytes<=length; row+=rowBytes) {
+			if (bytesPerSample==1) {
+				for (int i=row+step; i<row+rowBytes; i++)
+					data[i] += data[i-step];
+			} else {
+				for (int i=row+step; i<row+rowBytes; i+=step) {
+					int carry = 0;
+					for (int b=0; b<bytesPerSample; b++) {
+						int k = fi.intelByteOrder?b:bytesPerSample-1-b;
+						int sum = (data[i+k]&0xff) + (data[i-step+k]&0xff) + carry;
+						data[i+k] = (byte)sum;
+						carry = sum>>8;
+					}
+				}
+			}
+		}
+	}
+
+	/* Converts 'n' pixels in file format, starting at byte 'src' of 'buffer',
+		to the pixel array 'pixels', starting at index 'dst'. */
+	private void copyPixels(byte[] buffer, int src, Object pixels, int dst, int n) {
+		int end = dst + n;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				System.arraycopy(buffer, src, pixels, dst, n);
+				break;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				short[] shorts = (short[])pixels;
+				int add = fi.fileType==FileInfo.GRAY16_SIGNED?32768:0;
+				if (fi.intelByteOrder) {
+					for (int i=dst,j=src; i<end; i++,j+=2)
+						shorts[i] = (short)((((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff))+add);
+				} else {
+					for (int i=dst,j=src; i<end; i++,j+=2)
+						shorts[i] = (short)((((buffer[j]&0xff)<<8) | (buffer[j+1]&0xff))+add);
+				}
+				break;
+			case FileInfo.RGB: case FileInfo.ARGB:
+				int[] rgb = (int[])pixels;
+				for (int i=dst,j=src; i<end; i++,j+=bytesPerPixel)
+					rgb[i] = 0xff000000 | ((buffer[j]&0xff)<<16) | ((buffer[j+1]&0xff)<<8) | (buffer[j+2]&0xff);
+				break;
+			default:
+				float[] floats = (float[])pixels;
+				for (int i=dst,j=src; i<end; i++,j+=4) {
+					int tmp;
+					if (fi.intelByteOrder)
+						tmp = ((buffer[j+3]&0xff)<<24) | ((buffer[j+2]&0xff)<<16) | ((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff);
+					else
+						tmp = ((buffer[j]&0xff)<<24) | ((buffer[j+1]&0xff)<<16) | ((buffer[j+2]&0xff)<<8) | (buffer[j+3]&0xff);
+					if (fi.fileType==FileInfo.GRAY32_FLOAT)
+						floats[i] = Float.intBitsToFloat(tmp);
+					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+						floats[i] = (float)(tmp&0xffffffffL);
+					else
+						floats[i] = tmp;
+				}
+		}
+	}
+
 	byte[] uncompress(byte[] input) {
 		if (fi.compression==FileInfo.PACK_BITS)
 			return packBitsUncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
 		else if (fi.compression==FileInfo.LZW || fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
 			return lzwUncompress(input);
-		else if (fi.compression==FileInfo.ZIP)
+		else if (fi.compression==FileInfo.ZIP || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING)
 			return zipUncompress(input);
 		else
 			return input;
 	}
 
+	/** Returns true if the data were compressed after horizontal differencing (TIFF predictor 2). */
+	boolean isDifferenced() {
+		return fi.compression==FileInfo.LZW_WITH_DIFFERENCING || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+	}
+
 	/** TIFF Adobe ZIP support contributed by Jason Newton. */
 	public byte[] zipUncompress(byte[] input) {
 		ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
@@ -1,10 +1,14 @@
 package ij.io;
 import java.io.*;
+import java.util.zip.Deflater;
 import ij.*;  //??
 import ij.process.ImageProcessor;
 
-/** Writes a raw image described by a FileInfo object to an OutputStream. */
+/** Writes a raw image described by a FileInfo object to an OutputStream. Also
+	compresses images strip by strip (LZW, ZIP or PackBits) for the TiffEncoder. */
 public class ImageWriter {
+	static final int STRIP_SIZE = 65536; // default uncompressed bytes per strip
+	static final int LZW_CLEAR = 256, LZW_EOI = 257, LZW_HASH_SIZE = 9973;
 	private FileInfo fi;
 	private boolean showProgressBar=true;
 	
@@ -249,6 +253,332 @@ public class ImageWriter {
 		}
 	}
 
+	/** Returns true if fi.compression is one that this class can write. */
+	public static boolean canCompress(FileInfo fi) {
+		switch (fi.compression) {
+			case FileInfo.LZW: case FileInfo.ZIP: case FileInfo.PACK_BITS:
+				break;
+			case FileInfo.LZW_WITH_DIFFERENCING: case FileInfo.ZIP_WITH_DIFFERENCING:
+				if (fi.fileType==FileInfo.GRAY32_FLOAT)
+					return false; // predictor 2 is for integer samples
+				break;
+			default:
+				return false;
+		}
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED: case FileInfo.GRAY32_FLOAT: case FileInfo.RGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** Returns the number of rows in each strip of a compressed image: 
+		fi.rowsPerStrip if it is set, otherwise enough rows for about 64KB. */
+	public int getRowsPerStrip() {
+		int rows = fi.rowsPerStrip;
+		if (rows<=0)
+			rows = STRIP_SIZE/Math.max(fi.width*fi.getBytesPerPixel(), 1);
+		return Math.max(1, Math.min(rows, fi.height));
+	}
+
+	/** Returns the number of strips in each compressed image. */
+	public int getStripCount() {
+		int rows = getRowsPerStrip();
+		return (fi.height+rows-1)/rows;
+	}
+
+	/** Returns the pixel array of image 'n' (0-based). */
+	Object getPixels(int n) {
+		if (fi.nImages>1 && fi.virtualStack!=null) {
+			ImageProcessor ip = fi.virtualStack.getProcessor(n+1);
+			if ("FlipTheseImages".equals(fi.fileName))
+				ip.flipVertical();
+			return ip.getPixels();
+		} else if (fi.nImages>1)
+			return ((Object[])fi.pixels)[n];
+		else
+			return fi.pixels;
+	}
+
+	/** Compresses images 'first' to first+count-1 (0-based), returning the
+		compressed strips as an array of [image][strip]. The strips of all these
+		images are encoded in parallel on Prefs.getThreads() threads, so pass 
+		several images at a time when images have only a few strips. */
+	public byte[][][] compress(int first, int count) throws IOException {
+		if (!canCompress(fi))
+			throw new IOException("ImageWriter: unsupported compression");
+		final Object[] pixels = new Object[count];
+		for (int i=0; i<count; i++)
+			pixels[i] = getPixels(first+i); // virtual stacks are read on this thread
+		final int nStrips = getStripCount();
+		final int nTasks = count*nStrips;
+		final byte[][][] strips = new byte[count][nStrips][];
+		final int[] next = new int[1];
+		final Throwable[] failure = new Throwable[1];
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						int n;
+						synchronized (next) {
+							if (next[0]>=nTasks || failure[0]!=null) return;
+							n = next[0]++;
+						}
+						strips[n/nStrips][n%nStrips] = compressStrip(pixels[n/nStrips], n%nStrips);
+					}
+				} catch (Throwable e) {
+					synchronized (next) {
+						failure[0] = e;
+					}
+				}
+			}
+		};
+		int nThreads = Math.min(nTasks, Prefs.getThreads());
+		Thread[] threads = new Thread[nThreads];
+		for (int t=1; t<nThreads; t++) {
+			threads[t] = new Thread(task, "TiffEncoder-"+t);
+			threads[t].setPriority(Thread.currentThread().getPriority());
+			threads[t].start();
+		}
+		task.run();
+		try {
+			for (int t=1; t<nThreads; t++)
+				threads[t].join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("ImageWriter: interrupted");
+		}
+		if (failure[0] instanceof OutOfMemoryError)
+			throw (OutOfMemoryError)failure[0];
+		if (failure[0]!=null)
+			throw new IOException("ImageWriter: "+failure[0]);
+		return strips;
+	}
+
+	/** Converts one strip of an image to bytes in file order and compresses it. */
+	byte[] compressStrip(Object pixels, int strip) {
+		int rows = getRowsPerStrip();
+		int y1 = strip*rows;
+		int y2 = Math.min(y1+rows, fi.height);
+		boolean differencing = fi.compression==FileInfo.LZW_WITH_DIFFERENCING
+			|| fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+		byte[] bytes = getStripBytes(pixels, y1, y2, differencing);
+		switch (fi.compression) {
+			case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+				return lzwCompress(bytes);
+			case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				return zipCompress(bytes);
+			case FileInfo.PACK_BITS:
+				return packBitsCompress(bytes, fi.width*fi.getBytesPerPixel());
+			default:
+				return bytes;
+		}
+	}
+
+	/** Returns rows y1 to y2-1 as they are stored in the file. With 'differencing', each
+		sample is replaced by its difference to the sample on its left (TIFF predictor 2). */
+	byte[] getStripBytes(Object pixels, int y1, int y2, boolean differencing) {
+		int width = fi.width;
+		int size = (y2-y1)*width;
+		int j = 0;
+		switch (fi.fileType) {
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED:
+				short[] shorts = (short[])pixels;
+				byte[] bytes16 = new byte[size*2];
+				for (int y=y1; y<y2; y++) {
+					for (int i=y*width, x=0; x<width; i++, x++) {
+						int v = shorts[i];
+						if (differencing && x>0)
+							v -= shorts[i-1];
+						if (fi.intelByteOrder) {
+							bytes16[j++] = (byte)v;
+							bytes16[j++] = (byte)(v>>>8);
+						} else {
+							bytes16[j++] = (byte)(v>>>8);
+							bytes16[j++] = (byte)v;
+						}
+					}
+				}
+				return bytes16;
+			case FileInfo.GRAY32_FLOAT:
+				float[] floats = (float[])pixels;
+				byte[] bytes32 = new byte[size*4];
+				for (int i=y1*width; i<y2*width; i++) {
+					int v = Float.floatToRawIntBits(floats[i]);
+					if (fi.intelByteOrder) {
+						bytes32[j++] = (byte)v;
+						bytes32[j++] = (byte)(v>>>8);
+						bytes32[j++] = (byte)(v>>>16);
+						bytes32[j++] = (byte)(v>>>24);
+					} else {
+						bytes32[j++] = (byte)(v>>>24);
+						bytes32[j++] = (byte)(v>>>16);
+						bytes32[j++] = (byte)(v>>>8);
+						bytes32[j++] = (byte)v;
+					}
+				}
+				return bytes32;
+			case FileInfo.RGB:
+				int[] ints = (int[])pixels;
+				byte[] rgb = new byte[size*3];
+				for (int y=y1; y<y2; y++) {
+					for (int i=y*width, x=0; x<width; i++, x++) {
+						int c = ints[i];
+						int left = differencing&&x>0?ints[i-1]:0;
+						rgb[j++] = (byte)((c>>16)-(left>>16));	//red
+						rgb[j++] = (byte)((c>>8)-(left>>8));	//green
+						rgb[j++] = (byte)(c-left);				//blue
+					}
+				}
+				return rgb;
+			default:
+				byte[] bytes8 = (byte[])pixels;
+				byte[] strip = new byte[size];
+				System.arraycopy(bytes8, y1*width, strip, 0, size);
+				if (differencing) {
+					for (int i=size-1; i>0; i--) {
+						if (i%width!=0)
+							strip[i] -= strip[i-1];
+					}
+				}
+				return strip;
+		}
+	}
+
+	/** Compresses data using TIFF LZW: codes of 9 to 12 bits, written most 
+		significant bit first, with the code size increased one code early. */
+	public static byte[] lzwCompress(byte[] input) {
+		int[] keys = new int[LZW_HASH_SIZE];
+		short[] values = new short[LZW_HASH_SIZE];
+		byte[] out = new byte[input.length/2+64];
+		int outSize = 0;
+		int bits = 0, nBits = 0;
+		int codeSize = 9;
+		int nextCode = 258;
+		int prefix = -1;
+		for (int i=0; i<=input.length+2; i++) {
+			int code;
+			if (i==0)
+				code = LZW_CLEAR;
+			else if (i==input.length+2)
+				code = LZW_EOI;
+			else if (i==input.length+1) {
+				if (prefix<0) continue;
+				code = prefix;
+			} else {
+				int c = input[i-1]&255;
+				if (prefix<0) {
+					prefix = c;
+					continue;
+				}
+				int key = (prefix<<8|c)+1; // 0 marks an empty slot
+				int h = (c<<12^prefix)%LZW_HASH_SIZE;
+				while (keys[h]!=0 && keys[h]!=key)
+					h = h==LZW_HASH_SIZE-1?0:h+1;
+				if (keys[h]==key) {
+					prefix = values[h];
+					continue;
+				}
+				code = prefix;
+				keys[h] = key;
+				values[h] = (short)nextCode;
+				prefix = c;
+			}
+			if (outSize+4>out.length) {
+				byte[] out2 = new byte[out.length*2];
+				System.arraycopy(out, 0, out2, 0, outSize);
+				out = out2;
+			}
+			bits = bits<<codeSize | code;
+			nBits += codeSize;
+			while (nBits>=8) {
+				out[outSize++] = (byte)(bits>>>(nBits-8));
+				nBits -= 8;
+			}
+			if (code==LZW_CLEAR)
+				continue;
+			if (code==LZW_EOI)
+				break;
+			nextCode++; // the decoder adds the entry for this code when it reads the next one
+			if (nextCode==4094) {
+				bits = bits<<codeSize | LZW_CLEAR;
+				nBits += codeSize;
+				while (nBits>=8) {
+					out[outSize++] = (byte)(bits>>>(nBits-8));
+					nBits -= 8;
+				}
+				java.util.Arrays.fill(keys, 0);
+				codeSize = 9;
+				nextCode = 258;
+			} else if (nextCode>(1<<codeSize)-1)
+				codeSize++;
+		}
+		if (nBits>0)
+			out[outSize++] = (byte)(bits<<(8-nBits));
+		byte[] result = new byte[outSize];
+		System.arraycopy(out, 0, result, 0, outSize);
+		return result;
+	}
+
+	/** Compresses data using the zlib format of Deflate ("Adobe Deflate" in TIFF), at
+		the fastest level: with differencing, higher levels gain little on camera images. */
+	public static byte[] zipCompress(byte[] input) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(input);
+		deflater.finish();
+		byte[] out = new byte[input.length/2+64];
+		int outSize = 0;
+		while (!deflater.finished()) {
+			if (outSize==out.length) {
+				byte[] out2 = new byte[out.length*2];
+				System.arraycopy(out, 0, out2, 0, outSize);
+				out = out2;
+			}
+			outSize += deflater.deflate(out, outSize, out.length-outSize);
+		}
+		deflater.end();
+		byte[] result = new byte[outSize];
+		System.arraycopy(out, 0, result, 0, outSize);
+		return result;
+	}
+
+	/** Compresses data using PackBits run-length encoding. Runs do not cross 
+		row boundaries, so each row of 'rowBytes' bytes is packed separately. */
+	public static byte[] packBitsCompress(byte[] input, int rowBytes) {
+		if (rowBytes<=0) rowBytes = input.length;
+		int nRows = (input.length+rowBytes-1)/rowBytes;
+		byte[] out = new byte[input.length+nRows*((rowBytes+127)/128)];
+		int outSize = 0;
+		for (int row=0; row<input.length; row+=rowBytes) {
+			int end = Math.min(row+rowBytes, input.length);
+			int i = row;
+			while (i<end) {
+				int run = 1;
+				while (i+run<end && run<128 && input[i+run]==input[i])
+					run++;
+				if (run>1) {
+					out[outSize++] = (byte)(1-run);
+					out[outSize++] = input[i];
+					i += run;
+				} else {
+					int j = i+1;
+					while (j<end && j-i<128 && !(j+2<end && input[j]==input[j+1] && input[j]==input[j+2]))
+						j++;
+					out[outSize++] = (byte)(j-i-1);
+					System.arraycopy(input, i, out, outSize, j-i);
+					outSize += j-i;
+					i = j;
+				}
+			}
+		}
+		byte[] result = new byte[outSize];
+		System.arraycopy(out, 0, result, 0, outSize);
+		return result;
+	}
+
 	/** Writes the image to the specified OutputStream.
 		The OutputStream is not closed. The fi.pixels field
 		must contain the image data. If fi.nImages>1
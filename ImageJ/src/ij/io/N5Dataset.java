@@ -0,0 +1,696 @@
+package ij.io;
+import ij.Prefs;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** An N-dimensional array stored in the N5 format: a directory holding
+	an "attributes.json" file, which gives the size, block size, data type
+	and compression of the array, and one file per block (chunk) of the
+	array, at the path given by its grid position (for example "3/0/12").
+	Blocks that have never been written are read as zeros, and blocks are
+	read and written on Prefs.getThreads() threads. Dimensions are listed
+	fastest varying first, so an ImageJ image is x, y, then the other axes.
+	The format is described at "https://github.com/saalfeldlab/n5".
+*/
+public class N5Dataset {
+
+	public static final String ATTRIBUTES = "attributes.json";
+	public static final String UINT8="uint8", INT8="int8", UINT16="uint16", INT16="int16",
+		UINT32="uint32", INT32="int32", UINT64="uint64", INT64="int64", FLOAT32="float32", FLOAT64="float64";
+	public static final String RAW="raw", GZIP="gzip";
+
+	private String directory;
+	private int[] dimensions;
+	private int[] blockSize;
+	private String dataType;
+	private String compression;
+	private boolean useZlib;
+	private int bytesPerElement;
+	private String attributes;
+
+	/** Opens an existing dataset. 'path' is the directory of the
+		dataset or the path of its attributes.json file. */
+	public N5Dataset(String path) throws IOException {
+		File f = new File(path);
+		if (!f.isDirectory() && f.getName().equals(ATTRIBUTES))
+			f = f.getParentFile();
+		directory = f.getPath();
+		attributes = readText(new File(f, ATTRIBUTES));
+		dimensions = getIntArray(getValue(attributes, "dimensions"));
+		blockSize = getIntArray(getValue(attributes, "blockSize"));
+		dataType = getValue(attributes, "dataType");
+		String c = getValue(attributes, "compression");
+		if (c!=null && c.startsWith("{")) {
+			compression = getValue(c, "type");
+			useZlib = "true".equals(getValue(c, "useZlib"));
+		} else if (c!=null)
+			compression = c;
+		else
+			compression = getValue(attributes, "compressionType"); // N5 before version 2
+		if (compression==null)
+			compression = RAW;
+		if (dimensions==null || blockSize==null || dataType==null || dimensions.length!=blockSize.length)
+			throw new IOException("Not an N5 dataset: "+path);
+		bytesPerElement = getBytesPerElement(dataType);
+		if (bytesPerElement==0)
+			throw new IOException("Unsupported N5 data type: "+dataType);
+		if (!compression.equals(RAW) && !compression.equals(GZIP))
+			throw new IOException("Unsupported N5 compression: "+compression);
+	}
+
+	private N5Dataset(String path, int[] dimensions, int[] blockSize, String dataType, String compression) {
+		directory = path;
+		this.dimensions = dimensions;
+		this.blockSize = blockSize;
+		this.dataType = dataType;
+		this.compression = compression;
+		bytesPerElement = getBytesPerElement(dataType);
+	}
+
+	/** Creates a new dataset in directory 'path' and writes its attributes.json
+		file. 'dataType' must be UINT8, UINT16 or FLOAT32, and 'compression' RAW
+		or GZIP. 'extraAttributes' are added to attributes.json; they must be
+		"key":value pairs separated by commas, or null. Blocks already in the
+		directory are not deleted, so they must have the same layout. */
+	public static N5Dataset create(String path, int[] dimensions, int[] blockSize,
+	String dataType, String compression, String extraAttributes) throws IOException {
+		if (!dataType.equals(UINT8) && !dataType.equals(UINT16) && !dataType.equals(FLOAT32))
+			throw new IllegalArgumentException("Data type must be uint8, uint16 or float32: "+dataType);
+		if (!compression.equals(RAW) && !compression.equals(GZIP))
+			throw new IllegalArgumentException("Compression must be raw or gzip: "+compression);
+		if (dimensions.length!=blockSize.length)
+			throw new IllegalArgumentException("dimensions.length!=blockSize.length");
+		N5Dataset ds = new N5Dataset(path, (int[])dimensions.clone(), (int[])blockSize.clone(), dataType, compression);
+		StringBuffer sb = new StringBuffer();
+		sb.append("{\"dimensions\":"+toJSON(dimensions));
+		sb.append(",\"blockSize\":"+toJSON(blockSize));
+		sb.append(",\"dataType\":\""+dataType+"\"");
+		sb.append(",\"compression\":{\"type\":\""+compression+"\"");
+		if (compression.equals(GZIP))
+			sb.append(",\"level\":-1,\"useZlib\":false");
+		sb.append("}");
+		if (extraAttributes!=null && extraAttributes.length()>0)
+			sb.append(","+extraAttributes);
+		sb.append("}");
+		ds.attributes = sb.toString();
+		File dir = new File(path);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create directory: "+path);
+		Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, ATTRIBUTES)), "UTF-8");
+		try {
+			out.write(ds.attributes);
+		} finally {
+			out.close();
+		}
+		return ds;
+	}
+
+	/** Returns the directory of this dataset. */
+	public String getDirectory() {
+		return directory;
+	}
+
+	/** Returns the size of each dimension, fastest varying first. */
+	public int[] getDimensions() {
+		return (int[])dimensions.clone();
+	}
+
+	/** Returns the size of the blocks in each dimension. */
+	public int[] getBlockSize() {
+		return (int[])blockSize.clone();
+	}
+
+	/** Returns the data type, for example UINT16. */
+	public String getDataType() {
+		return dataType;
+	}
+
+	/** Returns RAW or GZIP. */
+	public String getCompression() {
+		return compression;
+	}
+
+	/** Returns the value of 'key' in attributes.json, without the quotes of
+		a string, as JSON text, or null if there is no such attribute. */
+	public String getAttribute(String key) {
+		return getValue(attributes, key);
+	}
+
+	/** Returns the value of the numeric attribute 'key', or 'defaultValue'
+		if there is no such attribute. */
+	public double getAttribute(String key, double defaultValue) {
+		String value = getValue(attributes, key);
+		if (value==null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/** Returns the type of array returned by readRegion(): a byte array for
+		UINT8 data, a short array for UINT16 data and a float array for the
+		other types, including the signed INT8 and INT16. */
+	public int getBitDepth() {
+		if (dataType.equals(UINT8))
+			return 8;
+		else if (dataType.equals(UINT16))
+			return 16;
+		else
+			return 32;
+	}
+
+	/** Reads the part of the array that starts at 'offset' and has size 'size' and
+		returns it as a byte, short or float array (see getBitDepth()), fastest
+		varying dimension first. Only the blocks that intersect the region are read,
+		on up to Prefs.getThreads() threads. Elements outside the array are zero. */
+	public Object readRegion(int[] offset, int[] size) throws IOException {
+		return readRegion(offset, size, Prefs.getThreads());
+	}
+
+	/** Reads a region as readRegion(int[], int[]) does, on up to 'nThreads' threads. */
+	public Object readRegion(final int[] offset, final int[] size, int nThreads) throws IOException {
+		checkRegion(offset, size);
+		long length = 1L;
+		for (int d=0; d<size.length; d++)
+			length *= size[d];
+		if (length>Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Region is larger than 2^31 elements");
+		final Object data;
+		switch (getBitDepth()) {
+			case 8: data = new byte[(int)length]; break;
+			case 16: data = new short[(int)length]; break;
+			default: data = new float[(int)length]; break;
+		}
+		final int[][] blocks = getBlocks(offset, size);
+		runOnBlocks(blocks.length, nThreads, new BlockTask() {
+			public void run(int i, byte[][] buffer) throws IOException {
+				int[] blockDims = new int[dimensions.length];
+				byte[] block = readBlock(blocks[i], blockDims, buffer[0]);
+				if (block!=null) {
+					buffer[0] = block;
+					copyFromBlock(blocks[i], blockDims, block, offset, size, data);
+				}
+			}
+		});
+		return data;
+	}
+
+	/** Writes 'data', a byte, short or float array holding the part of the
+		array that starts at 'offset' and has size 'size', fastest varying
+		dimension first. The array type must match the data type. Blocks that
+		are only partly inside the region are read, updated and rewritten.
+		Blocks are written on up to Prefs.getThreads() threads. */
+	public void writeRegion(int[] offset, int[] size, Object data) throws IOException {
+		writeRegion(offset, size, data, Prefs.getThreads());
+	}
+
+	/** Writes a region as writeRegion(int[], int[], Object) does, on up to 'nThreads' threads. */
+	public void writeRegion(final int[] offset, final int[] size, final Object data, int nThreads) throws IOException {
+		checkRegion(offset, size);
+		if (!(data instanceof byte[] && dataType.equals(UINT8)) && !(data instanceof short[] && dataType.equals(UINT16))
+		&& !(data instanceof float[] && dataType.equals(FLOAT32)))
+			throw new IllegalArgumentException("Array type does not match the data type ("+dataType+")");
+		final int[][] blocks = getBlocks(offset, size);
+		runOnBlocks(blocks.length, nThreads, new BlockTask() {
+			public void run(int i, byte[][] buffer) throws IOException {
+				int[] grid = blocks[i];
+				int[] blockDims = new int[dimensions.length];
+				int n = 1;
+				boolean covered = true;
+				for (int d=0; d<dimensions.length; d++) {
+					int start = grid[d]*blockSize[d];
+					blockDims[d] = Math.min(blockSize[d], dimensions[d]-start);
+					n *= blockDims[d];
+					if (start<offset[d] || start+blockDims[d]>offset[d]+size[d])
+						covered = false;
+				}
+				byte[] block = null;
+				if (!covered) {
+					int[] dims = new int[dimensions.length];
+					block = readBlock(grid, dims, buffer[0]);
+				}
+				if (block==null) {
+					block = buffer[0]!=null&&buffer[0].length>=n*bytesPerElement?buffer[0]:new byte[n*bytesPerElement];
+					if (!covered)
+						Arrays.fill(block, (byte)0);
+				}
+				buffer[0] = block;
+				copyToBlock(grid, blockDims, block, offset, size, data);
+				writeBlock(grid, blockDims, block);
+			}
+		});
+	}
+
+	private void checkRegion(int[] offset, int[] size) {
+		if (offset.length!=dimensions.length || size.length!=dimensions.length)
+			throw new IllegalArgumentException("Region must have "+dimensions.length+" dimensions");
+		for (int d=0; d<size.length; d++) {
+			if (size[d]<1 || offset[d]<0)
+				throw new IllegalArgumentException("Invalid region");
+		}
+	}
+
+	/* Returns the grid positions of the blocks that intersect a region. */
+	private int[][] getBlocks(int[] offset, int[] size) {
+		int nDims = dimensions.length;
+		int[] first = new int[nDims];
+		int[] last = new int[nDims];
+		int count = 1;
+		for (int d=0; d<nDims; d++) {
+			int end = Math.min(offset[d]+size[d], dimensions[d]);
+			if (end<=offset[d])
+				return new int[0][];
+			first[d] = offset[d]/blockSize[d];
+			last[d] = (end-1)/blockSize[d];
+			count *= last[d]-first[d]+1;
+		}
+		int[][] blocks = new int[count][];
+		int[] grid = (int[])first.clone();
+		for (int i=0; i<count; i++) {
+			blocks[i] = (int[])grid.clone();
+			for (int d=0; d<nDims; d++) {
+				if (++grid[d]<=last[d])
+					break;
+				grid[d] = first[d];
+			}
+		}
+		return blocks;
+	}
+
+	/* Returns the file that holds the block at grid position 'grid'. */
+	private File getBlockFile(int[] grid) {
+		StringBuffer sb = new StringBuffer(directory);
+		for (int d=0; d<grid.length; d++)
+			sb.append(File.separatorChar).append(grid[d]);
+		return new File(sb.toString());
+	}
+
+	/** Reads the block at grid position 'grid', stores its size in 'blockDims' and
+		returns its elements as big-endian bytes, in 'buffer' if it is large enough.
+		Returns null if the block does not exist. */
+	public byte[] readBlock(int[] grid, int[] blockDims, byte[] buffer) throws IOException {
+		File f = getBlockFile(grid);
+		if (!f.isFile())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+		try {
+			int mode = in.readUnsignedShort();
+			int nDims = in.readUnsignedShort();
+			if (nDims!=dimensions.length)
+				throw new IOException("Invalid N5 block: "+f);
+			int n = 1;
+			for (int d=0; d<nDims; d++) {
+				blockDims[d] = in.readInt();
+				n *= blockDims[d];
+			}
+			if (mode==1)
+				n = in.readInt(); // number of elements of a varlength block
+			else if (mode!=0)
+				throw new IOException("Unsupported N5 block mode ("+mode+"): "+f);
+			int length = n*bytesPerElement;
+			if (buffer==null || buffer.length<length)
+				buffer = new byte[length];
+			InputStream is = in;
+			if (compression.equals(GZIP))
+				is = useZlib?(InputStream)new InflaterInputStream(in):new GZIPInputStream(in, 65536);
+			int count = 0;
+			while (count<length) {
+				int k = is.read(buffer, count, length-count);
+				if (k==-1) break;
+				count += k;
+			}
+			return buffer;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Writes a block whose size is 'blockDims' and whose elements are the
+		big-endian bytes in 'data' to grid position 'grid'. */
+	public void writeBlock(int[] grid, int[] blockDims, byte[] data) throws IOException {
+		File f = getBlockFile(grid);
+		File dir = f.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Unable to create directory: "+dir);
+		int n = 1;
+		for (int d=0; d<blockDims.length; d++)
+			n *= blockDims[d];
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 65536));
+		try {
+			out.writeShort(0); // mode: default
+			out.writeShort(blockDims.length);
+			for (int d=0; d<blockDims.length; d++)
+				out.writeInt(blockDims[d]);
+			if (compression.equals(GZIP)) {
+				GZIPOutputStream gz = new GZIPOutputStream(out, 65536);
+				gz.write(data, 0, n*bytesPerElement);
+				gz.finish();
+			} else
+				out.write(data, 0, n*bytesPerElement);
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Copies the elements of a block that are inside a region to 'data',
+		converting them from big-endian bytes. */
+	private void copyFromBlock(int[] grid, int[] blockDims, byte[] block, int[] offset, int[] size, Object data) {
+		ByteBuffer bb = ByteBuffer.wrap(block);
+		int[] runs = getRuns(grid, blockDims, offset, size);
+		int count = runs[0];
+		for (int r=1; r<runs.length; r+=2) {
+			int b = runs[r], p = runs[r+1];
+			if (dataType.equals(UINT8))
+				System.arraycopy(block, b, data, p, count);
+			else if (dataType.equals(UINT16)) {
+				bb.position(b*2);
+				bb.asShortBuffer().get((short[])data, p, count);
+			} else if (dataType.equals(FLOAT32)) {
+				bb.position(b*4);
+				bb.asFloatBuffer().get((float[])data, p, count);
+			} else {
+				float[] pixels = (float[])data;
+				for (int i=0; i<count; i++)
+					pixels[p+i] = getFloat(bb, b+i);
+			}
+		}
+	}
+
+	/* Copies the elements of a region that are inside a block to the block,
+		converting them to big-endian bytes. */
+	private void copyToBlock(int[] grid, int[] blockDims, byte[] block, int[] offset, int[] size, Object data) {
+		ByteBuffer bb = ByteBuffer.wrap(block);
+		int[] runs = getRuns(grid, blockDims, offset, size);
+		int count = runs[0];
+		for (int r=1; r<runs.length; r+=2) {
+			int b = runs[r], p = runs[r+1];
+			if (data instanceof byte[])
+				System.arraycopy(data, p, block, b, count);
+			else if (data instanceof short[]) {
+				bb.position(b*2);
+				bb.asShortBuffer().put((short[])data, p, count);
+			} else {
+				bb.position(b*4);
+				bb.asFloatBuffer().put((float[])data, p, count);
+			}
+		}
+	}
+
+	/* Returns the runs of elements, contiguous along the first dimension, that
+		are in both a block and a region, as {count, blockIndex1, regionIndex1,
+		blockIndex2, regionIndex2, ...}. Indexes are in elements. */
+	private int[] getRuns(int[] grid, int[] blockDims, int[] offset, int[] size) {
+		int nDims = dimensions.length;
+		int[] from = new int[nDims];  // intersection, in array coordinates
+		int[] to = new int[nDims];
+		int nRuns = 1;
+		for (int d=0; d<nDims; d++) {
+			int start = grid[d]*blockSize[d];
+			from[d] = Math.max(start, offset[d]);
+			to[d] = Math.min(start+blockDims[d], offset[d]+size[d]);
+			if (to[d]<=from[d])
+				return new int[] {0};
+			if (d>0) nRuns *= to[d]-from[d];
+		}
+		int[] runs = new int[1+2*nRuns];
+		runs[0] = to[0]-from[0];
+		int[] pos = (int[])from.clone();
+		for (int r=0; r<nRuns; r++) {
+			int b = 0, p = 0;
+			int bStride = 1, pStride = 1;
+			for (int d=0; d<nDims; d++) {
+				b += (pos[d]-grid[d]*blockSize[d])*bStride;
+				p += (pos[d]-offset[d])*pStride;
+				bStride *= blockDims[d];
+				pStride *= size[d];
+			}
+			runs[1+2*r] = b;
+			runs[2+2*r] = p;
+			for (int d=1; d<nDims; d++) {
+				if (++pos[d]<to[d])
+					break;
+				pos[d] = from[d];
+			}
+		}
+		return runs;
+	}
+
+	/* Returns element 'i' of a block of one of the data types that are read as floats. */
+	private float getFloat(ByteBuffer bb, int i) {
+		switch (bytesPerElement) {
+			case 1: // int8
+				return bb.get(i);
+			case 2: // int16
+				return bb.getShort(i*2);
+			case 4:
+				int v = bb.getInt(i*4);
+				return dataType.equals(UINT32)?(float)(v&0xffffffffL):v;
+			default:
+				if (dataType.equals(FLOAT64))
+					return (float)bb.getDouble(i*8);
+				long l = bb.getLong(i*8);
+				if (dataType.equals(UINT64) && l<0L)
+					return (float)(l>>>1)*2f;
+				return l;
+		}
+	}
+
+	interface BlockTask {
+		/** Processes block 'block'. buffer[0] is a byte array that the
+			task may keep for the next block processed by the same thread. */
+		void run(int block, byte[][] buffer) throws IOException;
+	}
+
+	/* Runs 'task' for blocks 0 to nBlocks-1, on up to nThreads threads. Each
+		thread takes the next block that has not been processed. */
+	private void runOnBlocks(final int nBlocks, int nThreads, final BlockTask task) throws IOException {
+		nThreads = Math.max(1, Math.min(nThreads, nBlocks));
+		if (nThreads==1) {
+			byte[][] buffer = new byte[1][];
+			for (int i=0; i<nBlocks; i++)
+				task.run(i, buffer);
+			return;
+		}
+		final int[] next = new int[1];
+		final IOException[] error = new IOException[1];
+		final RuntimeException[] runtimeError = new RuntimeException[1];
+		Thread[] threads = new Thread[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			threads[t] = new Thread("N5Dataset-"+t) {
+				public void run() {
+					byte[][] buffer = new byte[1][];
+					while (true) {
+						int i;
+						synchronized (next) {
+							if (next[0]>=nBlocks || error[0]!=null || runtimeError[0]!=null)
+								return;
+							i = next[0]++;
+						}
+						try {
+							task.run(i, buffer);
+						} catch (IOException e) {
+							synchronized (next) {error[0] = e;}
+						} catch (RuntimeException e) {
+							synchronized (next) {runtimeError[0] = e;}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for (int t=0; t<nThreads; t++)
+				threads[t].join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		if (runtimeError[0]!=null)
+			throw runtimeError[0];
+		if (error[0]!=null)
+			throw error[0];
+	}
+
+	static int getBytesPerElement(String dataType) {
+		if (dataType==null)
+			return 0;
+		if (dataType.equals(UINT8) || dataType.equals(INT8))
+			return 1;
+		if (dataType.equals(UINT16) || dataType.equals(INT16))
+			return 2;
+		if (dataType.equals(UINT32) || dataType.equals(INT32) || dataType.equals(FLOAT32))
+			return 4;
+		if (dataType.equals(UINT64) || dataType.equals(INT64) || dataType.equals(FLOAT64))
+			return 8;
+		return 0;
+	}
+
+	static String readText(File f) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+		try {
+			StringBuffer sb = new StringBuffer();
+			char[] buf = new char[4096];
+			int n;
+			while ((n=in.read(buf))!=-1)
+				sb.append(buf, 0, n);
+			return sb.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Returns 'array' as a JSON array. */
+	public static String toJSON(int[] array) {
+		StringBuffer sb = new StringBuffer("[");
+		for (int i=0; i<array.length; i++)
+			sb.append(i>0?",":"").append(array[i]);
+		return sb.append("]").toString();
+	}
+
+	/** Returns 's' as a JSON string, with quotes. */
+	public static String toJSON(String s) {
+		StringBuffer sb = new StringBuffer("\"");
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c=='"' || c=='\\')
+				sb.append('\\').append(c);
+			else if (c<32)
+				sb.append("\\u").append(Integer.toHexString(0x10000+c).substring(1));
+			else
+				sb.append(c);
+		}
+		return sb.append("\"").toString();
+	}
+
+	/* Parses a JSON array of integers. Returns null if 's' is not an array. */
+	static int[] getIntArray(String s) {
+		if (s==null || !s.startsWith("[") || !s.endsWith("]"))
+			return null;
+		s = s.substring(1, s.length()-1).trim();
+		if (s.length()==0)
+			return new int[0];
+		String[] items = s.split(",");
+		int[] array = new int[items.length];
+		try {
+			for (int i=0; i<items.length; i++)
+				array[i] = (int)Long.parseLong(items[i].trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return array;
+	}
+
+	/* Returns the value of 'key' in the JSON object 'json': the text of a number,
+		array or object, or a string without its quotes. Only the top level of the
+		object is searched. Returns null if the object has no such key. */
+	static String getValue(String json, String key) {
+		int depth = 0;
+		int n = json.length();
+		int i = 0;
+		while (i<n) {
+			char c = json.charAt(i);
+			if (c=='"') {
+				int end = skipString(json, i);
+				int j = end;
+				while (j<n && Character.isWhitespace(json.charAt(j)))
+					j++;
+				if (depth==1 && j<n && json.charAt(j)==':') {
+					boolean match = unescape(json.substring(i+1, end-1)).equals(key);
+					j++;
+					while (j<n && Character.isWhitespace(json.charAt(j)))
+						j++;
+					int valueEnd = skipValue(json, j);
+					if (match) {
+						String value = json.substring(j, valueEnd).trim();
+						if (value.startsWith("\""))
+							return unescape(value.substring(1, value.length()-1));
+						return value;
+					}
+					i = valueEnd;
+					continue;
+				}
+				i = end;
+				continue;
+			}
+			if (c=='{' || c=='[') depth++;
+			else if (c=='}' || c==']') depth--;
+			i++;
+		}
+		return null;
+	}
+
+	/* Returns the index after the string that starts at json[i]. */
+	private static int skipString(String json, int i) {
+		int n = json.length();
+		i++;
+		while (i<n) {
+			char c = json.charAt(i);
+			if (c=='\\')
+				i += 2;
+			else if (c=='"')
+				return i+1;
+			else
+				i++;
+		}
+		return n;
+	}
+
+	/* Returns the index after the value that starts at json[i]. */
+	private static int skipValue(String json, int i) {
+		int n = json.length();
+		int depth = 0;
+		while (i<n) {
+			char c = json.charAt(i);
+			if (c=='"') {
+				i = skipString(json, i);
+				if (depth==0) return i;
+				continue;
+			}
+			if (c=='{' || c=='[')
+				depth++;
+			else if (c=='}' || c==']') {
+				if (depth==0) return i;
+				depth--;
+				if (depth==0) return i+1;
+			} else if (c==',' && depth==0)
+				return i;
+			i++;
+		}
+		return n;
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('\\')<0)
+			return s;
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c!='\\' || i==s.length()-1) {
+				sb.append(c);
+				continue;
+			}
+			c = s.charAt(++i);
+			switch (c) {
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (i+4<s.length()) {
+						sb.append((char)Integer.parseInt(s.substring(i+1, i+5), 16));
+						i += 4;
+					}
+					break;
+				default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+}
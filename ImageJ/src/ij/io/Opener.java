@@ -30,9 +30,9 @@ public class Opener {
 
 	public static final int UNKNOWN=0,TIFF=1,DICOM=2,FITS=3,PGM=4,JPEG=5,
 		GIF=6,LUT=7,BMP=8,ZIP=9,JAVA_OR_TEXT=10,ROI=11,TEXT=12,PNG=13,
-		TIFF_AND_DICOM=14,CUSTOM=15, AVI=16, OJJ=17, TABLE=18; // don't forget to also update 'types'
+		TIFF_AND_DICOM=14,CUSTOM=15, AVI=16, OJJ=17, TABLE=18, N5=19; // don't forget to also update 'types'
 	public static final String[] types = {"unknown","tif","dcm","fits","pgm",
-		"jpg","gif","lut","bmp","zip","java/txt","roi","txt","png","t&d","custom","ojj","table"};
+		"jpg","gif","lut","bmp","zip","java/txt","roi","txt","png","t&d","custom","avi","ojj","table","n5"};
 	private static String defaultDirectory = null;
 	private static int fileType;
 	private boolean error;
@@ -237,10 +237,11 @@ public class Opener {
 		if (directory.length()>0 && !(directory.endsWith("/")||directory.endsWith("\\")))
 			directory += Prefs.separator;
 		String path = directory+name;
-		fileType = getFileType(path);
+		int type = getFileType(path); // local copy, since FolderOpener calls this method on several threads
+		fileType = type;
 		if (IJ.debugMode)
-			IJ.log("openImage: \""+types[fileType]+"\", "+path);
-		switch (fileType) {
+			IJ.log("openImage: \""+types[type]+"\", "+path);
+		switch (type) {
 			case TIFF:
 				imp = openTiff(directory, name);
 				return imp;
@@ -279,12 +280,18 @@ public class Opener {
 				if (imp.getWidth()!=0) return imp; else return null;
 			case ZIP:
 				return openZip(path);
+			case N5:
+				imp = (ImagePlus)IJ.runPlugIn("ij.plugin.N5_Reader", path);
+				if (imp.getWidth()==0) return null;
+				if (imp.getNChannels()>1)
+					imp = new CompositeImage(imp, CompositeImage.COMPOSITE);
+				return imp;
 			case AVI:
 				AVI_Reader reader = (AVI_Reader)IJ.runPlugIn("ij.plugin.AVI_Reader", path);
 				return reader.getImagePlus();
 			case UNKNOWN: case TEXT:
 				// Call HandleExtraFileTypes plugin to see if it can handle unknown format
-				int[] wrap = new int[] {fileType};
+				int[] wrap = new int[] {type};
 				imp = openWithHandleExtraFileTypes(path, wrap);
 				fileType = wrap[0];
 				return imp;
@@ -636,8 +643,9 @@ public class Opener {
 						IJ.showProgress(1.0);
 						return null;
 					}
-					if (info[i].compression>=FileInfo.LZW) {
+					if (info[i].compression>=FileInfo.LZW || info[i].tileWidth>0) {
 						fi.stripOffsets = info[i].stripOffsets;
+						fi.longStripOffsets = info[i].longStripOffsets;
 						fi.stripLengths = info[i].stripLengths;
 					}
 					if (info[i].samplesPerPixel>1 && !(info[i].getBytesPerPixel()==3||info[i].getBytesPerPixel()==6)) {
@@ -653,7 +661,7 @@ public class Opener {
 					loc += imageSize*nChannels+skip;
 					if (i<(info.length-1)) {
 						skip = info[i+1].getOffset()-loc;
-						if (info[i+1].compression>=FileInfo.LZW) skip = 0;
+						if (info[i+1].compression>=FileInfo.LZW || info[i+1].tileWidth>0) skip = 0;
 						if (skip<0L) {
 							IJ.error("Opener", "Unexpected image offset");
 							break;
@@ -695,9 +703,20 @@ public class Opener {
 			}
 			//if (fi.whiteIsZero)
 			//	new StackProcessor(stack, stack.getProcessor(1)).invert();
+			if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.getSize()) {
+				for (int i=0; i<fi.sliceLabels.length; i++)
+					stack.setSliceLabel(fi.sliceLabels[i], i+1);
+			}
 			ImagePlus imp = new ImagePlus(fi.fileName, stack);
-			new FileOpener(fi).setCalibration(imp);
+			FileOpener fo = new FileOpener(fi);
+			fo.setCalibration(imp);
 			imp.setFileInfo(fi);
+			if (fi.info!=null)
+				imp.setProperty("Info", fi.info);
+			if (fi.roi!=null)
+				imp.setRoi(RoiDecoder.openFromByteArray(fi.roi));
+			if (fi.overlay!=null)
+				fo.setOverlay(imp, fi.overlay);
 			int stackSize = stack.getSize();
 			if (nChannels>1 && (stackSize%nChannels)==0) {
 				imp.setDimensions(nChannels, stackSize/nChannels, 1);
@@ -744,7 +763,7 @@ public class Opener {
 		if (info.length==1 && fi.nImages>1) {
 			if (n<1 || n>fi.nImages)
 				throw new IllegalArgumentException("N out of 1-"+fi.nImages+" range");
-			long size = fi.width*fi.height*fi.getBytesPerPixel();
+			long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
 			fi.longOffset = fi.getOffset() + (n-1)*(size+fi.gapBetweenImages);
 			fi.offset = 0;
 			fi.nImages = 1;
@@ -754,6 +773,7 @@ public class Opener {
 			fi.longOffset = info[n-1].getOffset();
 			fi.offset = 0;
 			fi.stripOffsets = info[n-1].stripOffsets; 
+			fi.longStripOffsets = info[n-1].longStripOffsets; 
 			fi.stripLengths = info[n-1].stripLengths; 
 		}
 		FileOpener fo = new FileOpener(fi);
@@ -937,6 +957,13 @@ public class Opener {
 			return UNKNOWN;
 		File file = new File(path);
 		String name = file.getName();
+
+		// N5 dataset: a directory containing "attributes.json", or that file
+		if (file.isDirectory())
+			return new File(file, N5Dataset.ATTRIBUTES).isFile()?N5:UNKNOWN;
+		if (name.equals(N5Dataset.ATTRIBUTES))
+			return N5;
+
 		InputStream is;
 		byte[] buf = new byte[132];
 		try {
@@ -958,11 +985,11 @@ public class Opener {
 		 // Big-endian TIFF ("MM")
 		if (name.endsWith(".lsm"))
 				return UNKNOWN; // The LSM	Reader plugin opens these files
-		if (b0==73 && b1==73 && b2==42 && b3==0 && !(bioformats&&name.endsWith(".flex")))
-			return TIFF;
+		if (b0==73 && b1==73 && (b2==42||b2==43) && b3==0 && !(bioformats&&name.endsWith(".flex")))
+			return TIFF; // 43 is BigTIFF
 
 		 // Little-endian TIFF ("II")
-		if (b0==77 && b1==77 && b2==0 && b3==42)
+		if (b0==77 && b1==77 && b2==0 && (b3==42||b3==43))
 			return TIFF;
 
 		 // JPEG
@@ -1062,6 +1089,8 @@ public class Opener {
 			if (f==null || f.isDirectory())
 				return null;
 			else {
+				if (fi.tileWidth>0)
+					return new RandomAccessStream(new RandomAccessFile(f, "r"));
 				InputStream is = new FileInputStream(f);
 				if (fi.compression>=FileInfo.LZW)
 					is = new RandomAccessStream(is);
@@ -1,36 +1,43 @@
 package ij.io;
 import ij.IJ;
 import java.io.*;
-import java.util.Vector;
-
-
-/** This is a class that uses a memory cache to allow seeking within
-	an InputStream. Based on the JAI MemoryCacheSeekableStream class.
-	Can also be constructed from a RandomAccessFile, which uses less
-	memory since the memory cache is not required.
-*/ 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** This is a class that uses a block cache to allow seeking within
+	an InputStream. At most MAX_CACHED_BLOCKS blocks are kept in memory;
+	when a stream is longer than that, the blocks read from it are also
+	written to a temporary file, from which blocks that were dropped from
+	the cache are read back when needed. Can also be constructed from a
+	RandomAccessFile, which uses less memory since the cache is not required.
+*/
 public final class RandomAccessStream extends InputStream {
 
-    private static final int BLOCK_SIZE = 512;
-    private static final int BLOCK_MASK = 511;
-    private static final int BLOCK_SHIFT = 9;
-
-    private InputStream src;
-    private RandomAccessFile ras;
-    private long pointer;
-    private Vector data;
-    private int length;
-    private boolean foundEOS;
-    
-    /** Constructs a RandomAccessStream from an InputStream. Seeking
-		backwards is supported using a memory cache. */
+	private static final int BLOCK_SIZE = 65536;
+	private static final int BLOCK_MASK = 65535;
+	private static final int BLOCK_SHIFT = 16;
+	private static final int MAX_CACHED_BLOCKS = 256; // 16MB
+
+	private InputStream src;
+	private RandomAccessFile ras;
+	private long pointer;
+	private LinkedHashMap cache;  // block index (Long) -> byte[], least recently used first
+	private long length;          // number of bytes read from src
+	private boolean foundEOS;
+	private File spillFile;
+	private RandomAccessFile spill;  // holds all the blocks read from src once the cache is full
+
+	/** Constructs a RandomAccessStream from an InputStream. Seeking
+		backwards is supported using the block cache. */
 	public RandomAccessStream(InputStream inputstream) {
-        pointer = 0L;
-        data = new Vector();
-        length = 0;
-        foundEOS = false;
-        src = inputstream;
-    }
+		pointer = 0L;
+		cache = new LinkedHashMap(16, 0.75f, true);
+		length = 0L;
+		foundEOS = false;
+		src = inputstream;
+	}
 
     /** Constructs a RandomAccessStream from an RandomAccessFile. */
 	public RandomAccessStream(RandomAccessFile ras) {
@@ -51,38 +58,41 @@ public final class RandomAccessStream extends InputStream {
         	return pointer;
     }
 
-    public int read() throws IOException {
-    	if (ras!=null)
-    		return ras.read();
-        long l = pointer + 1L;
-        long l1 = readUntil(l);
-        if(l1 >= l) {
-            byte abyte0[] = (byte[])data.elementAt((int)(pointer>>BLOCK_SHIFT));
-            return abyte0[(int)(pointer++ & BLOCK_MASK)] & 0xff;
-        } else
-            return -1;
-    }
-
-    public int read(byte[] bytes, int off, int len) throws IOException {
-        if(bytes == null)
-            throw new NullPointerException();
-     	if (ras!=null)
-    		return ras.read(bytes, off, len);
-        if(off<0 || len<0 || off+len>bytes.length)
-            throw new IndexOutOfBoundsException();
-        if(len == 0)
-            return 0;
-        long l = readUntil(pointer+len);
-        if (l<=pointer)
-            return -1;
-        else {
-            byte abyte1[] = (byte[])data.elementAt((int)(pointer >> BLOCK_SHIFT));
-            int k = Math.min(len, BLOCK_SIZE - (int)(pointer & BLOCK_MASK));
-            System.arraycopy(abyte1, (int)(pointer & BLOCK_MASK), bytes, off, k);
-            pointer += k;
-            return k;
-        }
-    }
+	public int read() throws IOException {
+		if (ras!=null)
+			return ras.read();
+		long l = pointer + 1L;
+		long l1 = readUntil(l);
+		if (l1>=l) {
+			byte[] block = getBlock(pointer>>BLOCK_SHIFT);
+			return block[(int)(pointer++ & BLOCK_MASK)] & 0xff;
+		} else
+			return -1;
+	}
+
+	public int read(byte[] bytes, int off, int len) throws IOException {
+		if (bytes==null)
+			throw new NullPointerException();
+		if (ras!=null)
+			return ras.read(bytes, off, len);
+		if (off<0 || len<0 || off+len>bytes.length)
+			throw new IndexOutOfBoundsException();
+		if (len==0)
+			return 0;
+		long l = readUntil(pointer+len);
+		if (l<=pointer)
+			return -1;
+		int n = (int)Math.min(len, l-pointer);
+		int done = 0;
+		while (done<n) {
+			byte[] block = getBlock(pointer>>BLOCK_SHIFT);
+			int k = Math.min(n-done, BLOCK_SIZE-(int)(pointer&BLOCK_MASK));
+			System.arraycopy(block, (int)(pointer&BLOCK_MASK), bytes, off+done, k);
+			pointer += k;
+			done += k;
+		}
+		return n;
+	}
 
     public final void readFully(byte[] bytes) throws IOException {
         readFully(bytes, bytes.length);
@@ -97,33 +107,77 @@ public final class RandomAccessStream extends InputStream {
         } while (read<len);
     }
 
-    private long readUntil(long l) throws IOException {
-        if(l<length)
-            return l;
-        if(foundEOS)
-            return length;
-        int i = (int)(l >> BLOCK_SHIFT);
-        int j = length >> BLOCK_SHIFT;
-        for(int k = j; k <= i; k++) {
-            byte abyte0[] = new byte[BLOCK_SIZE];
-            data.addElement(abyte0);
-            int i1 = BLOCK_SIZE;
-            int j1 = 0;
-            while(i1 > 0) {
-                int k1 = src.read(abyte0, j1, i1);
-                if(k1 == -1) {
-                    foundEOS = true;
-                    return length;
-                }
-                j1 += k1;
-                i1 -= k1;
-                length += k1;
-            }
-
-        }
-
-        return length;
-    }
+	private long readUntil(long l) throws IOException {
+		if (l<=length)
+			return l;
+		if (foundEOS)
+			return length;
+		while (length<l && !foundEOS) {
+			long index = length>>BLOCK_SHIFT;
+			byte[] block = newBlock();
+			int n = 0;
+			while (n<BLOCK_SIZE) {
+				int count = src.read(block, n, BLOCK_SIZE-n);
+				if (count==-1) {
+					foundEOS = true;
+					break;
+				}
+				n += count;
+			}
+			length += n;
+			if (n>0) {
+				if (spill!=null) {
+					spill.seek(index<<BLOCK_SHIFT);
+					spill.write(block, 0, n);
+				}
+				cache.put(Long.valueOf(index), block);
+			}
+		}
+		return Math.min(l, length);
+	}
+
+	/* Returns block 'index', which has already been read from src. */
+	private byte[] getBlock(long index) throws IOException {
+		Long key = Long.valueOf(index);
+		byte[] block = (byte[])cache.get(key);
+		if (block!=null)
+			return block;
+		block = newBlock();
+		long start = index<<BLOCK_SHIFT;
+		spill.seek(start);
+		spill.readFully(block, 0, (int)Math.min(BLOCK_SIZE, length-start));
+		cache.put(key, block);
+		return block;
+	}
+
+	/* Returns an array for a new block. If the cache is full, the least
+		recently used block is removed from it and its array is reused. */
+	private byte[] newBlock() throws IOException {
+		if (cache.size()<MAX_CACHED_BLOCKS)
+			return new byte[BLOCK_SIZE];
+		if (spill==null)
+			startSpilling();
+		Iterator it = cache.values().iterator();
+		byte[] block = (byte[])it.next();
+		it.remove();
+		return block;
+	}
+
+	/* Creates the temporary file and writes all the blocks read so far to it.
+		This happens when the cache is full for the first time, so none of
+		the blocks have been removed from the cache yet. */
+	private void startSpilling() throws IOException {
+		spillFile = File.createTempFile("ImageJ-stream", ".tmp");
+		spillFile.deleteOnExit();
+		spill = new RandomAccessFile(spillFile, "rw");
+		for (Iterator it=cache.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry)it.next();
+			long start = ((Long)entry.getKey()).longValue()<<BLOCK_SHIFT;
+			byte[] block = (byte[])entry.getValue();
+			spill.seek(start);
+			spill.write(block, 0, (int)Math.min(BLOCK_SIZE, length-start));
+		}
+	}
 
     public void seek(long loc) throws IOException {
     	//IJ.log("seek (long): "+loc+"  "+(ras!=null));
@@ -180,15 +234,19 @@ public final class RandomAccessStream extends InputStream {
         return Float.intBitsToFloat(readInt());
     }
     
-    public void close() throws IOException {
-		//ij.IJ.log("close: "+(data!=null?""+data.size():""));
- 		if (ras!=null)
- 			ras.close();
- 		else {
- 			data.removeAllElements();
-    		src.close();
-    	}
-    }
-    
- 
+	public void close() throws IOException {
+		//ij.IJ.log("close: "+(cache!=null?""+cache.size():""));
+		if (ras!=null)
+			ras.close();
+		else {
+			cache.clear();
+			if (spill!=null) {
+				spill.close();
+				spill = null;
+				spillFile.delete();
+			}
+			src.close();
+		}
+	}
+
 }
@@ -0,0 +1,201 @@
+package ij.io;
+import ij.IJ;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+/** Uncompresses the LZW, ZIP or PackBits compressed strips and tiles of a TIFF
+	directly into an array supplied by the caller. A StripDecoder keeps its LZW
+	string table, output buffer and Inflater from one strip to the next, so each
+	thread that decodes strips should use its own instance and call close()
+	when done, which returns the Inflater to a pool shared by all decoders. */
+class StripDecoder {
+	private static final int CLEAR_CODE = 256;
+	private static final int EOI_CODE = 257;
+	private static final int MAX_POOLED_INFLATERS = 16;
+	private static Inflater[] inflaterPool = new Inflater[MAX_POOLED_INFLATERS];
+	private static int pooledInflaters;
+
+	private int compression;
+	private Inflater inflater;
+	private short[] prefix;  // LZW string table: a string is the string of its prefix code
+	private byte[] suffix;   // followed by its suffix byte
+	private byte[] first;    // first byte of the string
+	private int[] length;    // length of the string
+	private byte[] buffer;
+
+	StripDecoder(int compression) {
+		this.compression = compression;
+	}
+
+	/** Returns a buffer of at least 'size' bytes, reused between calls. */
+	byte[] getBuffer(int size) {
+		if (buffer==null || buffer.length<size)
+			buffer = new byte[size];
+		return buffer;
+	}
+
+	/** Uncompresses 'input' into out[offset] to out[offset+maxLength-1] and returns the number of
+		bytes written, which is less than maxLength if the input holds less data. Uncompressed
+		input is copied. */
+	int decode(byte[] input, byte[] out, int offset, int maxLength) {
+		switch (compression) {
+			case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+				return lzwDecode(input, out, offset, maxLength);
+			case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				return zipDecode(input, out, offset, maxLength);
+			case FileInfo.PACK_BITS:
+				return packBitsDecode(input, out, offset, maxLength);
+			default:
+				int n = Math.min(input.length, maxLength);
+				System.arraycopy(input, 0, out, offset, n);
+				return n;
+		}
+	}
+
+	/** Returns the Inflater to the pool. */
+	void close() {
+		if (inflater!=null) {
+			releaseInflater(inflater);
+			inflater = null;
+		}
+	}
+
+	private int lzwDecode(byte[] input, byte[] out, int offset, int maxLength) {
+		if (prefix==null) {
+			prefix = new short[4096];
+			suffix = new byte[4096];
+			first = new byte[4096];
+			length = new int[4096];
+			for (int i=0; i<256; i++) {
+				suffix[i] = first[i] = (byte)i;
+				length[i] = 1;
+			}
+		}
+		int end = offset + maxLength;
+		int pos = offset;
+		int inPos = 0;
+		int bits = 0, nBits = 0;
+		int codeSize = 9;
+		int nextCode = 258;
+		int oldCode = -1;
+		while (pos<end) {
+			while (nBits<codeSize && inPos<input.length) {
+				bits = bits<<8 | (input[inPos++]&0xff);
+				nBits += 8;
+			}
+			if (nBits<codeSize)
+				break; // end of data
+			int code = (bits>>>(nBits-codeSize)) & ((1<<codeSize)-1);
+			nBits -= codeSize;
+			if (code==EOI_CODE)
+				break;
+			if (code==CLEAR_CODE) {
+				codeSize = 9;
+				nextCode = 258;
+				oldCode = -1;
+				continue;
+			}
+			if (oldCode==-1) {
+				if (code>255) break; // invalid data
+				out[pos++] = (byte)code;
+				oldCode = code;
+				continue;
+			}
+			int newFirst;
+			if (code<nextCode) {
+				pos = writeString(code, out, pos, end);
+				newFirst = first[code];
+			} else if (code==nextCode) {
+				// the string of the previous code followed by its first byte
+				pos = writeString(oldCode, out, pos, end);
+				if (pos<end)
+					out[pos++] = first[oldCode];
+				newFirst = first[oldCode];
+			} else
+				break; // invalid data
+			if (nextCode<4096) {
+				prefix[nextCode] = (short)oldCode;
+				suffix[nextCode] = (byte)newFirst;
+				first[nextCode] = first[oldCode];
+				length[nextCode] = length[oldCode] + 1;
+				nextCode++;
+			}
+			oldCode = code;
+			if (nextCode==511) codeSize = 10;
+			else if (nextCode==1023) codeSize = 11;
+			else if (nextCode==2047) codeSize = 12;
+		}
+		return pos - offset;
+	}
+
+	/* Writes the string of an LZW code at out[pos], back to front,
+		dropping the bytes at or after 'end'. Returns the new position. */
+	private int writeString(int code, byte[] out, int pos, int end) {
+		int len = length[code];
+		for (int i=pos+len-1; i>=pos; i--) {
+			if (i<end)
+				out[i] = suffix[code];
+			code = prefix[code];
+		}
+		return Math.min(pos+len, end);
+	}
+
+	private int zipDecode(byte[] input, byte[] out, int offset, int maxLength) {
+		if (inflater==null)
+			inflater = getInflater();
+		else
+			inflater.reset();
+		inflater.setInput(input);
+		int n = 0;
+		try {
+			while (n<maxLength && !inflater.finished()) {
+				int count = inflater.inflate(out, offset+n, maxLength-n);
+				if (count==0 && (inflater.needsInput()||inflater.needsDictionary()))
+					break;
+				n += count;
+			}
+		} catch(DataFormatException e){
+			IJ.log(e.toString());
+		}
+		return n;
+	}
+
+	/** Based on the Bio-Formats PackbitsCodec written by Melissa Linkert. */
+	private int packBitsDecode(byte[] input, byte[] out, int offset, int maxLength) {
+		int end = offset + maxLength;
+		int pos = offset;
+		int index = 0;
+		while (pos<end && index<input.length) {
+			int n = input[index++];
+			if (n>=0) { // 0 <= n <= 127: copy the next n+1 bytes
+				n = Math.min(Math.min(n+1, input.length-index), end-pos);
+				System.arraycopy(input, index, out, pos, n);
+				index += n;
+				pos += n;
+			} else if (n!=-128 && index<input.length) { // -127 <= n <= -1: repeat the next byte -n+1 times
+				byte b = input[index++];
+				for (int i=Math.min(-n+1, end-pos); i>0; i--)
+					out[pos++] = b;
+			}
+		}
+		return pos - offset;
+	}
+
+	private static synchronized Inflater getInflater() {
+		if (pooledInflaters>0) {
+			Inflater inflater = inflaterPool[--pooledInflaters];
+			inflaterPool[pooledInflaters] = null;
+			return inflater;
+		}
+		return new Inflater();
+	}
+
+	private static synchronized void releaseInflater(Inflater inflater) {
+		if (pooledInflaters<MAX_POOLED_INFLATERS) {
+			inflater.reset();
+			inflaterPool[pooledInflaters++] = inflater;
+		} else
+			inflater.end();
+	}
+
+}
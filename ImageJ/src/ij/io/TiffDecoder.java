@@ -34,6 +34,10 @@ public class TiffDecoder {
 	public static final int PREDICTOR = 317;
 	public static final int COLOR_MAP = 320;
 	public static final int TILE_WIDTH = 322;
+	public static final int TILE_LENGTH = 323;
+	public static final int TILE_OFFSETS = 324;
+	public static final int TILE_BYTE_COUNTS = 325;
+	public static final int SUB_IFDS = 330;
 	public static final int SAMPLE_FORMAT = 339;
 	public static final int JPEG_TABLES = 347;
 	public static final int METAMORPH1 = 33628;
@@ -51,6 +55,8 @@ public class TiffDecoder {
 	//field types
 	static final int SHORT = 3;
 	static final int LONG = 4;
+	static final int LONG8 = 16; // BigTIFF
+	static final int IFD8 = 18; // BigTIFF
 
 	// metadata types
 	static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
@@ -60,6 +66,11 @@ public class TiffDecoder {
 	static final int LUTS = 0x6c757473;  // "luts" (channel LUTs)
 	static final int ROI = 0x726f6920;  // "roi " (ROI)
 	static final int OVERLAY = 0x6f766572;  // "over" (overlay)
+
+	// IFD index cache
+	static final int INDEX_MAGIC = 0x69666469;  // "ifdi"
+	static final int MIN_INDEXED_IFDS = 1000;  // the offsets of files with fewer IFDs are not cached
+	static final int MAX_INDEX_FILES = 100;  // the least recently used index files beyond this are deleted
 	
 	private String directory;
 	private String name;
@@ -67,10 +78,13 @@ public class TiffDecoder {
 	protected RandomAccessStream in;
 	protected boolean debugMode;
 	private boolean littleEndian;
+	private boolean bigTiff; // 64-bit offsets
 	private String dInfo;
 	private int ifdCount;
 	private int[] metaDataCounts;
 	private String tiffMetadata;
+	private boolean reducedResolution; // NewSubfileType of the last IFD read
+	private long[] subIFDOffsets; // SubIFDs of the last IFD read
 		
 	public TiffDecoder(String directory, String name) {
 		this.directory = directory;
@@ -117,7 +131,7 @@ public class TiffDecoder {
     }
 
 	long OpenImageFileHeader() throws IOException {
-	// Open 8-byte Image File Header at start of file.
+	// Open 8-byte Image File Header (16-byte for BigTIFF) at start of file.
 	// Returns the offset in bytes to the first IFD or -1
 	// if this is not a valid tiff file.
 		int byteOrder = in.readShort();
@@ -129,10 +143,77 @@ public class TiffDecoder {
 			in.close();
 			return -1;
 		}
-		int magicNumber = getShort(); // 42
+		int magicNumber = getShort(); // 42, or 43 for BigTIFF
+		bigTiff = magicNumber==43;
+		if (bigTiff) {
+			int offsetSize = getShort(); // 8
+			getShort();
+			if (offsetSize!=8) {
+				in.close();
+				return -1;
+			}
+			return readLong();
+		}
 		long offset = ((long)getInt())&0xffffffffL;
 		return offset;
 	}
+	
+	/** Reads the 8-byte value field of a BigTIFF IFD entry. Returns the value 
+		if it is a single integer, otherwise the location of the data, which 
+		is the value field itself if the data fit in its 8 bytes. */
+	long getBigTiffValue(int fieldType, int count) throws IOException {
+		long loc = in.getLongFilePointer();
+		if (count==1) {
+			switch (fieldType) {
+				case 1: case 6: // BYTE, SBYTE
+					long b = in.read();
+					in.seek(loc+8);
+					return b;
+				case SHORT: case 8: // SHORT, SSHORT
+					long sh = getShort();
+					in.seek(loc+8);
+					return sh;
+				case LONG: case 9: case 13: // LONG, SLONG, IFD
+					long l = ((long)getInt())&0xffffffffL;
+					in.seek(loc+8);
+					return l;
+				case LONG8: case 17: case IFD8: // LONG8, SLONG8, IFD8
+					return readLong();
+			}
+		}
+		long size = (long)count*getFieldSize(fieldType);
+		if (size<=8L) {
+			in.seek(loc+8);
+			return loc;
+		}
+		return readLong();
+	}
+
+	static int getFieldSize(int fieldType) {
+		switch (fieldType) {
+			case SHORT: case 8: return 2;
+			case LONG: case 9: case 11: case 13: return 4;
+			case 5: case 10: case 12: case LONG8: case 17: case IFD8: return 8;
+			default: return 1;
+		}
+	}
+
+	/** Reads an array of SHORT, LONG or LONG8 values, such as strip offsets, at 'loc'. */
+	long[] getLongArray(int fieldType, int count, long loc) throws IOException {
+		long saveLoc = in.getLongFilePointer();
+		in.seek(loc);
+		long[] values = new long[count];
+		for (int c=0; c<count; c++) {
+			if (fieldType==SHORT)
+				values[c] = getShort();
+			else if (fieldType==LONG8 || fieldType==IFD8)
+				values[c] = readLong();
+			else
+				values[c] = ((long)getInt())&0xffffffffL;
+		}
+		in.seek(saveLoc);
+		return values;
+	}
 		
 	int getValue(int fieldType, int count) throws IOException {
 		int value = 0;
@@ -199,7 +280,8 @@ public class TiffDecoder {
             if (index2>0) {
                 String images = id.substring(index1+7,index2);
                 int n = (int)Tools.parseDouble(images, 0.0);
-                if (n>1) fi.nImages = n;
+                if (n>1 && fi.compression==FileInfo.COMPRESSION_NONE) // compressed images are not contiguous
+                	fi.nImages = n;
             }
         }
 	}
@@ -327,6 +409,11 @@ public class TiffDecoder {
 			case COMPRESSION: name="Compression"; break; 
 			case PREDICTOR: name="Predictor"; break; 
 			case COLOR_MAP: name="ColorMap"; break; 
+			case TILE_WIDTH: name="TileWidth"; break; 
+			case TILE_LENGTH: name="TileLength"; break; 
+			case TILE_OFFSETS: name="TileOffsets"; break; 
+			case TILE_BYTE_COUNTS: name="TileByteCounts"; break; 
+			case SUB_IFDS: name="SubIFDs"; break; 
 			case SAMPLE_FORMAT: name="SampleFormat"; break; 
 			case JPEG_TABLES: name="JPEGTables"; break; 
 			case NIH_IMAGE_HDR: name="NIHImageHeader"; break; 
@@ -354,23 +441,35 @@ public class TiffDecoder {
 	FileInfo OpenIFD() throws IOException {
 	// Get Image File Directory data
 		int tag, fieldType, count, value;
-		int nEntries = getShort();
+		long lvalue;
+		int nEntries = bigTiff?(int)readLong():getShort();
 		if (nEntries<1 || nEntries>1000)
 			return null;
 		ifdCount++;
 		if ((ifdCount%100)==0 && ifdCount>0)
 			ij.IJ.showStatus(""+ifdCount);
+		reducedResolution = false;
+		subIFDOffsets = null;
 		FileInfo fi = new FileInfo();
 		for (int i=0; i<nEntries; i++) {
 			tag = getShort();
 			fieldType = getShort();
-			count = getInt();
-			value = getValue(fieldType, count);
-			long lvalue = ((long)value)&0xffffffffL;
+			if (bigTiff) {
+				count = (int)readLong();
+				lvalue = getBigTiffValue(fieldType, count);
+				value = (int)lvalue;
+			} else {
+				count = getInt();
+				value = getValue(fieldType, count);
+				lvalue = ((long)value)&0xffffffffL;
+			}
 			if (debugMode && ifdCount<10) dumpTag(tag, count, value, fi);
 			//ij.IJ.write(i+"/"+nEntries+" "+tag + ", count=" + count + ", value=" + value);
 			//if (tag==0) return null;
 			switch (tag) {
+				case NEW_SUBFILE_TYPE:
+					reducedResolution = (value&1)!=0;
+					break;
 				case IMAGE_WIDTH: 
 					fi.width = value;
 					fi.intelByteOrder = littleEndian;
@@ -378,25 +477,30 @@ public class TiffDecoder {
 				case IMAGE_LENGTH: 
 					fi.height = value;
 					break;
- 				case STRIP_OFFSETS:
+ 				case STRIP_OFFSETS: case TILE_OFFSETS:
+					long[] offsets;
 					if (count==1)
-						fi.stripOffsets = new int[] {value};
-					else {
+						offsets = new long[] {lvalue};
+					else if (!bigTiff && fieldType!=SHORT) {
 						long saveLoc = in.getLongFilePointer();
 						in.seek(lvalue);
-						fi.stripOffsets = new int[count];
+						offsets = new long[count];
 						for (int c=0; c<count; c++)
-							fi.stripOffsets[c] = getInt();
+							offsets[c] = ((long)getInt())&0xffffffffL;
 						in.seek(saveLoc);
-					}
-					fi.offset = count>0?fi.stripOffsets[0]:value;
-					if (count>1 && fi.stripOffsets[count-1]<fi.stripOffsets[0])
-						fi.offset = fi.stripOffsets[count-1];
+					} else
+						offsets = getLongArray(fieldType, count, lvalue);
+					setStripOffsets(fi, offsets);
 					break;
-				case STRIP_BYTE_COUNT:
+				case STRIP_BYTE_COUNT: case TILE_BYTE_COUNTS:
 					if (count==1)
 						fi.stripLengths = new int[] {value};
-					else {
+					else if (bigTiff) {
+						long[] lengths = getLongArray(fieldType, count, lvalue);
+						fi.stripLengths = new int[count];
+						for (int c=0; c<count; c++)
+							fi.stripLengths[c] = (int)lengths[c];
+					} else {
 						long saveLoc = in.getLongFilePointer();
 						in.seek(lvalue);
 						fi.stripLengths = new int[count];
@@ -504,13 +608,24 @@ public class TiffDecoder {
 				case PREDICTOR:
 					if (value==2 && fi.compression==FileInfo.LZW)
 						fi.compression = FileInfo.LZW_WITH_DIFFERENCING;
+					else if (value==2 && fi.compression==FileInfo.ZIP)
+						fi.compression = FileInfo.ZIP_WITH_DIFFERENCING;
 					break;
 				case COLOR_MAP: 
 					if (count==768 && fi.fileType==fi.GRAY8)
 						getColorMap(lvalue, fi);
 					break;
 				case TILE_WIDTH:
-					error("ImageJ cannot open tiled TIFFs");
+					fi.tileWidth = value;
+					break;
+				case TILE_LENGTH:
+					fi.tileHeight = value;
+					break;
+				case SUB_IFDS:
+					if (count==1)
+						subIFDOffsets = new long[] {lvalue};
+					else
+						subIFDOffsets = getLongArray(fieldType, count, lvalue);
 					break;
 				case SAMPLE_FORMAT:
 					if (fi.fileType==FileInfo.GRAY32_INT && value==FLOATING_POINT)
@@ -559,13 +674,15 @@ public class TiffDecoder {
 					in.seek(saveLoc);
 					break;
  				case META_DATA: 
- 					getMetaData(value, fi);
+ 					getMetaData(lvalue, fi);
  					break;
 				default:
 					if (tag>10000 && tag<32768 && ifdCount>1)
 						return null;
 			}
 		}
+		if (fi.tileWidth>0 && !ImageReader.canReadRegions(fi))
+			error("ImageJ cannot open tiled TIFFs of this type");
 		fi.fileFormat = fi.TIFF;
 		fi.fileName = name;
 		fi.directory = directory;
@@ -574,7 +691,7 @@ public class TiffDecoder {
 		return fi;
 	}
 
-	void getMetaData(int loc, FileInfo fi) throws IOException {
+	void getMetaData(long loc, FileInfo fi) throws IOException {
 		if (metaDataCounts==null || metaDataCounts.length==0)
 			return;
 		int maxTypes = 10;
@@ -737,6 +854,211 @@ public class TiffDecoder {
 		debugMode = true;
 	}
 		
+	/** Returns the offsets of the IFDs of the full resolution images in this
+		file without decoding them: only the number of entries, the NewSubfileType
+		tag and the offset of the next IFD are read from each IFD. The offsets
+		of files with at least MIN_INDEXED_IFDS images are saved in the
+		"tiff-index" folder of the preferences directory, keyed by path, size
+		and modification time, and read from there when the file is opened
+		again. Returns null if this is not a TIFF file or if this decoder was
+		constructed from an InputStream. Use getTiffInfo(long) to decode an IFD.
+	*/
+	public long[] getIFDOffsets() throws IOException {
+		if (url!=null)
+			return null;
+		File f = new File(directory, name);
+		long[] offsets = readIndex(f);
+		if (offsets!=null)
+			return offsets;
+		if (in==null)
+			in = new RandomAccessStream(new RandomAccessFile(f, "r"));
+		long ifdOffset = OpenImageFileHeader();
+		if (ifdOffset<0L) {
+			in = null;
+			return null;
+		}
+		offsets = new long[64];
+		int n = 0;
+		int entrySize = bigTiff?20:12;
+		byte[] entries = new byte[entrySize*16];
+		while (ifdOffset>0L) {
+			in.seek(ifdOffset);
+			int nEntries = bigTiff?(int)readLong():getShort();
+			if (nEntries<1 || nEntries>1000)
+				break;
+			int size = nEntries*entrySize;
+			if (size>entries.length)
+				entries = new byte[size];
+			in.readFully(entries, size);
+			long nextOffset = bigTiff?readLong():((long)getInt())&0xffffffffL;
+			if (n==0 || !isReducedResolution(entries, nEntries)) {
+				if (n==offsets.length) {
+					long[] tmp = new long[n*2];
+					System.arraycopy(offsets, 0, tmp, 0, n);
+					offsets = tmp;
+				}
+				offsets[n++] = ifdOffset;
+			}
+			if ((n%1000)==0)
+				ij.IJ.showStatus(""+n);
+			ifdOffset = nextOffset!=ifdOffset?nextOffset:0L;
+		}
+		in.close();
+		in = null;
+		long[] tmp = new long[n];
+		System.arraycopy(offsets, 0, tmp, 0, n);
+		offsets = tmp;
+		if (n>=MIN_INDEXED_IFDS)
+			writeIndex(f, offsets);
+		return offsets;
+	}
+
+	/* Returns true if the NewSubfileType tag of the IFD entries in 'entries'
+		marks a reduced resolution image. */
+	boolean isReducedResolution(byte[] entries, int nEntries) {
+		int entrySize = bigTiff?20:12;
+		for (int i=0; i<nEntries; i++) {
+			int p = i*entrySize;
+			if (getShort(entries, p)==NEW_SUBFILE_TYPE) {
+				int fieldType = getShort(entries, p+2);
+				int valuePos = p + (bigTiff?12:8);
+				int value = fieldType==SHORT?getShort(entries, valuePos):getInt(entries, valuePos);
+				return (value&1)!=0;
+			}
+		}
+		return false;
+	}
+
+	final int getShort(byte[] b, int p) {
+		int b1 = b[p]&0xff;
+		int b2 = b[p+1]&0xff;
+		return littleEndian?((b2<<8) + b1):((b1<<8) + b2);
+	}
+
+	final int getInt(byte[] b, int p) {
+		int b1 = b[p]&0xff;
+		int b2 = b[p+1]&0xff;
+		int b3 = b[p+2]&0xff;
+		int b4 = b[p+3]&0xff;
+		if (littleEndian)
+			return ((b4 << 24) + (b3 << 16) + (b2 << 8) + b1);
+		else
+			return ((b1 << 24) + (b2 << 16) + (b3 << 8) + b4);
+	}
+
+	/** Decodes the IFD at 'ifdOffset', one of the offsets returned by
+		getIFDOffsets(), or the first IFD if 'ifdOffset' is 0, and returns
+		it as a FileInfo, or null if it is not a valid IFD. The IFD is
+		decoded as if it was the first one, so a decoder can be used for
+		all the IFDs of a file. */
+	public FileInfo getTiffInfo(long ifdOffset) throws IOException {
+		ifdCount = 0;
+		tiffMetadata = null;
+		if (in==null)
+			in = new RandomAccessStream(new RandomAccessFile(new File(directory, name), "r"));
+		try {
+			long firstIFD = OpenImageFileHeader();
+			if (firstIFD<0L)
+				return null;
+			if (debugMode) dInfo = "\n  " + name + ": opening\n";
+			in.seek(ifdOffset>0L?ifdOffset:firstIFD);
+			FileInfo fi = OpenIFD();
+			if (fi!=null) {
+				if (debugMode) fi.debugInfo = dInfo;
+				long[] subIFDs = subIFDOffsets;
+				if (subIFDs!=null)
+					openSubIFDs(fi, subIFDs);
+				if (fi.info==null)
+					fi.info = tiffMetadata;
+			}
+			return fi;
+		} finally {
+			in.close();
+			in = null;
+		}
+	}
+
+	/* Returns the file that holds the cached IFD offsets of 'f', or
+		null if the preferences directory is not known. */
+	static File getIndexFile(File f) {
+		String dir = ij.Prefs.getPrefsDir();
+		if (dir==null)
+			return null;
+		String path = f.getAbsolutePath();
+		return new File(dir+File.separator+"tiff-index", Integer.toHexString(path.hashCode())+".idx");
+	}
+
+	/* Returns the cached IFD offsets of 'f', or null if they are not
+		cached or if the file has changed since they were saved. */
+	static long[] readIndex(File f) {
+		File index = getIndexFile(f);
+		if (index==null || !index.isFile())
+			return null;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+			if (dis.readInt()!=INDEX_MAGIC || !dis.readUTF().equals(f.getAbsolutePath())
+			|| dis.readLong()!=f.length() || dis.readLong()!=f.lastModified())
+				return null;
+			long[] offsets = new long[dis.readInt()];
+			for (int i=0; i<offsets.length; i++)
+				offsets[i] = dis.readLong();
+			index.setLastModified(System.currentTimeMillis());  // recently used
+			return offsets;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				if (dis!=null) dis.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/* Saves the IFD offsets of 'f' in the index cache. */
+	static void writeIndex(File f, long[] offsets) {
+		File index = getIndexFile(f);
+		if (index==null)
+			return;
+		DataOutputStream dos = null;
+		try {
+			index.getParentFile().mkdirs();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index)));
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeUTF(f.getAbsolutePath());
+			dos.writeLong(f.length());
+			dos.writeLong(f.lastModified());
+			dos.writeInt(offsets.length);
+			for (int i=0; i<offsets.length; i++)
+				dos.writeLong(offsets[i]);
+		} catch (IOException e) {
+			if (ij.IJ.debugMode) ij.IJ.log("TiffDecoder: "+e);
+		} finally {
+			try {
+				if (dos!=null) dos.close();
+			} catch (IOException e) {}
+		}
+		pruneIndex(index.getParentFile());
+	}
+
+	/* Deletes the least recently used index files in 'dir' if there are
+		more than MAX_INDEX_FILES, so that the cache does not keep growing
+		with files that have been moved or deleted. */
+	static void pruneIndex(File dir) {
+		File[] files = dir.listFiles();
+		if (files==null || files.length<=MAX_INDEX_FILES)
+			return;
+		long[] times = new long[files.length];
+		for (int i=0; i<files.length; i++)
+			times[i] = files[i].lastModified();
+		long[] sorted = (long[])times.clone();
+		Arrays.sort(sorted);
+		long oldest = sorted[files.length-MAX_INDEX_FILES];  // the oldest one kept
+		for (int i=0; i<files.length; i++) {
+			if (times[i]<oldest && files[i].getName().endsWith(".idx"))
+				files[i].delete();
+		}
+	}
+
 	public FileInfo[] getTiffInfo() throws IOException {
 		long ifdOffset;
 		Vector info;
@@ -754,8 +1076,15 @@ public class TiffDecoder {
 			in.seek(ifdOffset);
 			FileInfo fi = OpenIFD();
 			if (fi!=null) {
-				info.addElement(fi);
-				ifdOffset = ((long)getInt())&0xffffffffL;
+				long[] subIFDs = subIFDOffsets;
+				FileInfo fullResolution = info.size()>0?(FileInfo)info.lastElement():null;
+				if (reducedResolution && fullResolution!=null && fi.width<fullResolution.width)
+					addResolutionLevel(fullResolution, fi);
+				else
+					info.addElement(fi);
+				ifdOffset = bigTiff?readLong():((long)getInt())&0xffffffffL;
+				if (subIFDs!=null)
+					openSubIFDs(fi, subIFDs);
 			} else
 				ifdOffset = 0L;
 			if (debugMode && ifdCount<10) dInfo += "  nextIFD=" + ifdOffset + "\n";
@@ -789,6 +1118,54 @@ public class TiffDecoder {
 		}
 	}
 	
+	/** Sets the strip (or tile) offsets of 'fi', and its offset to the lowest one. */
+	void setStripOffsets(FileInfo fi, long[] offsets) {
+		int n = offsets.length;
+		fi.stripOffsets = new int[n];
+		boolean large = false;
+		for (int i=0; i<n; i++) {
+			fi.stripOffsets[i] = (int)offsets[i];
+			if (offsets[i]>0xffffffffL)
+				large = true;
+		}
+		fi.longStripOffsets = large?offsets:null;
+		long offset = n>0?offsets[0]:0L;
+		if (n>1 && offsets[n-1]<offsets[0])
+			offset = offsets[n-1];
+		fi.offset = (int)offset;
+		fi.longOffset = offset>0xffffffffL?offset:0L;
+	}
+
+	/** Reads the SubIFDs of an image, which hold its reduced resolution versions. */
+	void openSubIFDs(FileInfo fi, long[] offsets) throws IOException {
+		long saveLoc = in.getLongFilePointer();
+		for (int i=0; i<offsets.length; i++) {
+			if (offsets[i]<=0L)
+				continue;
+			in.seek(offsets[i]);
+			FileInfo level = OpenIFD();
+			if (level!=null && level.width<fi.width)
+				addResolutionLevel(fi, level);
+		}
+		in.seek(saveLoc);
+	}
+
+	/** Adds 'level' to the resolution levels of 'fi', keeping them sorted by decreasing size. */
+	void addResolutionLevel(FileInfo fi, FileInfo level) {
+		int n = fi.resolutionLevels!=null?fi.resolutionLevels.length:0;
+		FileInfo[] levels = new FileInfo[n+1];
+		int i = 0;
+		while (i<n && fi.resolutionLevels[i].width>=level.width) {
+			levels[i] = fi.resolutionLevels[i];
+			i++;
+		}
+		levels[i] = level;
+		for (; i<n; i++)
+			levels[i+1] = fi.resolutionLevels[i];
+		fi.resolutionLevels = levels;
+		if (debugMode) dInfo += "  resolution level: "+level.width+"x"+level.height+"\n";
+	}
+
 	String getGapInfo(FileInfo[] fi) {
 		if (fi.length<2) return "0";
 		long minGap = Long.MAX_VALUE;
@@ -1,9 +1,13 @@
 package ij.io;
 import java.io.*;
 
-/**Saves an image described by a FileInfo object as an uncompressed, big-endian TIFF file.*/
+/**Saves an image described by a FileInfo object as a TIFF file. The image is uncompressed
+	unless fi.compression is LZW, ZIP or PACK_BITS (optionally with differencing), in which
+	case it is saved in strips of fi.rowsPerStrip rows that are compressed in parallel.
+	Files larger than 4GB are saved as BigTIFF, which uses 64-bit offsets.*/
 public class TiffEncoder {
 	static final int HDR_SIZE = 8;
+	static final int BIG_HDR_SIZE = 16;
 	static final int MAP_SIZE = 768; // in 16-bit words
 	static final int BPS_DATA_SIZE = 6;
 	static final int SCALE_DATA_SIZE = 16;
@@ -15,9 +19,19 @@ public class TiffEncoder {
 	private int nEntries;
 	private int ifdSize;
 	private long imageOffset;
-	private int imageSize;
+	private long imageSize;
 	private long stackSize;
 	private byte[] description;
+	private int descriptionSize;
+	private int bpsSize;
+	private int colorMapSize;
+	private int metaDataCountsSize;
+	private boolean bigTiff;
+	private int compression; // TIFF Compression tag value, 0 if uncompressed
+	private int fileCompression; // FileInfo compression actually written
+	private boolean predictor;
+	private int rowsPerStrip;
+	private int nStrips = 1;
 	private int metaDataSize;
 	private int nMetaDataTypes;
 	private int nMetaDataEntries;
@@ -34,8 +48,6 @@ public class TiffEncoder {
 		samplesPerPixel = 1;
 		nEntries = 9;
 		int bytesPerPixel = 1;
-		int bpsSize = 0;
-		int colorMapSize = 0;
 
 		switch (fi.fileType) {
 			case FileInfo.GRAY8:
@@ -74,6 +86,10 @@ public class TiffEncoder {
 			default:
 				photoInterp = 0;
 		}
+		rowsPerStrip = fi.height;
+		fileCompression = fi.compression;
+		if (fi.compression!=FileInfo.COMPRESSION_NONE)
+			setCompression();
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0)
 			nEntries += 3; // XResolution, YResolution and ResolutionUnit
 		if (fi.fileType==fi.GRAY32_FLOAT)
@@ -81,48 +97,120 @@ public class TiffEncoder {
 		makeDescriptionString();
 		if (description!=null)
 			nEntries++;  // ImageDescription tag
-		long size = (long)fi.width*fi.height*bytesPerPixel;
-		imageSize = size<=0xffffffffL?(int)size:0;
-		stackSize = (long)imageSize*fi.nImages;
+		imageSize = (long)fi.width*fi.height*bytesPerPixel;
+		stackSize = imageSize*fi.nImages;
 		metaDataSize = getMetaDataSize();
 		if (metaDataSize>0)
 			nEntries += 2; // MetaData & MetaDataCounts
-		ifdSize = 2 + nEntries*12 + 4;
-		int descriptionSize = description!=null?description.length:0;
-		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0?SCALE_DATA_SIZE:0;
-		imageOffset = HDR_SIZE+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
+		setLayout();
+		long maxImageSize = imageSize;
+		long maxStackSize = stackSize;
+		if (compression!=0) { // LZW may expand the data by up to 50%
+			maxImageSize = imageSize + imageSize/2 + nStrips*24L;
+			maxStackSize = maxImageSize*fi.nImages;
+		}
+		if (maxImageSize>0xffffffffL || imageOffset+maxStackSize+(long)fi.nImages*ifdSize>=0xffffffffL) {
+			bigTiff = true;
+			setLayout();
+		}
 		fi.offset = (int)imageOffset;
 		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize);
 	}
+
+	/** Checks that fi.compression can be written and sets up the strips. Floating-point 
+		data are saved without differencing, which TIFF only defines for integers. */
+	void setCompression() {
+		if (fi.fileType==FileInfo.GRAY32_FLOAT) {
+			if (fileCompression==FileInfo.LZW_WITH_DIFFERENCING)
+				fileCompression = FileInfo.LZW;
+			else if (fileCompression==FileInfo.ZIP_WITH_DIFFERENCING)
+				fileCompression = FileInfo.ZIP;
+		}
+		FileInfo fi2 = getWriterInfo();
+		if (!ImageWriter.canCompress(fi2)) {
+			fileCompression = FileInfo.COMPRESSION_NONE;
+			return;
+		}
+		switch (fileCompression) {
+			case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+				compression = 5; break;
+			case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				compression = 8; break; // Adobe Deflate
+			case FileInfo.PACK_BITS:
+				compression = 32773; break;
+		}
+		predictor = fileCompression==FileInfo.LZW_WITH_DIFFERENCING || fileCompression==FileInfo.ZIP_WITH_DIFFERENCING;
+		ImageWriter writer = new ImageWriter(fi2);
+		rowsPerStrip = writer.getRowsPerStrip();
+		nStrips = writer.getStripCount();
+		nEntries++; // Compression tag
+		if (predictor)
+			nEntries++; // Predictor tag
+	}
+
+	/* Returns a copy of fi with the compression that is actually written. */
+	private FileInfo getWriterInfo() {
+		FileInfo fi2 = (FileInfo)fi.clone();
+		fi2.compression = fileCompression;
+		return fi2;
+	}
+
+	/** Computes the sizes of the IFD and of the tag data that follows it. In a 
+		BigTIFF, tag data of up to 8 bytes is stored in the IFD entry itself. */
+	void setLayout() {
+		boolean rgb = fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48;
+		bpsSize = rgb&&!bigTiff?BPS_DATA_SIZE:0;
+		colorMapSize = fi.fileType==FileInfo.COLOR8?MAP_SIZE*2:0;
+		descriptionSize = description!=null&&!isInline(description.length)?description.length:0;
+		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0 && !bigTiff?SCALE_DATA_SIZE:0;
+		metaDataCountsSize = isInline(nMetaDataEntries*4)?0:nMetaDataEntries*4;
+		if (bigTiff)
+			ifdSize = 8 + nEntries*20 + 8;
+		else
+			ifdSize = 2 + nEntries*12 + 4;
+		imageOffset = getHeaderSize()+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + metaDataCountsSize + metaDataSize;
+	}
+
+	/** Returns true if tag data of this size is stored in the IFD entry. */
+	boolean isInline(int size) {
+		return bigTiff && size<=8;
+	}
+
+	int getHeaderSize() {
+		return bigTiff?BIG_HDR_SIZE:HDR_SIZE;
+	}
+
+	/** Returns true if the file will be saved as a BigTIFF. */
+	public boolean isBigTiff() {
+		return bigTiff;
+	}
 	
 	/** Saves the image as a TIFF file. The OutputStream is not closed.
 		The fi.pixels field must contain the image data. If fi.nImages>1
-		then fi.pixels must be a 2D array. The fi.offset field is ignored. */
+		then fi.pixels must be a 2D array. The fi.offset field is ignored.
+		Once the file is written, the offset, compression and strip fields
+		of 'fi' describe it, so that the image can be read back using 'fi'. */
 	public void write(OutputStream out) throws IOException {
 		writeHeader(out);
+		if (compression!=0) {
+			writeCompressed(out);
+			return;
+		}
 		long nextIFD = 0L;
 		if (fi.nImages>1)
 			nextIFD = imageOffset+stackSize;
-        if (nextIFD+fi.nImages*ifdSize>=0xffffffffL)
+        if (!bigTiff && nextIFD+fi.nImages*ifdSize>=0xffffffffL)
             nextIFD = 0L;
-		writeIFD(out, (int)imageOffset, (int)nextIFD);
-		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
-			writeBitsPerPixel(out);
-		if (description!=null)
-			writeDescription(out);
-		if (scaleSize>0)
-			writeScale(out);
-		if (fi.fileType==FileInfo.COLOR8)
-			writeColorMap(out);
-		if (metaDataSize>0)
-			writeMetaData(out);
+		writeIFD(out, imageOffset, imageSize, nextIFD);
+		writeTagData(out);
 		new ImageWriter(fi).write(out);
+		fi.compression = FileInfo.COMPRESSION_NONE;
 		if (nextIFD>0L) {
 			int ifdSize2 = ifdSize;
 			if (metaDataSize>0) {
 				metaDataSize = 0;
 				nEntries -= 2;
-				ifdSize2 -= 2*12;
+				ifdSize2 -= 2*(bigTiff?20:12);
 			}
 			for (int i=2; i<=fi.nImages; i++) {
 				if (i==fi.nImages)
@@ -130,10 +218,97 @@ public class TiffEncoder {
 				else
 					nextIFD += ifdSize2;
 				imageOffset += imageSize;
-				writeIFD(out, (int)imageOffset, (int)nextIFD);
+				writeIFD(out, imageOffset, imageSize, nextIFD);
+			}
+		}
+	}
+
+	/** Writes the data of the tags that do not fit in the first IFD. */
+	void writeTagData(OutputStream out) throws IOException {
+		if (bpsSize>0)
+			writeBitsPerPixel(out);
+		if (descriptionSize>0)
+			writeDescription(out);
+		if (scaleSize>0)
+			writeScale(out);
+		if (fi.fileType==FileInfo.COLOR8)
+			writeColorMap(out);
+		if (metaDataSize>0)
+			writeMetaData(out);
+	}
+
+	/** Writes a compressed image or stack. Each image is compressed before its IFD
+		is written, so the IFD can be followed by the offsets and byte counts of its
+		strips and then by the strips themselves. The first IFD is also followed by the
+		tag data that all the IFDs share. Several images are compressed at a time when
+		they have fewer strips than there are threads. */
+	void writeCompressed(OutputStream out) throws IOException {
+		ImageWriter writer = new ImageWriter(getWriterInfo());
+		int arraySize = nStrips>1?nStrips*(bigTiff?8:4):0; // not inline
+		int ifdSize2 = metaDataSize>0?ifdSize-2*(bigTiff?20:12):ifdSize;
+		int batch = (4*ij.Prefs.getThreads()+nStrips-1)/nStrips;
+		batch = (int)Math.max(1, Math.min(batch, (64L<<20)/Math.max(imageSize,1)));
+		long position = getHeaderSize();
+		for (int first=0; first<fi.nImages; first+=batch) {
+			int count = Math.min(batch, fi.nImages-first);
+			byte[][][] strips = writer.compress(first, count);
+			for (int i=0; i<count; i++) {
+				int n = first + i;
+				if (fi.nImages>1)
+					ij.IJ.showStatus("Writing: " + (n+1) + "/" + fi.nImages);
+				long arrayOffset = n==0?imageOffset:position+ifdSize2;
+				long[] offsets = new long[nStrips];
+				long end = arrayOffset + 2*arraySize;
+				for (int s=0; s<nStrips; s++) {
+					offsets[s] = end;
+					end += strips[i][s].length;
+				}
+				if (!bigTiff && end>0xffffffffL)
+					throw new IOException("TiffEncoder: compressed file larger than 4GB");
+				long nextIFD = n<fi.nImages-1?end:0L;
+				if (n==1 && metaDataSize>0) {
+					metaDataSize = 0;
+					nEntries -= 2;
+				}
+				if (nStrips>1)
+					writeIFD(out, arrayOffset, arrayOffset+arraySize, nextIFD);
+				else
+					writeIFD(out, offsets[0], strips[i][0].length, nextIFD);
+				if (n==0)
+					writeTagData(out);
+				if (nStrips>1) {
+					for (int s=0; s<nStrips; s++)
+						writeOffset(out, offsets[s]);
+					for (int s=0; s<nStrips; s++)
+						writeOffset(out, strips[i][s].length);
+				}
+				for (int s=0; s<nStrips; s++)
+					out.write(strips[i][s]);
+				if (n==0)
+					setStrips(offsets, strips[0]);
+				position = end;
+				strips[i] = null;
+				ij.IJ.showProgress((double)(n+1)/fi.nImages);
 			}
 		}
 	}
+
+	/** Records how and where the strips of the first image were written, 
+		so that the image can be read back using this FileInfo. */
+	void setStrips(long[] offsets, byte[][] strips) {
+		fi.compression = fileCompression;
+		fi.offset = (int)offsets[0];
+		fi.rowsPerStrip = rowsPerStrip;
+		fi.stripOffsets = new int[nStrips];
+		fi.stripLengths = new int[nStrips];
+		fi.longStripOffsets = null;
+		for (int s=0; s<nStrips; s++) {
+			fi.stripOffsets[s] = (int)offsets[s];
+			fi.stripLengths[s] = strips[s].length;
+			if (offsets[s]>0xffffffffL)
+				fi.longStripOffsets = offsets;
+		}
+	}
 	
 	public void write(DataOutputStream out) throws IOException {
 		write((OutputStream)out);
@@ -217,8 +392,17 @@ public class TiffEncoder {
 		return size;
 	}
 	
-	/** Writes the 8-byte image file header. */
+	/** Writes the 8-byte image file header (16-byte for BigTIFF). */
 	void writeHeader(OutputStream out) throws IOException {
+		if (bigTiff) {
+			out.write(littleEndian?73:77); // "II" or "MM"
+			out.write(littleEndian?73:77);
+			writeShort(out, 43); // BigTIFF magic number
+			writeShort(out, 8); // offset size
+			writeShort(out, 0);
+			writeLong(out, BIG_HDR_SIZE); // offset to first IFD
+			return;
+		}
 		byte[] hdr = new byte[8];
 		if (littleEndian) {
 			hdr[0] = 73; // "II" (Intel byte order)
@@ -242,43 +426,91 @@ public class TiffEncoder {
 		out.write(hdr);
 	}
 	
-	/** Writes one 12-byte IFD entry. */
-	void writeEntry(OutputStream out, int tag, int fieldType, int count, int value) throws IOException {
-		writeShort(out, tag);
-		writeShort(out, fieldType);
-		writeInt(out, count);
+	/** Writes one 12-byte IFD entry (20-byte for BigTIFF). */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, long value) throws IOException {
+		writeEntryHeader(out, tag, fieldType, count);
 		if (count==1 && fieldType==TiffDecoder.SHORT) {
-			writeShort(out, value);
+			writeShort(out, (int)value);
 			writeShort(out, 0);
+			if (bigTiff) writeInt(out, 0);
+		} else if (bigTiff) {
+			if (count==1 && fieldType==TiffDecoder.LONG) {
+				writeInt(out, (int)value);
+				writeInt(out, 0);
+			} else
+				writeLong(out, value); // may be an offset
 		} else
-			writeInt(out, value); // may be an offset
+			writeInt(out, (int)value); // may be an offset
+	}
+
+	/** Writes the tag, field type and count of an IFD entry. */
+	void writeEntryHeader(OutputStream out, int tag, int fieldType, int count) throws IOException {
+		writeShort(out, tag);
+		writeShort(out, fieldType);
+		if (bigTiff)
+			writeLong(out, count);
+		else
+			writeInt(out, count);
+	}
+
+	/** Pads the value field of a BigTIFF IFD entry holding 'size' bytes of data. */
+	void writeInlinePadding(OutputStream out, int size) throws IOException {
+		for (int i=size; i<8; i++)
+			out.write(0);
 	}
 	
-	/** Writes one IFD (Image File Directory). */
-	void writeIFD(OutputStream out, int imageOffset, int nextIFD) throws IOException {	
-		int tagDataOffset = HDR_SIZE + ifdSize;
-		writeShort(out, nEntries);
+	/** Writes one IFD (Image File Directory). With more than one strip, 'stripOffsets' 
+		and 'stripByteCounts' are the offsets of the arrays holding these values. */
+	void writeIFD(OutputStream out, long stripOffsets, long stripByteCounts, long nextIFD) throws IOException {	
+		long tagDataOffset = getHeaderSize() + ifdSize;
+		if (bigTiff)
+			writeLong(out, nEntries);
+		else
+			writeShort(out, nEntries);
 		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, 0);
 		writeEntry(out, TiffDecoder.IMAGE_WIDTH, 4, 1, fi.width);
 		writeEntry(out, TiffDecoder.IMAGE_LENGTH, 4, 1, fi.height);
 		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) {
-			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
-			tagDataOffset += BPS_DATA_SIZE;
+			if (bigTiff) {
+				writeEntryHeader(out, TiffDecoder.BITS_PER_SAMPLE, 3, 3);
+				writeBitsPerPixel(out);
+				writeInlinePadding(out, BPS_DATA_SIZE);
+			} else {
+				writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
+				tagDataOffset += BPS_DATA_SIZE;
+			}
 		} else
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 1, bitsPerSample);
+		if (compression!=0)
+			writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, compression);
 		writeEntry(out, TiffDecoder.PHOTO_INTERP,     3, 1, photoInterp);
 		if (description!=null) {
-			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
-			tagDataOffset += description.length;
+			if (descriptionSize==0) {
+				writeEntryHeader(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length);
+				writeDescription(out);
+				writeInlinePadding(out, description.length);
+			} else {
+				writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
+				tagDataOffset += description.length;
+			}
 		}
-		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
+		int offsetType = bigTiff?TiffDecoder.LONG8:TiffDecoder.LONG;
+		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    offsetType, nStrips, stripOffsets);
 		writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
-		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
-		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, rowsPerStrip);
+		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, offsetType, nStrips, stripByteCounts);
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0) {
-			writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
-			writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
-			tagDataOffset += SCALE_DATA_SIZE;
+			if (bigTiff) {
+				double scale = getScaleDenominator();
+				writeEntryHeader(out, TiffDecoder.X_RESOLUTION, 5, 1);
+				writeRational(out, 1.0/fi.pixelWidth, scale);
+				writeEntryHeader(out, TiffDecoder.Y_RESOLUTION, 5, 1);
+				writeRational(out, 1.0/fi.pixelHeight, scale);
+			} else {
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
+				tagDataOffset += SCALE_DATA_SIZE;
+			}
 			int unit = 1;
 			if (fi.unit.equals("inch"))
 				unit = 2;
@@ -286,6 +518,8 @@ public class TiffEncoder {
 				unit = 3;
 			writeEntry(out, TiffDecoder.RESOLUTION_UNIT, 3, 1, unit);
 		}
+		if (predictor)
+			writeEntry(out, TiffDecoder.PREDICTOR, 3, 1, 2); // horizontal differencing
 		if (fi.fileType==fi.GRAY32_FLOAT) {
 			int format = TiffDecoder.FLOATING_POINT;
 			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
@@ -295,11 +529,19 @@ public class TiffEncoder {
 			tagDataOffset += MAP_SIZE*2;
 		}
 		if (metaDataSize>0) {
-			writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
-			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset+4*nMetaDataEntries);
-			tagDataOffset += nMetaDataEntries*4 + metaDataSize;
+			if (metaDataCountsSize==0) {
+				writeEntryHeader(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries);
+				writeMetaDataCounts(out);
+				writeInlinePadding(out, nMetaDataEntries*4);
+			} else
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
+			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset+metaDataCountsSize);
+			tagDataOffset += metaDataCountsSize + metaDataSize;
 		}
-		writeInt(out, nextIFD);
+		if (bigTiff)
+			writeLong(out, nextIFD);
+		else
+			writeInt(out, (int)nextIFD);
 	}
 	
 	/** Writes the 6 bytes of data required by RGB BitsPerSample tag. */
@@ -312,13 +554,18 @@ public class TiffEncoder {
 
 	/** Writes the 16 bytes of data required by the XResolution and YResolution tags. */
 	void writeScale(OutputStream out) throws IOException {
+		double scale = getScaleDenominator();
+		writeRational(out, 1.0/fi.pixelWidth, scale);
+		writeRational(out, 1.0/fi.pixelHeight, scale);
+	}
+
+	double getScaleDenominator() {
 		double xscale = 1.0/fi.pixelWidth;
-		double yscale = 1.0/fi.pixelHeight;
-		double scale = 1000000.0;
-		if (xscale>1000.0) scale = 1000.0;
-		writeInt(out, (int)(xscale*scale));
-		writeInt(out, (int)scale);
-		writeInt(out, (int)(yscale*scale));
+		return xscale>1000.0?1000.0:1000000.0;
+	}
+
+	void writeRational(OutputStream out, double value, double scale) throws IOException {
+		writeInt(out, (int)(value*scale));
 		writeInt(out, (int)scale);
 	}
 
@@ -340,12 +587,8 @@ public class TiffEncoder {
 		out.write(colorTable16);
 	}
 	
-	/** Writes image metadata ("info" image propery, 
-		stack slice labels, channel display ranges, luts, ROIs,
-		overlays and extra metadata). */
-	void writeMetaData(OutputStream out) throws IOException {
-	
-		// write byte counts (META_DATA_BYTE_COUNTS tag)
+	/** Writes the byte counts of the image metadata (META_DATA_BYTE_COUNTS tag). */
+	void writeMetaDataCounts(OutputStream out) throws IOException {
 		writeInt(out, 4+nMetaDataTypes*8); // header size	
 		if (fi.info!=null && fi.info.length()>0)
 			writeInt(out, fi.info.length()*2);
@@ -369,6 +612,14 @@ public class TiffEncoder {
 		}
 		for (int i=0; i<extraMetaDataEntries; i++)
 			writeInt(out, fi.metaData[i].length);	
+	}
+
+	/** Writes image metadata ("info" image propery, 
+		stack slice labels, channel display ranges, luts, ROIs,
+		overlays and extra metadata). */
+	void writeMetaData(OutputStream out) throws IOException {
+		if (metaDataCountsSize>0)
+			writeMetaDataCounts(out);
 		
 		// write header (META_DATA tag header)
 		writeInt(out, TiffDecoder.MAGIC_NUMBER); // "IJIJ"
@@ -440,6 +691,14 @@ public class TiffEncoder {
 			description = null;
 	}
 		
+	/** Writes a 4-byte offset, or an 8-byte offset if this is a BigTIFF. */
+	final void writeOffset(OutputStream out, long v) throws IOException {
+		if (bigTiff)
+			writeLong(out, v);
+		else
+			writeInt(out, (int)v);
+	}
+
 	final void writeShort(OutputStream out, int v) throws IOException {
 		if (littleEndian) {
        		out.write(v&255);
@@ -111,6 +111,10 @@ import javax.imageio.ImageIO;
 
 public class AVI_Reader extends VirtualStack implements PlugIn {
 
+    //virtual stacks: decoded frames kept in memory, and frames decoded in advance
+    private final static long  CACHE_BYTES = 64*1024*1024;  //maximum memory for decoded frames
+    private final static int   PREFETCH_FRAMES = 8;         //frames decoded ahead of the one displayed
+
     //four-character codes for avi chunk types
     //NOTE: byte sequence is reversed - ints in Intel (little endian) byte order!
     private final static int   FOURCC_RIFF = 0x46464952;   //'RIFF'
@@ -207,6 +211,12 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
     private  boolean           variableLength;      //compressed (PNG, JPEG) frames have variable length
     //for conversion to ImageJ stack
     private  Vector            frameInfos;  //for virtual stack: long[] with frame pos&size in file, time(usec)
+    private  LinkedHashMap     frameCache;  //for virtual stack: pixels of decoded frames by frame pos (Long), least recently used first
+    private  long              cacheBytes;  //size of the pixels in frameCache
+    private  Vector            prefetchInfos = new Vector();  //frameInfos of the frames to decode in the background
+    private  Thread            prefetchThread;
+    private  Long              prefetchKey; //frame pos of the frame being decoded in the background, or null
+    private  int               lastRequested;  //the slice number of the last call to getProcessor
     private  ImageStack        stack;
     private  ImagePlus         imp;
     //for debug messages and error handling
@@ -350,37 +360,151 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 
     /** Returns an ImageProcessor for the specified slice of this virtual stack (if it is one)
         where 1<=n<=nslices. Returns null if no virtual stack or no slices.
+        Recently used frames are kept in memory (up to 64 MB), and the next frames,
+        or the previous ones when moving backwards, are decoded in the background.
     */
-    public synchronized ImageProcessor getProcessor(int n) {
+    public ImageProcessor getProcessor(int n) {
         if (frameInfos==null || frameInfos.size()==0 || raFilePath==null)
             return null;
         if (n<1 || n>frameInfos.size())
             throw new IllegalArgumentException("Argument out of range: "+n);
-        Object pixels = null;
+        long[] frameInfo = (long[])(frameInfos.get(n-1));
+        Object pixels = getCachedFrame(frameInfo);
+        if (pixels == null) {
+            RandomAccessFile rFile = null;
+            String exceptionMessage = null;
+            try {
+                rFile = new RandomAccessFile(new File(raFilePath), "r");
+                pixels = readFrame(rFile, frameInfo[0], (int)frameInfo[1]);
+            } catch (Exception e) {
+                exceptionMessage = exceptionMessage(e);
+            } finally {
+                try {
+                    rFile.close();
+                } catch (Exception e) {}
+            }
+            if (exceptionMessage != null) {
+                error(exceptionMessage);
+                return null;
+            }
+            if (pixels == null) return null; //failed
+            cacheFrame(frameInfo, pixels);
+        }
+        prefetch(n);
+        if (pixels instanceof byte[])
+            return new ByteProcessor(dwWidth, biHeight, (byte[])((byte[])pixels).clone(), cm);
+        else if (pixels instanceof short[])
+            return new ShortProcessor(dwWidth, biHeight, (short[])((short[])pixels).clone(), cm);
+        else
+            return new ColorProcessor(dwWidth, biHeight, (int[])((int[])pixels).clone());
+    }
+
+    /** Returns the cached pixels of a frame, or null if the frame is not in the cache.
+     *  Waits if the frame is being decoded in the background. */
+    private synchronized Object getCachedFrame(long[] frameInfo) {
+        Long key = new Long(frameInfo[0]);
+        while (key.equals(prefetchKey)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return frameCache!=null ? frameCache.get(key) : null;
+    }
+
+    /** Adds the pixels of a frame to the cache, removing the least recently used
+     *  frames if the cache is full */
+    private synchronized void cacheFrame(long[] frameInfo, Object pixels) {
+        if (frameCache == null)
+            frameCache = new LinkedHashMap(16, 0.75f, true);
+        if (frameCache.put(new Long(frameInfo[0]), pixels) == null)
+            cacheBytes += getBytes(pixels);
+        Iterator it = frameCache.values().iterator();
+        while (cacheBytes>CACHE_BYTES && frameCache.size()>1) {
+            cacheBytes -= getBytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long getBytes(Object pixels) {
+        if (pixels instanceof byte[])
+            return ((byte[])pixels).length;
+        else if (pixels instanceof short[])
+            return 2L*((short[])pixels).length;
+        else
+            return 4L*((int[])pixels).length;
+    }
+
+    /** Starts decoding the frames that follow slice n, or that precede it if
+     *  the previous call was for a higher slice number, in the background */
+    private synchronized void prefetch(int n) {
+        int direction = n>=lastRequested ? 1 : -1;
+        lastRequested = n;
+        long frameBytes = Math.max(1L, cacheBytes/Math.max(1, frameCache.size()));
+        int nFrames = (int)Math.min(PREFETCH_FRAMES, CACHE_BYTES/frameBytes/2);
+        prefetchInfos.clear();
+        for (int i=1; i<=nFrames; i++) {
+            int m = n + i*direction;
+            if (m<1 || m>frameInfos.size()) break;
+            long[] frameInfo = (long[])frameInfos.get(m-1);
+            if (!frameCache.containsKey(new Long(frameInfo[0])))
+                prefetchInfos.add(frameInfo);
+        }
+        if (prefetchInfos.size()==0 || prefetchThread!=null)
+            return;
+        prefetchThread = new Thread("AVI_Reader-prefetch") {
+            public void run() {
+                prefetchFrames();
+            }
+        };
+        prefetchThread.setPriority(Thread.NORM_PRIORITY-1);
+        prefetchThread.start();
+    }
+
+    /** Decodes the frames in prefetchInfos and adds them to the cache.
+     *  Runs in the prefetch thread, which ends when there is nothing left to do */
+    private void prefetchFrames() {
         RandomAccessFile rFile = null;
-        String exceptionMessage = null;
         try {
             rFile = new RandomAccessFile(new File(raFilePath), "r");
-            long[] frameInfo = (long[])(frameInfos.get(n-1));
-            pixels = readFrame(rFile, frameInfo[0], (int)frameInfo[1]);
-        } catch (Exception e) {
-            exceptionMessage = exceptionMessage(e);
+            while (true) {
+                long[] frameInfo;
+                synchronized (this) {
+                    if (prefetchInfos.size()==0) {
+                        prefetchThread = null;
+                        return;
+                    }
+                    frameInfo = (long[])prefetchInfos.remove(0);
+                    prefetchKey = new Long(frameInfo[0]);
+                    if (frameCache.containsKey(prefetchKey)) {
+                        prefetchKey = null;
+                        continue;
+                    }
+                }
+                Object pixels = null;
+                try {
+                    pixels = readFrame(rFile, frameInfo[0], (int)frameInfo[1]);
+                } catch (Exception e) {}  //reported when the frame is displayed
+                synchronized (this) {
+                    prefetchKey = null;
+                    if (pixels != null)
+                        cacheFrame(frameInfo, pixels);
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
         } finally {
             try {
                 rFile.close();
             } catch (Exception e) {}
+            synchronized (this) {
+                if (prefetchThread == Thread.currentThread())
+                    prefetchThread = null;
+                prefetchKey = null;
+                notifyAll();
+            }
         }
-        if (exceptionMessage != null) {
-            error(exceptionMessage);
-            return null;
-        }
-        if (pixels == null) return null; //failed
-        if (pixels instanceof byte[])
-            return new ByteProcessor(dwWidth, biHeight, (byte[])pixels, cm);
-        else if (pixels instanceof short[])
-            return new ShortProcessor(dwWidth, biHeight, (short[])pixels, cm);
-        else
-            return new ColorProcessor(dwWidth, biHeight, (int[])pixels);
     }
 
     /** Returns the image width of the virtual stack */
@@ -80,11 +80,7 @@ public class FFTMath implements PlugIn {
         	if (imp2!=imp1)
        	 		h2 = new FHT(ip2);
        	}
-        if (!h1.powerOf2Size()) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
-        	return;
-        }
-        if (imp1.getWidth()!=imp2.getWidth()) {
+        if (imp1.getWidth()!=imp2.getWidth() || imp1.getHeight()!=imp2.getHeight()) {
         	IJ.error("FFT Math", "Images must be the same size");
         	return;
         }
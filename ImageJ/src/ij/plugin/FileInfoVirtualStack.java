@@ -11,7 +11,13 @@ import java.util.Properties;
 	implements the File/Import/TIFF Virtual Stack command. */
 public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	FileInfo[] info;
+	long[] ifdOffsets; // IFD offsets of the images whose FileInfo is decoded when first needed, or null
 	int nImages;
+	// properties of the first image, kept when images are deleted
+	private String directory, fileName;
+	private int width, height;
+	private String[] sliceLabels;
+	private TiffDecoder decoder; // decodes the IFDs of ifdOffsets
 	
 	/* Default constructor. */
 	public FileInfoVirtualStack() {}
@@ -43,8 +49,21 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		TiffDecoder td = new TiffDecoder(dir, name);
 		if (IJ.debugMode) td.enableDebugging();
 		IJ.showStatus("Decoding TIFF header...");
-		try {info = td.getTiffInfo();}
-		catch (IOException e) {
+		try {
+			// ImageJ stacks (nImages>1) are described by their first IFD alone
+			FileInfo fi = td.getTiffInfo(0L);
+			if (fi!=null && fi.nImages<=1) {
+				ifdOffsets = td.getIFDOffsets();
+				if (ifdOffsets!=null && ifdOffsets.length>1) {
+					info = new FileInfo[ifdOffsets.length];
+					info[0] = fi;
+				}
+			}
+			if (info==null) {
+				ifdOffsets = null;
+				info = td.getTiffInfo();
+			}
+		} catch (IOException e) {
 			String msg = e.getMessage();
 			if (msg==null||msg.equals("")) msg = ""+e;
 			IJ.error("TiffDecoder", msg);
@@ -61,10 +80,15 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	
 	void open(boolean show) {
 		FileInfo fi = info[0];
+		directory = fi.directory;
+		fileName = fi.fileName;
+		width = fi.width;
+		height = fi.height;
+		sliceLabels = fi.sliceLabels;
 		int n = fi.nImages;
 		if (info.length==1 && n>1) {
 			info = new FileInfo[n];
-			long size = fi.width*fi.height*fi.getBytesPerPixel();
+			long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
 			for (int i=0; i<n; i++) {
 				info[i] = (FileInfo)fi.clone();
 				info[i].nImages = 1;
@@ -132,8 +156,11 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		if (nImages<1) return;
-		for (int i=n; i<nImages; i++)
+		for (int i=n; i<nImages; i++) {
 			info[i-1] = info[i];
+			if (ifdOffsets!=null)
+				ifdOffsets[i-1] = ifdOffsets[i];
+		}
 		info[nImages-1] = null;
 		nImages--;
 	}
@@ -144,16 +171,20 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	public ImageProcessor getProcessor(int n) {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
-		if (IJ.debugMode) IJ.log("FileInfoVirtualStack: "+n+", "+info[n-1].getOffset());
-		//if (n>1) IJ.log("  "+(info[n-1].getOffset()-info[n-2].getOffset()));
-		info[n-1].nImages = 1; // why is this needed?
-		FileOpener fo = new FileOpener(info[n-1]);
-		ImagePlus imp = fo.open(false);
+		FileInfo fi = getInfo(n);
+		ImagePlus imp = null;
+		if (fi!=null) {
+			if (IJ.debugMode) IJ.log("FileInfoVirtualStack: "+n+", "+fi.getOffset());
+			//if (n>1) IJ.log("  "+(info[n-1].getOffset()-info[n-2].getOffset()));
+			fi.nImages = 1; // why is this needed?
+			FileOpener fo = new FileOpener(fi);
+			imp = fo.open(false);
+		}
 		if (imp!=null)
 			return imp.getProcessor();
 		else {
 			int w=getWidth(), h=getHeight();
-			IJ.log("Read error or file not found ("+n+"): "+info[n-1].directory+info[n-1].fileName);
+			IJ.log("Read error or file not found ("+n+"): "+directory+fileName);
 			switch (getBitDepth()) {
 				case 8: return new ByteProcessor(w, h);
 				case 16: return new ShortProcessor(w, h);
@@ -164,6 +195,51 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		}
 	 }
  
+	/** Returns the pixels inside the rectangle 'r' of the specified image,
+		were 1<=n<=nImages, reading only the TIFF tiles or strips that
+		intersect it. Returns null if the region cannot be read. */
+	public ImageProcessor getProcessor(int n, Rectangle r) {
+		return getProcessor(n, 0, r);
+	}
+
+	/** Returns the pixels inside the rectangle 'r' of resolution level 'level'
+		of the specified image, were 1<=n<=nImages and 0<=level<getLevels(n).
+		Level 0 is the full resolution image; 'r' is in the pixel coordinates
+		of the level. Returns null if the region cannot be read. */
+	public ImageProcessor getProcessor(int n, int level, Rectangle r) {
+		if (n<1 || n>nImages)
+			throw new IllegalArgumentException("Argument out of range: "+n);
+		if (level<0 || level>=getLevels(n))
+			throw new IllegalArgumentException("Level out of range: "+level);
+		FileInfo fi = level==0?getInfo(n):getInfo(n).resolutionLevels[level-1];
+		if (fi==null)
+			return null;
+		return new FileOpener(fi).openRegion(r);
+	}
+
+	/** Returns the number of resolution levels of the specified image, including
+		the full resolution image, were 1<=n<=nImages. */
+	public int getLevels(int n) {
+		FileInfo fi = getInfo(n);
+		FileInfo[] levels = fi!=null?fi.resolutionLevels:null;
+		return levels!=null?levels.length+1:1;
+	}
+
+	/* Returns the FileInfo of image 'n', decoding its IFD if this has not
+		been done yet, or null if it cannot be decoded. */
+	synchronized FileInfo getInfo(int n) {
+		if (info[n-1]==null && ifdOffsets!=null) {
+			try {
+				if (decoder==null)
+					decoder = new TiffDecoder(directory, fileName);
+				info[n-1] = decoder.getTiffInfo(ifdOffsets[n-1]);
+			} catch (IOException e) {
+				IJ.log("FileInfoVirtualStack: "+e);
+			}
+		}
+		return info[n-1];
+	}
+
 	 /** Returns the number of images in this stack. */
 	public int getSize() {
 		return nImages;
@@ -173,18 +249,18 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	public String getSliceLabel(int n) {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
-		if (info[0].sliceLabels==null || info[0].sliceLabels.length!=nImages)
+		if (sliceLabels==null || sliceLabels.length!=nImages)
 			return null;
 		else
-			return info[0].sliceLabels[n-1];
+			return sliceLabels[n-1];
 	}
 
 	public int getWidth() {
-		return info[0].width;
+		return width;
 	}
 	
 	public int getHeight() {
-		return info[0].height;
+		return height;
 	}
     
 }
@@ -27,6 +27,8 @@ public class FolderOpener implements PlugIn {
 	private FileInfo fi;
 	private String info1;
 	private ImagePlus image;
+	private FileLoader loader;
+	private long startTime;
 	
 	/** Opens the images in the specified directory as a stack. */
 	public static ImagePlus open(String path) {
@@ -165,14 +167,22 @@ public class FolderOpener implements PlugIn {
 			int count = 0;
 			int counter = 0;
 			ImagePlus imp = null;
+			startTime = System.currentTimeMillis();
+			if (!openAsVirtualStack && Prefs.getThreads()>1 && n>1)
+				loader = new FileLoader(directory, list);
 			for (int i=start-1; i<list.length; i++) {
 				if ((counter++%increment)!=0)
 					continue;
-				Opener opener = new Opener();
-				opener.setSilentMode(true);
-				IJ.redirectErrorMessages();
-				if (!openAsVirtualStack||stack==null)
+				ImageProcessor[] prepared = null;
+				if (loader!=null) {
+					imp = loader.get(i, n-count);
+					prepared = loader.getPreparedSlices();
+				} else if (!openAsVirtualStack||stack==null) {
+					Opener opener = new Opener();
+					opener.setSilentMode(true);
+					IJ.redirectErrorMessages();
 					imp = opener.openImage(directory, list[i]);
+				}
 				if (imp!=null && stack==null) {
 					width = imp.getWidth();
 					height = imp.getHeight();
@@ -189,6 +199,8 @@ public class FolderOpener implements PlugIn {
 					else
 						stack = new ImageStack(width, height, cm);
 					info1 = (String)imp.getProperty("Info");
+					if (loader!=null)
+						loader.setStackInfo(width, height, stackSize, bitDepth);
 				}
 				if (imp==null)
 					continue;
@@ -218,7 +230,7 @@ public class FolderOpener implements PlugIn {
 					}
 				}
 				for (int slice=1; slice<=stackSize; slice++) {
-					ImageProcessor ip = inputStack.getProcessor(slice);
+					ImageProcessor ip = prepared!=null?prepared[slice-1]:inputStack.getProcessor(slice);
 					String label2 = label;
 					if (stackSize>1) {
 						String sliceLabel = inputStack.getSliceLabel(slice);
@@ -227,22 +239,10 @@ public class FolderOpener implements PlugIn {
 						else if (label2!=null && !label2.equals(""))
 							label2 += ":"+slice;
 					}
-					int bitDepth2 = imp.getBitDepth();
-					if (!openAsVirtualStack) {
-						if (convertToRGB) {
-							ip = ip.convertToRGB();
-							bitDepth2 = 24;
-						}
-						if (bitDepth2!=bitDepth) {
-							if (bitDepth==8) {
-								ip = ip.convertToByte(true);
-								bitDepth2 = 8;
-							} else if (bitDepth==24) {
-								ip = ip.convertToRGB();
-								bitDepth2 = 24;
-							}
-						}
-						if (bitDepth2!=bitDepth) {
+					if (!openAsVirtualStack && prepared==null) {
+						int bitDepth2 = imp.getBitDepth();
+						ip = convertAndScale(ip, bitDepth2, width, height, bitDepth);
+						if (ip==null) {
 							IJ.log(list[i] + ": wrong bit depth; "+bitDepth+" expected, "+bitDepth2+" found");
 							break;
 						}
@@ -250,8 +250,6 @@ public class FolderOpener implements PlugIn {
 					if (slice==1) count++;
 					IJ.showStatus(count+"/"+n);
 					IJ.showProgress(count, n);
-					if (scale<100.0)
-						ip = ip.resize((int)(width*scale/100.0), (int)(height*scale/100.0));
 					if (ip.getMin()<min) min = ip.getMin();
 					if (ip.getMax()>max) max = ip.getMax();
 					//if (depth>1) label2 = null;
@@ -269,6 +267,11 @@ public class FolderOpener implements PlugIn {
 		} catch(OutOfMemoryError e) {
 			IJ.outOfMemory("FolderOpener");
 			if (stack!=null) stack.trim();
+		} finally {
+			if (loader!=null) {
+				loader.cancel();
+				loader = null;
+			}
 		}
 		if (stack!=null && stack.getSize()>0) {
 			ImagePlus imp2 = new ImagePlus(title, stack);
@@ -309,13 +312,41 @@ public class FolderOpener implements PlugIn {
 			}
 			if (imp2.getStackSize()==1 && info1!=null)
 				imp2.setProperty("Info", info1);
+			double seconds = (System.currentTimeMillis()-startTime)/1000.0;
+			int nFiles = openAsVirtualStack?stack.getSize():stack.getSize()/stackSize;
+			String rate = nFiles+" files in "+IJ.d2s(seconds,2)+" seconds"
+				+ (seconds>0.0?" ("+IJ.d2s(nFiles/seconds,1)+" files/s)":"");
+			if (IJ.debugMode) IJ.log("FolderOpener: "+rate);
 			if (arg==null)
-				imp2.show();
+				imp2.show(rate);
 			else
 				image = imp2;
 		}
 		IJ.showProgress(1.0);
 	}
+
+	/* Converts 'ip', whose bit depth is 'bitDepth2', to 'bitDepth' if needed, and
+		scales it if 'scale' is less than 100%. Returns null if it cannot be converted. */
+	private ImageProcessor convertAndScale(ImageProcessor ip, int bitDepth2, int width, int height, int bitDepth) {
+		if (convertToRGB) {
+			ip = ip.convertToRGB();
+			bitDepth2 = 24;
+		}
+		if (bitDepth2!=bitDepth) {
+			if (bitDepth==8) {
+				ip = ip.convertToByte(true);
+				bitDepth2 = 8;
+			} else if (bitDepth==24) {
+				ip = ip.convertToRGB();
+				bitDepth2 = 24;
+			}
+		}
+		if (bitDepth2!=bitDepth)
+			return null;
+		if (scale<100.0)
+			ip = ip.resize((int)(width*scale/100.0), (int)(height*scale/100.0));
+		return ip;
+	}
 	
 	boolean showDialog(ImagePlus imp, String[] list) {
 		int fileCount = list.length;
@@ -409,6 +440,177 @@ public class FolderOpener implements PlugIn {
 		return StringSorter.sortNumerically(list);
 	}
 
+	/* Opens the files of the sequence on Prefs.getThreads() threads, in the
+		order in which run() adds them to the stack, at most two files per
+		thread ahead of it and never more files than run() still needs. Once
+		run() has set the size and bit depth of the stack, the threads also
+		convert and scale the slices of each file. Error messages are
+		redirected to the Log window until cancel() is called. */
+	private class FileLoader {
+		private String directory;
+		private String[] list;
+		private int[] files;       // indexes in 'list' of the files to open, in order (done.length of them)
+		private int[] positions;   // position in 'files' of each file in 'list', or -1
+		private ImagePlus[] images;
+		private ImageProcessor[][] slices;
+		private Throwable[] errors;
+		private boolean[] done;
+		private int next;          // position of the next file to be opened
+		private int current;       // position of the file run() is waiting for
+		private int maxAhead;
+		private int limit;         // position of the first file run() will not need
+		private boolean canceled;
+		private ImageProcessor[] prepared;
+		private boolean stackInfoSet;
+		private int width, height, stackSize, bitDepth;
+
+		FileLoader(String directory, String[] list) {
+			this.directory = directory;
+			this.list = list;
+			positions = new int[list.length];
+			files = new int[list.length];
+			int nFiles = 0;
+			int counter = 0;
+			for (int i=0; i<list.length; i++) {
+				positions[i] = -1;
+				if (i>=start-1 && (counter++%increment)==0) {
+					positions[i] = nFiles;
+					files[nFiles++] = i;
+				}
+			}
+			images = new ImagePlus[nFiles];
+			slices = new ImageProcessor[nFiles][];
+			errors = new Throwable[nFiles];
+			done = new boolean[nFiles];
+			limit = Math.min(n, nFiles);
+			int nThreads = Math.min(Prefs.getThreads(), limit);
+			maxAhead = 2*nThreads;
+			IJ.redirectErrorMessages(true);
+			for (int t=0; t<nThreads; t++) {
+				Thread thread = new Thread("FolderOpener-"+t) {
+					public void run() {
+						load();
+					}
+				};
+				thread.start();
+			}
+		}
+
+		/** Waits until the file list[index] has been opened and returns it, or null if it
+			could not be opened. 'remaining' is the number of images, including this one,
+			that run() still has to add. Must be called in the order in which the files
+			are opened. */
+		synchronized ImagePlus get(int index, int remaining) {
+			int pos = positions[index];
+			current = pos;
+			limit = Math.min(pos+remaining, done.length);
+			notifyAll();
+			while (!done[pos]) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+			ImagePlus imp = images[pos];
+			prepared = slices[pos];
+			images[pos] = null;
+			slices[pos] = null;
+			Throwable error = errors[pos];
+			if (error instanceof RuntimeException)
+				throw (RuntimeException)error;
+			if (error instanceof Error)
+				throw (Error)error;
+			return imp;
+		}
+
+		/** Returns the converted and scaled slices of the image returned by the
+			last call to get(), or null if they have to be converted by run(). */
+		synchronized ImageProcessor[] getPreparedSlices() {
+			return prepared;
+		}
+
+		/** Sets the size and bit depth of the stack the images are added to. */
+		synchronized void setStackInfo(int width, int height, int stackSize, int bitDepth) {
+			this.width = width;
+			this.height = height;
+			this.stackSize = stackSize;
+			this.bitDepth = bitDepth;
+			stackInfoSet = true;
+		}
+
+		/** Stops the threads once they have opened the file they are working on. */
+		synchronized void cancel() {
+			canceled = true;
+			notifyAll();
+			IJ.redirectErrorMessages(false);
+		}
+
+		private void load() {
+			while (true) {
+				int pos;
+				synchronized (this) {
+					while (!canceled && next<done.length && (next>=limit || next>=current+maxAhead)) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (canceled || next>=done.length)
+						return;
+					pos = next++;
+				}
+				ImagePlus imp = null;
+				ImageProcessor[] ips = null;
+				Throwable error = null;
+				try {
+					Opener opener = new Opener();
+					opener.setSilentMode(true);
+					imp = opener.openImage(directory, list[files[pos]]);
+					if (imp!=null)
+						ips = prepare(imp);
+				} catch (Throwable e) {
+					error = e;
+				}
+				synchronized (this) {
+					images[pos] = imp;
+					slices[pos] = ips;
+					errors[pos] = error;
+					done[pos] = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/* Returns the slices of 'imp' converted and scaled as run() would,
+			or null if the stack information is not yet known or 'imp' does
+			not fit in the stack. */
+		private ImageProcessor[] prepare(ImagePlus imp) {
+			int width, height, stackSize, bitDepth;
+			synchronized (this) {
+				if (!stackInfoSet)
+					return null;
+				width = this.width;
+				height = this.height;
+				stackSize = this.stackSize;
+				bitDepth = this.bitDepth;
+			}
+			ImageStack stack = imp.getStack();
+			if (imp.getWidth()!=width || imp.getHeight()!=height || stack.getSize()<stackSize)
+				return null;
+			int bitDepth2 = imp.getBitDepth();
+			ImageProcessor[] ips = new ImageProcessor[stackSize];
+			for (int i=0; i<stackSize; i++) {
+				ips[i] = convertAndScale(stack.getProcessor(i+1), bitDepth2, width, height, bitDepth);
+				if (ips[i]==null)
+					return null;
+			}
+			return ips;
+		}
+
+	}
+
 } // FolderOpener
 
 class FolderOpenerDialog extends GenericDialog {
@@ -0,0 +1,105 @@
+package ij.plugin;
+import ij.*;
+import ij.process.*;
+import ij.io.*;
+import java.io.*;
+
+/** A virtual stack that reads its images from an N5 dataset when they are
+	needed. Only the blocks that hold the requested image are read, and they
+	are decoded on Prefs.getThreads() threads. Used by N5_Reader to open
+	datasets that do not fit in memory. */
+public class N5VirtualStack extends VirtualStack {
+	private N5Dataset ds;
+	private int[] axes;     // dataset dimensions of the c, z and t axes, or -1
+	private int[] dims;
+	private int[] planes;   // stack index (0-based) of image n-1 before any deletions
+	private int nImages;
+
+	/** Creates a virtual stack that reads the planes of 'ds'. 'axes' holds
+		the dataset dimensions of the channel, slice and frame axes, or -1 for
+		axes the dataset does not have, and sets the order of the images,
+		which is the usual ImageJ order: channels, then slices, then frames. */
+	public N5VirtualStack(N5Dataset ds, int[] axes) {
+		this.ds = ds;
+		this.axes = (int[])axes.clone();
+		dims = ds.getDimensions();
+		nImages = 1;
+		for (int i=0; i<3; i++) {
+			if (axes[i]>=0)
+				nImages *= dims[axes[i]];
+		}
+		planes = new int[nImages];
+		for (int i=0; i<nImages; i++)
+			planes[i] = i;
+		setBitDepth(ds.getBitDepth());
+	}
+
+	/** Returns an ImageProcessor for the specified image, were 1<=n<=nImages.
+		Returns a blank image if the blocks cannot be read. */
+	public ImageProcessor getProcessor(int n) {
+		if (n<1 || n>nImages)
+			throw new IllegalArgumentException("Argument out of range: "+n);
+		int index = planes[n-1];
+		int nc = axes[0]>=0?dims[axes[0]]:1;
+		int nz = axes[1]>=0?dims[axes[1]]:1;
+		int[] offset = new int[dims.length];
+		int[] size = new int[dims.length];
+		size[0] = dims[0];
+		size[1] = dims[1];
+		for (int d=2; d<dims.length; d++)
+			size[d] = 1;
+		if (axes[0]>=0) offset[axes[0]] = index%nc;
+		if (axes[1]>=0) offset[axes[1]] = (index/nc)%nz;
+		if (axes[2]>=0) offset[axes[2]] = index/(nc*nz);
+		Object pixels = null;
+		try {
+			pixels = ds.readRegion(offset, size);
+		} catch (IOException e) {
+			IJ.log("N5VirtualStack ("+n+"): "+e.getMessage());
+		}
+		int w=getWidth(), h=getHeight();
+		switch (getBitDepth()) {
+			case 8: return pixels!=null?new ByteProcessor(w, h, (byte[])pixels, null):new ByteProcessor(w, h);
+			case 16: return pixels!=null?new ShortProcessor(w, h, (short[])pixels, null):new ShortProcessor(w, h);
+			default: return pixels!=null?new FloatProcessor(w, h, (float[])pixels, null):new FloatProcessor(w, h);
+		}
+	}
+
+	/** Deletes the specified image, were 1<=n<=nImages. */
+	public void deleteSlice(int n) {
+		if (n<1 || n>nImages)
+			throw new IllegalArgumentException("Argument out of range: "+n);
+		for (int i=n; i<nImages; i++)
+			planes[i-1] = planes[i];
+		nImages--;
+	}
+
+	/** Returns the number of images in this stack. */
+	public int getSize() {
+		return nImages;
+	}
+
+	/** Returns null. */
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	/** Returns the directory of the dataset. */
+	public String getDirectory() {
+		return ds.getDirectory();
+	}
+
+	/** Returns null, since the images are not stored in separate files. */
+	public String getFileName(int n) {
+		return null;
+	}
+
+	public int getWidth() {
+		return dims[0];
+	}
+
+	public int getHeight() {
+		return dims[1];
+	}
+
+}
@@ -0,0 +1,230 @@
+package ij.plugin;
+import java.io.*;
+import ij.*;
+import ij.io.*;
+import ij.process.*;
+import ij.measure.*;
+
+/** Opens an N5 dataset, a directory of compressed blocks described by an
+	"attributes.json" file, as an image, stack or hyperstack. The dimensions
+	after x and y are mapped to channels, slices and frames using the
+	"axes" attribute written by N5_Writer, or as z, t or c, z, t if there
+	is no such attribute. Datasets that do not fit in memory are opened as
+	virtual stacks. 'arg' is the path of the dataset directory or of its
+	attributes.json file. The format is described at
+	"https://github.com/saalfeldlab/n5".
+*/
+public class N5_Reader extends ImagePlus implements PlugIn {
+
+	public void run(String arg) {
+		String path = arg;
+		if (path==null || path.equals("")) {
+			OpenDialog od = new OpenDialog("Open N5 (attributes.json)...", arg);
+			String name = od.getFileName();
+			if (name==null)
+				return;
+			path = od.getDirectory() + name;
+		}
+		IJ.showStatus("Opening: " + path);
+		N5Dataset ds = null;
+		try {
+			ds = new N5Dataset(path);
+		} catch (IOException e) {
+			IJ.error("N5 Reader", e.getMessage());
+			return;
+		}
+		int[] axes = getAxes(ds);
+		if (axes==null) {
+			IJ.error("N5 Reader", "Datasets with more than 5 dimensions, or with\naxes other than x, y, c, z and t, are not supported.");
+			return;
+		}
+		File dir = new File(ds.getDirectory());
+		String title = dir.getName();
+		int[] dims = ds.getDimensions();
+		int nChannels = axes[0]>=0?dims[axes[0]]:1;
+		int nSlices = axes[1]>=0?dims[axes[1]]:1;
+		int nFrames = axes[2]>=0?dims[axes[2]]:1;
+		long planeSize = (long)dims[0]*dims[1]*(ds.getBitDepth()/8);
+		long size = planeSize*nChannels*nSlices*nFrames;
+		long available = IJ.maxMemory()-IJ.currentMemory();
+		if (planeSize>Integer.MAX_VALUE) {
+			IJ.error("N5 Reader", "Images larger than 2^31 bytes are not supported.");
+			return;
+		}
+		ImageStack stack;
+		if (IJ.maxMemory()>0L && size>available*3/4)
+			stack = new N5VirtualStack(ds, axes);
+		else {
+			try {
+				stack = readStack(ds, axes);
+			} catch (IOException e) {
+				IJ.error("N5 Reader", e.getMessage());
+				return;
+			}
+			if (stack==null)
+				return;
+		}
+		setStack(title, stack);
+		if (nChannels*nSlices*nFrames>1) {
+			setDimensions(nChannels, nSlices, nFrames);
+			if (nChannels>1 || (nSlices>1 && nFrames>1))
+				setOpenAsHyperStack(true);
+		}
+		setCalibration(getCalibration(ds));
+		FileInfo fi = new FileInfo();
+		fi.fileFormat = FileInfo.N5;
+		fi.directory = dir.getParent()+File.separator;
+		fi.fileName = dir.getName();
+		fi.width = dims[0];
+		fi.height = dims[1];
+		fi.nImages = getStackSize();
+		setFileInfo(fi); // needed for File->Revert
+		if (getBitDepth()==16 || getBitDepth()==32)
+			getProcessor().resetMinAndMax();
+		IJ.showStatus("");
+		if (arg.equals("")) {
+			if (nChannels>1)
+				new CompositeImage(this, CompositeImage.COMPOSITE).show();
+			else
+				show();
+		}
+	}
+
+	/** Returns the dataset dimensions of the channel, slice and frame axes,
+		or -1 for axes the dataset does not have. Returns null if the dataset
+		cannot be opened as an ImageJ hyperstack. */
+	static int[] getAxes(N5Dataset ds) {
+		int nDims = ds.getDimensions().length;
+		if (nDims<2 || nDims>5)
+			return null;
+		int[] axes = {-1, -1, -1};
+		String names = ds.getAttribute("axes");
+		if (names!=null && names.startsWith("[")) {
+			names = names.substring(1, names.length()-1);
+			String[] items = names.split(",");
+			if (items.length!=nDims)
+				return null;
+			for (int d=0; d<nDims; d++) {
+				String name = items[d].trim();
+				if (name.startsWith("\"") && name.endsWith("\"") && name.length()>=2)
+					name = name.substring(1, name.length()-1);
+				int axis = "czt".indexOf(name.toLowerCase());
+				if (d<2) {
+					if (!name.equalsIgnoreCase(d==0?"x":"y"))
+						return null;
+				} else if (name.length()!=1 || axis<0 || axes[axis]>=0)
+					return null;
+				else
+					axes[axis] = d;
+			}
+		} else {
+			switch (nDims) {
+				case 3: axes[1]=2; break;
+				case 4: axes[1]=2; axes[2]=3; break;
+				case 5: axes[0]=2; axes[1]=3; axes[2]=4; break;
+			}
+		}
+		return axes;
+	}
+
+	/** Returns the stack index, 1 to nChannels*nSlices*nFrames, of the plane
+		of the dataset at 'position', where the channel, slice and frame are
+		position[axes[0]], position[axes[1]] and position[axes[2]]. */
+	static int getStackIndex(int[] position, int[] axes, int[] dims) {
+		int c = axes[0]>=0?position[axes[0]]:0;
+		int z = axes[1]>=0?position[axes[1]]:0;
+		int t = axes[2]>=0?position[axes[2]]:0;
+		int nc = axes[0]>=0?dims[axes[0]]:1;
+		int nz = axes[1]>=0?dims[axes[1]]:1;
+		return 1 + c + z*nc + t*nc*nz;
+	}
+
+	/* Reads all the planes of the dataset. The planes are read in slabs that
+		span several blocks along the third dimension, so that the blocks of
+		a slab are decoded in parallel even if the planes are small and each
+		block is only read once. */
+	private ImageStack readStack(N5Dataset ds, int[] axes) throws IOException {
+		int[] dims = ds.getDimensions();
+		int[] blockSize = ds.getBlockSize();
+		int nDims = dims.length;
+		int width = dims[0], height = dims[1];
+		int planeSize = width*height;
+		int nPlanes = 1;
+		for (int d=2; d<nDims; d++)
+			nPlanes *= dims[d];
+		Object[] planes = new Object[nPlanes];
+		int depth = 1;
+		if (nDims>2) {
+			int blocksPerPlane = ((width+blockSize[0]-1)/blockSize[0])*((height+blockSize[1]-1)/blockSize[1]);
+			int slabs = Math.max(1, 4*Prefs.getThreads()/blocksPerPlane);
+			long maxDepth = Math.max(1L, (64L<<20)/((long)planeSize*(ds.getBitDepth()/8)));
+			depth = blockSize[2]*slabs;
+			if (depth>maxDepth)
+				depth = Math.max(blockSize[2], (int)(maxDepth/blockSize[2])*blockSize[2]);
+			depth = Math.min(depth, dims[2]);
+		}
+		int[] offset = new int[nDims];
+		int[] size = new int[nDims];
+		size[0] = width;
+		size[1] = height;
+		for (int d=2; d<nDims; d++)
+			size[d] = 1;
+		int nRead = 0;
+		while (true) {
+			if (nDims>2)
+				size[2] = Math.min(depth, dims[2]-offset[2]);
+			Object data = ds.readRegion(offset, size);
+			int n = nDims>2?size[2]:1;
+			int[] position = (int[])offset.clone();
+			for (int i=0; i<n; i++) {
+				if (nDims>2) position[2] = offset[2]+i;
+				Object pixels;
+				if (n==1)
+					pixels = data;
+				else {
+					switch (ds.getBitDepth()) {
+						case 8: pixels = new byte[planeSize]; break;
+						case 16: pixels = new short[planeSize]; break;
+						default: pixels = new float[planeSize]; break;
+					}
+					System.arraycopy(data, i*planeSize, pixels, 0, planeSize);
+				}
+				planes[getStackIndex(position, axes, dims)-1] = pixels;
+			}
+			nRead += n;
+			IJ.showProgress(nRead, nPlanes);
+			if (IJ.escapePressed()) {
+				IJ.beep();
+				IJ.showProgress(1.0);
+				return null;
+			}
+			// next slab: advance the third dimension, then the others
+			int d = 2;
+			if (nDims>2) offset[2] += n;
+			while (d<nDims && offset[d]>=dims[d]) {
+				offset[d] = 0;
+				if (++d<nDims) offset[d]++;
+			}
+			if (d>=nDims)
+				break;
+		}
+		IJ.showProgress(1.0);
+		ImageStack stack = new ImageStack(width, height);
+		for (int i=0; i<nPlanes; i++)
+			stack.addSlice(null, planes[i]);
+		return stack;
+	}
+
+	static Calibration getCalibration(N5Dataset ds) {
+		Calibration cal = new Calibration();
+		String unit = ds.getAttribute("unit");
+		if (unit!=null && !unit.startsWith("{") && !unit.startsWith("["))
+			cal.setUnit(unit);
+		cal.pixelWidth = ds.getAttribute("pixelWidth", 1.0);
+		cal.pixelHeight = ds.getAttribute("pixelHeight", 1.0);
+		cal.pixelDepth = ds.getAttribute("pixelDepth", 1.0);
+		cal.frameInterval = ds.getAttribute("frameInterval", 0.0);
+		return cal;
+	}
+
+}
@@ -0,0 +1,164 @@
+package ij.plugin;
+import java.io.*;
+import ij.*;
+import ij.io.*;
+import ij.process.*;
+import ij.measure.*;
+
+/** This plugin saves an 8, 16 or 32 bit image, stack or hyperstack as an
+	N5 dataset: a directory with an "attributes.json" file and one gzip
+	compressed file per block of at most 256x256 pixels of each image. The
+	dimensions are x, y, then the channel, slice and frame dimensions that
+	have more than one element, and are listed in the "axes" attribute.
+	Blocks are written on Prefs.getThreads() threads. 'path' is the
+	directory of the dataset, which is created if it does not exist. */
+public class N5_Writer implements PlugIn {
+	private static final int BLOCK_SIZE = 256;
+
+	public void run(String path) {
+		ImagePlus imp = IJ.getImage();
+		if (imp.getBitDepth()==24) {
+			IJ.error("N5 Writer", "RGB images are not supported");
+			return;
+		}
+		if (path==null || path.trim().length()==0) {
+			SaveDialog sd = new SaveDialog("Save as N5", imp.getTitle(), ".n5");
+			if (sd.getFileName()==null)
+				return;
+			path = sd.getDirectory()+sd.getFileName();
+		}
+		try {
+			save(imp, path);
+		} catch (IOException e) {
+			IJ.error("N5 Writer", ""+e.getMessage());
+		}
+	}
+
+	/** Saves 'imp' as an N5 dataset in directory 'path'. If 'path' is an
+		existing N5 dataset, its blocks are deleted first. */
+	public static void save(ImagePlus imp, String path) throws IOException {
+		int width = imp.getWidth();
+		int height = imp.getHeight();
+		int[] czt = {imp.getNChannels(), imp.getNSlices(), imp.getNFrames()};
+		String dataType;
+		switch (imp.getBitDepth()) {
+			case 8: dataType = N5Dataset.UINT8; break;
+			case 16: dataType = N5Dataset.UINT16; break;
+			case 32: dataType = N5Dataset.FLOAT32; break;
+			default: throw new IllegalArgumentException("RGB images are not supported");
+		}
+		int nDims = 2;
+		for (int i=0; i<3; i++)
+			if (czt[i]>1) nDims++;
+		int[] dims = new int[nDims];
+		int[] blockSize = new int[nDims];
+		dims[0] = width;
+		dims[1] = height;
+		blockSize[0] = Math.min(width, BLOCK_SIZE);
+		blockSize[1] = Math.min(height, BLOCK_SIZE);
+		StringBuffer axes = new StringBuffer("[\"x\",\"y\"");
+		int d = 2;
+		for (int i=0; i<3; i++) {
+			if (czt[i]>1) {
+				dims[d] = czt[i];
+				blockSize[d] = 1;
+				axes.append(",\""+"czt".charAt(i)+"\"");
+				d++;
+			}
+		}
+		axes.append("]");
+		File dir = new File(path);
+		if (dir.isFile())
+			throw new IOException("A file with this name already exists: "+path);
+		if (dir.isDirectory()) {
+			if (new File(dir, N5Dataset.ATTRIBUTES).isFile())
+				deleteBlocks(dir);
+			else if (dir.list().length>0)
+				throw new IOException("Directory is not empty: "+path);
+		}
+		N5Dataset ds = N5Dataset.create(path, dims, blockSize, dataType, N5Dataset.GZIP, getAttributes(imp, axes.toString()));
+		ImageStack stack = imp.getStack();
+		int nImages = stack.getSize();
+		int planeSize = width*height;
+
+		// Write several images per call if each image has few blocks, so that
+		// the blocks are still compressed in parallel. The images of the stack
+		// are in the same order as the planes of the dataset.
+		int blocksPerPlane = ((width+BLOCK_SIZE-1)/BLOCK_SIZE)*((height+BLOCK_SIZE-1)/BLOCK_SIZE);
+		int depth = nDims>2?Math.max(1, Math.min(dims[2], 4*Prefs.getThreads()/blocksPerPlane)):1;
+		int[] offset = new int[nDims];
+		int[] size = new int[nDims];
+		size[0] = width;
+		size[1] = height;
+		for (int i=2; i<nDims; i++)
+			size[i] = 1;
+		int n = 1;
+		while (n<=nImages) {
+			int count = 1;
+			if (nDims>2) {
+				int index = n-1;
+				for (int i=2; i<nDims; i++) {
+					offset[i] = index%dims[i];
+					index /= dims[i];
+				}
+				count = Math.min(depth, dims[2]-offset[2]);
+				size[2] = count;
+			}
+			Object data = stack.getPixels(n);
+			if (count>1) {
+				Object plane = data;
+				if (plane instanceof byte[]) data = new byte[planeSize*count];
+				else if (plane instanceof short[]) data = new short[planeSize*count];
+				else data = new float[planeSize*count];
+				System.arraycopy(plane, 0, data, 0, planeSize);
+				for (int i=1; i<count; i++)
+					System.arraycopy(stack.getPixels(n+i), 0, data, i*planeSize, planeSize);
+			}
+			ds.writeRegion(offset, size, data);
+			n += count;
+			IJ.showProgress(n-1, nImages);
+		}
+		IJ.showProgress(1.0);
+	}
+
+	private static String getAttributes(ImagePlus imp, String axes) {
+		Calibration cal = imp.getCalibration();
+		StringBuffer sb = new StringBuffer();
+		sb.append("\"axes\":"+axes);
+		sb.append(",\"unit\":"+N5Dataset.toJSON(cal.getUnit()));
+		sb.append(",\"pixelWidth\":"+cal.pixelWidth);
+		sb.append(",\"pixelHeight\":"+cal.pixelHeight);
+		sb.append(",\"pixelDepth\":"+cal.pixelDepth);
+		if (cal.frameInterval!=0.0)
+			sb.append(",\"frameInterval\":"+cal.frameInterval);
+		return sb.toString();
+	}
+
+	/* Deletes the block files and directories of the dataset in 'dir',
+		whose names are block grid positions. Other files are kept. */
+	private static void deleteBlocks(File dir) throws IOException {
+		String[] names = dir.list();
+		if (names==null)
+			return;
+		for (int i=0; i<names.length; i++) {
+			if (!isNumber(names[i]))
+				continue;
+			File f = new File(dir, names[i]);
+			if (f.isDirectory())
+				deleteBlocks(f);
+			if (!f.delete() && f.exists())
+				throw new IOException("Unable to delete "+f);
+		}
+	}
+
+	private static boolean isNumber(String name) {
+		if (name.length()==0)
+			return false;
+		for (int i=0; i<name.length(); i++) {
+			if (!Character.isDigit(name.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+}
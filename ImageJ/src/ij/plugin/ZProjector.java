@@ -28,6 +28,9 @@ public class ZProjector implements PlugIn {
     private static final int BYTE_TYPE  = 0; 
     private static final int SHORT_TYPE = 1; 
     private static final int FLOAT_TYPE = 2;
+
+    /** Largest number of slices read ahead before they are projected. */
+    private static final int MAX_BATCH = 64;
     
     public static final String lutMessage =
     	"Stacks with inverter LUTs may not project correctly.\n"
@@ -222,20 +225,39 @@ public class ZProjector implements PlugIn {
 		// manipulation.  This approach is more efficient than the
 		// more general use of ImageProcessor's getPixelValue and
 		// putPixel methods.
-		int ptype; 
-		if(stack.getProcessor(1) instanceof ByteProcessor) ptype = BYTE_TYPE; 
-		else if(stack.getProcessor(1) instanceof ShortProcessor) ptype = SHORT_TYPE; 
-		else if(stack.getProcessor(1) instanceof FloatProcessor) ptype = FLOAT_TYPE; 
-		else {
+		// The first slice is read only once, since reading a slice of a
+		// virtual stack means opening a file.
+		Object firstPixels = stack.getPixels(startSlice);
+		final int ptype = getPixelType(firstPixels);
+		if (ptype<0) {
 	    	IJ.error("ZProjector: Non-RGB stack required"); 
 	    	return; 
 		}
 
-		// Do the projection.
-		for(int n=startSlice; n<=stopSlice; n+=increment) {
-	    	IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
-	    	IJ.showProgress(n-startSlice, stopSlice-startSlice);
-	    	projectSlice(stack.getPixels(n), rayFunc, ptype);
+		// Do the projection. Slices are read in batches by this thread, so
+		// that a virtual stack is streamed from disk rather than loaded, and
+		// each batch is projected in parallel, one band of rows per thread.
+		final int width = imp.getWidth();
+		final RayFunction fRayFunc = rayFunc;
+		final Object[] batch = new Object[getBatchSize(firstPixels)];
+		int n = startSlice;
+		while (n<=stopSlice) {
+			int count = 0;
+			while (count<batch.length && n<=stopSlice) {
+	    		IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
+	    		IJ.showProgress(n-startSlice, stopSlice-startSlice);
+				batch[count++] = n==startSlice?firstPixels:stack.getPixels(n);
+				n += increment;
+			}
+			final int batchCount = count;
+			forEachBand(imp.getHeight(), new BandTask() {
+				public void run(int y1, int y2) {
+					for (int i=0; i<batchCount; i++)
+						projectSlice(batch[i], fRayFunc, ptype, y1*width, y2*width);
+				}
+			});
+			for (int i=0; i<batchCount; i++)
+				batch[i] = null;
 		}
 
 		// Finish up projection.
@@ -365,19 +387,80 @@ public class ZProjector implements PlugIn {
 	array type. We do this rather than using more general
 	ImageProcessor getPixelValue() and putPixel() methods because
 	direct manipulation of pixel arrays is much more efficient.  */
-	private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype) {
+	private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype, int from, int to) {
 		switch(ptype) {
 			case BYTE_TYPE:
-	    		rayFunc.projectSlice((byte[])pixelArray); 
+	    		rayFunc.projectSlice((byte[])pixelArray, from, to); 
 	    		break; 
 			case SHORT_TYPE:
-	    		rayFunc.projectSlice((short[])pixelArray); 
+	    		rayFunc.projectSlice((short[])pixelArray, from, to); 
 	    		break; 
 			case FLOAT_TYPE:
-	    		rayFunc.projectSlice((float[])pixelArray); 
+	    		rayFunc.projectSlice((float[])pixelArray, from, to); 
 	    		break; 
 		}
     }
+
+	private static int getPixelType(Object pixels) {
+		if (pixels instanceof byte[]) return BYTE_TYPE;
+		else if (pixels instanceof short[]) return SHORT_TYPE;
+		else if (pixels instanceof float[]) return FLOAT_TYPE;
+		else return -1;
+	}
+
+	/** Memory that the projection may use for slices read ahead, in bytes. */
+	private static long getMemoryBudget() {
+		long max = IJ.maxMemory();
+		if (max==0L)
+			max = Runtime.getRuntime().maxMemory();
+		return Math.max((max-IJ.currentMemory())/4, 16*1024*1024);
+	}
+
+	/** Number of slices to read before projecting them in parallel. */
+	private int getBatchSize(Object pixels) {
+		if (!imp.getStack().isVirtual())
+			return Math.min(sliceCount, MAX_BATCH);
+		long sliceBytes = Math.max(imp.getWidth()*imp.getHeight()*imp.getBytesPerPixel(), 1);
+		long n = getMemoryBudget()/sliceBytes;
+		return (int)Math.max(1, Math.min(Math.min(n, sliceCount), MAX_BATCH));
+	}
+
+	/** Work done on the rows y1 (inclusive) to y2 (exclusive) of the projection. */
+	interface BandTask {
+		void run(int y1, int y2);
+	}
+
+	/** Splits the rows 0 to height-1 into one band per thread (see
+		Prefs.getThreads) and runs the task on each of them, returning when
+		all bands are done. */
+	static void forEachBand(int height, final BandTask task) {
+		int numThreads = Math.min(height, Prefs.getThreads());
+		if (numThreads<=1) {
+			task.run(0, height);
+			return;
+		}
+		final Thread[] threads = new Thread[numThreads];
+		for (int t=numThreads-1; t>0; t--) {
+			final int y1 = height*t/numThreads;
+			final int y2 = height*(t+1)/numThreads;
+			threads[t] = new Thread(
+					new Runnable() {
+						final public void run() {
+							task.run(y1, y2);
+						}
+					},
+			"ZProjector-"+t);
+			threads[t].setPriority(Thread.currentThread().getPriority());
+			threads[t].start();
+		}
+		task.run(0, height/numThreads);
+		try {
+			for (int t=1; t<numThreads; t++)
+				threads[t].join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
     
     String makeTitle() {
     	String prefix = "AVG_";
@@ -391,30 +474,107 @@ public class ZProjector implements PlugIn {
     	return WindowManager.makeUniqueName(prefix+imp.getTitle());
     }
 
+	/** Computes the exact median of every pixel while holding at most
+		getMemoryBudget() bytes of a virtual stack in memory: if the whole
+		stack does not fit, the image is done in bands of rows and the stack
+		is read once per band. */
 	ImagePlus doMedianProjection() {
 		IJ.showStatus("Calculating median...");
 		ImageStack stack = imp.getStack();
-		ImageProcessor[] slices = new ImageProcessor[sliceCount];
-		int index = 0;
-		for (int slice=startSlice; slice<=stopSlice; slice+=increment)
-			slices[index++] = stack.getProcessor(slice);
-		ImageProcessor ip2 = slices[0].duplicate();
-		ip2 = ip2.convertToFloat();
-		float[] values = new float[sliceCount];
-		int width = ip2.getWidth();
-		int height = ip2.getHeight();
-		int inc = Math.max(height/30, 1);
-		for (int y=0; y<height; y++) {
-			if (y%inc==0) IJ.showProgress(y, height-1);
-			for (int x=0; x<width; x++) {
-				for (int i=0; i<sliceCount; i++)
-				values[i] = slices[i].getPixelValue(x, y);
-				ip2.putPixelValue(x, y, median(values));
+		final int width = imp.getWidth();
+		int height = imp.getHeight();
+		FloatProcessor ip2 = new FloatProcessor(width, height);
+		final float[] result = (float[])ip2.getPixels();
+		final Object[] slices = new Object[sliceCount];
+		if (!stack.isVirtual()) {
+			// the slice arrays are used in place
+			int index = 0;
+			for (int slice=startSlice; slice<=stopSlice; slice+=increment)
+				slices[index++] = stack.getPixels(slice);
+			if (getPixelType(slices[0])<0) {
+				IJ.error("ZProjector: Non-RGB stack required");
+				return null;
+			}
+			computeMedians(slices, getPixelType(slices[0]), 0, result, 0, height, width);
+			return new ImagePlus(makeTitle(), ip2);
+		}
+		long rowBytes = 4L*width*sliceCount;
+		int rowsPerPass = (int)Math.max(1, Math.min(height, getMemoryBudget()/rowBytes));
+		int passes = (height+rowsPerPass-1)/rowsPerPass;
+		for (int pass=0; pass<passes; pass++) {
+			final int y1 = pass*rowsPerPass;
+			final int y2 = Math.min(height, y1+rowsPerPass);
+			int index = 0;
+			for (int slice=startSlice; slice<=stopSlice; slice+=increment) {
+				IJ.showProgress(pass*sliceCount+index, passes*sliceCount);
+				Object pixels = stack.getPixels(slice);
+				int ptype = getPixelType(pixels);
+				if (ptype<0) {
+					IJ.error("ZProjector: Non-RGB stack required");
+					return null;
+				}
+				float[] band = slices[index]!=null?(float[])slices[index]:new float[(y2-y1)*width];
+				copyToFloat(pixels, ptype, y1*width, band, (y2-y1)*width);
+				slices[index++] = band;
 			}
+			computeMedians(slices, FLOAT_TYPE, y1*width, result, y1, y2, width);
 		}
+		IJ.showProgress(1.0);
 		return new ImagePlus(makeTitle(), ip2);
 	}
 
+	/** Fills the rows y1 to y2-1 of 'result' with the median of 'slices', in
+		parallel. 'offset' is the pixel index of the first element of the
+		slice arrays. */
+	private void computeMedians(final Object[] slices, final int ptype, final int offset,
+			final float[] result, int y1, int y2, final int width) {
+		final int first = y1;
+		forEachBand(y2-y1, new BandTask() {
+			public void run(int b1, int b2) {
+				float[] values = new float[slices.length];
+				int from = (first+b1)*width, to = (first+b2)*width;
+				for (int i=from; i<to; i++) {
+					getValues(slices, ptype, i-offset, values);
+					result[i] = median(values);
+				}
+			}
+		});
+	}
+
+	private static void getValues(Object[] slices, int ptype, int index, float[] values) {
+		int n = values.length;
+		switch (ptype) {
+			case BYTE_TYPE:
+				for (int s=0; s<n; s++)
+					values[s] = ((byte[])slices[s])[index]&0xff;
+				break;
+			case SHORT_TYPE:
+				for (int s=0; s<n; s++)
+					values[s] = ((short[])slices[s])[index]&0xffff;
+				break;
+			default:
+				for (int s=0; s<n; s++)
+					values[s] = ((float[])slices[s])[index];
+		}
+	}
+
+	private static void copyToFloat(Object pixels, int ptype, int from, float[] dest, int length) {
+		switch (ptype) {
+			case BYTE_TYPE:
+				byte[] bytes = (byte[])pixels;
+				for (int i=0; i<length; i++)
+					dest[i] = bytes[from+i]&0xff;
+				break;
+			case SHORT_TYPE:
+				short[] shorts = (short[])pixels;
+				for (int i=0; i<length; i++)
+					dest[i] = shorts[from+i]&0xffff;
+				break;
+			default:
+				System.arraycopy((float[])pixels, from, dest, 0, length);
+		}
+	}
+
 	float median(float[] a) {
 		sort(a);
 		int length = a.length;
@@ -500,10 +660,12 @@ public class ZProjector implements PlugIn {
 	constructors.
 	*/
     abstract class RayFunction {
-		/** Do actual slice projection for specific data types. */
-		public abstract void projectSlice(byte[] pixels);
-		public abstract void projectSlice(short[] pixels);
-		public abstract void projectSlice(float[] pixels);
+		/** Do actual slice projection for specific data types, for the
+			pixels 'from' (inclusive) to 'to' (exclusive). Calls for
+			disjoint ranges may run concurrently. */
+		public abstract void projectSlice(byte[] pixels, int from, int to);
+		public abstract void projectSlice(short[] pixels, int from, int to);
+		public abstract void projectSlice(float[] pixels, int from, int to);
 		
 		/** Perform any necessary post processing operations, e.g.
 	    	averging values. */
@@ -526,18 +688,18 @@ public class ZProjector implements PlugIn {
 	    	this.num = num;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
 				fpixels[i] += (pixels[i]&0xff); 
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
 				fpixels[i] += pixels[i]&0xffff;
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
 				fpixels[i] += pixels[i]; 
 		}
 
@@ -563,22 +725,22 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = -Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xff)>fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)>fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if(pixels[i]>fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
@@ -599,22 +761,22 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xff)<fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)<fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if(pixels[i]<fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
@@ -637,27 +799,27 @@ public class ZProjector implements PlugIn {
 			sum2 = new double[len];
 		}
 	
-		public void projectSlice(byte[] pixels) {
+		public void projectSlice(byte[] pixels, int from, int to) {
 			int v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i]&0xff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(short[] pixels) {
+		public void projectSlice(short[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i]&0xffff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(float[] pixels) {
+		public void projectSlice(float[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i];
 				sum[i] += v;
 				sum2[i] += v*v;
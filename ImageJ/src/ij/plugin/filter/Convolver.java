@@ -11,8 +11,10 @@ import java.util.*;
 import java.awt.event.*;
 import java.io.*;
 
-/** This plugin convolves images using user user defined kernels. */
-public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionListener {
+/** This plugin convolves images using user user defined kernels. Large kernels
+	are applied in the frequency domain, in blocks, with the transform of the
+	kernel computed once and reused for all blocks and all stack slices. */
+public class Convolver implements ExtendedPlugInFilter, TiledPlugInFilter, DialogListener, ActionListener {
 
 	private ImagePlus imp;
 	private int kw, kh;
@@ -29,6 +31,15 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	private PlugInFilterRunner pfr;
 	private Thread mainThread;
 	private int pass;
+	private Hashtable kernelTransforms = new Hashtable(); // FHTs of the scaled kernel, by transform size
+	private float[] transformedKernel;
+	private double transformedScale;
+	private boolean fft = true;
+
+	/** Side of the image blocks that are convolved using one transform each */
+	private static final int FFT_BLOCK_SIZE = 512;
+	/** Cost of transforming, per pixel and per log(pixels), in units of kernel multiplications */
+	private static final double FFT_COST = 8.0;
 
 	
 	static String kernelText = "-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 24 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n";
@@ -56,6 +67,11 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		return flags;
 	}
 
+	/** Tiles of a single image need a border of half the kernel size. */
+	public int getTileBorder() {
+		return Math.max(kw, kh)/2;
+	}
+
 	public void run(ImageProcessor ip) {
 		if (canceled) return;
 		if (isLineRoi) ip.resetRoi();
@@ -201,6 +217,12 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	public void setNormalize(boolean normalizeKernel) {
 		normalize = normalizeKernel;
 	}
+
+	/** Enables or disables convolution in the frequency domain, which is used,
+		if enabled (the default), when it is estimated to be faster. */
+	public void setFFT(boolean fft) {
+		this.fft = fft;
+	}
 	
 	/** Convolves the float image <code>ip</code> with a kernel of width 
 		<code>kw</code> and height <code>kh</code>. Returns false if 
@@ -209,18 +231,12 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		if (!(ip instanceof FloatProcessor))
 			throw new IllegalArgumentException("FloatProcessor required");
 		if (canceled) return false;
-		int width = ip.getWidth();
-		int height = ip.getHeight();
 		Rectangle r = ip.getRoi();
+		if (fft && useFFT(r.width, r.height, kw, kh))
+			return convolveFFT(ip, kernel, kw, kh);
 		//boolean nonRectRoi = ip.getMask()!=null;
 		//if (nonRectRoi)
 		//	ip.snapshot();
-		int x1 = r.x;
-		int y1 = r.y;
-		int x2 = x1 + r.width;
-		int y2 = y1 + r.height;
-		int uc = kw/2;    
-		int vc = kh/2;
 		float[] pixels = (float[])ip.getPixels();
 		float[] pixels2 = (float[])ip.getSnapshotPixels();
 		if (pixels2==null)
@@ -229,6 +245,25 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
         Thread thread = Thread.currentThread();
         boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
         if (isMainThread) pass++;
+		boolean done = convolveRect(ip, pixels, pixels2, kernel, kw, kh, scale, r, r.y, r.y+r.height, thread, isMainThread);
+		//if (nonRectRoi)
+		//	ip.reset(ip.getMask());
+   		return done;
+   	 }
+
+	/* Convolves the pixels of 'pixels2' in rectangle 'r' directly, writing
+		the result into 'pixels'. Progress is shown as the part of the rows
+		py1 to py2 done. Returns false if canceled. */
+	private boolean convolveRect(ImageProcessor ip, float[] pixels, float[] pixels2, float[] kernel, int kw, int kh,
+			double scale, Rectangle r, int py1, int py2, Thread thread, boolean isMainThread) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int x1 = r.x;
+		int y1 = r.y;
+		int x2 = x1 + r.width;
+		int y2 = y1 + r.height;
+		int uc = kw/2;    
+		int vc = kh/2;
 		double sum;
 		int offset, i;
 		boolean edgePixel;
@@ -239,18 +274,8 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 			long time = System.currentTimeMillis();
 			if (time-lastTime>100) {
 				lastTime = time;
-				if (thread.isInterrupted()) return false;
-				if (isMainThread) {
-					if (IJ.escapePressed()) {
-						canceled = true;
-						ip.reset();
-						ImageProcessor originalIp = imp.getProcessor();
-						if (originalIp.getNChannels() > 1)
-							originalIp.reset();
-						return false;
-					}
-					showProgress((y-y1)/(double)(y2-y1));
-				}
+				if (isCanceled(ip, thread, isMainThread, (y-py1)/(double)(py2-py1)))
+					return false;
 			}
 			for(int x=x1; x<x2; x++) {
 				if (canceled) return false;
@@ -271,11 +296,142 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 				pixels[x+y*width] = (float)(sum*scale);
 			}
     	}
-		//if (nonRectRoi)
-		//	ip.reset(ip.getMask());
    		return true;
    	 }
 
+	/* Returns true if the thread was interrupted or, on the main thread,
+		the user pressed 'Esc'. Also updates the progress bar. */
+	private boolean isCanceled(ImageProcessor ip, Thread thread, boolean isMainThread, double progress) {
+		if (thread.isInterrupted()) return true;
+		if (isMainThread) {
+			if (IJ.escapePressed()) {
+				canceled = true;
+				ip.reset();
+				ImageProcessor originalIp = imp!=null?imp.getProcessor():null;
+				if (originalIp!=null && originalIp.getNChannels() > 1)
+					originalIp.reset();
+				return true;
+			}
+			showProgress(progress);
+		}
+		return false;
+	}
+
+	/** Returns true if convolving a <code>width</code> x <code>height</code> area
+		with a <code>kw</code> x <code>kh</code> kernel is estimated to be faster in
+		the frequency domain, where each output pixel costs about
+		FFT_COST*log(pixels) for the transforms of the blocks, instead of kw*kh
+		multiplications. One-dimensional kernels are always applied directly. */
+	public static boolean useFFT(int width, int height, int kw, int kh) {
+		if (kw==1 || kh==1 || width<=0 || height<=0)
+			return false;
+		int bw = Math.min(width, FFT_BLOCK_SIZE);
+		int bh = Math.min(height, FFT_BLOCK_SIZE);
+		int tw = FFTEngine.getFastSize(bw+kw-1);
+		int th = FFTEngine.getFastSize(bh+kh-1);
+		double pixels = (double)tw*th;
+		double cost = FFT_COST*pixels*Math.log(pixels)/((double)bw*bh);
+		return cost<(double)kw*kh;
+	}
+
+	/* Convolves the roi of the float image 'ip' in the frequency domain. The
+		roi is processed in blocks; each block, with the border needed by the
+		kernel, is transformed, multiplied with the transform of the kernel,
+		and transformed back. Pixels outside the image have the value of the
+		nearest edge pixel, as with direct convolution. Blocks with NaN or
+		infinite pixels are convolved directly, since the transform would
+		spread them over the whole block. */
+	boolean convolveFFT(ImageProcessor ip, float[] kernel, int kw, int kh) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle r = ip.getRoi();
+		int x1 = r.x;
+		int y1 = r.y;
+		int x2 = x1 + r.width;
+		int y2 = y1 + r.height;
+		int uc = kw/2;
+		int vc = kh/2;
+		float[] pixels = (float[])ip.getPixels();
+		float[] pixels2 = (float[])ip.getSnapshotPixels();
+		if (pixels2==null)
+			pixels2 = (float[])ip.getPixelsCopy();
+		double scale = getScale(kernel);
+		Thread thread = Thread.currentThread();
+		boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
+		if (isMainThread) pass++;
+		int tw = FFTEngine.getFastSize(Math.min(r.width, FFT_BLOCK_SIZE)+kw-1);
+		int th = FFTEngine.getFastSize(Math.min(r.height, FFT_BLOCK_SIZE)+kh-1);
+		int bw = tw-kw+1;   // the blocks fill the transforms
+		int bh = th-kh+1;
+		FHT kernelFHT = getKernelTransform(kernel, kw, kh, tw, th, scale);
+		int[] xIndex = new int[tw];
+		for (int by=y1; by<y2; by+=bh) {
+			for (int bx=x1; bx<x2; bx+=bw) {
+				if (canceled || isCanceled(ip, thread, isMainThread, (by-y1)/(double)(y2-y1)))
+					return false;
+				for (int u=0; u<tw; u++) {
+					int x = bx-uc+u;
+					xIndex[u] = x<0?0:(x>=width?width-1:x);
+				}
+				int xMax = Math.min(x2, bx+bw);
+				int yMax = Math.min(y2, by+bh);
+				FloatProcessor block = new FloatProcessor(tw, th);
+				float[] bpixels = (float[])block.getPixels();
+				float nonFinite = 0f;  // becomes NaN if a pixel is NaN or infinite
+				for (int v=0; v<th; v++) {
+					int y = by-vc+v;
+					int offset = (y<0?0:(y>=height?height-1:y))*width;
+					for (int u=0, i=v*tw; u<tw; u++, i++) {
+						float value = pixels2[offset+xIndex[u]];
+						bpixels[i] = value;
+						nonFinite += value*0f;
+					}
+				}
+				if (nonFinite!=0f) {  // NaN
+					Rectangle rect = new Rectangle(bx, by, xMax-bx, yMax-by);
+					if (!convolveRect(ip, pixels, pixels2, kernel, kw, kh, scale, rect, y1, y2, thread, isMainThread))
+						return false;
+					continue;
+				}
+				FHT fht = new FHT(block);
+				fht.setShowProgress(false);
+				fht.transform();
+				fht = fht.conjugateMultiply(kernelFHT);  // correlation: the kernel is not flipped
+				fht.setShowProgress(false);
+				fht.inverseTransform();
+				float[] result = (float[])fht.getPixels();
+				for (int y=by; y<yMax; y++)
+					System.arraycopy(result, (y-by)*tw, pixels, y*width+bx, xMax-bx);
+			}
+		}
+		return true;
+	}
+
+	/* Returns the transform of the kernel, multiplied by 'scale', for blocks of
+		tw x th pixels. The transforms are kept until the kernel changes, so
+		that they are computed once for all slices of a stack. */
+	private synchronized FHT getKernelTransform(float[] kernel, int kw, int kh, int tw, int th, double scale) {
+		if (transformedKernel==null || scale!=transformedScale || !Arrays.equals(kernel, transformedKernel)) {
+			kernelTransforms.clear();
+			transformedKernel = (float[])kernel.clone();
+			transformedScale = scale;
+		}
+		String key = tw+"x"+th+"/"+kw;
+		FHT fht = (FHT)kernelTransforms.get(key);
+		if (fht==null) {
+			float[] k = new float[tw*th];
+			for (int v=0; v<kh; v++) {
+				for (int u=0; u<kw; u++)
+					k[v*tw+u] = (float)(kernel[v*kw+u]*scale);
+			}
+			fht = new FHT(new FloatProcessor(tw, th, k, null));
+			fht.setShowProgress(false);
+			fht.transform();
+			kernelTransforms.put(key, fht);
+		}
+		return fht;
+	}
+
 	/** Convolves the image <code>ip</code> with a kernel of width 
 		<code>kw</code> and height <code>kh</code>. */
 	void convolveFloat1D(ImageProcessor ip, float[] kernel, int kw, int kh) {
@@ -10,6 +10,9 @@ import java.awt.*;
 import java.util.*;
 
 public class PlugInFilterRunner implements Runnable, DialogListener {
+	private static final int MIN_TILE_SIZE = 64;		// smallest tile side for PARALLELIZE_IMAGES
+	private static final int MAX_TILE_SIZE = 1024;		// largest tile side for PARALLELIZE_IMAGES
+	private static final int TILES_PER_THREAD = 4;		// tiles per thread, so that no thread runs out of work early
 	private String command;					// the command, can be but need not be the name of the PlugInFilter
 	private Object theFilter;					// the instance of the PlugInFilter
 	private ImagePlus imp;
@@ -24,8 +27,6 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 	private long previewTime;				// time (ms) needed for preview processing
 	private boolean ipChanged;			// whether the image data have been changed
 	private int processedAsPreview;			// the slice processed during preview (if non-zero)
-	private Hashtable slicesForThread;		// gives first&last slice that a given thread should process
-	private Hashtable roisForThread;			// gives ROI that a given thread should process
 	Hashtable sliceForThread = new Hashtable(); // here the stack slice currently processed is stored.
 	private int nPasses;						// the number of calls to the run(ip) method of the filter
 	private int pass;						// passes done so far
@@ -122,29 +123,23 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				if ((flags&PlugInFilter.PARALLELIZE_STACKS)!=0) {
 					threads = Prefs.getThreads(); // multithread support for multiprocessor machines
 					if (threads>slicesToDo) threads = slicesToDo;
-					if (threads>1) slicesForThread = new Hashtable(threads-1);
 				}
+				Runnable[] tasks = new Runnable[threads];
 				int startSlice = 1;
-				for (int i=1; i<threads; i++) {				// setup the background threads
+				for (int i=1; i<=threads; i++) {				// one range of slices per thread
 					int endSlice = (slicesToDo*i)/threads;
 					if (processedAsPreview!=0 && processedAsPreview<=endSlice) endSlice++;
-					Thread bgThread = new Thread(this, command+" "+startSlice+"-"+endSlice);
-					slicesForThread.put(bgThread, new int[] {startSlice, endSlice});
-					bgThread.start();
-					//IJ.log("Stack: Thread for slices "+startSlice+"-"+endSlice+" started");
+					if (i==threads) endSlice = slices;
+					final int first = startSlice, last = endSlice;
+					tasks[i-1] = new Runnable() {
+						public void run() {
+							processStack(first, last);
+						}
+					};
 					startSlice = endSlice+1;
 				}
-				//IJ.log("Stack: Slices "+startSlice+"-"+slices+" by main thread");
-				processStack(startSlice, slices);			// the current thread does the rest
-				if (slicesForThread != null) {
-					while (slicesForThread.size()>0) {	  // for all other threads:
-						Thread theThread = (Thread)slicesForThread.keys().nextElement();
-						try {
-							theThread.join();				// wait until thread has finished
-						} catch (InterruptedException e) {}
-						slicesForThread.remove(theThread);	// and remove it from the list.
-					}
-				}
+				//IJ.log("Stack: "+threads+" ranges of slices");
+				WorkerPool.getInstance(threads).invokeAll(tasks, threads);
 			}
 		} // end processing:
 		if ((flags&PlugInFilter.FINAL_PROCESSING)!=0 && !IJ.escapePressed())
@@ -294,40 +289,105 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 			ip.reset(ip.getMask());	 //restore image outside irregular roi
    }
    
-	private void processChannelUsingThreads(ImageProcessor ip) {
+	/** Processes the roi of ip as 2D tiles, in parallel, on the threads of
+	 *	the WorkerPool. Filters implementing TiledPlugInFilter get a copy of
+	 *	each tile with a border, filled from the snapshot; all others get ip
+	 *	itself with the tile as roi.
+	 */
+	private void processChannelUsingThreads(final ImageProcessor ip) {
 		ImageProcessor mask = ip.getMask();
 		Rectangle roi = ip.getRoi();
 		int threads = Prefs.getThreads();
-		if (threads>roi.height) threads = roi.height;
-		if (threads>1) roisForThread = new Hashtable(threads-1);
-		int y1 = roi.y;
-		for (int i=1; i<threads; i++) {
-			int y2 = roi.y+(roi.height*i)/threads-1;
-			Thread bgThread = new Thread(this, command+" "+y1+"-"+y2);
-			Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, y2-y1+1);
-			roisForThread.put(bgThread, duplicateProcessor(ip, roi2));
-			bgThread.start();
-			//IJ.log("Thread for ROI "+y1+"-"+y2+" started");
-			y1 = y2+1;
+		Rectangle[] tiles = makeTiles(roi, threads);
+		if (tiles.length==1) {
+			((PlugInFilter)theFilter).run(ip);
+			pass++;
+			return;
 		}
-		//IJ.log("Rest "+y1+"-"+(roi.height-1)+" by main thread ("+Thread.currentThread()+")");
-		ip.setRoi(new Rectangle(roi.x, y1, roi.width, roi.y+roi.height-y1));
-		((PlugInFilter)theFilter).run(ip);  // the current thread does the rest
-		pass++;
-		if (roisForThread != null) {
-			while (roisForThread.size()>0) {	  // for all other threads:
-				Thread theThread = (Thread)roisForThread.keys().nextElement();
-				try {
-					theThread.join();    // wait until thread has finished
-				} catch (InterruptedException e) {}
-				roisForThread.remove(theThread);	// and remove it from the list.
-			}
+		final boolean withBorder = theFilter instanceof TiledPlugInFilter;
+		final int border = withBorder ? ((TiledPlugInFilter)theFilter).getTileBorder() : 0;
+		if (withBorder && (flags&PlugInFilter.SNAPSHOT)==0)
+			ip.snapshot();		// tiles are copied from the snapshot
+		final Thread owner = Thread.currentThread();
+		Runnable[] tasks = new Runnable[tiles.length];
+		for (int i=0; i<tiles.length; i++) {
+			final Rectangle tile = tiles[i];
+			tasks[i] = new Runnable() {
+				public void run() {
+					if (withBorder)
+						processTileWithBorder(ip, tile, border, owner);
+					else {
+						ImageProcessor ip2 = duplicateProcessor(ip, tile);
+						((PlugInFilter)theFilter).run(ip2);
+						ip2.setPixels(null);
+						ip2.setSnapshotPixels(null);
+					}
+				}
+			};
 		}
-		roisForThread = null;
+		WorkerPool.getInstance(threads).invokeAll(tasks, threads);
+		pass++;
+		if (withBorder && IJ.escapePressed())
+			ip.reset();		// the tiles done before 'Esc' was pressed
 		ip.setMask(mask);  // restore ROI
 		ip.setRoi(roi);
 	}
+
+	/** Splits a rectangle into tiles, enough for every thread to get several
+	 *	of them, but not smaller than MIN_TILE_SIZE pixels on a side unless
+	 *	the rectangle is.
+	 */
+	static Rectangle[] makeTiles(Rectangle roi, int threads) {
+		if (threads<=1 || roi.width*(long)roi.height<=MIN_TILE_SIZE*MIN_TILE_SIZE)
+			return new Rectangle[] {roi};
+		int size = (int)Math.sqrt(roi.width*(double)roi.height/(TILES_PER_THREAD*threads));
+		size = Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, size));
+		int nx = Math.max(1, (roi.width+size-1)/size);
+		int ny = Math.max(1, (roi.height+size-1)/size);
+		Rectangle[] tiles = new Rectangle[nx*ny];
+		for (int j=0; j<ny; j++) {
+			int y1 = roi.y+(int)((long)roi.height*j/ny);
+			int y2 = roi.y+(int)((long)roi.height*(j+1)/ny);
+			for (int i=0; i<nx; i++) {
+				int x1 = roi.x+(int)((long)roi.width*i/nx);
+				int x2 = roi.x+(int)((long)roi.width*(i+1)/nx);
+				tiles[j*nx+i] = new Rectangle(x1, y1, x2-x1, y2-y1);
+			}
+		}
+		return tiles;
+	}
+
+	/** Runs the filter on a copy of a tile and its border, taken from the
+	 *	snapshot of ip, and writes the processed tile back into ip, unless
+	 *	'Esc' was pressed or the thread that called processChannelUsingThreads
+	 *	('owner') was interrupted to stop a preview.
+	 */
+	private void processTileWithBorder(ImageProcessor ip, Rectangle tile, int border, Thread owner) {
+		if (isTileCanceled(owner))
+			return;
+		int width = ip.getWidth();
+		Rectangle outer = new Rectangle(tile.x-border, tile.y-border, tile.width+2*border, tile.height+2*border);
+		outer = outer.intersection(new Rectangle(0, 0, width, ip.getHeight()));
+		ImageProcessor ip2 = ip.createProcessor(outer.width, outer.height);
+		Object source = ip.getSnapshotPixels();
+		Object pixels2 = ip2.getPixels();
+		for (int y=0; y<outer.height; y++)
+			System.arraycopy(source, (outer.y+y)*width+outer.x, pixels2, y*outer.width, outer.width);
+		ip2.setRoi(tile.x-outer.x, tile.y-outer.y, tile.width, tile.height);
+		((PlugInFilter)theFilter).run(ip2);
+		if (isTileCanceled(owner))
+			return;			// the tile may be partly processed
+		pixels2 = ip2.getPixels();		// the filter may have replaced the pixel array
+		Object pixels = ip.getPixels();
+		for (int y=0; y<tile.height; y++)
+			System.arraycopy(pixels2, (tile.y-outer.y+y)*outer.width+tile.x-outer.x,
+				pixels, (tile.y+y)*width+tile.x, tile.width);
+	}
 	
+	private boolean isTileCanceled(Thread owner) {
+		return IJ.escapePressed() || owner.isInterrupted() || Thread.currentThread().isInterrupted();
+	}
+
 	ImageProcessor duplicateProcessor(ImageProcessor ip, Rectangle roi) {
 		ImageProcessor ip2 = (ImageProcessor)ip.clone();
 		ip2.setRoi(roi);
@@ -414,15 +474,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		try {
 			if (thread==previewThread)
 				runPreview();
-			else if (roisForThread!=null && roisForThread.containsKey(thread)) {
-				ImageProcessor ip = (ImageProcessor)roisForThread.get(thread);
-				((PlugInFilter)theFilter).run(ip);
-				ip.setPixels(null);
-				ip.setSnapshotPixels(null);
-			} else if (slicesForThread!=null && slicesForThread.containsKey(thread)) {
-				int[] range = (int[])slicesForThread.get(thread);
-				processStack(range[0], range[1]);
-			} else
+			else
 				IJ.error("PlugInFilterRunner internal error:\nunsolicited background thread");
 		} catch (Exception err) {
 			if (thread==previewThread) {
@@ -517,12 +569,6 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		synchronized (this) {
 			previewThread.interrupt();		//ask for premature finishing (interrupt first -> no keepPreview)
 			bgPreviewOn = false;				//tell a possible background thread to terminate when it has finished
-			if (roisForThread!=null) {
-				for (Enumeration en=roisForThread.keys(); en.hasMoreElements();) {
-					Thread thread = (Thread)en.nextElement();
-					thread.interrupt();
-				}
-			}
 		}
 		waitForPreviewDone();
 	}
@@ -588,4 +634,167 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		return true;
 	}
 	
+
+	/** Runs the tasks on the threads shared by all PlugInFilterRunners, using
+	 *	at most Prefs.getThreads() threads including the calling one, which
+	 *	takes part in the work. Returns when all tasks are done; an exception
+	 *	thrown by a task is rethrown. Used by StackProcessor.
+	 */
+	public static void invokeAll(Runnable[] tasks) {
+		int threads = Prefs.getThreads();
+		WorkerPool.getInstance(threads).invokeAll(tasks, threads);
+	}
+
+	/** Daemon threads shared by all PlugInFilterRunners and kept between
+	 *	invocations, which run the parts (ranges of slices or tiles) of a
+	 *	filter operation. The thread calling invokeAll takes part in the work.
+	 *	Parts are handed out one at a time to whichever thread is free, so
+	 *	that threads that finish early take over the parts left by the others.
+	 *	All state is guarded by the pool's monitor.
+	 */
+	static class WorkerPool implements Runnable {
+		private static WorkerPool instance;
+		private LinkedList jobs = new LinkedList();	// jobs with parts not handed out yet
+		private int nWorkers;
+
+		/** A call of invokeAll. */
+		private static class Job {
+			Thread owner;		// the thread that called invokeAll
+			Runnable[] tasks;
+			int maxThreads;
+			int next;			// the next part to hand out
+			int done;			// number of parts finished
+			int threads;		// number of threads working on this job
+			LinkedList running = new LinkedList();	// worker threads running parts of this job
+			Throwable error;	// first exception thrown by a part
+		}
+
+		/** Returns the pool, with enough threads for 'threads' parallel
+		 *	parts besides the calling thread. */
+		static synchronized WorkerPool getInstance(int threads) {
+			if (instance==null)
+				instance = new WorkerPool();
+			instance.addWorkers(threads-1);
+			return instance;
+		}
+
+		private synchronized void addWorkers(int n) {
+			while (nWorkers<n) {
+				Thread thread = new Thread(this, "PlugInFilterRunner-"+nWorkers);
+				thread.setDaemon(true);
+				thread.start();
+				nWorkers++;
+			}
+		}
+
+		/** Runs the tasks on at most maxThreads threads, including the
+		 *	current one, and returns when all of them are done. An exception
+		 *	thrown by a task is rethrown here after all tasks are done. */
+		void invokeAll(Runnable[] tasks, int maxThreads) {
+			Job job = new Job();
+			job.owner = Thread.currentThread();
+			job.tasks = tasks;
+			job.maxThreads = Math.max(maxThreads, 1);
+			job.threads = 1;
+			if (job.maxThreads>1 && tasks.length>1) {
+				synchronized(this) {
+					jobs.addLast(job);
+					notifyAll();
+				}
+			}
+			work(job);
+			boolean interrupted = false;
+			synchronized(this) {
+				while (job.done<tasks.length) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;		// the parts still running use our data
+						for (Iterator it=job.running.iterator(); it.hasNext(); )
+							((Thread)it.next()).interrupt();	// so that the filter stops them early
+					}
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (job.error instanceof RuntimeException)
+				throw (RuntimeException)job.error;
+			else if (job.error instanceof Error)
+				throw (Error)job.error;
+			else if (job.error!=null)
+				throw new RuntimeException(job.error);
+		}
+
+		/** Runs parts of the job until none are left to hand out. If the
+		 *	thread that called invokeAll is interrupted (e.g. to stop a
+		 *	preview), the parts not yet started are skipped, and the worker
+		 *	threads running parts are interrupted too. */
+		private void work(Job job) {
+			Thread thread = Thread.currentThread();
+			boolean isWorker = thread!=job.owner;
+			while (true) {
+				int i;
+				synchronized(this) {
+					if (job.next<job.tasks.length && job.owner.isInterrupted()) {
+						job.done += job.tasks.length-job.next;
+						job.next = job.tasks.length;
+						notifyAll();
+					}
+					if (job.next>=job.tasks.length) {
+						jobs.remove(job);
+						return;
+					}
+					i = job.next++;
+					if (isWorker)
+						job.running.add(thread);
+				}
+				Throwable error = null;
+				try {
+					job.tasks[i].run();
+				} catch (Throwable e) {
+					error = e;
+				}
+				synchronized(this) {
+					if (isWorker)
+						job.running.remove(thread);
+					if (error!=null && job.error==null)
+						job.error = error;
+					job.done++;
+					if (job.done==job.tasks.length)
+						notifyAll();
+				}
+				if (isWorker)
+					Thread.interrupted();	// clear an interrupt meant for this job
+			}
+		}
+
+		/** The worker threads */
+		public void run() {
+			while (true) {
+				Job job = null;
+				synchronized(this) {
+					while (job==null) {
+						for (Iterator it=jobs.iterator(); it.hasNext(); ) {
+							Job j = (Job)it.next();
+							if (j.threads<j.maxThreads && j.next<j.tasks.length) {
+								job = j;
+								break;
+							}
+						}
+						if (job==null) {
+							try {
+								wait();
+							} catch (InterruptedException e) {}
+						}
+					}
+					job.threads++;
+				}
+				work(job);
+				synchronized(this) {
+					job.threads--;
+				}
+			}
+		}
+	}
+
 }
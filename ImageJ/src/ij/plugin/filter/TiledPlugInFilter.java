@@ -0,0 +1,23 @@
+package ij.plugin.filter;
+
+/** ImageJ plugin filters flagged <code>PARALLELIZE_IMAGES</code> may implement
+ *  this interface if the result at a pixel depends only on the pixels
+ *  within a fixed distance of it, like a convolution with a kernel of fixed
+ *  size.
+ *<p>
+ *  The PlugInFilterRunner then processes a large image as 2D tiles, in
+ *  parallel. For each tile, <code>run(ip)</code> is called with a new,
+ *  small ImageProcessor holding a copy of the tile together with a border
+ *  of <code>getTileBorder()</code> pixels on each side (less at the edges
+ *  of the image); its roi is the tile. Only the pixels inside the roi are
+ *  copied back into the image, so the filter never sees pixels already
+ *  modified by another tile.
+ */
+public interface TiledPlugInFilter extends PlugInFilter {
+
+	/** Returns the number of pixels on each side of a tile that are needed
+	 *  to process the pixels of the tile. Called before each image is split
+	 *  into tiles. */
+	public int getTileBorder();
+
+}
@@ -4,7 +4,7 @@ import ij.process.*;
 import ij.io.*;
 
 
-/** This plugin saves an image in tiff, gif, jpeg, bmp, png, text or raw format. */
+/** This plugin saves an image in tiff, gif, jpeg, bmp, png, fits, n5, text or raw format. */
 public class Writer implements PlugInFilter {
 	private String arg;
     private ImagePlus imp;
@@ -38,6 +38,8 @@ public class Writer implements PlugInFilter {
 			new FileSaver(imp).saveAsPgm();
 		else if (arg.equals("fits"))
 			new FileSaver(imp).saveAsFits();
+		else if (arg.equals("n5"))
+			new FileSaver(imp).saveAsN5();
 	}
 	
 }
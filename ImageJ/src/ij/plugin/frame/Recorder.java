@@ -437,6 +437,7 @@ public class Recorder extends PlugInFrame implements PlugIn, ActionListener, Ima
 			|| commandName.equals("PNG...")
 			|| commandName.equals("PGM...")
 			|| commandName.equals("FITS...")
+			|| commandName.equals("N5...")
 			|| commandName.equals("LUT...")
 			|| commandName.equals("Selection...")
 			|| commandName.equals("XY Coordinates...")
@@ -465,11 +465,25 @@ public class ByteProcessor extends ImageProcessor {
 
 	public void applyTable(int[] lut) {
 		int lineStart, lineEnd;
+		byte[] pixels = this.pixels;
+		if (lut.length<256) {
+			for (int y=roiY; y<(roiY+roiHeight); y++) {
+				lineStart = y * width + roiX;
+				lineEnd = lineStart + roiWidth;
+				for (int i=lineEnd; --i>=lineStart;)
+					pixels[i] = (byte)lut[pixels[i]&0xff];
+			}
+			return;
+		}
+		// a 256-byte table stays in the L1 cache
+		byte[] table = new byte[256];
+		for (int i=0; i<256; i++)
+			table[i] = (byte)lut[i];
 		for (int y=roiY; y<(roiY+roiHeight); y++) {
 			lineStart = y * width + roiX;
 			lineEnd = lineStart + roiWidth;
-			for (int i=lineEnd; --i>=lineStart;)
-				pixels[i] = (byte)lut[pixels[i]&0xff];
+			for (int i=lineStart; i<lineEnd; i++)
+				pixels[i] = table[pixels[i]&0xff];
 		}
 	}
 
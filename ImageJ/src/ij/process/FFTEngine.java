@@ -0,0 +1,460 @@
+package ij.process;
+import ij.Prefs;
+import java.util.Hashtable;
+
+/** A Fast Fourier Transform for any size. Sizes whose prime factors are
+	all at most 31 are transformed with a mixed-radix (Stockham) algorithm,
+	and other sizes with Bluestein's algorithm, which uses a power of 2
+	transform. The FFTEngine of a size, which holds its factors and
+	twiddle factors, is created once and then shared; get it with
+	getEngine(n). The 2D transforms of real images work on any width and
+	height, without padding, and use Prefs.getThreads() threads.
+	Used by the FHT class for images that are not square and power of 2 size.
+*/
+public class FFTEngine {
+	private static final int MAX_RADIX = 31;
+	private static final int MAX_CACHED_ENGINES = 32;
+	private static final int MIN_PARALLEL_SIZE = 1<<16; // pixels
+	private static Hashtable engines = new Hashtable();
+
+	private int n;
+	private int[] factors;      // radices of the mixed-radix stages, or null for Bluestein
+	private double[] cos, sin;  // cos(2*pi*k/n), -sin(2*pi*k/n)
+	private FFTEngine bluestein; // power of 2 engine used by Bluestein's algorithm
+	private double[] chirpRe, chirpIm; // exp(-i*pi*k*k/n)
+	private double[] kernelRe, kernelIm; // transform of the conjugate chirp
+
+	/** Returns the FFTEngine for size 'n', creating it if it does not exist yet. */
+	public static FFTEngine getEngine(int n) {
+		if (n<1)
+			throw new IllegalArgumentException("Size must be positive: "+n);
+		Integer key = new Integer(n);
+		FFTEngine engine = (FFTEngine)engines.get(key);
+		if (engine==null) {
+			engine = new FFTEngine(n);
+			synchronized (engines) {
+				if (engines.size()>=MAX_CACHED_ENGINES)
+					engines.clear();
+				engines.put(key, engine);
+			}
+		}
+		return engine;
+	}
+
+	private FFTEngine(int n) {
+		this.n = n;
+		factors = factor(n);
+		if (factors!=null) {
+			cos = new double[n];
+			sin = new double[n];
+			for (int k=0; k<n; k++) {
+				double theta = 2.0*Math.PI*k/n;
+				cos[k] = Math.cos(theta);
+				sin[k] = -Math.sin(theta);
+			}
+		} else {
+			int m = 1;
+			while (m<2*n-1) m *= 2;
+			bluestein = getEngine(m);
+			chirpRe = new double[n];
+			chirpIm = new double[n];
+			for (int k=0; k<n; k++) {
+				double theta = Math.PI*(((long)k*k)%(2L*n))/n; // k*k mod 2n keeps theta accurate
+				chirpRe[k] = Math.cos(theta);
+				chirpIm[k] = -Math.sin(theta);
+			}
+			kernelRe = new double[m];
+			kernelIm = new double[m];
+			kernelRe[0] = chirpRe[0];
+			kernelIm[0] = -chirpIm[0];
+			for (int k=1; k<n; k++) {
+				kernelRe[k] = kernelRe[m-k] = chirpRe[k];
+				kernelIm[k] = kernelIm[m-k] = -chirpIm[k];
+			}
+			bluestein.transform(kernelRe, kernelIm, false, new double[bluestein.getWorkSize()]);
+		}
+	}
+
+	/* Returns the radices, largest first (4 before 2), or null if n
+		has a prime factor larger than MAX_RADIX. */
+	private static int[] factor(int n) {
+		int[] f = new int[32];
+		int count = 0;
+		while (n%4==0) {
+			f[count++] = 4;
+			n /= 4;
+		}
+		for (int p=2; p<=MAX_RADIX && n>1; p++) {
+			while (n%p==0) {
+				f[count++] = p;
+				n /= p;
+			}
+		}
+		if (n>1)
+			return null;
+		int[] factors = new int[count];
+		System.arraycopy(f, 0, factors, 0, count);
+		return factors;
+	}
+
+	/** Returns the size of this engine. */
+	public int getSize() {
+		return n;
+	}
+
+	/** Returns the length of the work array required by transform(double[], double[], boolean, double[]). */
+	public int getWorkSize() {
+		return factors!=null?2*n:bluestein.getWorkSize();
+	}
+
+	/** Replaces the complex array (re, im) of length getSize() by its discrete Fourier
+		transform, sum(x[j]*exp(-2*pi*i*j*k/n)), or by the inverse transform, which uses
+		exp(+2*pi*i*j*k/n), if 'inverse' is true. The inverse transform is not divided by n. */
+	public void transform(double[] re, double[] im, boolean inverse) {
+		transform(re, im, inverse, new double[getWorkSize()]);
+	}
+
+	/** Transforms (re, im) as transform(double[], double[], boolean) does, using 'work',
+		an array of length getWorkSize(), as scratch space. Each thread must use its
+		own work array. */
+	public void transform(double[] re, double[] im, boolean inverse, double[] work) {
+		if (inverse) { // conj(FFT(conj(x)))
+			for (int k=0; k<n; k++) im[k] = -im[k];
+		}
+		if (factors!=null)
+			mixedRadix(re, im, work);
+		else
+			bluestein(re, im, work);
+		if (inverse) {
+			for (int k=0; k<n; k++) im[k] = -im[k];
+		}
+	}
+
+	private void bluestein(double[] re, double[] im, double[] work) {
+		int m = bluestein.n;
+		double[] ar = new double[m];
+		double[] ai = new double[m];
+		for (int k=0; k<n; k++) {
+			ar[k] = re[k]*chirpRe[k] - im[k]*chirpIm[k];
+			ai[k] = re[k]*chirpIm[k] + im[k]*chirpRe[k];
+		}
+		bluestein.mixedRadix(ar, ai, work);
+		for (int k=0; k<m; k++) {
+			double r = ar[k]*kernelRe[k] - ai[k]*kernelIm[k];
+			double i = ar[k]*kernelIm[k] + ai[k]*kernelRe[k];
+			ar[k] = r;
+			ai[k] = -i; // conjugate for the inverse transform
+		}
+		bluestein.mixedRadix(ar, ai, work);
+		for (int k=0; k<n; k++) {
+			double r = ar[k]/m, i = -ai[k]/m;
+			re[k] = r*chirpRe[k] - i*chirpIm[k];
+			im[k] = r*chirpIm[k] + i*chirpRe[k];
+		}
+	}
+
+	/* Stockham autosort FFT: each stage reads one pair of arrays and writes the
+		other, so no bit reversal is needed. 'work' holds the second pair. */
+	private void mixedRadix(double[] re, double[] im, double[] work) {
+		boolean xIsWork = false; // work[0..n-1] holds the real and work[n..2n-1] the imaginary parts
+		int s = 1;  // product of the radices of the previous stages
+		int len = n;
+		for (int f=0; f<factors.length; f++) {
+			int r = factors[f];
+			int m = len/r;
+			if (xIsWork)
+				stage(r, m, s, work, 0, work, n, re, 0, im, 0);
+			else
+				stage(r, m, s, re, 0, im, 0, work, 0, work, n);
+			xIsWork = !xIsWork;
+			len = m;
+			s *= r;
+		}
+		if (xIsWork) {
+			System.arraycopy(work, 0, re, 0, n);
+			System.arraycopy(work, n, im, 0, n);
+		}
+	}
+
+	/* One stage of radix r: the transforms of length r of the elements p, p+m, ... p+(r-1)*m
+		of each of the s interleaved sequences, multiplied by the twiddle factors. */
+	private void stage(int r, int m, int s, double[] xr, int xro, double[] xi, int xio,
+	double[] yr, int yro, double[] yi, int yio) {
+		int ms = m*s;
+		switch (r) {
+			case 2:
+				for (int p=0; p<m; p++) {
+					double wr = cos[p*s], wi = sin[p*s];
+					int x0 = p*s, y0 = 2*p*s;
+					for (int q=0; q<s; q++) {
+						int a = x0+q, b = a+ms;
+						double ar=xr[xro+a], ai=xi[xio+a], br=xr[xro+b], bi=xi[xio+b];
+						int c = y0+q, d = c+s;
+						yr[yro+c] = ar+br;
+						yi[yio+c] = ai+bi;
+						double dr = ar-br, di = ai-bi;
+						yr[yro+d] = dr*wr - di*wi;
+						yi[yio+d] = dr*wi + di*wr;
+					}
+				}
+				break;
+			case 3:
+				final double s3 = -Math.sqrt(0.75); // -sin(2*pi/3)
+				for (int p=0; p<m; p++) {
+					double w1r = cos[p*s], w1i = sin[p*s];
+					double w2r = cos[2*p*s], w2i = sin[2*p*s];
+					int x0 = p*s, y0 = 3*p*s;
+					for (int q=0; q<s; q++) {
+						int a = x0+q;
+						double a0r=xr[xro+a], a0i=xi[xio+a];
+						double a1r=xr[xro+a+ms], a1i=xi[xio+a+ms];
+						double a2r=xr[xro+a+2*ms], a2i=xi[xio+a+2*ms];
+						double tr = a1r+a2r, ti = a1i+a2i;
+						double ur = a0r-0.5*tr, ui = a0i-0.5*ti;
+						double vr = -s3*(a1i-a2i), vi = s3*(a1r-a2r); // -i*sin(2pi/3)*(a1-a2)
+						int c = y0+q;
+						yr[yro+c] = a0r+tr;
+						yi[yio+c] = a0i+ti;
+						double b1r = ur+vr, b1i = ui+vi;
+						double b2r = ur-vr, b2i = ui-vi;
+						yr[yro+c+s] = b1r*w1r - b1i*w1i;
+						yi[yio+c+s] = b1r*w1i + b1i*w1r;
+						yr[yro+c+2*s] = b2r*w2r - b2i*w2i;
+						yi[yio+c+2*s] = b2r*w2i + b2i*w2r;
+					}
+				}
+				break;
+			case 4:
+				for (int p=0; p<m; p++) {
+					double w1r = cos[p*s], w1i = sin[p*s];
+					double w2r = cos[2*p*s], w2i = sin[2*p*s];
+					double w3r = cos[3*p*s], w3i = sin[3*p*s];
+					int x0 = p*s, y0 = 4*p*s;
+					for (int q=0; q<s; q++) {
+						int a = x0+q;
+						double a0r=xr[xro+a], a0i=xi[xio+a];
+						double a1r=xr[xro+a+ms], a1i=xi[xio+a+ms];
+						double a2r=xr[xro+a+2*ms], a2i=xi[xio+a+2*ms];
+						double a3r=xr[xro+a+3*ms], a3i=xi[xio+a+3*ms];
+						double t0r = a0r+a2r, t0i = a0i+a2i;
+						double t1r = a0r-a2r, t1i = a0i-a2i;
+						double t2r = a1r+a3r, t2i = a1i+a3i;
+						double t3r = a1i-a3i, t3i = a3r-a1r; // -i*(a1-a3)
+						int c = y0+q;
+						yr[yro+c] = t0r+t2r;
+						yi[yio+c] = t0i+t2i;
+						double b1r = t1r+t3r, b1i = t1i+t3i;
+						double b2r = t0r-t2r, b2i = t0i-t2i;
+						double b3r = t1r-t3r, b3i = t1i-t3i;
+						yr[yro+c+s] = b1r*w1r - b1i*w1i;
+						yi[yio+c+s] = b1r*w1i + b1i*w1r;
+						yr[yro+c+2*s] = b2r*w2r - b2i*w2i;
+						yi[yio+c+2*s] = b2r*w2i + b2i*w2r;
+						yr[yro+c+3*s] = b3r*w3r - b3i*w3i;
+						yi[yio+c+3*s] = b3r*w3i + b3i*w3r;
+					}
+				}
+				break;
+			default:
+				int step = n/r; // exp(-2*pi*i*j*k/r) = cos[(j*k)%r*step], sin[...]
+				double[] ar = new double[r], ai = new double[r];
+				for (int p=0; p<m; p++) {
+					int x0 = p*s, y0 = r*p*s;
+					for (int q=0; q<s; q++) {
+						for (int k=0; k<r; k++) {
+							ar[k] = xr[xro+x0+q+k*ms];
+							ai[k] = xi[xio+x0+q+k*ms];
+						}
+						for (int j=0; j<r; j++) {
+							double sr = 0.0, si = 0.0;
+							int index = 0;
+							for (int k=0; k<r; k++) {
+								double wr = cos[index*step], wi = sin[index*step];
+								sr += ar[k]*wr - ai[k]*wi;
+								si += ar[k]*wi + ai[k]*wr;
+								index += j;
+								if (index>=r) index -= r;
+							}
+							int t = j*p*s;
+							int c = y0+q+j*s;
+							yr[yro+c] = sr*cos[t] - si*sin[t];
+							yi[yio+c] = sr*sin[t] + si*cos[t];
+						}
+					}
+				}
+		}
+	}
+
+	/** Returns the smallest even size that is at least 'n' and whose prime factors
+		are 2, 3, 5 and 7; images of this size are transformed fastest. */
+	public static int getFastSize(int n) {
+		int size = n+(n&1);
+		while (true) {
+			int m = size;
+			while (m%2==0) m /= 2;
+			while (m%3==0) m /= 3;
+			while (m%5==0) m /= 5;
+			while (m%7==0) m /= 7;
+			if (m==1)
+				return size;
+			size += 2;
+		}
+	}
+
+	/** Replaces the 'width' x 'height' real image 'x' by its 2D Hartley transform,
+		sum(x(c,r)*cas(2*pi*(u*c/width+v*r/height))), where cas(t)=cos(t)+sin(t),
+		stored at x[v*width+u]. If 'inverse' is true, the result is divided by
+		width*height, which makes this the inverse transform. */
+	public static void dht2D(float[] x, int width, int height, boolean inverse) {
+		int halfWidth = width/2+1;
+		double[] re = new double[halfWidth*height];
+		double[] im = new double[halfWidth*height];
+		realRows(x, width, height, re, im);
+		columns(re, im, halfWidth, height, false);
+		double scale = inverse?1.0/((double)width*height):1.0;
+		for (int v=0; v<height; v++) {
+			int v2 = (height-v)%height;
+			for (int u=0; u<width; u++) {
+				double h;
+				if (u<halfWidth) {
+					int i = v*halfWidth+u;
+					h = re[i] - im[i];
+				} else { // F(u,v) = conj(F(width-u, height-v))
+					int i = v2*halfWidth+(width-u);
+					h = re[i] + im[i];
+				}
+				x[v*width+u] = (float)(h*scale);
+			}
+		}
+	}
+
+	/** Replaces the 'width' x 'height' complex image (re, im) by its 2D discrete
+		Fourier transform, or by the inverse transform, divided by width*height,
+		if 'inverse' is true. */
+	public static void fft2D(float[] re, float[] im, int width, int height, boolean inverse) {
+		int size = width*height;
+		double[] dre = new double[size];
+		double[] dim = new double[size];
+		for (int i=0; i<size; i++) {
+			dre[i] = re[i];
+			dim[i] = im[i];
+		}
+		complexRows(dre, dim, width, height, inverse);
+		columns(dre, dim, width, height, inverse);
+		double scale = inverse?1.0/size:1.0;
+		for (int i=0; i<size; i++) {
+			re[i] = (float)(dre[i]*scale);
+			im[i] = (float)(dim[i]*scale);
+		}
+	}
+
+	/* Fourier transforms the rows of the real image x, two rows at a time, and
+		stores elements 0 to width/2 of each transformed row in (re, im). */
+	private static void realRows(final float[] x, final int width, final int height,
+	final double[] re, final double[] im) {
+		final int halfWidth = width/2+1;
+		final FFTEngine engine = getEngine(width);
+		final int nPairs = (height+1)/2;
+		runInParallel(nPairs, width*height, new Task() {
+			public void run(int first, int last) {
+				double[] zr = new double[width];
+				double[] zi = new double[width];
+				double[] work = new double[engine.getWorkSize()];
+				for (int pair=first; pair<last; pair++) {
+					int r1 = 2*pair, r2 = r1+1;
+					for (int c=0; c<width; c++) {
+						zr[c] = x[r1*width+c];
+						zi[c] = r2<height?x[r2*width+c]:0.0;
+					}
+					engine.transform(zr, zi, false, work);
+					// X1[k] = (Z[k]+conj(Z[-k]))/2, X2[k] = (Z[k]-conj(Z[-k]))/(2i)
+					for (int k=0; k<halfWidth; k++) {
+						int k2 = (width-k)%width;
+						double ar = zr[k], ai = zi[k], br = zr[k2], bi = -zi[k2];
+						re[r1*halfWidth+k] = 0.5*(ar+br);
+						im[r1*halfWidth+k] = 0.5*(ai+bi);
+						if (r2<height) {
+							re[r2*halfWidth+k] = 0.5*(ai-bi);
+							im[r2*halfWidth+k] = -0.5*(ar-br);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private static void complexRows(final double[] re, final double[] im, final int width,
+	final int height, final boolean inverse) {
+		final FFTEngine engine = getEngine(width);
+		runInParallel(height, width*height, new Task() {
+			public void run(int first, int last) {
+				double[] zr = new double[width];
+				double[] zi = new double[width];
+				double[] work = new double[engine.getWorkSize()];
+				for (int r=first; r<last; r++) {
+					System.arraycopy(re, r*width, zr, 0, width);
+					System.arraycopy(im, r*width, zi, 0, width);
+					engine.transform(zr, zi, inverse, work);
+					System.arraycopy(zr, 0, re, r*width, width);
+					System.arraycopy(zi, 0, im, r*width, width);
+				}
+			}
+		});
+	}
+
+	/* Fourier transforms the columns of the 'width' x 'height' complex image (re, im). */
+	private static void columns(final double[] re, final double[] im, final int width,
+	final int height, final boolean inverse) {
+		final FFTEngine engine = getEngine(height);
+		runInParallel(width, width*height, new Task() {
+			public void run(int first, int last) {
+				double[] zr = new double[height];
+				double[] zi = new double[height];
+				double[] work = new double[engine.getWorkSize()];
+				for (int c=first; c<last; c++) {
+					for (int r=0; r<height; r++) {
+						zr[r] = re[r*width+c];
+						zi[r] = im[r*width+c];
+					}
+					engine.transform(zr, zi, inverse, work);
+					for (int r=0; r<height; r++) {
+						re[r*width+c] = zr[r];
+						im[r*width+c] = zi[r];
+					}
+				}
+			}
+		});
+	}
+
+	interface Task {
+		void run(int first, int last);
+	}
+
+	/* Runs 'task' for items 0 to n-1, split into one range per thread.
+		Uses a single thread for images smaller than MIN_PARALLEL_SIZE pixels. */
+	private static void runInParallel(final int n, int pixels, final Task task) {
+		int nThreads = pixels<MIN_PARALLEL_SIZE?1:Math.min(Prefs.getThreads(), n);
+		if (nThreads<=1) {
+			task.run(0, n);
+			return;
+		}
+		Thread[] threads = new Thread[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int first = (int)((long)n*t/nThreads);
+			final int last = (int)((long)n*(t+1)/nThreads);
+			threads[t] = new Thread("FFTEngine-"+t) {
+				public void run() {
+					task.run(first, last);
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for (int t=0; t<nThreads; t++)
+				threads[t].join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
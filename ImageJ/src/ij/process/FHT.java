@@ -11,7 +11,8 @@ by Arlo Reeves (http://imagej.nih.gov/ij/docs/ImageFFT/).
 The Fast Hartley Transform was restricted by U.S. Patent No. 4,646,256, 
 but was placed in the public domain by Stanford University in 1995 
 and is now freely available.
- 
+Images that are not square and power of 2 size are transformed with
+an FFTEngine, so they do not need to be padded.
 */
 public class FHT extends FloatProcessor {
 	private boolean isFrequencyDomain;
@@ -56,13 +57,13 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Performs a foreward transform, converting this image into the frequency domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		Images that are not square and power of 2 size are transformed with an FFTEngine. */
 	public void transform() {
 		transform(false);
 	}
 
 	/** Performs an inverse transform, converting this image into the space domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		Images that are not square and power of 2 size are transformed with an FFTEngine. */
 	public void inverseTransform() {
 		transform(true);
 	}
@@ -81,8 +82,13 @@ public class FHT extends FloatProcessor {
 
 	void transform(boolean inverse) {
 		//IJ.log("transform: "+maxN+" "+inverse);
-		if (!powerOf2Size())
-			throw new  IllegalArgumentException("Image not power of 2 size or not square: "+width+"x"+height);
+		if (!powerOf2Size()) {
+			progress(0.1);
+			FFTEngine.dht2D((float[])getPixels(), width, height, inverse);
+			progress(0.95);
+			isFrequencyDomain = !inverse;
+			return;
+		}
 		maxN = width;
 		if (S==null)
 			initializeTables(maxN);
@@ -290,14 +296,14 @@ public class FHT extends FloatProcessor {
 		float  r, scale;
 		float min = Float.MAX_VALUE;
   		float max = Float.MIN_VALUE;
-   		float[] fps = new float[maxN*maxN];
- 		byte[] ps = new byte[maxN*maxN];
+   		float[] fps = new float[width*height];
+ 		byte[] ps = new byte[width*height];
 		float[] fht = (float[])getPixels();
 
-  		for (int row=0; row<maxN; row++) {
-			FHTps(row, maxN, fht, fps);
-			base = row * maxN;
-			for (int col=0; col<maxN; col++) {
+  		for (int row=0; row<height; row++) {
+			FHTps(row, width, height, fht, fps);
+			base = row * width;
+			for (int col=0; col<width; col++) {
 				r = fps[base+col];
 				if (r<min) min = r;
 				if (r>max) max = r;
@@ -311,9 +317,9 @@ public class FHT extends FloatProcessor {
 		max = (float)Math.log(max);
 		scale = (float)(253.0/(max-min));
 
-		for (int row=0; row<maxN; row++) {
-			base = row*maxN;
-			for (int col=0; col<maxN; col++) {
+		for (int row=0; row<height; row++) {
+			base = row*width;
+			for (int col=0; col<width; col++) {
 				r = fps[base+col];
 				if (r<1f)
 					r = 0f;
@@ -322,15 +328,15 @@ public class FHT extends FloatProcessor {
 				ps[base+col] = (byte)(((r-min)*scale+0.5)+1);
 			}
 		}
-		ImageProcessor ip = new ByteProcessor(maxN, maxN, ps, null);
+		ImageProcessor ip = new ByteProcessor(width, height, ps, null);
 		swapQuadrants(ip);
 		if (FFT.displayRawPS) {
-			ImageProcessor ip2 = new FloatProcessor(maxN, maxN, fps, null);
+			ImageProcessor ip2 = new FloatProcessor(width, height, fps, null);
 			swapQuadrants(ip2);
 			new ImagePlus("PS of "+FFT.fileName, ip2).show();
 		}
 		if (FFT.displayFHT) {
-			ImageProcessor ip3 = new FloatProcessor(maxN, maxN, fht, null);
+			ImageProcessor ip3 = new FloatProcessor(width, height, fht, null);
 			ImagePlus imp2 = new ImagePlus("FHT of "+FFT.fileName, ip3.duplicate());
 			(new ContrastEnhancer()).stretchHistogram(imp2, 0.1);
 			imp2.show();
@@ -347,11 +353,11 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Power Spectrum of one row from 2D Hartley Transform. */
- 	void FHTps(int row, int maxN, float[] fht, float[] ps) {
- 		int base = row*maxN;
+ 	void FHTps(int row, int w, int h, float[] fht, float[] ps) {
+ 		int base = row*w;
 		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
+		for (int c=0; c<w; c++) {
+			l = ((h-row)%h) * w + (w-c)%w;
 			ps[base+c] = (sqr(fht[base+c]) + sqr(fht[l]))/2f;
  		}
 	}
@@ -363,15 +369,15 @@ public class FHT extends FloatProcessor {
 		if (!isFrequencyDomain)
 			throw new  IllegalArgumentException("Frequency domain image required");
 		float[] fht = (float[])getPixels();
-		float[] re = new float[maxN*maxN];
-		float[] im = new float[maxN*maxN];
-		for (int i=0; i<maxN; i++) {
-			FHTreal(i, maxN, fht, re);
-			FHTimag(i, maxN, fht, im);
+		float[] re = new float[width*height];
+		float[] im = new float[width*height];
+		for (int i=0; i<height; i++) {
+			FHTreal(i, width, height, fht, re);
+			FHTimag(i, width, height, fht, im);
 		}
-		swapQuadrants(new FloatProcessor(maxN, maxN, re, null));
-		swapQuadrants(new FloatProcessor(maxN, maxN, im, null));
-		ImageStack stack = new ImageStack(maxN, maxN);
+		swapQuadrants(new FloatProcessor(width, height, re, null));
+		swapQuadrants(new FloatProcessor(width, height, im, null));
+		ImageStack stack = new ImageStack(width, height);
 		stack.addSlice("Real", re);
 		stack.addSlice("Imaginary", im);
 		return stack;
@@ -380,11 +386,11 @@ public class FHT extends FloatProcessor {
 	/**	 FFT real value of one row from 2D Hartley Transform.
 	*	@author Joachim Wesner
 	*/
-      void FHTreal(int row, int maxN, float[] fht, float[] real) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  real[base+c] = (fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTreal(int row, int w, int h, float[] fht, float[] real) {
+            int base = row*w;
+            int offs = ((h-row)%h) * w;
+            for (int c=0; c<w; c++) {
+                  real[base+c] = (fht[base+c] + fht[offs+((w-c)%w)])*0.5f;
             }
       }
 
@@ -392,30 +398,30 @@ public class FHT extends FloatProcessor {
 	/** FFT imag value of one row from 2D Hartley Transform.
 	*	@author Joachim Wesner
 	*/
-      void FHTimag(int row, int maxN, float[] fht, float[] imag) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  imag[base+c] = (-fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTimag(int row, int w, int h, float[] fht, float[] imag) {
+            int base = row*w;
+            int offs = ((h-row)%h) * w;
+            for (int c=0; c<w; c++) {
+                  imag[base+c] = (-fht[base+c] + fht[offs+((w-c)%w)])*0.5f;
             }
       }
 
-	ImageProcessor calculateAmplitude(float[] fht, int maxN) {
-   		float[] amp = new float[maxN*maxN];
-   		for (int row=0; row<maxN; row++) {
-			amplitude(row, maxN, fht, amp);
+	ImageProcessor calculateAmplitude(float[] fht, int w, int h) {
+   		float[] amp = new float[w*h];
+   		for (int row=0; row<h; row++) {
+			amplitude(row, w, h, fht, amp);
 		}
-		ImageProcessor ip = new FloatProcessor(maxN, maxN, amp, null);
+		ImageProcessor ip = new FloatProcessor(w, h, amp, null);
 		swapQuadrants(ip);
 		return ip;
 	}
 
 	/** Amplitude of one row from 2D Hartley Transform. */
- 	void amplitude(int row, int maxN, float[] fht, float[] amplitude) {
- 		int base = row*maxN;
+ 	void amplitude(int row, int w, int h, float[] fht, float[] amplitude) {
+ 		int base = row*w;
 		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
+		for (int c=0; c<w; c++) {
+			l = ((h-row)%h) * w + (w-c)%w;
 			amplitude[base+c] = (float)Math.sqrt(sqr(fht[base+c]) + sqr(fht[l]));
  		}
 	}
@@ -430,23 +436,28 @@ public class FHT extends FloatProcessor {
 		    2 1
 		    3 4
 		</pre>
+		With an odd width or height, the image is shifted by width/2 and
+		height/2 pixels (rounded down), which moves the origin to the center,
+		but swapping twice does not restore the original image.
 	*/
  	public void swapQuadrants(ImageProcessor ip) {
 		//IJ.log("swap");
- 		ImageProcessor t1, t2;
-		int size = ip.getWidth()/2;
-		ip.setRoi(size,0,size,size);
-		t1 = ip.crop();
-  		ip.setRoi(0,size,size,size);
-		t2 = ip.crop();
-		ip.insert(t1,0,size);
-		ip.insert(t2,size,0);
-		ip.setRoi(0,0,size,size);
+ 		ImageProcessor t1, t2, t3, t4;
+		int width = ip.getWidth(), height = ip.getHeight();
+		int w1 = width - width/2, h1 = height - height/2; // size of quadrant 2
+		int w2 = width/2, h2 = height/2;
+		ip.setRoi(w1,0,w2,h1);
 		t1 = ip.crop();
-  		ip.setRoi(size,size,size,size);
+  		ip.setRoi(0,h1,w1,h2);
+		t3 = ip.crop();
+		ip.setRoi(0,0,w1,h1);
 		t2 = ip.crop();
-		ip.insert(t1,size,size);
-		ip.insert(t2,0,0);
+  		ip.setRoi(w1,h1,w2,h2);
+		t4 = ip.crop();
+		ip.insert(t1,0,h2);
+		ip.insert(t3,w2,0);
+		ip.insert(t2,w2,h2);
+		ip.insert(t4,0,0);
 		ip.resetRoi();
 	}
 
@@ -488,20 +499,20 @@ public class FHT extends FloatProcessor {
 		double h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] tmp = new float[maxN*maxN];
-		for (int r =0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
-				h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+		float[] tmp = new float[width*height];
+		for (int r =0; r<height; r++) {
+			rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				colMod = (width - c) % width;
+				h2e = (h2[r * width + c] + h2[rowMod * width + colMod]) / 2;
+				h2o = (h2[r * width + c] - h2[rowMod * width + colMod]) / 2;
 				if (conjugate) 
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e - h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * width + c] = (float)(h1[r * width + c] * h2e - h1[rowMod * width + colMod] * h2o);
 				else
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e + h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * width + c] = (float)(h1[r * width + c] * h2e + h1[rowMod * width + colMod] * h2o);
 			}
 		}
-		FHT fht2 =  new FHT(new FloatProcessor(maxN, maxN, tmp, null));
+		FHT fht2 =  new FHT(new FloatProcessor(width, height, tmp, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
@@ -515,21 +526,21 @@ public class FHT extends FloatProcessor {
 		double mag, h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] out = new float[maxN*maxN];
-		for (int r=0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				mag =h2[r*maxN+c] * h2[r*maxN+c] + h2[rowMod*maxN+colMod] * h2[rowMod*maxN+colMod];
+		float[] out = new float[width*height];
+		for (int r=0; r<height; r++) {
+			rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				colMod = (width - c) % width;
+				mag =h2[r*width+c] * h2[r*width+c] + h2[rowMod*width+colMod] * h2[rowMod*width+colMod];
 				if (mag<1e-20)
 					mag = 1e-20;
-				h2e = (h2[r*maxN+c] + h2[rowMod*maxN+colMod]);
-				h2o = (h2[r*maxN+c] - h2[rowMod*maxN+colMod]);
-				double tmp = (h1[r*maxN+c] * h2e - h1[rowMod*maxN+colMod] * h2o);
-				out[r*maxN+c] = (float)(tmp/mag);
+				h2e = (h2[r*width+c] + h2[rowMod*width+colMod]);
+				h2o = (h2[r*width+c] - h2[rowMod*width+colMod]);
+				double tmp = (h1[r*width+c] * h2e - h1[rowMod*width+colMod] * h2o);
+				out[r*width+c] = (float)(tmp/mag);
 			}
 		}
-		FHT fht2 = new FHT(new FloatProcessor(maxN, maxN, out, null));
+		FHT fht2 = new FHT(new FloatProcessor(width, height, out, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
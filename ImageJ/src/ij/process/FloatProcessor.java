@@ -413,73 +413,102 @@ public class FloatProcessor extends ImageProcessor {
 
 	public void applyTable(int[] lut) {}
 
+	/* Applies the operation to the pixels in the ROI, with a separate loop
+		for each operation. */
 	private void process(int op, double value) {
-		float c, v1, v2;
+		float c = (float)value;
+		float[] pixels = this.pixels;
 		//boolean resetMinMax = roiWidth==width && roiHeight==height && !(op==FILL);
-		c = (float)value;
+		if (op==FILL) {
+			for (int y=roiY; y<(roiY+roiHeight); y++) {
+				int i = y*width + roiX;
+				Arrays.fill(pixels, i, i+roiWidth, fillColor);
+			}
+			return;
+		}
+		if (op==MINIMUM || op==MAXIMUM) {
+			processMinOrMax(op, value);
+			return;
+		}
 		float min2=0f, max2=0f;
 		if (op==INVERT)
 			{min2=(float)getMin(); max2=(float)getMax();}
 		for (int y=roiY; y<(roiY+roiHeight); y++) {
-			int i = y * width + roiX;
-			for (int x=roiX; x<(roiX+roiWidth); x++) {
-				v1 = pixels[i];
-				switch(op) {
-					case INVERT:
-						v2 = max2 - (v1 - min2);
-						break;
-					case FILL:
-						v2 = fillColor;
-						break;
-					case ADD:
-						v2 = v1 + c;
-						break;
-					case MULT:
-						v2 = v1 * c;
-						break;
-					case GAMMA:
-						if (v1<=0f)
-							v2 = 0f;
-						else
-							v2 = (float)Math.exp(c*Math.log(v1));
-						break;
-					case LOG:
-						if (v1<=0f)
-							v2 = 0f;
-						else
-							v2 = (float)Math.log(v1);
-						break;
-					case EXP:
-						v2 = (float)Math.exp(v1);
-						break;
-					case SQR:
-							v2 = v1*v1;
-						break;
-					case SQRT:
-						if (v1<=0f)
-							v2 = 0f;
-						else
-							v2 = (float)Math.sqrt(v1);
-						break;
-					case ABS:
-							v2 = (float)Math.abs(v1);
-						break;
-					case MINIMUM:
-						if (v1<value)
-							v2 = (float)value;
-						else
-							v2 = v1;
-						break;
-					case MAXIMUM:
-						if (v1>value)
-							v2 = (float)value;
-						else
-							v2 = v1;
-						break;
-					 default:
-						v2 = v1;
+			int i = y*width + roiX, end = i + roiWidth;
+			switch(op) {
+				case INVERT:
+					for (; i<end; i++)
+						pixels[i] = max2 - (pixels[i] - min2);
+					break;
+				case ADD:
+					for (; i<end; i++)
+						pixels[i] += c;
+					break;
+				case MULT:
+					for (; i<end; i++)
+						pixels[i] *= c;
+					break;
+				case GAMMA:
+					for (; i<end; i++) {
+						float v1 = pixels[i];
+						pixels[i] = v1<=0f?0f:(float)Math.exp(c*Math.log(v1));
+					}
+					break;
+				case LOG:
+					for (; i<end; i++) {
+						float v1 = pixels[i];
+						pixels[i] = v1<=0f?0f:(float)Math.log(v1);
+					}
+					break;
+				case EXP:
+					for (; i<end; i++)
+						pixels[i] = (float)Math.exp(pixels[i]);
+					break;
+				case SQR:
+					for (; i<end; i++)
+						pixels[i] *= pixels[i];
+					break;
+				case SQRT:
+					for (; i<end; i++) {
+						float v1 = pixels[i];
+						pixels[i] = v1<=0f?0f:(float)Math.sqrt(v1);
+					}
+					break;
+				case ABS:
+					for (; i<end; i++)
+						pixels[i] = Math.abs(pixels[i]);
+					break;
+			}
+		}
+	}
+
+	/* Replaces pixels less than (MINIMUM) or greater than (MAXIMUM) 'value'
+		by 'value', comparing with a float limit instead of converting each
+		pixel to double. */
+	private void processMinOrMax(int op, double value) {
+		float c = (float)value;
+		float[] pixels = this.pixels;
+		// For a float v1, v1<value is v1<c if c>=value and v1<=c if c<value;
+		// likewise v1>value is v1>c if c<=value and v1>=c if c>value.
+		boolean inclusive = op==MINIMUM?c<value:c>value;
+		for (int y=roiY; y<(roiY+roiHeight); y++) {
+			int i = y*width + roiX, end = i + roiWidth;
+			if (op==MINIMUM) {
+				if (inclusive) {
+					for (; i<end; i++)
+						if (pixels[i]<=c) pixels[i] = c;
+				} else {
+					for (; i<end; i++)
+						if (pixels[i]<c) pixels[i] = c;
+				}
+			} else {
+				if (inclusive) {
+					for (; i<end; i++)
+						if (pixels[i]>=c) pixels[i] = c;
+				} else {
+					for (; i<end; i++)
+						if (pixels[i]>c) pixels[i] = c;
 				}
-				pixels[i++] = v2;
 			}
 		}
 	}
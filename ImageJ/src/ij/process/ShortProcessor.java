@@ -449,92 +449,146 @@ public class ShortProcessor extends ImageProcessor {
 		findMinAndMax();
 	}
 
+	/* Applies the operation to the pixels in the ROI, with a separate loop for
+		each of the simple operations. The other operations are evaluated
+		once for each of the 65536 possible pixel values if the ROI has more
+		pixels, and then applied as a lookup table. */
 	private void process(int op, double value) {
-		int v1, v2;
 		double range = getMax()-getMin();
 		//boolean resetMinMax = roiWidth==width && roiHeight==height && !(op==FILL);
 		int offset = cTable!=null&&cTable[0]==-32768f?32768:0; // signed images have 32768 offset
 		int min2 = (int)getMin() - offset;
 		int max2 = (int)getMax() - offset;
 		int fgColor2 = fgColor - offset;
-		
-		for (int y=roiY; y<(roiY+roiHeight); y++) {
-			int i = y * width + roiX;
-			for (int x=roiX; x<(roiX+roiWidth); x++) {
-				v1 = (pixels[i]&0xffff) - offset;
-				switch(op) {
-					case INVERT:
-						v2 = max2 - (v1 - min2);
-						//v2 = 65535 - (v1+offset);
-						break;
-					case FILL:
-						v2 = fgColor2;
-						break;
-					case ADD:
-						v2 = v1 + (int)value;
-						break;
-					case MULT:
-						v2 = (int)Math.round(v1*value);
-						break;
-					case AND:
-						v2 = v1 & (int)value;
-						break;
-					case OR:
-						v2 = v1 | (int)value;
-						break;
-					case XOR:
-						v2 = v1 ^ (int)value;
-						break;
-					case GAMMA:
-						if (range<=0.0 || v1==min2)
-							v2 = v1;
-						else					
-							v2 = (int)(Math.exp(value*Math.log((v1-min2)/range))*range+min2);
-						break;
-					case LOG:
-						if (v1<=0)
-							v2 = 0;
-						else 
-							v2 = (int)(Math.log(v1)*(max2/Math.log(max2)));
-						break;
-					case EXP:
-						v2 = (int)(Math.exp(v1*(Math.log(max2)/max2)));
-						break;
-					case SQR:
-						double d1 = v1;
-						v2 = (int)(d1*d1);
-						break;
-					case SQRT:
-						v2 = (int)Math.sqrt(v1);
-						break;
-					case ABS:
-						v2 = (int)Math.abs(v1);
-						break;
-					case MINIMUM:
-						if (v1<value)
-							v2 = (int)value;
-						else
-							v2 = v1;
-						break;
-					case MAXIMUM:
-						if (v1>value)
-							v2 = (int)value;
-						else
-							v2 = v1;
-						break;
-					 default:
-					 	v2 = v1;
+		short[] pixels = this.pixels;
+		int c = (int)value;
+		int v;
+		switch(op) {
+			case INVERT:
+				// (max2-((p-offset)-min2))+offset
+				int sum = max2 + min2 + 2*offset;
+				for (int y=roiY; y<(roiY+roiHeight); y++) {
+					for (int i=y*width+roiX, end=i+roiWidth; i<end; i++) {
+						v = sum - (pixels[i]&0xffff);
+						pixels[i] = (short)(v<0?0:(v>65535?65535:v));
+					}
+				}
+				break;
+			case FILL:
+				v = fgColor2 + offset;
+				short fill = (short)(v<0?0:(v>65535?65535:v));
+				for (int y=roiY; y<(roiY+roiHeight); y++) {
+					int i = y*width + roiX;
+					Arrays.fill(pixels, i, i+roiWidth, fill);
+				}
+				break;
+			case ADD:
+				for (int y=roiY; y<(roiY+roiHeight); y++) {
+					for (int i=y*width+roiX, end=i+roiWidth; i<end; i++) {
+						v = (pixels[i]&0xffff) + c;
+						pixels[i] = (short)(v<0?0:(v>65535?65535:v));
+					}
+				}
+				break;
+			case AND: case OR: case XOR:
+				for (int y=roiY; y<(roiY+roiHeight); y++) {
+					int i = y*width + roiX, end = i + roiWidth;
+					if (op==AND)
+						for (; i<end; i++) {
+							v = (((pixels[i]&0xffff)-offset) & c) + offset;
+							pixels[i] = (short)(v<0?0:(v>65535?65535:v));
+						}
+					else if (op==OR)
+						for (; i<end; i++) {
+							v = (((pixels[i]&0xffff)-offset) | c) + offset;
+							pixels[i] = (short)(v<0?0:(v>65535?65535:v));
+						}
+					else
+						for (; i<end; i++) {
+							v = (((pixels[i]&0xffff)-offset) ^ c) + offset;
+							pixels[i] = (short)(v<0?0:(v>65535?65535:v));
+						}
+				}
+				break;
+			case MINIMUM: case MAXIMUM:
+				// for integer v1, v1<value is v1<ceil(value) and v1>value is v1>floor(value)
+				if (Double.isNaN(value))
+					break;
+				int limit = op==MINIMUM?(int)Math.ceil(value):(int)Math.floor(value);
+				v = c + offset;
+				short replacement = (short)(v<0?0:(v>65535?65535:v));
+				for (int y=roiY; y<(roiY+roiHeight); y++) {
+					int i = y*width + roiX, end = i + roiWidth;
+					if (op==MINIMUM)
+						for (; i<end; i++) {
+							if ((pixels[i]&0xffff)-offset<limit)
+								pixels[i] = replacement;
+						}
+					else
+						for (; i<end; i++) {
+							if ((pixels[i]&0xffff)-offset>limit)
+								pixels[i] = replacement;
+						}
+				}
+				break;
+			case ABS:
+				for (int y=roiY; y<(roiY+roiHeight); y++) {
+					for (int i=y*width+roiX, end=i+roiWidth; i<end; i++) {
+						v = Math.abs((pixels[i]&0xffff)-offset) + offset;
+						pixels[i] = (short)(v>65535?65535:v);
+					}
+				}
+				break;
+			default:
+				if ((long)roiWidth*roiHeight>65536L) {
+					int[] lut = new int[65536];
+					for (int i=0; i<65536; i++) {
+						v = processValue(op, i-offset, value, min2, max2, range) + offset;
+						lut[i] = v<0?0:(v>65535?65535:v);
+					}
+					for (int y=roiY; y<(roiY+roiHeight); y++) {
+						for (int i=y*width+roiX, end=i+roiWidth; i<end; i++)
+							pixels[i] = (short)lut[pixels[i]&0xffff];
+					}
+					break;
+				}
+				for (int y=roiY; y<(roiY+roiHeight); y++) {
+					for (int i=y*width+roiX, end=i+roiWidth; i<end; i++) {
+						v = processValue(op, (pixels[i]&0xffff)-offset, value, min2, max2, range) + offset;
+						pixels[i] = (short)(v<0?0:(v>65535?65535:v));
+					}
 				}
-				v2 += offset;
-				if (v2 < 0)
-					v2 = 0;
-				if (v2 > 65535)
-					v2 = 65535;
-				pixels[i++] = (short)v2;
-			}
 		}
     }
 
+	/* Returns the result of the operation for the pixel value v1,
+		without the offset of signed images. */
+	private static int processValue(int op, int v1, double value, int min2, int max2, double range) {
+		switch(op) {
+			case MULT:
+				return (int)Math.round(v1*value);
+			case GAMMA:
+				if (range<=0.0 || v1==min2)
+					return v1;
+				else
+					return (int)(Math.exp(value*Math.log((v1-min2)/range))*range+min2);
+			case LOG:
+				if (v1<=0)
+					return 0;
+				else 
+					return (int)(Math.log(v1)*(max2/Math.log(max2)));
+			case EXP:
+				return (int)(Math.exp(v1*(Math.log(max2)/max2)));
+			case SQR:
+				double d1 = v1;
+				return (int)(d1*d1);
+			case SQRT:
+				return (int)Math.sqrt(v1);
+			default:
+				return v1;
+		}
+	}
+
 	public void invert() {
 		resetMinAndMax();
 		process(INVERT, 0.0);
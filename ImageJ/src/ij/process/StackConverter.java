@@ -6,7 +6,9 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.*;
 
-/** This class does stack type conversions. */
+/** This class does stack type conversions. Conversions between 8, 16 and
+	32 bit grayscale run on Prefs.getThreads() threads, and the images of the
+	original stack are released as they are converted. */
 public class StackConverter {
 	ImagePlus imp;
 	int type, nSlices, width, height;
@@ -49,21 +51,28 @@ public class StackConverter {
 	    int inc = nSlices/20;
 	    if (inc<1) inc = 1;
 	    LUT[] luts = imp.isComposite()?((CompositeImage)imp).getLuts():null;
-		for(int i=1; i<=nSlices; i++) {
-			label = stack1.getSliceLabel(1);
-			ip = stack1.getProcessor(1);
-			stack1.deleteSlice(1);
-			if (luts!=null) {
-				int index = (i-1)%luts.length;
-				min = luts[index].min;
-				max = luts[index].max;
-			}
-			ip.setMinAndMax(min, max);
-			boolean scale = ImageConverter.getDoScaling();
-			stack2.addSlice(label, ip.convertToByte(scale));
-			if ((i%inc)==0) {
-				IJ.showProgress((double)i/nSlices);
-				IJ.showStatus("Converting to 8-bits: "+i+"/"+nSlices);
+		double[][] ranges = getDisplayRanges(ip);
+		double[] mins = ranges[0];
+		double[] maxs = ranges[1];
+		if (type!=ImagePlus.GRAY8 && canConvertInParallel(stack1, mins, maxs))
+			stack2 = convertStack(stack1, 8, mins, maxs, ImageConverter.getDoScaling(), null, true);
+		else {
+			for(int i=1; i<=nSlices; i++) {
+				label = stack1.getSliceLabel(1);
+				ip = stack1.getProcessor(1);
+				stack1.deleteSlice(1);
+				if (luts!=null) {
+					int index = (i-1)%luts.length;
+					min = luts[index].min;
+					max = luts[index].max;
+				}
+				ip.setMinAndMax(min, max);
+				boolean scale = ImageConverter.getDoScaling();
+				stack2.addSlice(label, ip.convertToByte(scale));
+				if ((i%inc)==0) {
+					IJ.showProgress((double)i/nSlices);
+					IJ.showStatus("Converting to 8-bits: "+i+"/"+nSlices);
+				}
 			}
 		}
 		imp.setStack(null, stack2);
@@ -115,6 +124,11 @@ public class StackConverter {
 	    if (inc<1) inc = 1;
 	    boolean scale = type==ImagePlus.GRAY32 && ImageConverter.getDoScaling();
 	    ImageProcessor ip1, ip2;
+		if (canConvertInParallel(stack1, null, null)) {
+			double[][] ranges = getDisplayRanges(imp.getProcessor());
+			imp.setStack(null, convertStack(stack1, 16, ranges[0], ranges[1], scale, null, true));
+			return;
+		}
 		for(int i=1; i<=nSlices; i++) {
 			label = stack1.getSliceLabel(1);
 			ip1 = stack1.getProcessor(1);
@@ -143,6 +157,11 @@ public class StackConverter {
 	    if (inc<1) inc = 1;
 	    ImageProcessor ip1, ip2;
 	    Calibration cal = imp.getCalibration();
+		if (canConvertInParallel(stack1, null, null)) {
+			imp.setStack(null, convertStack(stack1, 32, null, null, false, cal.getCTable(), true));
+			imp.setCalibration(imp.getCalibration()); //update calibration
+			return;
+		}
 		for(int i=1; i<=nSlices; i++) {
 			label = stack1.getSliceLabel(1);
 			ip1 = stack1.getProcessor(1);
@@ -246,4 +265,203 @@ public class StackConverter {
 		imp.setStack(null, stack2);
 	}
 
+	/* Returns the display ranges used to scale the images, {mins, maxs}: one
+		per channel, from the LUTs, for composite images, and otherwise the
+		range of 'ip'. */
+	private double[][] getDisplayRanges(ImageProcessor ip) {
+		LUT[] luts = imp.isComposite()?((CompositeImage)imp).getLuts():null;
+		if (luts==null)
+			return new double[][] {{ip.getMin()}, {ip.getMax()}};
+		double[] mins = new double[luts.length];
+		double[] maxs = new double[luts.length];
+		for (int c=0; c<luts.length; c++) {
+			mins[c] = luts[c].min;
+			maxs[c] = luts[c].max;
+		}
+		return new double[][] {mins, maxs};
+	}
+
+	/* Returns true if the images of 'stack' can be converted by convertStack(): the
+		stack is not virtual, holds 8, 16 or 32 bit images, 8-bit images do not have a
+		custom LUT (which the conversion applies), and no display range is 0-0, which
+		ImageProcessor.setMinAndMax() replaces by the range of each image. */
+	boolean canConvertInParallel(ImageStack stack, double[] min, double[] max) {
+		if (stack.isVirtual())
+			return false;
+		Object pixels = stack.getPixels(1);
+		if (!(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[]))
+			return false;
+		ImageProcessor ip = imp.getProcessor();
+		if (ip instanceof ByteProcessor && !ip.isDefaultLut() && !ip.isColorLut() && !ip.isInvertedLut())
+			return false;
+		if (min!=null) {
+			for (int c=0; c<min.length; c++) {
+				if (min[c]==0.0 && max[c]==0.0)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/** Converts the 8, 16 or 32 bit images of 'stack' to 'bitDepth' (8, 16 or 32)
+		bits and returns them as a new stack, with the same labels and color model.
+		The images are converted on Prefs.getThreads() threads, each writing into a
+		new array, without creating ImageProcessors. With 'doScaling', min[c] to
+		max[c] is mapped to the range of the new type when narrowing, where c is
+		(n-1)%min.length for image n, so that all images of a channel are scaled
+		alike. 'cTable' is a calibration table applied when converting to 32 bits,
+		or null. If 'releaseSource' is true, the images of 'stack' are set to null
+		as they are converted, so that little more memory than the new stack is
+		needed. Virtual stacks are not supported.
+	*/
+	public static ImageStack convertStack(ImageStack stack, int bitDepth, double[] min, double[] max,
+	boolean doScaling, float[] cTable, boolean releaseSource) {
+		if (stack.isVirtual())
+			throw new IllegalArgumentException("Virtual stacks are not supported");
+		if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32)
+			throw new IllegalArgumentException("Unsupported bit depth: "+bitDepth);
+		if (min==null || max==null) {
+			min = new double[] {0.0};
+			max = new double[] {bitDepth==16?65535.0:255.0};
+			doScaling = false;
+		}
+		ParallelConversion conversion = new ParallelConversion(stack, bitDepth, min, max, doScaling, cTable, releaseSource);
+		conversion.convertAll();
+		ImageStack stack2 = new ImageStack(stack.getWidth(), stack.getHeight());
+		stack2.setColorModel(stack.getColorModel());
+		for (int i=0; i<conversion.pixels.length; i++)
+			stack2.addSlice(stack.getSliceLabel(i+1), conversion.pixels[i]);
+		if (stack2.getSize()>0)
+			stack2.update(stack2.getProcessor(1));  // min and max of the first image, as when adding processors
+		return stack2;
+	}
+
+	/* Converts the images of a stack on several threads; the calling thread
+		converts images too, and shows the progress. */
+	private static class ParallelConversion implements Runnable {
+		private ImageStack stack;
+		private int bitDepth;
+		private double[] min, max;
+		private boolean doScaling;
+		private float[] cTable;
+		private boolean releaseSource;
+		private byte[][] tables;     // 16 to 8 bit conversion tables, by channel
+		private int next;            // index of the next image to convert
+		private Throwable error;
+		Object[] pixels;
+
+		ParallelConversion(ImageStack stack, int bitDepth, double[] min, double[] max,
+		boolean doScaling, float[] cTable, boolean releaseSource) {
+			this.stack = stack;
+			this.bitDepth = bitDepth;
+			this.min = min;
+			this.max = max;
+			this.doScaling = doScaling;
+			this.cTable = cTable;
+			this.releaseSource = releaseSource;
+			pixels = new Object[stack.getSize()];
+			if (bitDepth==8 && stack.getPixels(1) instanceof short[]) {
+				tables = new byte[min.length][];
+				for (int c=0; c<min.length; c++) {
+					// as ShortProcessor.setMinAndMax() and TypeConverter.convertShortToByte()
+					int min16 = (int)Math.max(min[c], 0.0);
+					int max16 = (int)Math.min(max[c], 65535.0);
+					tables[c] = TypeConverter.getShortToByteTable(min16, max16, doScaling);
+				}
+			}
+		}
+
+		void convertAll() {
+			int nThreads = Math.min(Prefs.getThreads(), pixels.length);
+			Thread[] threads = new Thread[nThreads-1];
+			for (int t=0; t<threads.length; t++) {
+				threads[t] = new Thread(this, "StackConverter-"+t);
+				threads[t].start();
+			}
+			convert(true);
+			boolean interrupted = false;
+			for (int t=0; t<threads.length; t++) {
+				while (threads[t].isAlive()) {
+					try {
+						threads[t].join();
+					} catch (InterruptedException e) {
+						// not all images are converted; stop the other threads
+						interrupted = true;
+						setError(new RuntimeException("Stack conversion interrupted"));
+					}
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			IJ.showProgress(1.0);
+			if (error instanceof RuntimeException)
+				throw (RuntimeException)error;
+			if (error instanceof Error)
+				throw (Error)error;
+		}
+
+		public void run() {
+			convert(false);
+		}
+
+		private synchronized int nextImage() {
+			return error==null && next<pixels.length?next++:-1;
+		}
+
+		private synchronized void setError(Throwable e) {
+			if (error==null)
+				error = e;
+		}
+
+		private void convert(boolean showProgress) {
+			int n = pixels.length;
+			int size = stack.getWidth()*stack.getHeight();
+			int inc = Math.max(1, n/20);
+			try {
+				for (int i=nextImage(); i>=0; i=nextImage()) {
+					Object source = stack.getPixels(i+1);
+					int c = i%min.length;
+					Object pixels2;
+					if (bitDepth==8) {
+						byte[] pixels8 = new byte[size];
+						if (source instanceof short[])
+							TypeConverter.convertShortToByte((short[])source, pixels8, tables[c]);
+						else if (source instanceof float[])
+							TypeConverter.convertFloatToByte((float[])source, pixels8, min[c], max[c], doScaling);
+						else
+							System.arraycopy(source, 0, pixels8, 0, size);
+						pixels2 = pixels8;
+					} else if (bitDepth==16) {
+						short[] pixels16 = new short[size];
+						if (source instanceof byte[])
+							TypeConverter.convertByteToShort((byte[])source, pixels16);
+						else if (source instanceof float[])
+							TypeConverter.convertFloatToShort((float[])source, pixels16, min[c], max[c], doScaling);
+						else
+							System.arraycopy(source, 0, pixels16, 0, size);
+						pixels2 = pixels16;
+					} else {
+						float[] pixels32 = new float[size];
+						if (source instanceof byte[])
+							TypeConverter.convertByteToFloat((byte[])source, pixels32, cTable);
+						else if (source instanceof short[])
+							TypeConverter.convertShortToFloat((short[])source, pixels32, cTable);
+						else
+							System.arraycopy(source, 0, pixels32, 0, size);
+						pixels2 = pixels32;
+					}
+					pixels[i] = pixels2;
+					if (releaseSource)
+						stack.setPixels(null, i+1);
+					if (showProgress && (i%inc)==0) {
+						IJ.showProgress((double)i/n);
+						IJ.showStatus("Converting to "+bitDepth+"-bits: "+(i+1)+"/"+n);
+					}
+				}
+			} catch (Throwable e) {
+				setError(e);
+			}
+		}
+	}
+
 }
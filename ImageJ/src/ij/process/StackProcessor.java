@@ -1,10 +1,18 @@
 package ij.process;
 import java.awt.*;
+import java.io.File;
 import ij.*;
 import ij.process.*;
+import ij.io.FileSaver;
 import ij.macro.Interpreter;
+import ij.plugin.filter.PlugInFilterRunner;
 
-/** This class processes stacks. */
+/** This class processes stacks. The slices are processed in parallel, in
+	ranges that each reuse one ImageProcessor, on the threads shared with
+	PlugInFilterRunner. Virtual stacks are read one slice at a time; if the
+	result of resize(), crop(), rotateRight() or rotateLeft() of a virtual
+	stack would not fit in memory, it is written to a virtual stack in a
+	temporary folder. */
 public class StackProcessor {
     private ImageStack stack;
     private ImageProcessor ip;
@@ -12,6 +20,13 @@ public class StackProcessor {
 	double xScale, yScale;
 	int[] table;
 	double fillValue;
+	int newWidth, newHeight;
+	boolean averageWhenDownsizing;
+	Rectangle cropRect;
+	private int nDone;  // number of slices processed, for the progress bar
+
+	/** Ranges of slices per thread, so that no thread runs out of work early */
+	private static final int RANGES_PER_THREAD = 4;
 	    
     /* Constructs a StackProcessor from a stack. */
     //public StackProcessor(ImageStack stack) {
@@ -30,33 +45,56 @@ public class StackProcessor {
    }
 	
 	static final int FLIPH=0, FLIPV=1, SCALE=2, INVERT=3, APPLY_TABLE=4, SCALE_WITH_FILL=5;
+	static final int RESIZE=6, CROP=7, ROTATE_RIGHT=8, ROTATE_LEFT=9;
 	
-	void process(int command) {
+	void process(final int command) {
 	    String s = "";
- 	   	ImageProcessor ip2 = stack.getProcessor(1);
     	switch (command) {
     		case FLIPH: case FLIPV: s="Flip: "; break;
-    		case SCALE: s="Scale: "; break;
-    		case SCALE_WITH_FILL: s="Scale: "; ip2.setBackgroundValue(fillValue); break;
+    		case SCALE: case SCALE_WITH_FILL: s="Scale: "; break;
     		case INVERT: s="Invert: "; break;
     		case APPLY_TABLE: s="Apply: "; break;
     	}
- 	   	ip2.setRoi(this.ip.getRoi());
-	    ip2.setInterpolate(this.ip.getInterpolate());
-	    for (int i=1; i<=nSlices; i++) {
-    		showStatus(s,i,nSlices);
-	    	ip2.setPixels(stack.getPixels(i));
-	    	if (nSlices==1 && i==1 && command==SCALE)
-	    		ip2.snapshot();
-	    	switch (command) {
-	    		case FLIPH: ip2.flipHorizontal(); break;
-	    		case FLIPV: ip2.flipVertical(); break;
-	    		case SCALE: case SCALE_WITH_FILL: ip2.scale(xScale, yScale); break;
-	    		case INVERT: ip2.invert(); break;
-	    		case APPLY_TABLE: ip2.applyTable(table); break;
-	    	}
-			IJ.showProgress((double)i/nSlices);
-	    }
+    	final String status = s;
+    	final Rectangle roi = this.ip.getRoi();
+    	final boolean interpolate = this.ip.getInterpolate();
+    	// invert() of 32-bit images uses the range of the first slice for all slices
+    	double min=0.0, max=0.0;
+    	final boolean setMinAndMax = command==INVERT && this.ip instanceof FloatProcessor;
+    	if (setMinAndMax) {
+    		ImageProcessor first = getProcessor(1);
+    		min = first.getMin();
+    		max = first.getMax();
+    	}
+    	final double min1=min, max1=max;
+    	nDone = 0;
+		processInParallel(new SliceRange() {
+			public void run(int first, int last) {
+				ImageProcessor ip2 = null;
+				for (int i=first+1; i<=last; i++) {
+					if (ip2==null) {
+						ip2 = getProcessor(i);
+						if (command==SCALE_WITH_FILL)
+							ip2.setBackgroundValue(fillValue);
+						ip2.setRoi(roi);
+						ip2.setInterpolate(interpolate);
+						if (setMinAndMax)
+							ip2.setMinAndMax(min1, max1);
+					} else
+						ip2.setPixels(getPixels(i));
+					if (nSlices==1 && i==1 && command==SCALE)
+						ip2.snapshot();
+					switch (command) {
+						case FLIPH: ip2.flipHorizontal(); break;
+						case FLIPV: ip2.flipVertical(); break;
+						case SCALE: case SCALE_WITH_FILL: ip2.scale(xScale, yScale); break;
+						case INVERT: ip2.invert(); break;
+						case APPLY_TABLE: ip2.applyTable(table); break;
+					}
+					sliceDone(status, true);
+				}
+			}
+		});
 		IJ.showProgress(1.0);
 	}
 
@@ -98,67 +136,204 @@ public class StackProcessor {
 	}
 
 	public ImageStack resize(int newWidth, int newHeight, boolean averageWhenDownsizing) {
-	    ImageStack stack2 = new ImageStack(newWidth, newHeight);
- 		ImageProcessor ip2;
-		try {
-	    	for (int i=1; i<=nSlices; i++) {
-    			showStatus("Resize: ",i,nSlices);
-	    		ip.setPixels(stack.getPixels(1));
-	    		String label = stack.getSliceLabel(1);
-	    		stack.deleteSlice(1);
-				ip2 = ip.resize(newWidth, newHeight, averageWhenDownsizing);
-				if (ip2!=null)
-					stack2.addSlice(label, ip2);
-				IJ.showProgress((double)i/nSlices);
-	    	}
-			IJ.showProgress(1.0);
-		} catch(OutOfMemoryError o) {
-			while(stack.getSize()>1)
-				stack.deleteLastSlice();
-			IJ.outOfMemory("StackProcessor.resize");
-			IJ.showProgress(1.0);
-		}
-		return stack2;
+		this.newWidth = newWidth;
+		this.newHeight = newHeight;
+		this.averageWhenDownsizing = averageWhenDownsizing;
+		return createStack(RESIZE, newWidth, newHeight, "Resize: ", true);
 	}
 
 	/** Crops the stack to the specified rectangle. */
 	public ImageStack crop(int x, int y, int width, int height) {
-	    ImageStack stack2 = new ImageStack(width, height);
- 		ImageProcessor ip2;
-		for (int i=1; i<=nSlices; i++) {
-			ImageProcessor ip1 = stack.getProcessor(1);
-			ip1.setRoi(x, y, width, height);
-			String label = stack.getSliceLabel(1);
-			stack.deleteSlice(1);
-			ip2 = ip1.crop();
-			stack2.addSlice(label, ip2);
-			IJ.showProgress((double)i/nSlices);
-		}
-		IJ.showProgress(1.0);
-		return stack2;
+		cropRect = new Rectangle(x, y, width, height);
+		return createStack(CROP, width, height, null, true);
 	}
 
 	ImageStack rotate90Degrees(boolean clockwise) {
- 	    ImageStack stack2 = new ImageStack(stack.getHeight(), stack.getWidth());
- 		ImageProcessor ip2;
-    	for (int i=1; i<=nSlices; i++) {
-    		showStatus("Rotate: ",i,nSlices);
-    		ip.setPixels(stack.getPixels(1));
-    		String label = stack.getSliceLabel(1);
-    		stack.deleteSlice(1);
-			if (clockwise)
-				ip2 = ip.rotateRight();
-			else
-				ip2 = ip.rotateLeft();
-			if (ip2!=null)
-				stack2.addSlice(label, ip2);
-			if (!Interpreter.isBatchMode())
-				IJ.showProgress((double)i/nSlices);
-    	}
-		if (!Interpreter.isBatchMode())
+		boolean showProgress = !Interpreter.isBatchMode();
+		return createStack(clockwise?ROTATE_RIGHT:ROTATE_LEFT, stack.getHeight(), stack.getWidth(), "Rotate: ", showProgress);
+	}
+
+	/* Creates a new stack from the results of 'command' for each slice. The
+		slices of the original stack are released as they are processed, and
+		the original stack is emptied, to reduce memory requirements. */
+	private ImageStack createStack(final int command, int width2, int height2, final String status, final boolean showProgress) {
+		final Object[] pixels2 = new Object[nSlices];
+		final String[] labels = new String[nSlices];
+		final ImageProcessor[] firstResult = new ImageProcessor[1];
+		final String dir = isTooLarge(width2, height2)?makeTempDirectory():null;
+		final String[] names = new String[nSlices];
+		final int digits = (""+nSlices).length();
+		nDone = 0;
+		boolean outOfMemory = false;
+		try {
+			processInParallel(new SliceRange() {
+				public void run(int first, int last) {
+					ImageProcessor ip1 = null;  // reused for all slices of the range
+					for (int i=first; i<last; i++) {
+						if (ip1==null)
+							ip1 = newProcessor(i+1);
+						else
+							ip1.setPixels(getPixels(i+1));
+						labels[i] = getSliceLabel(i+1);
+						ImageProcessor ip2;
+						switch (command) {
+							case RESIZE: ip2 = ip1.resize(newWidth, newHeight, averageWhenDownsizing); break;
+							case CROP: ip1.setRoi(cropRect); ip2 = ip1.crop(); break;
+							case ROTATE_RIGHT: ip2 = ip1.rotateRight(); break;
+							default: ip2 = ip1.rotateLeft(); break;
+						}
+						if (!stack.isVirtual())
+							stack.setPixels(null, i+1);
+						if (i==0)
+							firstResult[0] = ip2;
+						if (ip2!=null && dir!=null) {
+							names[i] = "slice"+IJ.pad(i+1, digits)+".tif";
+							saveSlice(ip2, labels[i], dir+names[i]);
+						} else if (ip2!=null)
+							pixels2[i] = ip2.getPixels();
+						sliceDone(status, showProgress);
+					}
+				}
+			});
+		} catch(OutOfMemoryError e) {
+			outOfMemory = true;
+		}
+		while (stack.getSize()>0)
+			stack.deleteLastSlice();
+		if (outOfMemory)
+			IJ.outOfMemory("StackProcessor");
+		if (showProgress)
 			IJ.showProgress(1.0);
+		ImageProcessor ip2 = firstResult[0];
+		if (dir!=null) {
+			VirtualStack stack2 = new VirtualStack(width2, height2, ip2!=null?ip2.getColorModel():null, dir);
+			for (int i=0; i<nSlices && names[i]!=null; i++)
+				stack2.addSlice(names[i]);
+			if (ip2!=null)
+				stack2.setBitDepth(getBitDepth(ip2));
+			return stack2;
+		}
+		ImageStack stack2 = new ImageStack(width2, height2);
+		for (int i=0; i<nSlices && pixels2[i]!=null; i++) {
+			if (i==0)
+				stack2.addSlice(labels[i], ip2);  // sets the color model, min and max
+			else
+				stack2.addSlice(labels[i], pixels2[i]);
+		}
 		return stack2;
 	}
+
+	/* Returns true if the stack is virtual and a width2 x height2 stack with
+		the same number of slices would not fit in the available memory. */
+	private boolean isTooLarge(int width2, int height2) {
+		if (!stack.isVirtual() || IJ.maxMemory()<=0L)
+			return false;
+		int bitDepth = ((VirtualStack)stack).getBitDepth();
+		if (bitDepth==0)
+			bitDepth = getBitDepth(getProcessor(1));
+		int bytesPerPixel = bitDepth==24?4:bitDepth/8;
+		long size = (long)width2*height2*bytesPerPixel*nSlices;
+		long available = IJ.maxMemory()-IJ.currentMemory();
+		return size>available*3/4;
+	}
+
+	private static int getBitDepth(ImageProcessor ip) {
+		if (ip instanceof ByteProcessor) return 8;
+		else if (ip instanceof ShortProcessor) return 16;
+		else if (ip instanceof ColorProcessor) return 24;
+		else return 32;
+	}
+
+	/* Creates a folder for the slices of a virtual stack in the temporary
+		folder. The folder and the slices are deleted when ImageJ exits. */
+	private String makeTempDirectory() {
+		File dir = new File(IJ.getDirectory("temp"), "StackProcessor-"+System.currentTimeMillis());
+		if (!dir.mkdirs())
+			throw new IllegalArgumentException("Unable to create "+dir);
+		dir.deleteOnExit();
+		return dir.getPath()+File.separator;
+	}
+
+	private static void saveSlice(ImageProcessor ip, String label, String path) {
+		ImagePlus imp = new ImagePlus(label!=null?label:"", ip);
+		if (label!=null)
+			imp.setProperty("Info", label);
+		new File(path).deleteOnExit();
+		if (!new FileSaver(imp).saveAsTiff(path))
+			throw new IllegalArgumentException("Error saving "+path);
+	}
+
+	/* Runs 'range' for ranges of slices in parallel. */
+	private void processInParallel(final SliceRange range) {
+		int threads = Prefs.getThreads();
+		int nRanges = Math.min(nSlices, threads*RANGES_PER_THREAD);
+		if (threads<=1 || nRanges<=1) {
+			range.run(0, nSlices);
+			return;
+		}
+		Runnable[] tasks = new Runnable[nRanges];
+		for (int t=0; t<nRanges; t++) {
+			final int first = (int)((long)nSlices*t/nRanges);
+			final int last = (int)((long)nSlices*(t+1)/nRanges);
+			tasks[t] = new Runnable() {
+				public void run() {
+					range.run(first, last);
+				}
+			};
+		}
+		PlugInFilterRunner.invokeAll(tasks);
+	}
+
+	/* A range of slices, 'first' (inclusive) to 'last' (exclusive), 0-based. */
+	private interface SliceRange {
+		void run(int first, int last);
+	}
+
+	/* Returns a processor for slice 'n', used for the following slices of
+		a range: a copy of 'ip', if there is one, with its settings. */
+	private ImageProcessor newProcessor(int n) {
+		if (ip==null)
+			return getProcessor(n);
+		ImageProcessor ip2 = (ImageProcessor)ip.clone();
+		ip2.setSnapshotPixels(null);  // not shared with the other threads
+		ip2.setPixels(getPixels(n));
+		return ip2;
+	}
+
+	// Virtual stacks read slices from disk, which they may not support on
+	// several threads at once.
+
+	private ImageProcessor getProcessor(int n) {
+		if (!stack.isVirtual())
+			return stack.getProcessor(n);
+		synchronized (stack) {
+			return stack.getProcessor(n);
+		}
+	}
+
+	private Object getPixels(int n) {
+		if (!stack.isVirtual())
+			return stack.getPixels(n);
+		synchronized (stack) {
+			return stack.getPixels(n);
+		}
+	}
+
+	private String getSliceLabel(int n) {
+		if (!stack.isVirtual())
+			return stack.getSliceLabel(n);
+		synchronized (stack) {
+			return stack.getSliceLabel(n);
+		}
+	}
+
+	private synchronized void sliceDone(String status, boolean showProgress) {
+		nDone++;
+		if (status!=null)
+			showStatus(status, nDone, nSlices);
+		if (showProgress)
+			IJ.showProgress((double)nDone/nSlices);
+	}
 	
 	public ImageStack rotateRight() {
 		return rotate90Degrees(true);
@@ -176,19 +351,33 @@ public class StackProcessor {
  		copyBits(null, src, xloc, yloc, mode);
  	}
 
- 	private void copyBits(ImageProcessor srcIp, ImageStack srcStack, int xloc, int yloc, int mode) {
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-	    boolean stackSource = srcIp==null;
-	    for (int i=1; i<=nSlices; i++) {
-	    	if (stackSource)
-	    		srcIp = srcStack.getProcessor(i);
- 	    	ImageProcessor dstIp = stack.getProcessor(i);
-	    	dstIp.copyBits(srcIp, xloc, yloc, mode);
-			if ((i%inc) == 0) IJ.showProgress((double)i/nSlices);
-	    }
+ 	private void copyBits(final ImageProcessor srcIp, final ImageStack srcStack, final int xloc, final int yloc, final int mode) {
+	    final int inc = Math.max(1, nSlices/20);
+	    nDone = 0;
+		processInParallel(new SliceRange() {
+			public void run(int first, int last) {
+				ImageProcessor dstIp = null;
+				for (int i=first+1; i<=last; i++) {
+					ImageProcessor src = srcIp;
+					if (srcStack!=null)
+						src = srcStack.isVirtual()?getProcessor(srcStack, i):srcStack.getProcessor(i);
+					if (dstIp==null)
+						dstIp = getProcessor(i);
+					else
+						dstIp.setPixels(getPixels(i));
+					dstIp.copyBits(src, xloc, yloc, mode);
+					sliceDone(null, (i%inc)==0);
+				}
+			}
+		});
 		IJ.showProgress(1.0);
  	}
+
+	private static ImageProcessor getProcessor(ImageStack stack, int n) {
+		synchronized (stack) {
+			return stack.getProcessor(n);
+		}
+	}
  	
  	void showStatus(String s, int n, int total) {
  		IJ.showStatus(s+n+"/"+total);
@@ -5,7 +5,9 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.*;
 
-/** This class converts an ImageProcessor to another data type. */
+/** This class converts an ImageProcessor to another data type. The static
+	methods convert pixel arrays into existing arrays; StackConverter uses
+	them to convert whole stacks in parallel. */
 public class TypeConverter {
 
 	private static final int BYTE=0, SHORT=1, FLOAT=2, RGB=3;
@@ -50,25 +52,70 @@ public class TypeConverter {
 		int size = width*height;
 		short[] pixels16 = (short[])ip.getPixels();
 		byte[] pixels8 = new byte[size];
-		if (doScaling) {
-			int value, min=(int)ip.getMin(), max=(int)ip.getMax();
+		int min=(int)ip.getMin(), max=(int)ip.getMax();
+		if (doScaling && size<=65536) { // smaller than the table used for larger images
 			double scale = 256.0/(max-min+1);
 			for (int i=0; i<size; i++) {
-				value = (pixels16[i]&0xffff)-min;
+				int value = (pixels16[i]&0xffff)-min;
 				if (value<0) value = 0;
 				value = (int)(value*scale+0.5);
 				if (value>255) value = 255;
 				pixels8[i] = (byte)value;
 			}
-			return new ByteProcessor(width, height, pixels8, ip.getCurrentColorModel());
-		} else {
+		} else
+			convertShortToByte(pixels16, pixels8, getShortToByteTable(min, max, doScaling));
+		return new ByteProcessor(width, height, pixels8, doScaling?ip.getCurrentColorModel():ip.getColorModel());
+	}
+
+	/** Returns the table, indexed by unsigned 16-bit value, that convertShortToByte()
+		uses. With scaling, 'min' to 'max' is mapped to 0-255; otherwise values larger
+		than 255 become 255. */
+	public static byte[] getShortToByteTable(int min, int max, boolean doScaling) {
+		byte[] table = new byte[65536];
+		double scale = 256.0/(max-min+1);
+		for (int i=0; i<65536; i++) {
 			int value;
+			if (doScaling) {
+				value = i-min;
+				if (value<0) value = 0;
+				value = (int)(value*scale+0.5);
+			} else
+				value = i;
+			if (value>255) value = 255;
+			table[i] = (byte)value;
+		}
+		return table;
+	}
+
+	/** Converts 16-bit pixels to 8 bits using a table returned by
+		getShortToByteTable(), writing the results to 'pixels8'. */
+	public static void convertShortToByte(short[] pixels16, byte[] pixels8, byte[] table) {
+		for (int i=0; i<pixels16.length; i++)
+			pixels8[i] = table[pixels16[i]&0xffff];
+	}
+
+	/** Converts float pixels to 8 bits, writing the results to 'pixels8'. With
+		scaling, 'min' to 'max' is mapped to 0-255, as when the image is displayed;
+		otherwise values are rounded and limited to 0-255. */
+	public static void convertFloatToByte(float[] pixels32, byte[] pixels8, double min, double max, boolean doScaling) {
+		int size = pixels32.length;
+		if (doScaling) {
+			float min2=(float)min, max2=(float)max;
+			float scale = 255f/(max2-min2);
 			for (int i=0; i<size; i++) {
-				value = pixels16[i]&0xffff;
-				if (value>255) value = 255;
+				float value = pixels32[i]-min2;
+				if (value<0f) value = 0f;
+				int ivalue = (int)((value*scale)+0.5f);
+				if (ivalue>255) ivalue = 255;
+				pixels8[i] = (byte)ivalue;
+			}
+		} else {
+			for (int i=0; i<size; i++) {
+				float value = pixels32[i] + 0.5f;
+				if (value<0f) value = 0f;
+				if (value>255f) value = 255f;
 				pixels8[i] = (byte)value;
 			}
-			return new ByteProcessor(width, height, pixels8, ip.getColorModel());
 		}
 	}
 
@@ -141,24 +188,35 @@ public class TypeConverter {
 		}
 		byte[] pixels8 = (byte[])ip.getPixels();
 		short[] pixels16 = new short[width * height];
-		for (int i=0,j=0; i<width*height; i++)
-			pixels16[i] = (short)(pixels8[i]&0xff);
+		convertByteToShort(pixels8, pixels16);
 	    return new ShortProcessor(width, height, pixels16, ip.getColorModel());
 	}
 
+	/** Copies 8-bit pixels to 'pixels16'. */
+	public static void convertByteToShort(byte[] pixels8, short[] pixels16) {
+		for (int i=0; i<pixels8.length; i++)
+			pixels16[i] = (short)(pixels8[i]&0xff);
+	}
+
 	/** Converts a FloatProcessor to a ShortProcessor. */
 	ShortProcessor convertFloatToShort() {
 		float[] pixels32 = (float[])ip.getPixels();
 		short[] pixels16 = new short[width*height];
-		double min = ip.getMin();
-		double max = ip.getMax();
+		convertFloatToShort(pixels32, pixels16, ip.getMin(), ip.getMax(), doScaling);
+	    return new ShortProcessor(width, height, pixels16, ip.getColorModel());
+	}
+
+	/** Converts float pixels to 16 bits, writing the results to 'pixels16'. With
+		scaling, 'min' to 'max' is mapped to 0-65535; otherwise values are rounded
+		and limited to 0-65535. */
+	public static void convertFloatToShort(float[] pixels32, short[] pixels16, double min, double max, boolean doScaling) {
 		double scale;
 		if ((max-min)==0.0)
 			scale = 1.0;
 		else
 			scale = 65535.0/(max-min);
 		double value;
-		for (int i=0,j=0; i<width*height; i++) {
+		for (int i=0; i<pixels32.length; i++) {
 			if (doScaling)
 				value = (pixels32[i]-min)*scale;
 			else
@@ -167,7 +225,6 @@ public class TypeConverter {
 			if (value>65535.0) value = 65535.0;
 			pixels16[i] = (short)(value+0.5);
 		}
-	    return new ShortProcessor(width, height, pixels16, ip.getColorModel());
 	}
 
 	/** Converts processor to a FloatProcessor. */
@@ -200,16 +257,21 @@ public class TypeConverter {
 		}
 		byte[] pixels8 = (byte[])ip.getPixels();
 		float[] pixels32 = new float[width*height];
-		int value;
+		convertByteToFloat(pixels8, pixels32, cTable);
+	    ColorModel cm = ip.getColorModel();
+	    return new FloatProcessor(width, height, pixels32, cm);
+	}
+
+	/** Converts 8-bit pixels to float, writing the results to 'pixels32'.
+		Applies the calibration table 'cTable' if it is not null. */
+	public static void convertByteToFloat(byte[] pixels8, float[] pixels32, float[] cTable) {
 		if (cTable!=null && cTable.length==256) {
-			for (int i=0; i<width*height; i++)
+			for (int i=0; i<pixels8.length; i++)
 				pixels32[i] = cTable[pixels8[i]&255];
 		} else {
-			for (int i=0; i<width*height; i++)
+			for (int i=0; i<pixels8.length; i++)
 				pixels32[i] = pixels8[i]&255;
 		}
-	    ColorModel cm = ip.getColorModel();
-	    return new FloatProcessor(width, height, pixels32, cm);
 	}
 
 	/** Converts a ShortProcessor to a FloatProcessor. Applies a
@@ -219,15 +281,20 @@ public class TypeConverter {
 	FloatProcessor convertShortToFloat(float[] cTable) {
 		short[] pixels16 = (short[])ip.getPixels();
 		float[] pixels32 = new float[width*height];
-		int value;
+		convertShortToFloat(pixels16, pixels32, cTable);
+	    ColorModel cm = ip.getColorModel();
+	    return new FloatProcessor(width, height, pixels32, cm);
+	}
+
+	/** Converts 16-bit pixels to float, writing the results to 'pixels32'.
+		Applies the calibration table 'cTable' if it is not null. */
+	public static void convertShortToFloat(short[] pixels16, float[] pixels32, float[] cTable) {
 		if (cTable!=null && cTable.length==65536)
-			for (int i=0; i<width*height; i++)
+			for (int i=0; i<pixels16.length; i++)
 				pixels32[i] = cTable[pixels16[i]&0xffff];
 		else
-			for (int i=0; i<width*height; i++)
+			for (int i=0; i<pixels16.length; i++)
 				pixels32[i] = pixels16[i]&0xffff;
-	    ColorModel cm = ip.getColorModel();
-	    return new FloatProcessor(width, height, pixels32, cm);
 	}
 	
 	/** Converts processor to a ColorProcessor. */
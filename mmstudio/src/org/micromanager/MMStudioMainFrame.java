@@ -143,6 +143,7 @@ import org.micromanager.acquisition.LiveModeTimer;
 import org.micromanager.acquisition.MMAcquisition;
 import org.micromanager.acquisition.MetadataPanel;
 import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
+import org.micromanager.acquisition.TaggedImageStorageMemMapped;
 import org.micromanager.acquisition.VirtualAcquisitionDisplay;
 import org.micromanager.utils.ImageFocusListener;
 import org.micromanager.api.Pipeline;
@@ -3779,7 +3780,13 @@ public class MMStudioMainFrame extends JFrame implements DeviceControlGUI, Scrip
 
    public void openAcquisition(String name, String rootDir, boolean show) throws MMScriptException {
       //acqMgr_.openAcquisition(name, rootDir, show);
-      TaggedImageStorage imageFileManager = new TaggedImageStorageDiskDefault((new File(rootDir, name)).getAbsolutePath());
+      String dir = (new File(rootDir, name)).getAbsolutePath();
+      TaggedImageStorage imageFileManager;
+      if (TaggedImageStorageMemMapped.isDataSet(dir)) {
+         imageFileManager = new TaggedImageStorageMemMapped(dir);
+      } else {
+         imageFileManager = new TaggedImageStorageDiskDefault(dir);
+      }
       MMImageCache cache = new MMImageCache(imageFileManager);
       VirtualAcquisitionDisplay display = new VirtualAcquisitionDisplay(cache, (AcquisitionEngine) null);
       display.show();
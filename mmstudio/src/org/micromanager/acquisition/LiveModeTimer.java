@@ -4,210 +4,303 @@
  */
 package org.micromanager.acquisition;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.micromanager.MMStudioMainFrame;
+import org.micromanager.utils.ImageMetadata;
+import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.ReportingUtils;
 
 /**
+ * Runs live mode. A dedicated grab thread wakes up once per display interval,
+ * takes the newest image (per camera channel) from the core's circular
+ * buffer, tags it and computes its histogram. The images are then put in the
+ * live acquisition on the event dispatch thread, which also repaints; if the
+ * previous repaint is still pending, the grab thread skips that interval.
  *
  * @author Henry
  */
-public class LiveModeTimer extends javax.swing.Timer {
+public class LiveModeTimer {
       private static final String CCHANNELINDEX = "CameraChannelIndex";
       private static final String ACQ_NAME = MMStudioMainFrame.SIMPLE_ACQ;
+      // How long the grab thread waits for the first image.
+      private static final long FIRST_IMAGE_POLL_MS = 10;
 
       private VirtualAcquisitionDisplay win_;
       private CMMCore core_;
       private MMStudioMainFrame gui_;
-      private long multiChannelCameraNrCh_; 
+      private long multiChannelCameraNrCh_;
+      private final int minInterval_;
+      private volatile long displayIntervalMs_;
+      private volatile Thread grabThread_;
+      private volatile boolean paintPending_ = false;
 
+      // Statistics; the counts are written by one thread each.
+      private volatile long framesDisplayed_ = 0;
+      private volatile long framesSkipped_ = 0;
+      private volatile double displayedFps_ = 0;
+      // Written on the EDT only.
+      private long fpsWindowStart_;
+      private long fpsWindowCount_;
+
+      /**
+       * @param delay shortest time between two displayed frames, in ms
+       */
       public LiveModeTimer(int delay) {
-         super(delay, null);
+         minInterval_ = delay;
+         displayIntervalMs_ = delay;
          gui_ = MMStudioMainFrame.getInstance();
          core_ = gui_.getCore();
       }
 
       private void setInterval() {
-         double interval = 33;
+         double interval = minInterval_;
          try {
-            interval = Math.max(core_.getExposure(), 33);
+            interval = Math.max(core_.getExposure(), minInterval_);
          } catch (Exception e) {
             ReportingUtils.logError(e);
          }
-         this.setDelay((int) interval);
-      }
-      
-     private void setType() {
-      if (!super.isRunning()) {
-         ActionListener[] listeners = super.getActionListeners();
-         for (ActionListener a : listeners)
-            this.removeActionListener(a);
-         
-         multiChannelCameraNrCh_ = core_.getNumberOfCameraChannels();
-         if ( multiChannelCameraNrCh_== 1)       
-            this.addActionListener(singleCameraLiveAction());
-          else 
-            this.addActionListener(multiCamLiveAction());          
-      }
-   }
-
-      @Override
+         displayIntervalMs_ = (long) interval;
+      }
+
+      public boolean isRunning() {
+         return grabThread_ != null;
+      }
+
       public void start() {
          try {
-            win_ = gui_.getSimpleDisplay();   
-            setType();
+            win_ = gui_.getSimpleDisplay();
+            multiChannelCameraNrCh_ = core_.getNumberOfCameraChannels();
             setInterval();
+            framesDisplayed_ = 0;
+            framesSkipped_ = 0;
+            displayedFps_ = 0;
+            fpsWindowStart_ = System.nanoTime();
+            fpsWindowCount_ = 0;
+            paintPending_ = false;
             core_.startContinuousSequenceAcquisition(0);
-            
-            //Add first image here so initial autoscale works correctly
-            while(core_.getRemainingImageCount() == 0) {}  
-            TaggedImage ti = core_.getLastTaggedImage();
-            addTags(ti, multiChannelCameraNrCh_ > 1 ? ti.tags.getInt(
-                    core_.getCameraDevice() + "-" + CCHANNELINDEX) :0);
-            if (multiChannelCameraNrCh_ <= 1)
-               gui_.addImage(ACQ_NAME, ti, true, true);
-            
-            // Add another image if multicamera
-            if (multiChannelCameraNrCh_ > 1) {
-               String camera = core_.getCameraDevice();
-               int channel = ti.tags.getInt(camera + "-" + CCHANNELINDEX);
-               TaggedImage[] images = new TaggedImage[(int) multiChannelCameraNrCh_];
-               images[channel] = ti;
-               int numFound = 1;
-               while (numFound < multiChannelCameraNrCh_) {
-                  for (int n = 0; n < 2 * multiChannelCameraNrCh_; n++) {
-                     try {
-                        TaggedImage t = core_.getNBeforeLastTaggedImage(n);
-                        int ch = t.tags.getInt(camera + "-" + CCHANNELINDEX);
-                        if (images[ch] == null) {
-                           numFound++;
-                           images[ch] = t;
-                           addTags(t, ch);
-                           break;
-                        }
-                     } catch (Exception e) {
-                        break;
-                     }}}
-               //need to add in channel order so that autoscale on window opening works properly
-               for (int i = 0; i < multiChannelCameraNrCh_; i++ )
-                  if (images[i] != null)          
-                     gui_.addImage(ACQ_NAME, images[i], i==multiChannelCameraNrCh_-1, true);
-               
-
-            }
 
-            super.start();
+            grabThread_ = new Thread("Live mode grab thread") {
+               @Override
+               public void run() {
+                  grabLoop(this);
+               }
+            };
+            grabThread_.setDaemon(true);
+            grabThread_.start();
             win_.liveModeEnabled(true);
          } catch (Exception ex) {
             ReportingUtils.showError(ex);
          }
-      
       }
 
-      @Override
       public void stop() {
-         super.stop();
+         Thread grabThread = grabThread_;
+         grabThread_ = null;
+         if (grabThread != null) {
+            grabThread.interrupt();
+         }
          try {
             core_.stopSequenceAcquisition();
             win_.liveModeEnabled(false);
          } catch (Exception ex) {
             ReportingUtils.showError(ex);
          }
+         ReportingUtils.logMessage(getStatisticsSummary());
       }
-      
-      
-   private ActionListener singleCameraLiveAction() {
-      return new ActionListener() {
-         @Override
-         public void actionPerformed(ActionEvent e) {
-            if (core_.getRemainingImageCount() == 0)
-               return;
-            if (win_.windowClosed()) //check is user closed window             
-               gui_.enableLiveMode(false);
-            else {
-               try {
-                  TaggedImage ti = core_.getLastTaggedImage();
-                  addTags(ti,0);
-                  gui_.addImage(ACQ_NAME, ti, true, true);
-                  gui_.updateLineProfile();
-               } catch (Exception ex) {
-                  ReportingUtils.showError(ex);
-                  gui_.enableLiveMode(false);
+
+      /*
+       * Body of the grab thread. Runs until stop() replaces grabThread_,
+       * so that a thread left over from a previous start() never touches
+       * the display again.
+       */
+      private void grabLoop(Thread self) {
+         int nrCh = (int) multiChannelCameraNrCh_;
+         boolean first = true;
+         long nextDisplay = System.nanoTime();
+         try {
+            while (grabThread_ == self) {
+               long wait = (nextDisplay - System.nanoTime()) / 1000000L;
+               if (wait > 0) {
+                  Thread.sleep(wait);
+                  continue;
+               }
+               if (core_.getRemainingImageCount() == 0) {
+                  Thread.sleep(FIRST_IMAGE_POLL_MS);
+                  continue;
+               }
+               nextDisplay = System.nanoTime() + displayIntervalMs_ * 1000000L;
+               if (paintPending_) {
+                  framesSkipped_ += nrCh;
+                  continue;
+               }
+               if (!first && (win_.windowClosed()
+                       || !gui_.acquisitionExists(ACQ_NAME))) {
+                  //disable live if user closed window
+                  disableLiveMode();
+                  return;
+               }
+               TaggedImage[] images = grab(nrCh);
+               if (images == null) {
+                  continue;
+               }
+               prepare(images);
+               if (grabThread_ != self) {
+                  return;
                }
+               display(images, first, self);
+               first = false;
+            }
+         } catch (InterruptedException ex) {
+            // stopped
+         } catch (Exception ex) {
+            if (grabThread_ == self) {
+               ReportingUtils.showError(ex);
+               disableLiveMode();
+            }
+         }
+      }
+
+      /*
+       * Returns the newest image of each camera channel, or null if the
+       * images at the end of the circular buffer do not include every
+       * channel. Images are read in place, not popped, so only the frames
+       * that are displayed are copied out of the core.
+       */
+      private TaggedImage[] grab(int nrCh) throws Exception {
+         TaggedImage[] images = new TaggedImage[nrCh];
+         TaggedImage ti = core_.getLastTaggedImage();
+         if (nrCh == 1) {
+            images[0] = ti;
+            return images;
+         }
+         String camera = core_.getCameraDevice();
+         images[ti.tags.getInt(camera + "-" + CCHANNELINDEX)] = ti;
+         int numFound = 1;
+         for (int index = 1; numFound < nrCh && index <= 2 * nrCh; index++) {
+            try {
+               ti = core_.getNBeforeLastTaggedImage(index);
+            } catch (Exception ex) {
+               break;
+            }
+            int channel = ti.tags.getInt(camera + "-" + CCHANNELINDEX);
+            if (images[channel] == null) {
+               images[channel] = ti;
+               ++numFound;
             }
          }
-      };
-   }
+         return numFound == nrCh ? images : null;
+      }
 
-      private ActionListener multiCamLiveAction() {
-         return new ActionListener() {
+      /*
+       * Work that used to be done on the EDT: tagging the images and
+       * computing the histograms the contrast panel will ask for.
+       */
+      private void prepare(TaggedImage[] images) throws Exception {
+         for (int channel = 0; channel < images.length; channel++) {
+            TaggedImage ti = images[channel];
+            if (images.length > 1) {
+               ti.tags.put("Channel", core_.getCameraChannelName(channel));
+            }
+            addTags(ti, channel);
+            ImageUtils.precomputeHistogram(ti.pix, MDUtils.getWidth(ti.tags),
+                    MDUtils.getHeight(ti.tags));
+         }
+      }
 
-            @Override
-            public void actionPerformed(ActionEvent e) {
-               if (core_.getRemainingImageCount() == 0) {                  
-                  return;
-               }
-               if (win_.windowClosed() || !gui_.acquisitionExists(gui_.SIMPLE_ACQ)) {
-                  gui_.enableLiveMode(false);  //disable live if user closed window
-               } else {
-                  try {
-                     TaggedImage[] images = new TaggedImage[(int)multiChannelCameraNrCh_];
-                     String camera = core_.getCameraDevice();
-
-                     TaggedImage ti = core_.getLastTaggedImage();
-
-                     int channel = ti.tags.getInt(camera + "-" + CCHANNELINDEX);
-                     images[channel] = ti;
-                     int numFound = 1;
-                     int index = 1;
-                     while (numFound < images.length && index <= 2*images.length ) {      //play with this number
-                       try {
-                        ti = core_.getNBeforeLastTaggedImage(index);
-                       } catch (Exception ex) {                  
-                             break;
-                       }                  
-                        channel = ti.tags.getInt(camera + "-" + CCHANNELINDEX);
-                        if (images[channel] == null)
-                           numFound++;
-                        images[channel] = ti;
-                        index++;
+      /*
+       * Puts the images in the live acquisition on the EDT. The first images
+       * open the live window, so they are added in channel order so that
+       * autoscale on window opening works properly; after that, the channel
+       * on screen is added last so that it is the one drawn.
+       */
+      private void display(final TaggedImage[] images, final boolean first,
+              final Thread self) {
+         paintPending_ = true;
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               try {
+                  if (grabThread_ != self) {
+                     return;
+                  }
+                  if (first) {
+                     for (int i = 0; i < images.length; i++) {
+                        gui_.addImage(ACQ_NAME, images[i], i == images.length - 1, true);
+                     }
+                  } else {
+                     int lastChannelToAdd = 0;
+                     if (images.length > 1) {
+                        lastChannelToAdd = win_.getHyperImage().getChannel() - 1;
+                        for (int i = 0; i < images.length; i++) {
+                           if (i != lastChannelToAdd) {
+                              gui_.addImage(ACQ_NAME, images[i], false, false);
+                           }
+                        }
                      }
-                        
-                     if (numFound == images.length) {
-                        for (channel = 0; channel < images.length; channel++) {
-                           ti = images[channel];
-                           ti.tags.put("Channel", core_.getCameraChannelName(channel));
-                           addTags(ti,channel);
-                          }
-                          int lastChannelToAdd = win_.getHyperImage().getChannel() - 1;
-                          for (int i = 0; i < images.length; i++) {
-                             if (i != lastChannelToAdd) {
-                                  gui_.addImage(MMStudioMainFrame.SIMPLE_ACQ, images[i], false, true);
-                              }
-                          }
-                          gui_.addImage(MMStudioMainFrame.SIMPLE_ACQ, images[lastChannelToAdd], true, true);
-                          gui_.updateLineProfile();
-
-                      }
-
-                  } catch (Exception ex) {
-                     ReportingUtils.logError(ex);
+                     gui_.addImage(ACQ_NAME, images[lastChannelToAdd], true, false);
+                     gui_.updateLineProfile();
                   }
+                  framesDisplayed_ += images.length;
+               } catch (Exception ex) {
+                  ReportingUtils.showError(ex);
+                  gui_.enableLiveMode(false);
+               } finally {
+                  paintDone();
                }
             }
-         };
+         });
+      }
+
+      private void paintDone() {
+         paintPending_ = false;
+         ++fpsWindowCount_;
+         long now = System.nanoTime();
+         long elapsed = now - fpsWindowStart_;
+         if (elapsed >= 1000000000L) {
+            displayedFps_ = fpsWindowCount_ * 1e9 / elapsed;
+            fpsWindowStart_ = now;
+            fpsWindowCount_ = 0;
+         }
+      }
+
+      private void disableLiveMode() {
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               gui_.enableLiveMode(false);
+            }
+         });
       }
- 
-      
+
       private void addTags(TaggedImage ti, int channel) throws JSONException {
-         MDUtils.setChannelIndex(ti.tags, channel);
-         MDUtils.setFrameIndex(ti.tags, 0);
-         MDUtils.setPositionIndex(ti.tags, 0);
-         MDUtils.setSliceIndex(ti.tags, 0);
+         ImageMetadata.putIndices(ti.tags, channel, 0, 0, 0);
+      }
+
+      /////////////////////Statistics section/////////////////////////
+
+      /**
+       * Number of display updates per second, measured over the last second.
+       */
+      public double getDisplayedFps() {
+         return displayedFps_;
+      }
+
+      public long getDisplayedFrameCount() {
+         return framesDisplayed_;
+      }
+
+      /**
+       * Number of frames that were not displayed because the repaint of the
+       * previous one was still pending.
+       */
+      public long getDroppedFrameCount() {
+         return framesSkipped_;
+      }
+
+      public String getStatisticsSummary() {
+         return String.format("Live mode: %d frames displayed, %d dropped, %.1f displayed frames/s",
+                 getDisplayedFrameCount(), getDroppedFrameCount(), getDisplayedFps());
       }
 }
@@ -288,8 +288,12 @@ public class MMAcquisition {
 							"Failed to figure out acq saving path.");
 				}
 			}
-			imageFileManager = new TaggedImageStorageDiskDefault(dirName,
-					!existing_, new JSONObject());
+			if (existing_ && TaggedImageStorageMemMapped.isDataSet(dirName)) {
+				imageFileManager = new TaggedImageStorageMemMapped(dirName);
+			} else {
+				imageFileManager = new TaggedImageStorageDiskDefault(dirName,
+						!existing_, new JSONObject());
+			}
 		} else {
 			imageFileManager = new TaggedImageStorageRam(null);
 		}
@@ -302,11 +306,6 @@ public class MMAcquisition {
 
 		virtAcq_ = new VirtualAcquisitionDisplay(imageCache, null, name);
 
-		if (show_ && diskCached_ && existing_) {
-			// start loading all other images in a background thread
-			PreLoadDataThread t = new PreLoadDataThread(virtAcq_);
-			new Thread(t, "PreLoadDataThread").start();
-		}
 		if (show_) {
 			virtAcq_.show();
 		}
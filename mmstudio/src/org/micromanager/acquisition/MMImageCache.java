@@ -12,10 +12,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.micromanager.api.ImageCache;
 import org.micromanager.api.ImageCacheListener;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import org.micromanager.api.TaggedImageStorage;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -25,6 +23,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudioMainFrame;
+import org.micromanager.utils.ImageMetadata;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -41,11 +40,16 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
    private TaggedImageStorage imageStorage_;
    private Set<String> changingKeys_;
    private JSONObject firstTags_;
-   private HashMap<String, SoftReference<TaggedImage>> softTable_;
+   private PlaneCache planeCache_;
    private int lastFrame_ = -1;
    private JSONObject lastTags_;
    private boolean conserveRam_;
    private VirtualAcquisitionDisplay display_;
+   private TaggedImageStorageWriteBehind writeBehind_;
+   private static long writeBehindBytes_ = 256L * 1024 * 1024;
+   private static int writeBehindThreads_ = 1;
+   private static boolean writeBehindDrop_ = false;
+   private static long planeCacheBytes_ = Runtime.getRuntime().maxMemory() / 4;
 
 
    public void addImageCacheListener(ImageCacheListener l) {
@@ -60,11 +64,39 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
       imageStorageListeners_.remove(l);
    }
 
+   /**
+    * Configures the write-behind queue used between newly created caches and
+    * disk-based storage. A maxBytes of 0 or less writes synchronously on the
+    * acquisition thread. If dropWhenFull is set, images that do not fit in
+    * the queue are discarded instead of blocking the caller.
+    */
+   public static void setWriteBehindQueue(long maxBytes, int writerThreads,
+           boolean dropWhenFull) {
+      writeBehindBytes_ = maxBytes;
+      writeBehindThreads_ = writerThreads;
+      writeBehindDrop_ = dropWhenFull;
+   }
+
+   /**
+    * Sets the number of pixel bytes each newly created cache keeps in RAM.
+    * Least recently used planes are evicted first.
+    */
+   public static void setPlaneCacheBudget(long bytes) {
+      planeCacheBytes_ = bytes;
+   }
+
    public MMImageCache(TaggedImageStorage imageStorage) {
+      if (writeBehindBytes_ > 0 && imageStorage != null
+              && imageStorage.getDiskLocation() != null
+              && !imageStorage.isFinished()) {
+         writeBehind_ = new TaggedImageStorageWriteBehind(imageStorage,
+                 writeBehindBytes_, writeBehindThreads_, writeBehindDrop_);
+         imageStorage = writeBehind_;
+      }
       imageStorage_ = imageStorage;
       changingKeys_ = new HashSet<String>();
-      softTable_ = new HashMap<String, SoftReference<TaggedImage>>();
       conserveRam_ = MMStudioMainFrame.getInstance().getConserveRamOption();
+      planeCache_ = new PlaneCache(conserveRam_ ? 0 : planeCacheBytes_);
    }
 
    public void finished() {
@@ -100,7 +132,11 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
    }
 
    public void close() {
-      softTable_ = null;
+      if (planeCache_ != null) {
+         ReportingUtils.logMessage(planeCache_.getStatisticsSummary());
+         planeCache_.clear();
+         planeCache_ = null;
+      }
       imageStorage_.close();
    }
 
@@ -118,19 +154,37 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
       }
       newImageFileManager.setDisplayAndComments(this.getDisplayAndComments());
       newImageFileManager.finished();
+      if (writeBehind_ != null) {
+         writeBehind_.stop();
+         writeBehind_ = null;
+      }
       imageStorage_ = newImageFileManager; 
    }
    
 
    public void putImage(TaggedImage taggedImg) {
       try {
+         ImageMetadata md = ImageMetadata.fromJSON(taggedImg.tags);
          if (!conserveRam_)
-            softTable_.put(MDUtils.getLabel(taggedImg.tags), new SoftReference(taggedImg));
+            planeCache_.put(PlaneCache.key(md.getChannelIndex(),
+                    md.getSliceIndex(), md.getFrameIndex(),
+                    md.getPositionIndex()), taggedImg);
          taggedImg.tags.put("Summary",imageStorage_.getSummaryMetadata());
          checkForChangingTags(taggedImg);
-         imageStorage_.putImage(taggedImg);
+         TaggedImageStorageWriteBehind writeBehind = writeBehind_;
+         if (writeBehind != null && imageStorage_ == writeBehind) {
+            if (!writeBehind.offerImage(taggedImg)) {
+               // dropped because the write-behind queue is full
+               planeCache_.remove(PlaneCache.key(md.getChannelIndex(),
+                       md.getSliceIndex(), md.getFrameIndex(),
+                       md.getPositionIndex()));
+               return;
+            }
+         } else {
+            imageStorage_.putImage(taggedImg);
+         }
          synchronized (this) {
-            lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImg.tags));
+            lastFrame_ = Math.max(lastFrame_, md.getFrameIndex());
             lastTags_ = taggedImg.tags;
          }
          
@@ -142,27 +196,42 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
       }
    }
 
+   /**
+    * Returns the write-behind queue in front of the storage, for inspecting
+    * queued bytes, write latencies and blocked/dropped puts, or null if
+    * images are written synchronously.
+    */
+   public TaggedImageStorageWriteBehind getWriteBehindQueue() {
+      return writeBehind_;
+   }
+
    public JSONObject getLastImageTags() {
       synchronized (this) {
          return lastTags_;
       }
    }
 
+   /**
+    * Returns the in-memory plane cache, for inspecting its hit, miss and
+    * eviction counts or changing its byte budget.
+    */
+   public PlaneCache getPlaneCache() {
+      return planeCache_;
+   }
+
    public TaggedImage getImage(int channel, int slice, int frame, int position) {
-      String label = MDUtils.generateLabel(channel, slice, frame, position);
-      TaggedImage taggedImg = null;
-      if (softTable_ == null) {
+      PlaneCache planeCache = planeCache_;
+      if (planeCache == null) {
          return null;
       }
-      if (softTable_.containsKey(label)) {
-         taggedImg = softTable_.get(label).get();
-      }
+      long key = PlaneCache.key(channel, slice, frame, position);
+      TaggedImage taggedImg = planeCache.get(key);
       if (taggedImg == null) {
          taggedImg = imageStorage_.getImage(channel, slice, frame, position);
          if (taggedImg != null) {
             checkForChangingTags(taggedImg);
             if (!conserveRam_) {
-               softTable_.put(label, new SoftReference(taggedImg));
+               planeCache.put(key, taggedImg);
             }
          }
       }
@@ -170,13 +239,14 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
    }
 
    public JSONObject getImageTags(int channel, int slice, int frame, int position) {
-      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      PlaneCache planeCache = planeCache_;
       JSONObject tags = null;
-      if (softTable_ == null) {
+      if (planeCache == null) {
          return null;
       }
-      if (softTable_.containsKey(label)) {
-         tags = softTable_.get(label).get().tags;
+      TaggedImage taggedImg = planeCache.get(PlaneCache.key(channel, slice, frame, position));
+      if (taggedImg != null) {
+         tags = taggedImg.tags;
       }
       if (tags == null) {
          tags = imageStorage_.getImageTags(channel, slice, frame, position);
@@ -184,7 +254,12 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
       return tags;
    }
 
-   private void checkForChangingTags(TaggedImage taggedImg) {
+   /*
+    * Records the tags whose values differ from those of the first image.
+    * Called on the acquisition thread, the EDT and the prefetch threads,
+    * so changingKeys_ and firstTags_ are guarded by this.
+    */
+   private synchronized void checkForChangingTags(TaggedImage taggedImg) {
       if (firstTags_ == null) {
          firstTags_ = taggedImg.tags;
       } else {
@@ -192,10 +267,16 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
          while (keys.hasNext()) {
             String key = keys.next();
             try {
-               if (!taggedImg.tags.isNull(key)) {
-                  if (!firstTags_.has(key) || firstTags_.isNull(key))
+               if (changingKeys_.contains(key))
+                  continue;
+               Object value = taggedImg.tags.opt(key);
+               if (value != null && value != JSONObject.NULL) {
+                  Object firstValue = firstTags_.opt(key);
+                  if (firstValue == null || firstValue == JSONObject.NULL)
                      changingKeys_.add(key);
-                  else if (!taggedImg.tags.getString(key).contentEquals(firstTags_.getString(key))) {
+                  // compare the string forms only if the values differ in type
+                  else if (!value.equals(firstValue)
+                          && !taggedImg.tags.getString(key).contentEquals(firstTags_.getString(key))) {
                      changingKeys_.add(key);
                   }
                }
@@ -281,8 +362,11 @@ public class MMImageCache implements TaggedImageStorage, ImageCache {
       imageStorage_.setSummaryMetadata(tags);
    }
 
-   public Set<String> getChangingKeys() {
-      return changingKeys_;
+   /**
+    * Returns a copy of the keys of the tags that change between images.
+    */
+   public synchronized Set<String> getChangingKeys() {
+      return new HashSet<String>(changingKeys_);
    }
 
    public Set<String> imageKeys() {
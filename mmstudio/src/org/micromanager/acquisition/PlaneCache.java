@@ -0,0 +1,157 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.micromanager.acquisition;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import mmcorej.TaggedImage;
+import org.micromanager.utils.ImageUtils;
+
+/**
+ * Least-recently-used cache of TaggedImages, bounded by the total number of
+ * pixel bytes it holds. Planes are keyed by their channel, slice, frame and
+ * position indices packed into a single long (see key()). Planes whose
+ * indices do not fit in a key are not cached.
+ *
+ * @author arthur
+ */
+public class PlaneCache {
+   // Bit widths of the packed key fields; they add up to 63, so that valid
+   // keys are never negative.
+   private static final int CHANNEL_BITS = 9;
+   private static final int SLICE_BITS = 14;
+   private static final int FRAME_BITS = 24;
+   private static final int POSITION_BITS = 16;
+
+   /**
+    * Returned by key() for indices that do not fit; such planes are never
+    * cached.
+    */
+   public static final long NO_KEY = -1L;
+
+   private final LinkedHashMap<Long, TaggedImage> map_;
+   private long maxBytes_;
+   private long bytes_ = 0;
+   private long hits_ = 0;
+   private long misses_ = 0;
+   private long evictions_ = 0;
+
+   public PlaneCache(long maxBytes) {
+      maxBytes_ = maxBytes;
+      // access-ordered, so iteration starts at the least recently used plane
+      map_ = new LinkedHashMap<Long, TaggedImage>(256, 0.75f, true);
+   }
+
+   /**
+    * Packs channel, slice, frame and position indices into one key, or
+    * returns NO_KEY if an index is negative or too large for its field.
+    */
+   public static long key(int channel, int slice, int frame, int position) {
+      if (!fits(channel, CHANNEL_BITS) || !fits(slice, SLICE_BITS)
+              || !fits(frame, FRAME_BITS) || !fits(position, POSITION_BITS)) {
+         return NO_KEY;
+      }
+      return ((long) channel << (SLICE_BITS + FRAME_BITS + POSITION_BITS))
+              | ((long) slice << (FRAME_BITS + POSITION_BITS))
+              | ((long) frame << POSITION_BITS)
+              | position;
+   }
+
+   private static boolean fits(int index, int bits) {
+      return index >= 0 && index < (1 << bits);
+   }
+
+   public synchronized TaggedImage get(long key) {
+      TaggedImage image = key == NO_KEY ? null : map_.get(key);
+      if (image == null) {
+         ++misses_;
+      } else {
+         ++hits_;
+      }
+      return image;
+   }
+
+   /**
+    * Checks for a cached plane without counting a hit or miss and without
+    * changing its position in the LRU order.
+    */
+   public synchronized boolean contains(long key) {
+      return map_.containsKey(key);
+   }
+
+   public synchronized void put(long key, TaggedImage image) {
+      if (key == NO_KEY) {
+         return;
+      }
+      long size = ImageUtils.getByteSize(image.pix);
+      if (size > maxBytes_) {
+         remove(key);
+         return;
+      }
+      TaggedImage old = map_.put(key, image);
+      if (old != null) {
+         bytes_ -= ImageUtils.getByteSize(old.pix);
+      }
+      bytes_ += size;
+      evict();
+   }
+
+   public synchronized void remove(long key) {
+      TaggedImage old = map_.remove(key);
+      if (old != null) {
+         bytes_ -= ImageUtils.getByteSize(old.pix);
+      }
+   }
+
+   private void evict() {
+      Iterator<Map.Entry<Long, TaggedImage>> it = map_.entrySet().iterator();
+      while (bytes_ > maxBytes_ && it.hasNext()) {
+         TaggedImage image = it.next().getValue();
+         it.remove();
+         bytes_ -= ImageUtils.getByteSize(image.pix);
+         ++evictions_;
+      }
+   }
+
+   public synchronized void clear() {
+      map_.clear();
+      bytes_ = 0;
+   }
+
+   public synchronized void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      evict();
+   }
+
+   public synchronized long getMaxBytes() {
+      return maxBytes_;
+   }
+
+   public synchronized long getBytes() {
+      return bytes_;
+   }
+
+   public synchronized int size() {
+      return map_.size();
+   }
+
+   public synchronized long getHits() {
+      return hits_;
+   }
+
+   public synchronized long getMisses() {
+      return misses_;
+   }
+
+   public synchronized long getEvictions() {
+      return evictions_;
+   }
+
+   public synchronized String getStatisticsSummary() {
+      return String.format("Plane cache: %d planes, %d of %d bytes, %d hits, %d misses, %d evictions",
+              map_.size(), bytes_, maxBytes_, hits_, misses_, evictions_);
+   }
+}
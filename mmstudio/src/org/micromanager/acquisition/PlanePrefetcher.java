@@ -0,0 +1,119 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.micromanager.acquisition;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.api.ImageCache;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Loads the planes a VirtualAcquisitionDisplay is about to show into the
+ * image cache on a small background pool. Each call to prefetch() describes
+ * the current cursor and the axis and direction it is moving along; requests
+ * from earlier calls that have not started yet are cancelled, so that
+ * scrubbing does not leave a backlog of planes nobody wants any more.
+ *
+ * @author arthur
+ */
+public class PlanePrefetcher {
+   public static final int SLICE_AXIS = 0;
+   public static final int FRAME_AXIS = 1;
+   private static final int DEFAULT_THREADS = 2;
+
+   private final ImageCache imageCache_;
+   private final ExecutorService pool_;
+   private final AtomicInteger generation_ = new AtomicInteger();
+   private final ArrayList<Future<?>> pending_ = new ArrayList<Future<?>>();
+   private int depth_ = 8;
+
+   public PlanePrefetcher(ImageCache imageCache) {
+      imageCache_ = imageCache;
+      pool_ = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+         private int count_ = 0;
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Plane prefetcher " + (count_++));
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+         }
+      });
+   }
+
+   /**
+    * Sets the number of planes loaded ahead of the cursor.
+    */
+   public void setDepth(int depth) {
+      depth_ = Math.max(0, depth);
+   }
+
+   public int getDepth() {
+      return depth_;
+   }
+
+   /**
+    * Schedules loading of the next planes along one axis.
+    *
+    * @param channels cache channel indices to load for every step
+    * @param slice current slice index (0-based)
+    * @param frame current frame index (0-based)
+    * @param position current position index
+    * @param axis SLICE_AXIS or FRAME_AXIS
+    * @param step +1 or -1, the direction the cursor is moving in
+    * @param first first index on the axis, inclusive; the cursor wraps around
+    * @param last last index on the axis, inclusive
+    */
+   public synchronized void prefetch(int[] channels, int slice, int frame,
+           int position, int axis, int step, int first, int last) {
+      cancelPending();
+      if (depth_ == 0 || last < first || pool_.isShutdown()) {
+         return;
+      }
+      final int generation = generation_.incrementAndGet();
+      int length = last - first + 1;
+      int index = axis == SLICE_AXIS ? slice : frame;
+      for (int i = 1; i <= Math.min(depth_, length - 1); ++i) {
+         int next = first + (((index - first + i * step) % length) + length) % length;
+         for (int channel : channels) {
+            final int c = channel;
+            final int z = axis == SLICE_AXIS ? next : slice;
+            final int t = axis == FRAME_AXIS ? next : frame;
+            final int p = position;
+            pending_.add(pool_.submit(new Runnable() {
+               public void run() {
+                  if (generation != generation_.get()) {
+                     return;
+                  }
+                  try {
+                     imageCache_.getImage(c, z, t, p);
+                  } catch (Exception ex) {
+                     ReportingUtils.logError(ex);
+                  }
+               }
+            }));
+         }
+      }
+   }
+
+   /**
+    * Drops all requests that have not started yet.
+    */
+   public synchronized void cancelPending() {
+      generation_.incrementAndGet();
+      for (Future<?> future : pending_) {
+         future.cancel(false);
+      }
+      pending_.clear();
+   }
+
+   public void shutdown() {
+      cancelPending();
+      pool_.shutdownNow();
+   }
+}
@@ -5,6 +5,7 @@
 
 package org.micromanager.acquisition;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import org.micromanager.api.DataProcessor;
@@ -17,27 +18,56 @@ import org.micromanager.utils.ReportingUtils;
  */
 public class ProcessorStack<E> {
 
+   // Capacity of the queues between processors; 0 means unbounded.
+   private static int defaultQueueCapacity_ = 0;
+
    private final List<DataProcessor<E>> processors_;
+   private final List<BlockingQueue<E>> queues_;
    private final BlockingQueue<E> input_;
    private final BlockingQueue<E> output_;
+
    public ProcessorStack(BlockingQueue<E> input,
            List<DataProcessor<E>> processors) {
+      this(input, processors, defaultQueueCapacity_);
+   }
+
+   /**
+    * @param queueCapacity maximum number of data waiting between two
+    * processors; a processor that gets ahead blocks until the next one
+    * catches up. 0 means unbounded.
+    */
+   public ProcessorStack(BlockingQueue<E> input,
+           List<DataProcessor<E>> processors, int queueCapacity) {
       processors_ = processors;
+      queues_ = new ArrayList<BlockingQueue<E>>();
       input_ = input;
 
       BlockingQueue<E> left = input_;
       BlockingQueue<E> right = left;
       if (processors_ != null) {
          for (DataProcessor<E> processor:processors_) {
-            right = new GentleLinkedBlockingQueue<E>();
+            if (queueCapacity > 0) {
+               right = new GentleLinkedBlockingQueue<E>(queueCapacity);
+            } else {
+               right = new GentleLinkedBlockingQueue<E>();
+            }
             processor.setInput(left);
             processor.setOutput(right);
+            queues_.add(right);
             left = right;
          }
       }
       output_ = right;
    }
 
+   /**
+    * Sets the queue capacity used by stacks created with the two-argument
+    * constructor.
+    */
+   public static void setDefaultQueueCapacity(int capacity) {
+      defaultQueueCapacity_ = capacity;
+   }
+
    public BlockingQueue<E> begin() {
       start();
       return output_;
@@ -56,4 +86,31 @@ public class ProcessorStack<E> {
       }
    }
 
+   public List<DataProcessor<E>> getProcessors() {
+      return processors_;
+   }
+
+   /**
+    * Number of data waiting at the output of the given stage.
+    */
+   public int getQueueSize(int stage) {
+      return queues_.get(stage).size();
+   }
+
+   /**
+    * One line per stage with its throughput, mean latency and the number of
+    * data waiting at its output.
+    */
+   public String getStatistics() {
+      StringBuilder stats = new StringBuilder();
+      for (int i = 0; i < queues_.size(); ++i) {
+         DataProcessor<E> processor = processors_.get(i);
+         stats.append(String.format("%s: %d processed, %.1f/s, mean latency %.2f ms, %d queued\n",
+                 processor.getName(), processor.getProcessedCount(),
+                 processor.getThroughput(), processor.getMeanLatencyMs(),
+                 getQueueSize(i)));
+      }
+      return stats.toString();
+   }
+
 }
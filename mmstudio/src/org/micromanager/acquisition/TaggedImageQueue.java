@@ -5,10 +5,22 @@
 
 package org.micromanager.acquisition;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import mmcorej.TaggedImage;
 import org.micromanager.utils.GentleLinkedBlockingQueue;
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
 /**
+ * Queue of TaggedImages whose pixel data is kept below a byte budget.
+ * Images that arrive while the budget is used up have their pixels written
+ * to a temporary overflow file and read back when they are taken out, so
+ * that bursts faster than the consumer do not exhaust the heap.
  *
  * @author arthur
  */
@@ -17,7 +29,217 @@ public class TaggedImageQueue extends GentleLinkedBlockingQueue<TaggedImage>
    // Poison in the sense of an end-of-stream object. (See http://bit.ly/c1Vgju)
    public static TaggedImage POISON = new TaggedImage(null, null);
 
+   private static long defaultMaxBytes_ = Runtime.getRuntime().maxMemory() / 4;
+   private static boolean defaultSpill_ = true;
+
+   private final boolean spill_;
+   private File overflowFile_;
+   private FileChannel overflow_;
+   private long overflowEnd_ = 0;
+   private int spilledOutstanding_ = 0;
+   private ByteBuffer transferBuffer_;
+   private static final int TRANSFER_BUFFER_SIZE = 1 << 20;
+
+   /*
+    * Stands in for the pixels of an image that was spilled to disk.
+    */
+   private static class SpilledPixels {
+      final long offset;
+      final int length;
+      final Class type;
+
+      SpilledPixels(long offset, int length, Class type) {
+         this.offset = offset;
+         this.length = length;
+         this.type = type;
+      }
+   }
+
    public static boolean isPoison(TaggedImage image) {
       return ((image.pix == null) && (image.tags == null));
    }
+
+   /**
+    * Sets the pixel byte budget and overflow behaviour of queues created
+    * afterwards. Without spilling, put() blocks while the budget is used up.
+    */
+   public static void setDefaultBudget(long maxBytes, boolean spillToDisk) {
+      defaultMaxBytes_ = maxBytes;
+      defaultSpill_ = spillToDisk;
+   }
+
+   public TaggedImageQueue() {
+      this(defaultMaxBytes_, defaultSpill_);
+   }
+
+   public TaggedImageQueue(long maxBytes, boolean spillToDisk) {
+      super();
+      setMaxBytes(maxBytes);
+      spill_ = spillToDisk;
+   }
+
+   @Override
+   protected long sizeOf(TaggedImage image) {
+      return ImageUtils.getByteSize(image.pix);
+   }
+
+   @Override
+   protected synchronized TaggedImage spill(TaggedImage image) {
+      if (!spill_ || sizeOf(image) == 0) {
+         return null;
+      }
+      try {
+         if (overflow_ == null) {
+            overflowFile_ = File.createTempFile("mm_queue_overflow", ".bin");
+            overflowFile_.deleteOnExit();
+            overflow_ = new RandomAccessFile(overflowFile_, "rw").getChannel();
+            overflowEnd_ = 0;
+         }
+         long offset = overflowEnd_;
+         int length = (int) sizeOf(image);
+         transferPixels(image.pix, offset, true);
+         overflowEnd_ += length;
+         ++spilledOutstanding_;
+         return new TaggedImage(new SpilledPixels(offset, length,
+                 image.pix.getClass()), image.tags);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to spill image to overflow file");
+         return null;
+      }
+   }
+
+   @Override
+   protected synchronized TaggedImage restore(TaggedImage image) {
+      if (!(image.pix instanceof SpilledPixels)) {
+         return image;
+      }
+      SpilledPixels spilled = (SpilledPixels) image.pix;
+      try {
+         Object pix;
+         if (spilled.type == short[].class) {
+            pix = new short[spilled.length / 2];
+         } else if (spilled.type == int[].class) {
+            pix = new int[spilled.length / 4];
+         } else if (spilled.type == float[].class) {
+            pix = new float[spilled.length / 4];
+         } else {
+            pix = new byte[spilled.length];
+         }
+         transferPixels(pix, spilled.offset, false);
+         return new TaggedImage(pix, image.tags);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to read image back from overflow file");
+         return new TaggedImage(null, image.tags);
+      } finally {
+         spilledReleased();
+      }
+   }
+
+   @Override
+   protected synchronized void discard(TaggedImage image) {
+      if (image.pix instanceof SpilledPixels) {
+         spilledReleased();
+      }
+   }
+
+   @Override
+   protected boolean isSpilledFrom(TaggedImage queued, Object o) {
+      return queued.pix instanceof SpilledPixels && o instanceof TaggedImage
+              && ((TaggedImage) o).tags == queued.tags;
+   }
+
+   /*
+    * Called when a spilled image leaves the queue. Once nothing is left on
+    * disk the overflow file is closed and deleted; the next spill makes a
+    * new one.
+    */
+   private void spilledReleased() {
+      --spilledOutstanding_;
+      if (spilledOutstanding_ > 0 || overflow_ == null) {
+         return;
+      }
+      try {
+         overflow_.close();
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+      }
+      overflowFile_.delete();
+      overflow_ = null;
+      overflowFile_ = null;
+      overflowEnd_ = 0;
+   }
+
+   /*
+    * Writes pix to, or reads it from, the overflow file at position through
+    * a small reused direct buffer, so that spilling does not need a second
+    * heap copy of the pixels while the heap is under pressure.
+    */
+   private void transferPixels(Object pix, long position, boolean write)
+           throws IOException {
+      if (transferBuffer_ == null) {
+         transferBuffer_ = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+      }
+      ByteBuffer buf = transferBuffer_;
+      int elementSize = (int) (ImageUtils.getByteSize(pix) / Array.getLength(pix));
+      int count = Array.getLength(pix);
+      int done = 0;
+      while (done < count) {
+         int n = Math.min(count - done, buf.capacity() / elementSize);
+         buf.clear();
+         buf.limit(n * elementSize);
+         if (write) {
+            putElements(pix, done, n, buf);
+            while (buf.hasRemaining()) {
+               position += overflow_.write(buf, position);
+            }
+         } else {
+            while (buf.hasRemaining()) {
+               int r = overflow_.read(buf, position);
+               if (r < 0) {
+                  throw new IOException("Unexpected end of overflow file");
+               }
+               position += r;
+            }
+            buf.flip();
+            getElements(pix, done, n, buf);
+         }
+         done += n;
+      }
+   }
+
+   private static void putElements(Object pix, int offset, int n, ByteBuffer buf) {
+      if (pix instanceof byte[]) {
+         buf.put((byte[]) pix, offset, n);
+         buf.flip();
+         return;
+      } else if (pix instanceof short[]) {
+         buf.asShortBuffer().put((short[]) pix, offset, n);
+      } else if (pix instanceof int[]) {
+         buf.asIntBuffer().put((int[]) pix, offset, n);
+      } else if (pix instanceof float[]) {
+         buf.asFloatBuffer().put((float[]) pix, offset, n);
+      }
+      buf.rewind();
+   }
+
+   private static void getElements(Object pix, int offset, int n, ByteBuffer buf) {
+      if (pix instanceof byte[]) {
+         buf.get((byte[]) pix, offset, n);
+      } else if (pix instanceof short[]) {
+         buf.asShortBuffer().get((short[]) pix, offset, n);
+      } else if (pix instanceof int[]) {
+         buf.asIntBuffer().get((int[]) pix, offset, n);
+      } else if (pix instanceof float[]) {
+         buf.asFloatBuffer().get((float[]) pix, offset, n);
+      }
+   }
+
+   /**
+    * Returns a line describing how full the queue has been.
+    */
+   public String getStatisticsSummary() {
+      return String.format("Image queue: peak %d images, peak %d of %d bytes, %d blocked puts, %d images spilled to disk",
+              getHighWaterCount(), getHighWaterBytes(), getMaxBytes(),
+              getBlockedPuts(), getSpilledCount());
+   }
 }
@@ -31,6 +31,7 @@ import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.utils.ImageMetadata;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
@@ -238,9 +239,10 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
 
    private void writeFrameMetadata(JSONObject md) {
       try {    
-         String title = "FrameKey-" + MDUtils.getFrameIndex(md) + "-" + MDUtils.getChannelIndex(md) + "-" + MDUtils.getSliceIndex(md);
-         int pos = MDUtils.getPositionIndex(md);
-         writeMetadata(pos, md, title);
+         ImageMetadata indices = ImageMetadata.fromJSON(md);
+         String title = "FrameKey-" + indices.getFrameIndex() + "-"
+                 + indices.getChannelIndex() + "-" + indices.getSliceIndex();
+         writeMetadata(indices.getPositionIndex(), md, title);
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
@@ -253,7 +255,8 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
             metadataStream.write(",\r\n");
          }
          metadataStream.write("\"" + title + "\": ");
-         metadataStream.write(md.toString(2));
+         // stream the tags straight into the file, without building a string
+         md.write(metadataStream);
          metadataStream.flush();
          firstElement_ = false;
       } catch (Exception e) {
@@ -308,8 +311,8 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
 
    public void saveImagePlus(ImagePlus imp, JSONObject md, String path, String tiffFileName) {
       try {
-         imp.setProperty("Info", md.toString(2));
-      } catch (JSONException ex) {
+         imp.setProperty("Info", md.toString());
+      } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
       FileSaver fs = new FileSaver(imp);
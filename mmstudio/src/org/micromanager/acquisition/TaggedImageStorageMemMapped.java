@@ -0,0 +1,503 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.micromanager.acquisition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.ImageMetadata;
+import org.micromanager.utils.JavaUtils;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * TaggedImageStorage for high frame rate acquisitions. Pixels are appended
+ * to large, preallocated chunk files that are memory-mapped, so that putImage
+ * is a single copy into a mapped buffer. The location of every plane is kept
+ * in a compact binary index (index.bin), and image tags are written in the
+ * binary ImageMetadata encoding (tags.bin). The summary metadata is kept
+ * once in summary.txt rather than with every plane.
+ *
+ * The last chunk file keeps its preallocated size, because a file cannot be
+ * shortened while it is mapped on Windows. The index gives the used length
+ * of every chunk, and a reopened data set maps only that part.
+ *
+ * Select it with
+ * ImageUtils.setPreferredTaggedImageStorage(TaggedImageStorageMemMapped.class).
+ *
+ * @author arthur
+ */
+public class TaggedImageStorageMemMapped implements TaggedImageStorage {
+   public static String menuName_ = "Memory-mapped chunk files (fast)";
+
+   public static final String INDEX_FILE = "index.bin";
+   public static final String TAGS_FILE = "tags.bin";
+   public static final String SUMMARY_FILE = "summary.txt";
+   public static final String DISPLAY_FILE = "display_and_comments.txt";
+   private static final int INDEX_MAGIC = 0x4d4d4348; // "MMCH"
+   private static final int INDEX_VERSION = 2;
+   private static final long DEFAULT_CHUNK_SIZE = 256L * 1024 * 1024;
+
+   private static long chunkSize_ = DEFAULT_CHUNK_SIZE;
+
+   private final String dir_;
+   private boolean newDataSet_;
+   private JSONObject summaryMetadata_;
+   private JSONObject displaySettings_;
+   private int lastFrame_ = -1;
+   private Thread shutdownHook_;
+
+   // Written by the acquisition thread, read by the display threads.
+   private final ConcurrentHashMap<String, IndexEntry> indexTable_;
+   private final ConcurrentHashMap<String, ImageMetadata> metadataTable_;
+   private final ArrayList<MappedByteBuffer> chunks_;
+   private final ArrayList<Long> chunkEnds_; // used length of each chunk, from the index
+   private ByteOrder byteOrder_ = ByteOrder.nativeOrder();
+   private MappedByteBuffer currentChunk_;
+   private DataOutputStream indexStream_;
+   private DataOutputStream tagsStream_;
+   private ImageMetadata.Encoder tagsEncoder_;
+
+   /*
+    * Location of one plane inside the chunk files.
+    */
+   private static class IndexEntry {
+      int channel;
+      int slice;
+      int frame;
+      int position;
+      int chunk;
+      int offset;
+      int length;
+   }
+
+   public TaggedImageStorageMemMapped(String dir) {
+      this(dir, false, null);
+   }
+
+   public TaggedImageStorageMemMapped(String dir, Boolean newDataSet,
+           JSONObject summaryMetadata) {
+      dir_ = dir;
+      newDataSet_ = newDataSet;
+      summaryMetadata_ = summaryMetadata;
+      displaySettings_ = new JSONObject();
+      indexTable_ = new ConcurrentHashMap<String, IndexEntry>();
+      metadataTable_ = new ConcurrentHashMap<String, ImageMetadata>();
+      chunks_ = new ArrayList<MappedByteBuffer>();
+      chunkEnds_ = new ArrayList<Long>();
+
+      try {
+         if (newDataSet_) {
+            JavaUtils.createDirectory(dir_);
+         } else {
+            openExistingDataSet();
+         }
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+      }
+
+      shutdownHook_ = new Thread() {
+         public void run() {
+            writeDisplaySettings();
+         }
+      };
+      Runtime.getRuntime().addShutdownHook(shutdownHook_);
+   }
+
+   /**
+    * Sets the size of newly allocated chunk files. Planes never span two
+    * chunks, so a chunk is enlarged when a single plane does not fit.
+    */
+   public static void setChunkSize(long bytes) {
+      chunkSize_ = Math.min(bytes, Integer.MAX_VALUE);
+   }
+
+   public static long getChunkSize() {
+      return chunkSize_;
+   }
+
+   /**
+    * Returns true if dir contains a data set written by this class.
+    */
+   public static boolean isDataSet(String dir) {
+      return new File(dir, INDEX_FILE).exists();
+   }
+
+   private static String chunkFileName(int chunk) {
+      return String.format("chunk_%05d.dat", chunk);
+   }
+
+   public void putImage(TaggedImage taggedImg) throws MMException {
+      if (!newDataSet_) {
+         throw new MMException("This ImageFileManager is read-only.");
+      }
+      try {
+         if (indexStream_ == null) {
+            openNewDataSet();
+         }
+         ImageMetadata md = ImageMetadata.fromJSON(taggedImg.tags);
+         IndexEntry entry = new IndexEntry();
+         entry.channel = md.getChannelIndex();
+         entry.slice = md.getSliceIndex();
+         entry.frame = md.getFrameIndex();
+         entry.position = md.getPositionIndex();
+         entry.length = getByteLength(taggedImg.pix);
+
+         ByteBuffer target = allocate(entry);
+         copyPixels(taggedImg.pix, target);
+         writeIndexEntry(entry);
+
+         tagsEncoder_.write(md, tagsStream_);
+
+         String label = md.getLabel();
+         metadataTable_.put(label, md);
+         indexTable_.put(label, entry);
+         lastFrame_ = Math.max(lastFrame_, entry.frame);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   public TaggedImage getImage(int channel, int slice, int frame, int position) {
+      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      IndexEntry entry = indexTable_.get(label);
+      ImageMetadata md = metadataTable_.get(label);
+      if (entry == null || md == null) {
+         return null;
+      }
+      try {
+         ByteBuffer buf = getPixelBuffer(entry);
+         Object pix;
+         String pixelType = md.getPixelType();
+         if (pixelType == null) {
+            pixelType = MDUtils.getPixelType(md.toJSON());
+         }
+         if (pixelType.contentEquals("GRAY8") || pixelType.contentEquals("RGB32")) {
+            byte[] bytes = new byte[entry.length];
+            buf.get(bytes);
+            pix = bytes;
+         } else if (pixelType.contentEquals("GRAY16") || pixelType.contentEquals("RGB64")) {
+            short[] shorts = new short[entry.length / 2];
+            buf.asShortBuffer().get(shorts);
+            pix = shorts;
+         } else if (pixelType.contentEquals("GRAY32")) {
+            float[] floats = new float[entry.length / 4];
+            buf.asFloatBuffer().get(floats);
+            pix = floats;
+         } else {
+            return null;
+         }
+         return new TaggedImage(pix, MDUtils.copy(md.toJSON()));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
+   /**
+    * Returns a read-only view of the pixels of one plane, backed directly by
+    * the mapped chunk file (no copy is made), or null if the plane is unknown.
+    */
+   public ByteBuffer getPixelBuffer(int channel, int slice, int frame, int position) {
+      IndexEntry entry = indexTable_.get(MDUtils.generateLabel(channel, slice, frame, position));
+      if (entry == null) {
+         return null;
+      }
+      try {
+         return getPixelBuffer(entry);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
+   private synchronized ByteBuffer getPixelBuffer(IndexEntry entry) throws IOException {
+      ByteBuffer buf = getChunk(entry.chunk).asReadOnlyBuffer();
+      buf.position(entry.offset);
+      buf.limit(entry.offset + entry.length);
+      return buf.slice().order(byteOrder_);
+   }
+
+   public JSONObject getImageTags(int channel, int slice, int frame, int position) {
+      ImageMetadata md = metadataTable_.get(MDUtils.generateLabel(channel, slice, frame, position));
+      return md == null ? null : MDUtils.copy(md.toJSON());
+   }
+
+   public Set<String> imageKeys() {
+      return indexTable_.keySet();
+   }
+
+   private static int getByteLength(Object pix) throws MMException {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2 * ((short[]) pix).length;
+      } else if (pix instanceof float[]) {
+         return 4 * ((float[]) pix).length;
+      } else {
+         throw new MMException("Unsupported pixel array type.");
+      }
+   }
+
+   private static void copyPixels(Object pix, ByteBuffer target) {
+      if (pix instanceof byte[]) {
+         target.put((byte[]) pix);
+      } else if (pix instanceof short[]) {
+         target.asShortBuffer().put((short[]) pix);
+      } else if (pix instanceof float[]) {
+         target.asFloatBuffer().put((float[]) pix);
+      }
+   }
+
+   /*
+    * Reserves entry.length bytes in the current chunk, mapping a new chunk
+    * file when the current one is full, and fills in entry.chunk/offset.
+    */
+   private synchronized ByteBuffer allocate(IndexEntry entry) throws IOException {
+      if (currentChunk_ == null || currentChunk_.remaining() < entry.length) {
+         long size = Math.max(chunkSize_, entry.length);
+         currentChunk_ = mapChunk(chunks_.size(), size, true);
+         chunks_.add(currentChunk_);
+      }
+      entry.chunk = chunks_.size() - 1;
+      entry.offset = currentChunk_.position();
+      ByteBuffer target = currentChunk_.slice().order(byteOrder_);
+      target.limit(entry.length);
+      currentChunk_.position(entry.offset + entry.length);
+      return target;
+   }
+
+   private MappedByteBuffer getChunk(int chunk) throws IOException {
+      while (chunks_.size() <= chunk) {
+         chunks_.add(null);
+      }
+      MappedByteBuffer buf = chunks_.get(chunk);
+      if (buf == null) {
+         buf = mapChunk(chunk, chunk < chunkEnds_.size() ? chunkEnds_.get(chunk) : -1, false);
+         chunks_.set(chunk, buf);
+      }
+      return buf;
+   }
+
+   /*
+    * Maps a chunk file. For writing, the file is first set to size bytes;
+    * for reading, at most size bytes are mapped (all of the file if size
+    * is negative).
+    */
+   private MappedByteBuffer mapChunk(int chunk, long size, boolean write) throws IOException {
+      File file = new File(dir_, chunkFileName(chunk));
+      RandomAccessFile raf = new RandomAccessFile(file, write ? "rw" : "r");
+      try {
+         if (write) {
+            raf.setLength(size);
+         } else {
+            size = size < 0 ? raf.length() : Math.min(size, raf.length());
+         }
+         FileChannel channel = raf.getChannel();
+         MappedByteBuffer buf = channel.map(write ? FileChannel.MapMode.READ_WRITE
+                 : FileChannel.MapMode.READ_ONLY, 0, size);
+         buf.order(byteOrder_);
+         return buf;
+      } finally {
+         // The mapping stays valid after the file is closed.
+         raf.close();
+      }
+   }
+
+   private void openNewDataSet() throws IOException {
+      indexStream_ = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(new File(dir_, INDEX_FILE))));
+      indexStream_.writeInt(INDEX_MAGIC);
+      indexStream_.writeInt(INDEX_VERSION);
+      indexStream_.writeBoolean(byteOrder_ == ByteOrder.BIG_ENDIAN);
+      tagsStream_ = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(new File(dir_, TAGS_FILE))));
+      tagsEncoder_ = new ImageMetadata.Encoder();
+      tagsEncoder_.ignoreKey("Summary");
+      writeSummaryMetadata();
+   }
+
+   private void writeIndexEntry(IndexEntry entry) throws IOException {
+      indexStream_.writeInt(entry.channel);
+      indexStream_.writeInt(entry.slice);
+      indexStream_.writeInt(entry.frame);
+      indexStream_.writeInt(entry.position);
+      indexStream_.writeInt(entry.chunk);
+      indexStream_.writeInt(entry.offset);
+      indexStream_.writeInt(entry.length);
+   }
+
+   private void openExistingDataSet() throws IOException, JSONException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(new File(dir_, INDEX_FILE))));
+      try {
+         if (in.readInt() != INDEX_MAGIC) {
+            throw new IOException("Not a memory-mapped chunk index: " + dir_);
+         }
+         in.readInt(); // version
+         byteOrder_ = in.readBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+         while (true) {
+            IndexEntry entry = new IndexEntry();
+            try {
+               entry.channel = in.readInt();
+            } catch (EOFException e) {
+               break;
+            }
+            entry.slice = in.readInt();
+            entry.frame = in.readInt();
+            entry.position = in.readInt();
+            entry.chunk = in.readInt();
+            entry.offset = in.readInt();
+            entry.length = in.readInt();
+            indexTable_.put(MDUtils.generateLabel(entry.channel, entry.slice,
+                    entry.frame, entry.position), entry);
+            while (chunkEnds_.size() <= entry.chunk) {
+               chunkEnds_.add(0L);
+            }
+            long end = (long) entry.offset + entry.length;
+            if (end > chunkEnds_.get(entry.chunk)) {
+               chunkEnds_.set(entry.chunk, end);
+            }
+            lastFrame_ = Math.max(lastFrame_, entry.frame);
+         }
+      } catch (EOFException e) {
+         // truncated index from an aborted acquisition; keep what we have
+      } finally {
+         in.close();
+      }
+
+      DataInputStream tags = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(new File(dir_, TAGS_FILE))));
+      ImageMetadata.Decoder decoder = new ImageMetadata.Decoder();
+      try {
+         while (true) {
+            ImageMetadata md = decoder.read(tags);
+            metadataTable_.put(md.getLabel(), md);
+         }
+      } catch (EOFException e) {
+         // end of the tags file
+      } finally {
+         tags.close();
+      }
+
+      String summary = JavaUtils.readTextFile(dir_ + "/" + SUMMARY_FILE);
+      if (summary != null) {
+         summaryMetadata_ = new JSONObject(summary);
+      }
+      String display = JavaUtils.readTextFile(dir_ + "/" + DISPLAY_FILE);
+      if (display != null) {
+         displaySettings_ = new JSONObject(display);
+      }
+   }
+
+   private void writeSummaryMetadata() {
+      if (summaryMetadata_ == null) {
+         return;
+      }
+      try {
+         Writer writer = new FileWriter(new File(dir_, SUMMARY_FILE));
+         writer.write(summaryMetadata_.toString(2));
+         writer.close();
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   private void writeDisplaySettings() {
+      if (displaySettings_ == null || !new File(dir_).exists()) {
+         return;
+      }
+      try {
+         Writer writer = new FileWriter(new File(dir_, DISPLAY_FILE));
+         writer.write(displaySettings_.toString(2));
+         writer.close();
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   public synchronized void finished() {
+      if (!newDataSet_) {
+         return;
+      }
+      try {
+         for (MappedByteBuffer chunk : chunks_) {
+            if (chunk != null) {
+               chunk.force();
+            }
+         }
+         if (indexStream_ != null) {
+            indexStream_.close();
+            tagsStream_.close();
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+      }
+      writeSummaryMetadata();
+      newDataSet_ = false;
+   }
+
+   public boolean isFinished() {
+      return !newDataSet_;
+   }
+
+   public void setSummaryMetadata(JSONObject md) {
+      summaryMetadata_ = md;
+      if (newDataSet_ && indexStream_ != null) {
+         writeSummaryMetadata();
+      }
+   }
+
+   public JSONObject getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   public void setDisplayAndComments(JSONObject settings) {
+      displaySettings_ = settings;
+   }
+
+   public JSONObject getDisplayAndComments() {
+      return displaySettings_;
+   }
+
+   public void close() {
+      finished();
+      try {
+         writeDisplaySettings();
+         Runtime.getRuntime().removeShutdownHook(shutdownHook_);
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+      }
+   }
+
+   public String getDiskLocation() {
+      return dir_;
+   }
+
+   public int lastAcquiredFrame() {
+      return lastFrame_;
+   }
+}
@@ -0,0 +1,333 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.micromanager.acquisition;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Bounded write-behind stage in front of another TaggedImageStorage.
+ * putImage only queues the image and returns; one or more writer threads
+ * pass queued images on to the underlying storage. Images that are still
+ * queued can be read back through getImage/getImageTags.
+ *
+ * The queue is bounded by the number of pixel bytes it holds. When it is
+ * full, putImage either blocks until a writer catches up or, if
+ * dropWhenFull is set, discards the image; offerImage tells which. Both events are counted, together
+ * with write latencies, so that a slow disk shows up in the statistics.
+ *
+ * With more than one writer thread the underlying storage must be safe for
+ * concurrent putImage calls.
+ *
+ * @author arthur
+ */
+public class TaggedImageStorageWriteBehind implements TaggedImageStorage {
+   public static String menuName_ = null;
+   private static final int LATENCY_SAMPLES = 1024;
+
+   private final TaggedImageStorage storage_;
+   private final long maxQueuedBytes_;
+   private final boolean dropWhenFull_;
+   private final Thread[] writers_;
+
+   // All of the following are guarded by this.
+   private final LinkedList<TaggedImage> queue_ = new LinkedList<TaggedImage>();
+   private final HashMap<String, TaggedImage> pending_ = new HashMap<String, TaggedImage>();
+   // Labels of the images queued or written, so that imageKeys() does not
+   // read the key set of the storage while a writer adds to it.
+   private final HashSet<String> keys_ = new HashSet<String>();
+   private long queuedBytes_ = 0;
+   private long peakQueuedBytes_ = 0;
+   private int writesInProgress_ = 0;
+   private long imagesWritten_ = 0;
+   private long blockedPuts_ = 0;
+   private long droppedPuts_ = 0;
+   private final long[] latencies_ = new long[LATENCY_SAMPLES];
+   private long latencyCount_ = 0;
+   private boolean stopped_ = false;
+
+   public TaggedImageStorageWriteBehind(TaggedImageStorage storage,
+           long maxQueuedBytes, int writerThreads, boolean dropWhenFull) {
+      storage_ = storage;
+      maxQueuedBytes_ = maxQueuedBytes;
+      dropWhenFull_ = dropWhenFull;
+      Set<String> keys = storage.imageKeys();
+      if (keys != null) {
+         keys_.addAll(keys);
+      }
+      writers_ = new Thread[Math.max(1, writerThreads)];
+      for (int i = 0; i < writers_.length; ++i) {
+         writers_[i] = new Thread("Image writer " + i) {
+            public void run() {
+               writeLoop();
+            }
+         };
+         writers_[i].setDaemon(true);
+         writers_[i].start();
+      }
+   }
+
+   public TaggedImageStorage getUnderlyingStorage() {
+      return storage_;
+   }
+
+   public void putImage(TaggedImage taggedImage) throws MMException {
+      offerImage(taggedImage);
+   }
+
+   /**
+    * Queues the image like putImage, and returns false if it was discarded
+    * because the queue is full and dropWhenFull is set.
+    */
+   public boolean offerImage(TaggedImage taggedImage) throws MMException {
+      long bytes = ImageUtils.getByteSize(taggedImage.pix);
+      String label = MDUtils.getLabel(taggedImage.tags);
+      synchronized (this) {
+         if (stopped_) {
+            throw new MMException("Image writer has been closed.");
+         }
+         // A single image larger than the budget is let through an empty queue.
+         if (queuedBytes_ > 0 && queuedBytes_ + bytes > maxQueuedBytes_) {
+            if (dropWhenFull_) {
+               ++droppedPuts_;
+               return false;
+            }
+            ++blockedPuts_;
+            while (queuedBytes_ > 0 && queuedBytes_ + bytes > maxQueuedBytes_) {
+               try {
+                  wait();
+               } catch (InterruptedException ex) {
+                  Thread.currentThread().interrupt();
+                  throw new MMException("Interrupted while waiting for image writer.");
+               }
+            }
+         }
+         queue_.add(taggedImage);
+         if (label != null) {
+            pending_.put(label, taggedImage);
+            keys_.add(label);
+         }
+         queuedBytes_ += bytes;
+         peakQueuedBytes_ = Math.max(peakQueuedBytes_, queuedBytes_);
+         notifyAll();
+      }
+      return true;
+   }
+
+   private void writeLoop() {
+      while (true) {
+         TaggedImage image;
+         synchronized (this) {
+            while (queue_.isEmpty() && !stopped_) {
+               try {
+                  wait();
+               } catch (InterruptedException ex) {
+                  return;
+               }
+            }
+            if (queue_.isEmpty()) {
+               return;
+            }
+            image = queue_.removeFirst();
+            ++writesInProgress_;
+         }
+
+         long start = System.nanoTime();
+         boolean written = false;
+         try {
+            storage_.putImage(image);
+            written = true;
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex);
+         }
+         long latency = System.nanoTime() - start;
+
+         synchronized (this) {
+            --writesInProgress_;
+            queuedBytes_ -= ImageUtils.getByteSize(image.pix);
+            String label = MDUtils.getLabel(image.tags);
+            if (label != null && pending_.get(label) == image) {
+               pending_.remove(label);
+               if (!written) {
+                  keys_.remove(label);
+               }
+            }
+            ++imagesWritten_;
+            latencies_[(int) (latencyCount_ % LATENCY_SAMPLES)] = latency;
+            ++latencyCount_;
+            notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Blocks until every queued image has been handed to the underlying
+    * storage.
+    */
+   public synchronized void flush() {
+      while (!queue_.isEmpty() || writesInProgress_ > 0) {
+         try {
+            wait();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+   }
+
+   /**
+    * Writes out the remaining queued images and stops the writer threads,
+    * leaving the underlying storage open.
+    */
+   public void stop() {
+      flush();
+      synchronized (this) {
+         stopped_ = true;
+         notifyAll();
+      }
+   }
+
+   public TaggedImage getImage(int channelIndex, int sliceIndex,
+           int frameIndex, int positionIndex) {
+      TaggedImage image;
+      synchronized (this) {
+         image = pending_.get(MDUtils.generateLabel(channelIndex, sliceIndex,
+                 frameIndex, positionIndex));
+      }
+      if (image != null) {
+         return image;
+      }
+      return storage_.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
+   }
+
+   public JSONObject getImageTags(int channelIndex, int sliceIndex,
+           int frameIndex, int positionIndex) {
+      TaggedImage image;
+      synchronized (this) {
+         image = pending_.get(MDUtils.generateLabel(channelIndex, sliceIndex,
+                 frameIndex, positionIndex));
+      }
+      if (image != null) {
+         return image.tags;
+      }
+      return storage_.getImageTags(channelIndex, sliceIndex, frameIndex, positionIndex);
+   }
+
+   public synchronized Set<String> imageKeys() {
+      return new HashSet<String>(keys_);
+   }
+
+   public void finished() {
+      flush();
+      storage_.finished();
+      ReportingUtils.logMessage(getStatisticsSummary());
+   }
+
+   public boolean isFinished() {
+      return storage_.isFinished();
+   }
+
+   public void setSummaryMetadata(JSONObject md) {
+      storage_.setSummaryMetadata(md);
+   }
+
+   public JSONObject getSummaryMetadata() {
+      return storage_.getSummaryMetadata();
+   }
+
+   public void setDisplayAndComments(JSONObject settings) {
+      storage_.setDisplayAndComments(settings);
+   }
+
+   public JSONObject getDisplayAndComments() {
+      return storage_.getDisplayAndComments();
+   }
+
+   public void close() {
+      stop();
+      storage_.close();
+   }
+
+   public String getDiskLocation() {
+      return storage_.getDiskLocation();
+   }
+
+   public int lastAcquiredFrame() {
+      return storage_.lastAcquiredFrame();
+   }
+
+   /////////////////////Statistics section/////////////////////////
+   public synchronized long getQueuedBytes() {
+      return queuedBytes_;
+   }
+
+   public synchronized long getPeakQueuedBytes() {
+      return peakQueuedBytes_;
+   }
+
+   public long getMaxQueuedBytes() {
+      return maxQueuedBytes_;
+   }
+
+   public synchronized int getQueuedImageCount() {
+      return queue_.size();
+   }
+
+   public synchronized long getImagesWritten() {
+      return imagesWritten_;
+   }
+
+   /**
+    * Number of putImage calls that had to wait for the writer.
+    */
+   public synchronized long getBlockedPuts() {
+      return blockedPuts_;
+   }
+
+   /**
+    * Number of images discarded because the queue was full.
+    */
+   public synchronized long getDroppedPuts() {
+      return droppedPuts_;
+   }
+
+   /**
+    * Returns the given percentile (0-100) of the write latency in
+    * milliseconds, computed over the most recent writes.
+    */
+   public double getWriteLatencyPercentile(double percentile) {
+      long[] samples;
+      synchronized (this) {
+         int n = (int) Math.min(latencyCount_, LATENCY_SAMPLES);
+         if (n == 0) {
+            return 0;
+         }
+         samples = Arrays.copyOf(latencies_, n);
+      }
+      Arrays.sort(samples);
+      int index = (int) Math.round(percentile / 100.0 * (samples.length - 1));
+      index = Math.max(0, Math.min(samples.length - 1, index));
+      return samples[index] / 1.0e6;
+   }
+
+   public String getStatisticsSummary() {
+      return String.format("Image writer: %d images written, %d queued (%d bytes, peak %d of %d), "
+              + "%d blocked puts, %d dropped puts, write latency ms p50=%.2f p90=%.2f p99=%.2f",
+              getImagesWritten(), getQueuedImageCount(), getQueuedBytes(),
+              getPeakQueuedBytes(), getMaxQueuedBytes(), getBlockedPuts(),
+              getDroppedPuts(), getWriteLatencyPercentile(50),
+              getWriteLatencyPercentile(90), getWriteLatencyPercentile(99));
+   }
+}
@@ -109,6 +109,9 @@ public final class VirtualAcquisitionDisplay implements ImageCacheListener {
 	private int lastFrame_;
 	private Timer zAnimationTimer_;
 	private Timer tAnimationTimer_;
+	private PlanePrefetcher prefetcher_;
+	private int lastScrubSlice_ = 1;
+	private int lastScrubFrame_ = 1;
 	private Component zIcon_, pIcon_, tIcon_, cIcon_;
 
 	private long prevTimeSmall = 0;
@@ -382,6 +385,8 @@ public final class VirtualAcquisitionDisplay implements ImageCacheListener {
 		pSelector_ = createPositionScrollbar();
 		displayPrefs_ = Preferences.userNodeForPackage(this.getClass());
 		imageCache_.setDisplay(this);
+		if (imageCache_.getDiskLocation() != null)
+			prefetcher_ = new PlanePrefetcher(imageCache_);
 	}
 
 	// used for snap and live
@@ -486,6 +491,24 @@ public final class VirtualAcquisitionDisplay implements ImageCacheListener {
 				zSelector_.addAdjustmentListener(new AdjustmentListener() {
 					public void adjustmentValueChanged(AdjustmentEvent e) {
 						preferredSlice_ = zSelector_.getValue();
+						if (!isAnimated()) {
+							int step = preferredSlice_ >= lastScrubSlice_ ? 1 : -1;
+							prefetch(PlanePrefetcher.SLICE_AXIS, step, 0,
+									getNumSlices() - 1);
+						}
+						lastScrubSlice_ = preferredSlice_;
+					}
+				});
+			if (tSelector_ != null)
+				tSelector_.addAdjustmentListener(new AdjustmentListener() {
+					public void adjustmentValueChanged(AdjustmentEvent e) {
+						int frame = tSelector_.getValue();
+						if (!isAnimated()) {
+							int step = frame >= lastScrubFrame_ ? 1 : -1;
+							prefetch(PlanePrefetcher.FRAME_AXIS, step, 0,
+									getNumFrames() - 1);
+						}
+						lastScrubFrame_ = frame;
 					}
 				});
 			if (cSelector_ != null)
@@ -532,6 +555,8 @@ public final class VirtualAcquisitionDisplay implements ImageCacheListener {
 								hyperImage_.setPosition(
 										hyperImage_.getChannel(), slice + 1,
 										hyperImage_.getFrame());
+							prefetch(PlanePrefetcher.SLICE_AXIS, 1, 0,
+									getNumSlices() - 1);
 						}
 					});
 		zAnimationTimer_.setDelay((int) (1000.0 / framesPerSec_));
@@ -561,6 +586,8 @@ public final class VirtualAcquisitionDisplay implements ImageCacheListener {
 								hyperImage_.setPosition(
 										hyperImage_.getChannel(),
 										hyperImage_.getSlice(), frame + 1);
+							prefetch(PlanePrefetcher.FRAME_AXIS, 1,
+									firstFrame_ - 1, lastFrame_ - 1);
 						}
 					});
 		tAnimationTimer_.setDelay((int) (1000.0 / framesPerSec_));
@@ -568,6 +595,39 @@ public final class VirtualAcquisitionDisplay implements ImageCacheListener {
 		refreshAnimationIcons();
 	}
 
+	/*
+	 * Asks the prefetcher to load the planes following the current cursor
+	 * along the given axis, for every channel that is currently drawn.
+	 */
+	private void prefetch(int axis, int step, int first, int last) {
+		if (prefetcher_ == null || hyperImage_ == null)
+			return;
+		int[] channels;
+		if (hyperImage_.isComposite()
+				&& ((CompositeImage) hyperImage_).getMode() == CompositeImage.COMPOSITE) {
+			boolean[] active = ((CompositeImage) hyperImage_).getActiveChannels();
+			int nChannels = Math.min(active.length, hyperImage_.getNChannels());
+			int[] tmp = new int[nChannels];
+			int n = 0;
+			for (int i = 0; i < nChannels; ++i) {
+				int channel = grayToRGBChannel(i);
+				if (active[i] && (n == 0 || tmp[n - 1] != channel))
+					tmp[n++] = channel;
+			}
+			channels = new int[n];
+			System.arraycopy(tmp, 0, channels, 0, n);
+		} else {
+			channels = new int[] { grayToRGBChannel(hyperImage_.getChannel() - 1) };
+		}
+		prefetcher_.prefetch(channels, hyperImage_.getSlice() - 1,
+				hyperImage_.getFrame() - 1, getCurrentPosition(), axis, step,
+				first, last);
+	}
+
+	public PlanePrefetcher getPrefetcher() {
+		return prefetcher_;
+	}
+
 	private void refreshAnimationIcons() {
 		if (zIcon_ != null)
 			zIcon_.repaint();
@@ -1724,6 +1784,10 @@ public final class VirtualAcquisitionDisplay implements ImageCacheListener {
 				mdPanel_.saveContrastSettings(imageCache_);
 			}
 
+			if (prefetcher_ != null) {
+				prefetcher_.shutdown();
+			}
+
 			if (imageCache_ != null) {
 				imageCache_.close();
 			}
@@ -25,6 +25,12 @@ public abstract class DataProcessor<E> extends Thread {
    private boolean stopRequested_ = false;
    private boolean started_ = false;
 
+   // Statistics; see getProcessedCount(), getMeanLatencyMs(), getThroughput()
+   private long startNanos_ = 0;
+   private long lastPollNanos_ = 0;
+   private long processedCount_ = 0;
+   private long totalLatencyNanos_ = 0;
+
    protected abstract void process();
    /*    The "Identity" process method:
     * {
@@ -35,6 +41,9 @@ public abstract class DataProcessor<E> extends Thread {
    @Override
    public void run() {
       setStarted(true);
+      synchronized (this) {
+         startNanos_ = System.nanoTime();
+      }
       while (!stopRequested_) {
          process();
       }
@@ -67,6 +76,7 @@ public abstract class DataProcessor<E> extends Thread {
          try {
             E datum = (E) input_.poll(100, TimeUnit.MILLISECONDS);
             if (datum != null) {
+               lastPollNanos_ = System.nanoTime();
                return datum;
             }
          } catch (InterruptedException ex) {
@@ -81,12 +91,56 @@ public abstract class DataProcessor<E> extends Thread {
    }
 
    protected void produce(E datum) {
+      if (lastPollNanos_ != 0) {
+         recordLatency(System.nanoTime() - lastPollNanos_);
+         lastPollNanos_ = 0;
+      }
+      putOutput(datum);
+   };
+
+   void putOutput(E datum) {
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
          ReportingUtils.logError(ex);
       }
-   };
+   }
+
+   /**
+    * Counts one processed datum that took the given time from input to
+    * output. Called by produce(); subclasses that process data on other
+    * threads record their own latencies.
+    */
+   protected synchronized void recordLatency(long nanos) {
+      ++processedCount_;
+      totalLatencyNanos_ += nanos;
+   }
+
+   public synchronized long getProcessedCount() {
+      return processedCount_;
+   }
+
+   /**
+    * Mean time in milliseconds between taking a datum from the input and
+    * handing the result to the output.
+    */
+   public synchronized double getMeanLatencyMs() {
+      if (processedCount_ == 0) {
+         return 0;
+      }
+      return totalLatencyNanos_ / 1.0e6 / processedCount_;
+   }
+
+   /**
+    * Data processed per second since the processor was started.
+    */
+   public synchronized double getThroughput() {
+      if (startNanos_ == 0) {
+         return 0;
+      }
+      double seconds = (System.nanoTime() - startNanos_) / 1.0e9;
+      return seconds > 0 ? processedCount_ / seconds : 0;
+   }
 
    protected synchronized boolean stopRequested() {
       return stopRequested_;
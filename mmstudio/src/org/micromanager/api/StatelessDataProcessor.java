@@ -0,0 +1,136 @@
+/**
+ * StatelessDataProcessor is a DataProcessor whose work on each datum does not
+ * depend on any other datum, so that several data can be processed at once.
+ *
+ * Inherit from this class, implement processDatum, and insert it into the
+ * acquisition pipeline like any other DataProcessor. processDatum is called
+ * on a pool of worker threads and must therefore be thread-safe; results are
+ * put back into input order before they reach the next processor.
+ *
+ */
+
+package org.micromanager.api;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ *
+ * @author arthur
+ */
+public abstract class StatelessDataProcessor<E> extends DataProcessor<E> {
+   private final int numWorkers_;
+   private final Semaphore inFlight_;
+   private ExecutorService workers_;
+
+   // Reordering state, guarded by reorderBuffer_.
+   private final HashMap<Long, Object> reorderBuffer_ = new HashMap<Long, Object>();
+   private long nextSequence_ = 0;
+   private long nextToEmit_ = 0;
+
+   // Placeholder for data that processDatum dropped by returning null.
+   private static final Object DROPPED = new Object();
+
+   /**
+    * Process a single datum and return the result, or null to drop it.
+    * Called concurrently from several threads.
+    */
+   protected abstract E processDatum(E datum);
+
+   public StatelessDataProcessor() {
+      this(Runtime.getRuntime().availableProcessors());
+   }
+
+   public StatelessDataProcessor(int numWorkers) {
+      numWorkers_ = Math.max(1, numWorkers);
+      // Allow a few data per worker to be waiting for reordering.
+      inFlight_ = new Semaphore(2 * numWorkers_);
+   }
+
+   public int getNumWorkers() {
+      return numWorkers_;
+   }
+
+   /**
+    * Returns true for data that mark the end of the stream and have to be
+    * passed on unchanged, after everything that came before them.
+    */
+   protected boolean isEndOfStream(E datum) {
+      return (datum instanceof TaggedImage)
+              && TaggedImageQueue.isPoison((TaggedImage) datum);
+   }
+
+   @Override
+   public void run() {
+      workers_ = Executors.newFixedThreadPool(numWorkers_, new ThreadFactory() {
+         private int count_ = 0;
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, getName() + " worker " + (count_++));
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      try {
+         super.run();
+      } finally {
+         workers_.shutdown();
+      }
+   }
+
+   @Override
+   protected void process() {
+      final E datum = poll();
+      if (datum == null) {
+         return;
+      }
+      try {
+         inFlight_.acquire();
+      } catch (InterruptedException ex) {
+         ReportingUtils.logError(ex);
+         return;
+      }
+      final long sequence = nextSequence_++;
+      if (isEndOfStream(datum)) {
+         complete(sequence, datum);
+         return;
+      }
+      final long start = System.nanoTime();
+      workers_.execute(new Runnable() {
+         public void run() {
+            E result = null;
+            try {
+               result = processDatum(datum);
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+            }
+            recordLatency(System.nanoTime() - start);
+            complete(sequence, result);
+         }
+      });
+   }
+
+   /*
+    * Stores the result for the given sequence number and hands every
+    * result that is now next in line to the output.
+    */
+   private void complete(long sequence, E result) {
+      synchronized (reorderBuffer_) {
+         reorderBuffer_.put(sequence, result == null ? DROPPED : result);
+         Object next;
+         while ((next = reorderBuffer_.remove(nextToEmit_)) != null) {
+            ++nextToEmit_;
+            if (next != DROPPED) {
+               // not produce(): latencies are recorded by the workers
+               putOutput((E) next);
+            }
+            inFlight_.release();
+         }
+      }
+   }
+}
@@ -566,7 +566,7 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
       }
       hp_.setVisible(true);
       
-      int[] rawHistogram = ip.getHistogram();
+      int[] rawHistogram = ImageUtils.getHistogram(ip);
       int imgWidth = img.getWidth();
       int imgHeight = img.getHeight();
       if (mccPanel_.rejectOutliersCB_.isSelected()) {
@@ -63,6 +63,7 @@ import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.HistogramUtils;
+import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -694,7 +695,7 @@ public class SingleChannelContrastPanel extends JPanel implements
    
    public void calcAndDisplayHistAndStats(ImagePlus img, boolean drawHist) {
       if (img != null) {
-         int[] rawHistogram = img.getProcessor().getHistogram();
+         int[] rawHistogram = ImageUtils.getHistogram(img.getProcessor());
          int imgWidth = img.getWidth();
          int imgHeight = img.getHeight();
          if (rejectOutliersCheckBox_.isSelected()) {
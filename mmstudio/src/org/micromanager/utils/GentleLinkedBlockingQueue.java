@@ -5,34 +5,302 @@
 
 package org.micromanager.utils;
 
+import java.util.Collection;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * LinkedBlockingQueue that, in addition to an optional element count limit,
+ * keeps the total payload size of its elements below a byte budget.
+ * Subclasses define the payload size of an element by overriding sizeOf();
+ * by default elements have no size and only the count limit applies.
+ *
+ * When an element does not fit in the budget, the queue first asks spill()
+ * to move its payload out of the heap (e.g. to a disk file); if that is not
+ * possible, put() blocks until enough bytes have been taken out. A single
+ * element larger than the whole budget is accepted into an empty queue.
+ *
+ * Elements removed through an iterator are not subtracted from the byte
+ * count; use the queue's own removal methods.
  *
  * @author arthur
  */
 public class GentleLinkedBlockingQueue<E> extends LinkedBlockingQueue<E> {
 
+   private final Object budgetLock_ = new Object();
+   private long maxBytes_ = Long.MAX_VALUE;
+   // The following are guarded by budgetLock_.
+   private long queuedBytes_ = 0;
+   private long highWaterBytes_ = 0;
+   private int highWaterCount_ = 0;
+   private long blockedPuts_ = 0;
+   private long spilledCount_ = 0;
+
    public GentleLinkedBlockingQueue() {
       super();
    }
 
+   public GentleLinkedBlockingQueue(int capacity) {
+      super(capacity);
+   }
+
+   /**
+    * Sets the maximum total payload size of the queued elements.
+    */
+   public void setMaxBytes(long maxBytes) {
+      synchronized (budgetLock_) {
+         maxBytes_ = maxBytes;
+         budgetLock_.notifyAll();
+      }
+   }
+
+   public long getMaxBytes() {
+      synchronized (budgetLock_) {
+         return maxBytes_;
+      }
+   }
+
+   /**
+    * Payload size of an element in bytes. Override to enable the byte budget.
+    */
+   protected long sizeOf(E e) {
+      return 0;
+   }
+
+   /**
+    * Moves the payload of an element that does not fit in the byte budget
+    * out of the heap, returning a stand-in with a payload size of 0 that
+    * restore() turns back into the original. Returns null if spilling is
+    * not possible, in which case put() blocks.
+    */
+   protected E spill(E e) {
+      return null;
+   }
+
+   /**
+    * Undoes spill(); called on every element taken out of the queue and
+    * returned to the caller.
+    */
+   protected E restore(E e) {
+      return e;
+   }
+
+   /**
+    * Called instead of restore() on an element that leaves the queue without
+    * being returned, through remove(Object) or clear().
+    */
+   protected void discard(E e) {
+   }
+
+   /**
+    * Returns true if the queued element is the stand-in spill() made for o,
+    * so that remove(Object) finds spilled elements.
+    */
+   protected boolean isSpilledFrom(E queued, Object o) {
+      return false;
+   }
+
+   /*
+    * Reserves room for e in the byte budget, spilling or waiting as
+    * necessary. Returns the element to enqueue, or null on timeout.
+    */
+   private E admit(E e, long timeoutNanos) throws InterruptedException {
+      long size = sizeOf(e);
+      if (size == 0) {
+         return e;
+      }
+      synchronized (budgetLock_) {
+         if (!fits(size)) {
+            E spilled = spill(e);
+            if (spilled != null) {
+               ++spilledCount_;
+               return spilled;
+            }
+            ++blockedPuts_;
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!fits(size)) {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  return null;
+               }
+               TimeUnit.NANOSECONDS.timedWait(budgetLock_, remaining);
+            }
+         }
+         queuedBytes_ += size;
+         highWaterBytes_ = Math.max(highWaterBytes_, queuedBytes_);
+      }
+      return e;
+   }
+
+   private boolean fits(long size) {
+      return queuedBytes_ == 0 || queuedBytes_ + size <= maxBytes_;
+   }
+
+   private void release(E e) {
+      long size = sizeOf(e);
+      if (size != 0) {
+         synchronized (budgetLock_) {
+            queuedBytes_ -= size;
+            budgetLock_.notifyAll();
+         }
+      }
+   }
+
+   private void updateHighWaterCount() {
+      int n = size();
+      synchronized (budgetLock_) {
+         highWaterCount_ = Math.max(highWaterCount_, n);
+      }
+   }
+
+   /*
+    * Bookkeeping for an element that was taken out of the queue.
+    */
+   private E removed(E e) {
+      if (e == null) {
+         return null;
+      }
+      release(e);
+      return restore(e);
+   }
+
    @Override
    public void put(E e) throws InterruptedException {
-     /* final int n = 1000 / 5; // Timeout after 1 second.
-      final long minimumBytes = 5000000;
-      for (int i=0; i<n; ++i) {
-         long m = JavaUtils.getAvailableUnusedMemory();
-         if (m > minimumBytes)
-            break;
-         String err = "Running out of memory: Only " + minimumBytes/1000000 + " MB left.";
-         if (i==0)
-            ReportingUtils.showError(err);
-         else
-            ReportingUtils.logError(err);
-         JavaUtils.sleep(5);
-      }*/
-      super.put(e);
+      E admitted = admit(e, Long.MAX_VALUE);
+      super.put(admitted);
+      updateHighWaterCount();
+   }
+
+   @Override
+   public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+      E admitted = admit(e, unit.toNanos(timeout));
+      if (admitted == null) {
+         return false;
+      }
+      if (!super.offer(admitted, timeout, unit)) {
+         release(admitted);
+         return false;
+      }
+      updateHighWaterCount();
+      return true;
+   }
+
+   @Override
+   public boolean offer(E e) {
+      E admitted;
+      try {
+         admitted = admit(e, 0);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+      if (admitted == null) {
+         return false;
+      }
+      if (!super.offer(admitted)) {
+         release(admitted);
+         return false;
+      }
+      updateHighWaterCount();
+      return true;
+   }
+
+   @Override
+   public E take() throws InterruptedException {
+      return removed(super.take());
+   }
+
+   @Override
+   public E poll() {
+      return removed(super.poll());
+   }
+
+   @Override
+   public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+      return removed(super.poll(timeout, unit));
+   }
+
+   @Override
+   public boolean remove(Object o) {
+      if (o == null) {
+         return false;
+      }
+      for (E e : this) {
+         if ((o.equals(e) || isSpilledFrom(e, o)) && super.remove(e)) {
+            release(e);
+            discard(e);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   @Override
+   public int drainTo(Collection<? super E> c) {
+      return drainTo(c, Integer.MAX_VALUE);
    }
 
+   @Override
+   public int drainTo(Collection<? super E> c, int maxElements) {
+      int n = 0;
+      E e;
+      while (n < maxElements && (e = poll()) != null) {
+         c.add(e);
+         ++n;
+      }
+      return n;
+   }
+
+   @Override
+   public void clear() {
+      E e;
+      while ((e = super.poll()) != null) {
+         release(e);
+         discard(e);
+      }
+   }
+
+   /////////////////////Statistics section/////////////////////////
+
+   public long getQueuedBytes() {
+      synchronized (budgetLock_) {
+         return queuedBytes_;
+      }
+   }
+
+   /**
+    * Largest total payload size the queue has held.
+    */
+   public long getHighWaterBytes() {
+      synchronized (budgetLock_) {
+         return highWaterBytes_;
+      }
+   }
+
+   /**
+    * Largest number of elements the queue has held.
+    */
+   public int getHighWaterCount() {
+      synchronized (budgetLock_) {
+         return highWaterCount_;
+      }
+   }
+
+   /**
+    * Number of puts that had to wait for room in the byte budget.
+    */
+   public long getBlockedPuts() {
+      synchronized (budgetLock_) {
+         return blockedPuts_;
+      }
+   }
+
+   /**
+    * Number of elements whose payload was spilled out of the heap.
+    */
+   public long getSpilledCount() {
+      synchronized (budgetLock_) {
+         return spilledCount_;
+      }
+   }
 }
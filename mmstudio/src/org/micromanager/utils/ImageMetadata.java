@@ -0,0 +1,431 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.micromanager.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact, typed form of the per-image tags. The fields every plane has
+ * (indices, size, pixel type and timestamps) are held in primitive fields;
+ * all other tags are kept as (key id, value) pairs, where key ids come from a
+ * process-wide dictionary of interned key strings.
+ *
+ * Conversion to and from JSONObject is lazy: an ImageMetadata made from a
+ * JSONObject keeps a reference to it and only reads the fixed fields, and an
+ * ImageMetadata read from a binary stream only builds a JSONObject when
+ * toJSON() is called.
+ *
+ * @author arthur
+ */
+public class ImageMetadata {
+   public static final String CHANNEL_INDEX = "ChannelIndex";
+   public static final String SLICE_INDEX = "Slice";
+   public static final String FRAME_INDEX = "Frame";
+   public static final String POSITION_INDEX = "PositionIndex";
+   public static final String WIDTH = "Width";
+   public static final String HEIGHT = "Height";
+   public static final String PIXEL_TYPE = "PixelType";
+   public static final String ELAPSED_TIME = "ElapsedTime-ms";
+   public static final String TIME = "Time";
+
+   // Value type markers of the binary encoding.
+   private static final byte NULL_VALUE = 0;
+   private static final byte INT_VALUE = 1;
+   private static final byte LONG_VALUE = 2;
+   private static final byte DOUBLE_VALUE = 3;
+   private static final byte BOOLEAN_VALUE = 4;
+   private static final byte STRING_VALUE = 5;
+   private static final byte JSON_OBJECT_VALUE = 6;
+   private static final byte JSON_ARRAY_VALUE = 7;
+
+   private static final HashMap<String, Integer> keyIds_ = new HashMap<String, Integer>();
+   private static final ArrayList<String> keyNames_ = new ArrayList<String>();
+
+   private int channelIndex_ = 0;
+   private int sliceIndex_ = 0;
+   private int frameIndex_ = 0;
+   private int positionIndex_ = 0;
+   private int width_ = 0;
+   private int height_ = 0;
+   private String pixelType_ = null;
+   private double elapsedTimeMs_ = Double.NaN;
+   private String time_ = null;
+
+   private int[] keys_ = new int[0];
+   private Object[] values_ = new Object[0];
+   private JSONObject json_;
+   private boolean jsonInSync_;
+
+   /**
+    * Returns the dictionary id of a tag key, adding the key if needed.
+    */
+   public static int getKeyId(String key) {
+      synchronized (keyIds_) {
+         Integer id = keyIds_.get(key);
+         if (id == null) {
+            id = keyNames_.size();
+            keyNames_.add(key.intern());
+            keyIds_.put(key, id);
+         }
+         return id;
+      }
+   }
+
+   public static String getKeyName(int id) {
+      synchronized (keyIds_) {
+         return keyNames_.get(id);
+      }
+   }
+
+   private static boolean isFixedKey(String key) {
+      return key.equals(CHANNEL_INDEX) || key.equals(SLICE_INDEX)
+              || key.equals(FRAME_INDEX) || key.equals(POSITION_INDEX)
+              || key.equals(WIDTH) || key.equals(HEIGHT)
+              || key.equals(PIXEL_TYPE) || key.equals(ELAPSED_TIME)
+              || key.equals(TIME);
+   }
+
+   /**
+    * Wraps a tags object, reading only the fixed fields. The four indices
+    * are required, as in MDUtils; other missing fields keep their defaults
+    * (0, null or NaN).
+    *
+    * @throws JSONException if an index is missing or not a number
+    */
+   public static ImageMetadata fromJSON(JSONObject tags) throws JSONException {
+      ImageMetadata md = new ImageMetadata();
+      md.channelIndex_ = tags.getInt(CHANNEL_INDEX);
+      md.sliceIndex_ = tags.getInt(SLICE_INDEX);
+      md.frameIndex_ = tags.getInt(FRAME_INDEX);
+      md.positionIndex_ = tags.getInt(POSITION_INDEX);
+      md.width_ = tags.optInt(WIDTH, 0);
+      md.height_ = tags.optInt(HEIGHT, 0);
+      Object pixelType = tags.opt(PIXEL_TYPE);
+      md.pixelType_ = pixelType instanceof String ? ((String) pixelType).intern() : null;
+      md.elapsedTimeMs_ = tags.optDouble(ELAPSED_TIME);
+      md.time_ = tags.has(TIME) ? tags.optString(TIME) : null;
+      md.json_ = tags;
+      md.jsonInSync_ = true;
+      return md;
+   }
+
+   /**
+    * Returns the tags as a JSONObject. For an ImageMetadata made by
+    * fromJSON() this is the original object, updated with any changed fixed
+    * fields; otherwise it is built on the first call. The object is shared
+    * with every later caller, so it must not be modified; use MDUtils.copy()
+    * to get one that can be.
+    */
+   public synchronized JSONObject toJSON() {
+      if (json_ != null && jsonInSync_) {
+         return json_;
+      }
+      try {
+         if (json_ == null) {
+            json_ = new JSONObject();
+            for (int i = 0; i < keys_.length; ++i) {
+               json_.put(getKeyName(keys_[i]), values_[i]);
+            }
+         }
+         putIndices(json_, channelIndex_, sliceIndex_, frameIndex_, positionIndex_);
+         if (width_ > 0) {
+            json_.put(WIDTH, Integer.valueOf(width_));
+         }
+         if (height_ > 0) {
+            json_.put(HEIGHT, Integer.valueOf(height_));
+         }
+         json_.putOpt(PIXEL_TYPE, pixelType_);
+         if (!Double.isNaN(elapsedTimeMs_)) {
+            json_.put(ELAPSED_TIME, Double.valueOf(elapsedTimeMs_));
+         }
+         json_.putOpt(TIME, time_);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+      }
+      jsonInSync_ = true;
+      return json_;
+   }
+
+   /**
+    * Sets the four index tags of a tags object. Uses Integer.valueOf, which
+    * avoids allocating for the small values nearly all indices have.
+    */
+   public static void putIndices(JSONObject tags, int channel, int slice,
+           int frame, int position) throws JSONException {
+      tags.put(CHANNEL_INDEX, Integer.valueOf(channel));
+      tags.put(SLICE_INDEX, Integer.valueOf(slice));
+      tags.put(FRAME_INDEX, Integer.valueOf(frame));
+      tags.put(POSITION_INDEX, Integer.valueOf(position));
+   }
+
+   /////////////////////Binary encoding/////////////////////////
+
+   /**
+    * Writes ImageMetadata to a binary stream. Key strings are written only
+    * the first time an encoder sees them; later images refer to them by id.
+    */
+   public static class Encoder {
+      private final HashMap<Integer, Integer> streamIds_ = new HashMap<Integer, Integer>();
+      private final HashSet<Integer> ignoredKeys_ = new HashSet<Integer>();
+
+      /**
+       * Leaves a tag out of everything this encoder writes, e.g. "Summary"
+       * when the summary metadata is stored separately.
+       */
+      public void ignoreKey(String key) {
+         ignoredKeys_.add(getKeyId(key));
+      }
+
+      public void write(ImageMetadata md, DataOutput out) throws IOException {
+         out.writeInt(md.channelIndex_);
+         out.writeInt(md.sliceIndex_);
+         out.writeInt(md.frameIndex_);
+         out.writeInt(md.positionIndex_);
+         out.writeInt(md.width_);
+         out.writeInt(md.height_);
+         writeString(md.pixelType_, out);
+         out.writeDouble(md.elapsedTimeMs_);
+         writeString(md.time_, out);
+
+         md.collectOtherTags();
+         int n = 0;
+         for (int key : md.keys_) {
+            if (!ignoredKeys_.contains(key)) {
+               ++n;
+            }
+         }
+         out.writeInt(n);
+         for (int i = 0; i < md.keys_.length; ++i) {
+            if (ignoredKeys_.contains(md.keys_[i])) {
+               continue;
+            }
+            Integer streamId = streamIds_.get(md.keys_[i]);
+            if (streamId == null) {
+               // new key: negative marker followed by its name
+               streamId = streamIds_.size();
+               streamIds_.put(md.keys_[i], streamId);
+               out.writeInt(-1 - streamId);
+               out.writeUTF(getKeyName(md.keys_[i]));
+            } else {
+               out.writeInt(streamId);
+            }
+            writeValue(md.values_[i], out);
+         }
+      }
+   }
+
+   /**
+    * Reads ImageMetadata written by an Encoder. A Decoder must see the
+    * images in the order they were written.
+    */
+   public static class Decoder {
+      private final ArrayList<Integer> keyIds_ = new ArrayList<Integer>();
+
+      public ImageMetadata read(DataInput in) throws IOException {
+         ImageMetadata md = new ImageMetadata();
+         md.channelIndex_ = in.readInt();
+         md.sliceIndex_ = in.readInt();
+         md.frameIndex_ = in.readInt();
+         md.positionIndex_ = in.readInt();
+         md.width_ = in.readInt();
+         md.height_ = in.readInt();
+         md.pixelType_ = readString(in);
+         if (md.pixelType_ != null) {
+            md.pixelType_ = md.pixelType_.intern();
+         }
+         md.elapsedTimeMs_ = in.readDouble();
+         md.time_ = readString(in);
+
+         int n = in.readInt();
+         md.keys_ = new int[n];
+         md.values_ = new Object[n];
+         for (int i = 0; i < n; ++i) {
+            int streamId = in.readInt();
+            if (streamId < 0) {
+               keyIds_.add(getKeyId(in.readUTF()));
+               streamId = -1 - streamId;
+            }
+            md.keys_[i] = keyIds_.get(streamId);
+            md.values_[i] = readValue(in);
+         }
+         return md;
+      }
+   }
+
+   /*
+    * Fills keys_/values_ with the non-fixed tags of the wrapped JSONObject.
+    */
+   private synchronized void collectOtherTags() {
+      if (json_ == null) {
+         return;
+      }
+      int n = json_.length();
+      int[] keys = new int[n];
+      Object[] values = new Object[n];
+      int count = 0;
+      Iterator<String> it = json_.keys();
+      while (it.hasNext()) {
+         String key = it.next();
+         if (!isFixedKey(key)) {
+            keys[count] = getKeyId(key);
+            values[count] = json_.opt(key);
+            ++count;
+         }
+      }
+      keys_ = new int[count];
+      values_ = new Object[count];
+      System.arraycopy(keys, 0, keys_, 0, count);
+      System.arraycopy(values, 0, values_, 0, count);
+   }
+
+   private static void writeString(String s, DataOutput out) throws IOException {
+      out.writeBoolean(s != null);
+      if (s != null) {
+         out.writeUTF(s);
+      }
+   }
+
+   private static String readString(DataInput in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+   }
+
+   private static void writeValue(Object value, DataOutput out) throws IOException {
+      if (value instanceof Integer) {
+         out.writeByte(INT_VALUE);
+         out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+         out.writeByte(LONG_VALUE);
+         out.writeLong((Long) value);
+      } else if (value instanceof Number) {
+         out.writeByte(DOUBLE_VALUE);
+         out.writeDouble(((Number) value).doubleValue());
+      } else if (value instanceof Boolean) {
+         out.writeByte(BOOLEAN_VALUE);
+         out.writeBoolean((Boolean) value);
+      } else if (value instanceof JSONObject) {
+         out.writeByte(JSON_OBJECT_VALUE);
+         writeLongString(value.toString(), out);
+      } else if (value instanceof JSONArray) {
+         out.writeByte(JSON_ARRAY_VALUE);
+         writeLongString(value.toString(), out);
+      } else if (value == null || value == JSONObject.NULL) {
+         out.writeByte(NULL_VALUE);
+      } else {
+         out.writeByte(STRING_VALUE);
+         writeLongString(value.toString(), out);
+      }
+   }
+
+   private static Object readValue(DataInput in) throws IOException {
+      byte type = in.readByte();
+      try {
+         switch (type) {
+            case INT_VALUE:
+               return Integer.valueOf(in.readInt());
+            case LONG_VALUE:
+               return Long.valueOf(in.readLong());
+            case DOUBLE_VALUE:
+               return Double.valueOf(in.readDouble());
+            case BOOLEAN_VALUE:
+               return Boolean.valueOf(in.readBoolean());
+            case STRING_VALUE:
+               return readLongString(in);
+            case JSON_OBJECT_VALUE:
+               return new JSONObject(readLongString(in));
+            case JSON_ARRAY_VALUE:
+               return new JSONArray(readLongString(in));
+            default:
+               return JSONObject.NULL;
+         }
+      } catch (JSONException ex) {
+         throw new IOException(ex.getMessage());
+      }
+   }
+
+   // writeUTF is limited to 64 kB, which nested summary metadata can exceed.
+   private static void writeLongString(String s, DataOutput out) throws IOException {
+      byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readLongString(DataInput in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+   }
+
+   /////////////////////Fixed fields/////////////////////////
+
+   public String getLabel() {
+      return MDUtils.generateLabel(channelIndex_, sliceIndex_, frameIndex_, positionIndex_);
+   }
+
+   public int getChannelIndex() {
+      return channelIndex_;
+   }
+
+   public synchronized void setChannelIndex(int channelIndex) {
+      channelIndex_ = channelIndex;
+      jsonInSync_ = false;
+   }
+
+   public int getSliceIndex() {
+      return sliceIndex_;
+   }
+
+   public synchronized void setSliceIndex(int sliceIndex) {
+      sliceIndex_ = sliceIndex;
+      jsonInSync_ = false;
+   }
+
+   public int getFrameIndex() {
+      return frameIndex_;
+   }
+
+   public synchronized void setFrameIndex(int frameIndex) {
+      frameIndex_ = frameIndex;
+      jsonInSync_ = false;
+   }
+
+   public int getPositionIndex() {
+      return positionIndex_;
+   }
+
+   public synchronized void setPositionIndex(int positionIndex) {
+      positionIndex_ = positionIndex;
+      jsonInSync_ = false;
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   public String getPixelType() {
+      return pixelType_;
+   }
+
+   public double getElapsedTimeMs() {
+      return elapsedTimeMs_;
+   }
+
+   public String getTime() {
+      return time_;
+   }
+}
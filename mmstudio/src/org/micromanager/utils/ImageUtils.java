@@ -10,6 +10,10 @@ import ij.process.ShortProcessor;
 import java.awt.Color;
 
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
@@ -19,6 +23,10 @@ import org.micromanager.api.TaggedImageStorage;
 
 public class ImageUtils {
    private static Class storageClass_ = TaggedImageStorageDiskDefault.class;
+   // Histograms computed ahead of display, keyed by pixel array identity.
+   // Each is used once, before the pixels can have been changed in place.
+   private static final Map<Object, int[]> histograms_ =
+           Collections.synchronizedMap(new WeakHashMap<Object, int[]>());
 
    public static int BppToImageType(long Bpp) {
       int BppInt = (int) Bpp;
@@ -344,6 +352,61 @@ public class ImageUtils {
       return new LUT(8,size,rs,gs,bs);
    }
 
+   /**
+    * Returns the size in bytes of a pixel array (byte[], short[], int[] or
+    * float[]), or 0 if pixels is not a recognized array.
+    */
+   public static long getByteSize(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         return 2L * ((short[]) pixels).length;
+      } else if (pixels instanceof int[]) {
+         return 4L * ((int[]) pixels).length;
+      } else if (pixels instanceof float[]) {
+         return 4L * ((float[]) pixels).length;
+      } else {
+         return 0;
+      }
+   }
+
+   /**
+    * Computes the histogram of a byte[] or short[] pixel array and remembers
+    * it, so that getHistogram() does not have to go over the pixels again
+    * when they are displayed. Lets image producers do this work off the
+    * event dispatch thread.
+    */
+   public static void precomputeHistogram(Object pixels, int width, int height) {
+      int type;
+      if (pixels instanceof byte[]) {
+         type = ImagePlus.GRAY8;
+      } else if (pixels instanceof short[]) {
+         type = ImagePlus.GRAY16;
+      } else {
+         return;
+      }
+      ImageProcessor proc = makeProcessor(type, width, height, pixels);
+      histograms_.put(pixels, proc.getHistogram());
+   }
+
+   /**
+    * Returns the histogram of the given processor, using the one computed by
+    * precomputeHistogram() when it covers the same pixels. A precomputed
+    * histogram is only used for the first call, so that later calls see any
+    * in-place changes to the pixels.
+    */
+   public static int[] getHistogram(ImageProcessor proc) {
+      Rectangle roi = proc.getRoi();
+      if (proc.getMask() == null && roi.x == 0 && roi.y == 0
+              && roi.width == proc.getWidth() && roi.height == proc.getHeight()) {
+         int[] histogram = histograms_.remove(proc.getPixels());
+         if (histogram != null) {
+            return histogram;
+         }
+      }
+      return proc.getHistogram();
+   }
+
    public static void setPreferredTaggedImageStorage(Class storageClass) {
       storageClass_ = storageClass;
    }
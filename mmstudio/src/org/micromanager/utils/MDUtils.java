@@ -27,13 +27,39 @@ public class MDUtils {
    private final static SimpleDateFormat iso8601modified_ =
            new SimpleDateFormat("yyyy-MM-dd E HH:mm:ss Z");
 
+   /**
+    * Returns a deep copy of map. Nested JSONObjects and JSONArrays are
+    * copied; strings, numbers and booleans are immutable and shared.
+    */
    public static JSONObject copy(JSONObject map) {
       try {
-         return new JSONObject(map.toString());
+         return (JSONObject) copyValue(map);
       } catch (JSONException e) {
          return null;
       }
    }
+
+   private static Object copyValue(Object value) throws JSONException {
+      if (value instanceof JSONObject) {
+         JSONObject map = (JSONObject) value;
+         JSONObject copy = new JSONObject();
+         Iterator<String> keys = map.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            copy.put(key, copyValue(map.get(key)));
+         }
+         return copy;
+      } else if (value instanceof JSONArray) {
+         JSONArray array = (JSONArray) value;
+         JSONArray copy = new JSONArray();
+         for (int i = 0; i < array.length(); ++i) {
+            copy.put(copyValue(array.get(i)));
+         }
+         return copy;
+      } else {
+         return value;
+      }
+   }
    
    public static int getPositionIndex(JSONObject map) throws JSONException {
       return map.getInt("PositionIndex");